@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.metrics;
+
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceActivityQueue;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinPathwayControllerBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registers the StateSpace's metrics with the platform MBeanServer (under the "net.fhirfactory.pegacorn.ladon.statespace"
+ * domain), from where they can be scraped by any JMX-capable collector.
+ */
+@Singleton
+@Startup
+public class StateSpaceMetricsRegistrar {
+    private static final Logger LOG = LoggerFactory.getLogger(StateSpaceMetricsRegistrar.class);
+    public static final String METRICS_DOMAIN = "net.fhirfactory.pegacorn.ladon.statespace";
+
+    private List<ObjectName> registeredNames;
+
+    @Inject
+    @Any
+    private Instance<TwinInstanceActivityQueue> activityQueues;
+
+    @Inject
+    @Any
+    private Instance<TwinPathwayControllerBase> pathwayControllers;
+
+    public StateSpaceMetricsRegistrar(){
+        this.registeredNames = new ArrayList<>();
+    }
+
+    @PostConstruct
+    protected void initialise(){
+        for(TwinInstanceActivityQueue activityQueue: activityQueues){
+            register("TwinActivityQueue", activityQueue.getTwinType().getTwinTypeName(), new TwinActivityQueueMetrics(activityQueue));
+        }
+        for(TwinPathwayControllerBase pathwayController: pathwayControllers){
+            register("TwinLock", pathwayController.getPathwayName(), new TwinLockMetrics(pathwayController));
+        }
+    }
+
+    @PreDestroy
+    protected void shutdown(){
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName registeredName: registeredNames){
+            try {
+                mbeanServer.unregisterMBean(registeredName);
+            } catch (JMException unregisterError) {
+                LOG.debug(".shutdown(): Unable to unregister {}: {}", registeredName, unregisterError.getMessage());
+            }
+        }
+        registeredNames.clear();
+    }
+
+    protected void register(String metricsType, String metricsName, Object mxBean){
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(METRICS_DOMAIN + ":type=" + metricsType + ",name=" + ObjectName.quote(metricsName));
+            if(mbeanServer.isRegistered(objectName)){
+                mbeanServer.unregisterMBean(objectName);
+            }
+            mbeanServer.registerMBean(mxBean, objectName);
+            registeredNames.add(objectName);
+            LOG.info(".register(): Registered metrics {}", objectName);
+        } catch (JMException registrationError) {
+            LOG.warn(".register(): Unable to register {} metrics for {}: {}", metricsType, metricsName, registrationError.getMessage());
+        }
+    }
+}
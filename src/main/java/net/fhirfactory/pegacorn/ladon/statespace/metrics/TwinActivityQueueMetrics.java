@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.metrics;
+
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.StimulusQueueingOutcomeEnum;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceActivityQueue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts a TwinInstanceActivityQueue to its MXBean. The counts are read straight from the queue's running totals; the
+ * rates are worked out from the change in those totals since the previous sample (taken at most once a second).
+ */
+public class TwinActivityQueueMetrics implements TwinActivityQueueMetricsMXBean {
+    private static final long MIN_SAMPLE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final TwinInstanceActivityQueue activityQueue;
+    private long lastSampleTime;
+    private long lastEnqueuedCount;
+    private long lastConsumedCount;
+    private double enqueueRate;
+    private double consumeRate;
+
+    public TwinActivityQueueMetrics(TwinInstanceActivityQueue activityQueue){
+        this.activityQueue = activityQueue;
+        this.lastSampleTime = System.nanoTime();
+        this.lastEnqueuedCount = activityQueue.getEnqueuedStimulusCount();
+        this.lastConsumedCount = activityQueue.getConsumedStimulusCount();
+        this.enqueueRate = 0.0;
+        this.consumeRate = 0.0;
+    }
+
+    @Override
+    public String getTwinType() {
+        return (activityQueue.getTwinType().getTwinTypeName());
+    }
+
+    @Override
+    public long getPendingStimulusCount() {
+        return (activityQueue.getPendingStimulusCount());
+    }
+
+    @Override
+    public int getActiveTwinCount() {
+        return (activityQueue.getActiveTwinCount());
+    }
+
+    @Override
+    public int getReadyTwinCount() {
+        return (activityQueue.getReadyTwinCount());
+    }
+
+    @Override
+    public long getOldestPendingStimulusAgeMillis() {
+        return (activityQueue.getOldestPendingStimulusAge());
+    }
+
+    @Override
+    public long getEnqueuedStimulusCount() {
+        return (activityQueue.getEnqueuedStimulusCount());
+    }
+
+    @Override
+    public long getConsumedStimulusCount() {
+        return (activityQueue.getConsumedStimulusCount());
+    }
+
+    @Override
+    public long getDiscardedStimulusCount() {
+        return (activityQueue.getDiscardedStimulusCount());
+    }
+
+    @Override
+    public long getRejectedStimulusCount() {
+        return (activityQueue.getOverflowCount(StimulusQueueingOutcomeEnum.REJECTED));
+    }
+
+    @Override
+    public double getEnqueueRatePerSecond() {
+        sample();
+        synchronized (this) {
+            return (enqueueRate);
+        }
+    }
+
+    @Override
+    public double getConsumeRatePerSecond() {
+        sample();
+        synchronized (this) {
+            return (consumeRate);
+        }
+    }
+
+    @Override
+    public long getOffHeapBytesInUse() {
+        return (activityQueue.getOffHeapBytesInUse());
+    }
+
+    @Override
+    public long getOffHeapFallbackCount() {
+        return (activityQueue.getOffHeapFallbackCount());
+    }
+
+    @Override
+    public long getHeldForReorderingCount() {
+        return (activityQueue.getHeldStimulusCount());
+    }
+
+    @Override
+    public long getLateStimulusCount() {
+        return (activityQueue.getLateStimulusCount());
+    }
+
+    @Override
+    public long getRedeliveredStimulusCount() {
+        return (activityQueue.getRedeliveredStimulusCount());
+    }
+
+    @Override
+    public long getDeadLetteredStimulusCount() {
+        return (activityQueue.getDeadLetteredStimulusCount());
+    }
+
+    private synchronized void sample(){
+        long now = System.nanoTime();
+        long elapsed = now - lastSampleTime;
+        if(elapsed < MIN_SAMPLE_INTERVAL){
+            return;
+        }
+        long enqueuedCount = activityQueue.getEnqueuedStimulusCount();
+        long consumedCount = activityQueue.getConsumedStimulusCount();
+        double elapsedSeconds = (double) elapsed / TimeUnit.SECONDS.toNanos(1);
+        enqueueRate = (enqueuedCount - lastEnqueuedCount) / elapsedSeconds;
+        consumeRate = (consumedCount - lastConsumedCount) / elapsedSeconds;
+        lastSampleTime = now;
+        lastEnqueuedCount = enqueuedCount;
+        lastConsumedCount = consumedCount;
+    }
+}
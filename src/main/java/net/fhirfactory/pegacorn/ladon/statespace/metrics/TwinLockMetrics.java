@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.metrics;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinPathwayControllerBase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adapts a TwinPathwayControllerBase's lock telemetry to its MXBean. Everything is read straight from the controller's
+ * running totals, so nothing is computed unless asked for.
+ */
+public class TwinLockMetrics implements TwinLockMetricsMXBean {
+    private static final int HOTTEST_TWIN_INSTANCE_COUNT = 10;
+
+    private final TwinPathwayControllerBase pathwayController;
+
+    public TwinLockMetrics(TwinPathwayControllerBase pathwayController){
+        this.pathwayController = pathwayController;
+    }
+
+    @Override
+    public String getPathwayName() {
+        return (pathwayController.getPathwayName());
+    }
+
+    @Override
+    public String getTwinResourceType() {
+        return (pathwayController.getTwinResourceType().name());
+    }
+
+    @Override
+    public long getLockGrantedCount() {
+        return (pathwayController.getLockGrantedCount());
+    }
+
+    @Override
+    public long getLockRefusedCount() {
+        return (pathwayController.getLockRefusedCount());
+    }
+
+    @Override
+    public long getLockWaitedCount() {
+        return (pathwayController.getLockWaitedCount());
+    }
+
+    @Override
+    public long getContentionCount() {
+        return (pathwayController.getLockRefusedCount() + pathwayController.getLockWaitedCount());
+    }
+
+    @Override
+    public long getLockedCheckCount() {
+        return (pathwayController.getLockedCheckCount());
+    }
+
+    @Override
+    public long getLockedCheckHitCount() {
+        return (pathwayController.getLockedCheckHitCount());
+    }
+
+    @Override
+    public long getLeaseExpiryCount() {
+        return (pathwayController.getLeaseExpiryCount());
+    }
+
+    @Override
+    public long[] getHoldTimeHistogram() {
+        return (pathwayController.getLockHoldTimeHistogram());
+    }
+
+    @Override
+    public long getHoldTimeP50Micros() {
+        return (TwinPathwayControllerBase.getLockTimePercentile(pathwayController.getLockHoldTimeHistogram(), 0.50));
+    }
+
+    @Override
+    public long getHoldTimeP99Micros() {
+        return (TwinPathwayControllerBase.getLockTimePercentile(pathwayController.getLockHoldTimeHistogram(), 0.99));
+    }
+
+    @Override
+    public long[] getWaitTimeHistogram() {
+        return (pathwayController.getLockWaitTimeHistogram());
+    }
+
+    @Override
+    public long getWaitTimeP50Micros() {
+        return (TwinPathwayControllerBase.getLockTimePercentile(pathwayController.getLockWaitTimeHistogram(), 0.50));
+    }
+
+    @Override
+    public long getWaitTimeP99Micros() {
+        return (TwinPathwayControllerBase.getLockTimePercentile(pathwayController.getLockWaitTimeHistogram(), 0.99));
+    }
+
+    @Override
+    public String[] getHottestTwinInstances() {
+        List<String> hottestTwins = new ArrayList<>();
+        for(Map.Entry<DigitalTwinIdentifier, Long> hotTwinEntry: pathwayController.getHottestTwinInstances(HOTTEST_TWIN_INSTANCE_COUNT).entrySet()){
+            hottestTwins.add(hotTwinEntry.getKey() + "=" + hotTwinEntry.getValue());
+        }
+        return (hottestTwins.toArray(new String[0]));
+    }
+
+    @Override
+    public void resetHottestTwinInstances() {
+        pathwayController.resetHottestTwinInstances();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.metrics;
+
+/**
+ * The JMX view of a single TwinPathwayControllerBase's twin instance locks (one per twin type). Times are in
+ * microseconds; the histograms are base-2 buckets (bucket n counting times from 2^(n-1)us up to 2^n us).
+ */
+public interface TwinLockMetricsMXBean {
+    String getPathwayName();
+    String getTwinResourceType();
+    long getLockGrantedCount();
+    long getLockRefusedCount();
+    long getLockWaitedCount();
+    long getContentionCount();
+    long getLockedCheckCount();
+    long getLockedCheckHitCount();
+    long getLeaseExpiryCount();
+    long[] getHoldTimeHistogram();
+    long getHoldTimeP50Micros();
+    long getHoldTimeP99Micros();
+    long[] getWaitTimeHistogram();
+    long getWaitTimeP50Micros();
+    long getWaitTimeP99Micros();
+    String[] getHottestTwinInstances();
+    void resetHottestTwinInstances();
+}
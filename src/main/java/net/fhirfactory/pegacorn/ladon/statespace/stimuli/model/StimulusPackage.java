@@ -22,14 +22,23 @@
 package net.fhirfactory.pegacorn.ladon.statespace.stimuli.model;
 
 import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
+import net.fhirfactory.pegacorn.ladon.model.stimuli.StimulusType;
 import net.fhirfactory.pegacorn.petasos.model.uow.UoW;
 import org.hl7.fhir.r4.model.Identifier;
 
-public class StimulusPackage {
+import java.io.Serializable;
+import java.time.Instant;
+
+public class StimulusPackage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private Identifier targetTwinIdentifier;
     private BehaviourIdentifier targetBehaviourIdentifier;
     private UoW stimulusContent;
     private StimulusPackageIdentifier id;
+    private String sourceResourceId;
+    private StimulusType stimulusType;
+    private Instant sourceEventTime;
 
     public StimulusPackage(StimulusPackageIdentifier newId, Identifier targetTwin, BehaviourIdentifier targetBehaviour, UoW stimulusContent){
         this.targetTwinIdentifier = targetTwin;
@@ -77,4 +86,40 @@ public class StimulusPackage {
     public void setTargetBehaviourIdentifier(BehaviourIdentifier targetBehaviour) {
         this.targetBehaviourIdentifier = targetBehaviour;
     }
+
+    /**
+     * The identity (e.g. "Observation/1234") of the resource this stimulus was derived from - used by the activity
+     * queue to coalesce successive stimuli for the same resource.
+     */
+    public String getSourceResourceId() {
+        return sourceResourceId;
+    }
+
+    public void setSourceResourceId(String sourceResourceId) {
+        this.sourceResourceId = sourceResourceId;
+    }
+
+    /**
+     * The StimulusType (as matched by the behaviour's positiveStaticFilterStimulus()) - used by the activity queue to
+     * prioritise this stimulus against the others pending for the same twin.
+     */
+    public StimulusType getStimulusType() {
+        return stimulusType;
+    }
+
+    public void setStimulusType(StimulusType stimulusType) {
+        this.stimulusType = stimulusType;
+    }
+
+    /**
+     * When the change that gave rise to this stimulus happened at its source (e.g. the resource's meta.lastUpdated) -
+     * used by the activity queue, if the twin type reorders its stimuli, to hand them out in the order they happened.
+     */
+    public Instant getSourceEventTime() {
+        return sourceEventTime;
+    }
+
+    public void setSourceEventTime(Instant sourceEventTime) {
+        this.sourceEventTime = sourceEventTime;
+    }
 }
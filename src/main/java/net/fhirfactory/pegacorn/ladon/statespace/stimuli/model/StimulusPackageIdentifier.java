@@ -1,6 +1,11 @@
 package net.fhirfactory.pegacorn.ladon.statespace.stimuli.model;
 
-public class StimulusPackageIdentifier {
+import java.io.Serializable;
+import java.util.Objects;
+
+public class StimulusPackageIdentifier implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private String id;
 
     public StimulusPackageIdentifier(String id){
@@ -10,4 +15,26 @@ public class StimulusPackageIdentifier {
     public String getId() {
         return id;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return (true);
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return (false);
+        }
+        StimulusPackageIdentifier that = (StimulusPackageIdentifier) o;
+        return (Objects.equals(id, that.id));
+    }
+
+    @Override
+    public int hashCode() {
+        return (Objects.hashCode(id));
+    }
+
+    @Override
+    public String toString() {
+        return ("StimulusPackageIdentifier{id=" + id + "}");
+    }
 }
@@ -1,7 +1,9 @@
 package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.stimulicollector.common;
 
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -14,6 +16,8 @@ public abstract class TwinStimuliCollectorBase extends MOAStandardWUP {
     @Inject
     TopicIM topicServer;
 
+    private final Set<TopicToken> subscribedTopics = ConcurrentHashMap.newKeySet();
+
     @Override
     protected Set<TopicToken> specifySubscriptionTopics() {
         return (new HashSet<>());
@@ -38,12 +42,38 @@ public abstract class TwinStimuliCollectorBase extends MOAStandardWUP {
     abstract protected String specifyTwinTypeName();
     abstract protected String specifyTwinTypeVersion();
 
+    public String getTwinTypeName(){
+        return(specifyTwinTypeName());
+    }
+
     public void addTopicToSubscription(TopicToken newTopic){
-        if(newTopic != null ){
+        if(newTopic != null && subscribedTopics.add(newTopic)){
             topicServer.addTopicSubscriber(newTopic,getWupTopologyNodeElement().getNodeInstanceID());
         }
     }
 
+    public void addTopicsToSubscription(Collection<TopicToken> newTopics){
+        for(TopicToken newTopic: newTopics){
+            addTopicToSubscription(newTopic);
+        }
+    }
+
+    public void removeTopicFromSubscription(TopicToken oldTopic){
+        if(oldTopic != null && subscribedTopics.remove(oldTopic)){
+            topicServer.removeTopicSubscriber(oldTopic,getWupTopologyNodeElement().getNodeInstanceID());
+        }
+    }
+
+    public void removeTopicsFromSubscription(Collection<TopicToken> oldTopics){
+        for(TopicToken oldTopic: oldTopics){
+            removeTopicFromSubscription(oldTopic);
+        }
+    }
+
+    public Set<TopicToken> getSubscribedTopics(){
+        return(new HashSet<>(subscribedTopics));
+    }
+
     @Override
     public void configure() throws Exception {
 
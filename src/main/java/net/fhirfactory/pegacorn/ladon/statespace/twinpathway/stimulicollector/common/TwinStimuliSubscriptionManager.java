@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.stimulicollector.common;
+
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.BehaviourCentricInclusiveFilterRulesInterface;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps a twin type's TwinStimuliCollectorBase subscribed to the union of the topics its behaviours require. Each
+ * behaviour's topics are reference counted, so (re-)registering or removing a behaviour only changes the topics that
+ * no other behaviour still needs - and those changes are held until flush(), so a set of behaviours registered
+ * together reaches the collector (and TopicIM) as one batch of additions and removals. A topic added and then removed
+ * again (or vice versa) before the flush is never pushed at all.
+ */
+public class TwinStimuliSubscriptionManager {
+    private static final Logger LOG = LoggerFactory.getLogger(TwinStimuliSubscriptionManager.class);
+
+    private String twinTypeName;
+    private HashMap<BehaviourCentricInclusiveFilterRulesInterface, Set<TopicToken>> behaviourTopics;
+    private HashMap<TopicToken, Integer> topicReferenceCounts;
+    private LinkedHashSet<TopicToken> pendingAdditions;
+    private LinkedHashSet<TopicToken> pendingRemovals;
+    private TwinStimuliCollectorBase stimuliCollector;
+
+    public TwinStimuliSubscriptionManager(String twinTypeName){
+        this.twinTypeName = twinTypeName;
+        this.behaviourTopics = new HashMap<>();
+        this.topicReferenceCounts = new HashMap<>();
+        this.pendingAdditions = new LinkedHashSet<>();
+        this.pendingRemovals = new LinkedHashSet<>();
+    }
+
+    /**
+     * Sets the collector the topic changes are pushed to, and pushes it any changes made before it was available.
+     */
+    public synchronized void bindStimuliCollector(TwinStimuliCollectorBase stimuliCollector){
+        this.stimuliCollector = stimuliCollector;
+        flush();
+    }
+
+    /**
+     * Replaces the topics the behaviour requires, referencing those it didn't require before and releasing those it
+     * no longer requires.
+     */
+    public synchronized void updateBehaviourTopics(BehaviourCentricInclusiveFilterRulesInterface behaviour, Collection<TopicToken> requiredTopics){
+        Set<TopicToken> newTopics = new HashSet<>(requiredTopics);
+        newTopics.remove(null);
+        Set<TopicToken> previousTopics = behaviourTopics.getOrDefault(behaviour, Collections.emptySet());
+        for(TopicToken topic: newTopics){
+            if(!previousTopics.contains(topic)){
+                referenceTopic(topic);
+            }
+        }
+        for(TopicToken topic: previousTopics){
+            if(!newTopics.contains(topic)){
+                releaseTopic(topic);
+            }
+        }
+        if(newTopics.isEmpty()){
+            behaviourTopics.remove(behaviour);
+        } else {
+            behaviourTopics.put(behaviour, newTopics);
+        }
+    }
+
+    public synchronized void removeBehaviourTopics(BehaviourCentricInclusiveFilterRulesInterface behaviour){
+        Set<TopicToken> previousTopics = behaviourTopics.remove(behaviour);
+        if(previousTopics != null){
+            for(TopicToken topic: previousTopics){
+                releaseTopic(topic);
+            }
+        }
+    }
+
+    private void referenceTopic(TopicToken topic){
+        if(topicReferenceCounts.merge(topic, 1, Integer::sum) == 1){
+            if(!pendingRemovals.remove(topic)){
+                pendingAdditions.add(topic);
+            }
+        }
+    }
+
+    private void releaseTopic(TopicToken topic){
+        if(topicReferenceCounts.computeIfPresent(topic, (key, count) -> count > 1 ? count - 1 : null) == null){
+            if(!pendingAdditions.remove(topic)){
+                pendingRemovals.add(topic);
+            }
+        }
+    }
+
+    /**
+     * Pushes the pending topic additions and removals to the collector. Should the collector fail to take them, they
+     * stay pending for the next flush.
+     *
+     * @return the number of topic changes pushed
+     */
+    public synchronized int flush(){
+        if(stimuliCollector == null || (pendingAdditions.isEmpty() && pendingRemovals.isEmpty())){
+            return(0);
+        }
+        List<TopicToken> additions = new ArrayList<>(pendingAdditions);
+        List<TopicToken> removals = new ArrayList<>(pendingRemovals);
+        try {
+            if(!removals.isEmpty()){
+                stimuliCollector.removeTopicsFromSubscription(removals);
+                pendingRemovals.removeAll(removals);
+            }
+            if(!additions.isEmpty()){
+                stimuliCollector.addTopicsToSubscription(additions);
+                pendingAdditions.removeAll(additions);
+            }
+        } catch(RuntimeException ex){
+            LOG.warn(".flush(): {} stimuli collector failed to take {} topic changes, retrying on next flush", twinTypeName, pendingAdditions.size() + pendingRemovals.size(), ex);
+            return(0);
+        }
+        LOG.debug(".flush(): {} subscription +{} -{} topics", twinTypeName, additions.size(), removals.size());
+        return(additions.size() + removals.size());
+    }
+
+    /**
+     * @return the topics at least one behaviour requires (whether or not yet pushed to the collector)
+     */
+    public synchronized Set<TopicToken> getRequiredTopics(){
+        return(new HashSet<>(topicReferenceCounts.keySet()));
+    }
+
+    public synchronized int getTopicReferenceCount(TopicToken topic){
+        return(topicReferenceCounts.getOrDefault(topic, 0));
+    }
+
+    public synchronized int getPendingChangeCount(){
+        return(pendingAdditions.size() + pendingRemovals.size());
+    }
+}
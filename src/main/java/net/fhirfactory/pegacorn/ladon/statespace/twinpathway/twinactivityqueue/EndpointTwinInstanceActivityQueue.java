@@ -22,9 +22,27 @@
 package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue;
 
 import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceActivityQueue;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceQueueOverflowPolicyEnum;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
 
 import javax.enterprise.context.ApplicationScoped;
 
 @ApplicationScoped
 public class EndpointTwinInstanceActivityQueue extends TwinInstanceActivityQueue {
+
+    @Override
+    protected TwinTypeEnum specifyTwinType() {
+        return (TwinTypeEnum.ENDPOINT_TWIN);
+    }
+
+    @Override
+    protected int specifyTwinInstanceQueueCapacity() {
+        return (1000);
+    }
+
+    @Override
+    protected TwinInstanceQueueOverflowPolicyEnum specifyTwinInstanceQueueOverflowPolicy() {
+        // Endpoint stimuli are largely status updates, so only the latest per resource matters once we fall behind
+        return (TwinInstanceQueueOverflowPolicyEnum.COALESCE_BY_RESOURCE_ID);
+    }
 }
@@ -22,9 +22,15 @@
 package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue;
 
 import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceActivityQueue;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
 
 import javax.enterprise.context.ApplicationScoped;
 
 @ApplicationScoped
 public class HealthcareServiceTwinActivityQueue extends TwinInstanceActivityQueue {
+
+    @Override
+    protected TwinTypeEnum specifyTwinType() {
+        return (TwinTypeEnum.HEALTHCARE_SERVICE_TWIN);
+    }
 }
@@ -22,9 +22,51 @@
 package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue;
 
 import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceActivityQueue;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceQueueOverflowPolicyEnum;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceQueueStorageModeEnum;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
 
 import javax.enterprise.context.ApplicationScoped;
 
+/**
+ * Patient twins take the base defaults (unbounded, on-heap queues). A deployment with device feeds (e.g. ICU
+ * observations) that run well ahead of the behaviours, and with many dormant Patient twins, can opt in to bounded
+ * queues that spill to disk and hold their backlog off-heap via the system properties below - e.g.
+ * -Dpegacorn.ladon.statespace.patient-twin.queue-capacity=10000
+ * -Dpegacorn.ladon.statespace.patient-twin.overflow-policy=SPILL_TO_DISK
+ * -Dpegacorn.ladon.statespace.patient-twin.storage-mode=OFF_HEAP
+ */
 @ApplicationScoped
 public class PatientTwinInstanceActivityQueue extends TwinInstanceActivityQueue {
+    private static final String QUEUE_CAPACITY_PROPERTY = "pegacorn.ladon.statespace.patient-twin.queue-capacity";
+    private static final String OVERFLOW_POLICY_PROPERTY = "pegacorn.ladon.statespace.patient-twin.overflow-policy";
+    private static final String STORAGE_MODE_PROPERTY = "pegacorn.ladon.statespace.patient-twin.storage-mode";
+
+    @Override
+    protected TwinTypeEnum specifyTwinType() {
+        return (TwinTypeEnum.PATIENT_TWIN);
+    }
+
+    @Override
+    protected int specifyTwinInstanceQueueCapacity() {
+        return (Integer.getInteger(QUEUE_CAPACITY_PROPERTY, super.specifyTwinInstanceQueueCapacity()));
+    }
+
+    @Override
+    protected TwinInstanceQueueOverflowPolicyEnum specifyTwinInstanceQueueOverflowPolicy() {
+        String overflowPolicy = System.getProperty(OVERFLOW_POLICY_PROPERTY);
+        if (overflowPolicy == null) {
+            return (super.specifyTwinInstanceQueueOverflowPolicy());
+        }
+        return (TwinInstanceQueueOverflowPolicyEnum.valueOf(overflowPolicy.trim()));
+    }
+
+    @Override
+    protected TwinInstanceQueueStorageModeEnum specifyStorageMode() {
+        String storageMode = System.getProperty(STORAGE_MODE_PROPERTY);
+        if (storageMode == null) {
+            return (super.specifyStorageMode());
+        }
+        return (TwinInstanceQueueStorageModeEnum.valueOf(storageMode.trim()));
+    }
 }
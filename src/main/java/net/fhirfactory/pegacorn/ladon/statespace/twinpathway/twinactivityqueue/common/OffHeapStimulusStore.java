@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds serialised stimuli in direct (off-heap) memory, so that a large backlog of pending stimuli does not have to be
+ * walked by the garbage collector.
+ *
+ * Memory is handed out in size classes (powers of two, from MIN_SLOT_SIZE up to a quarter of the slab size), each
+ * served from slabs of equal sized slots. A freed slot is reused by the next stimulus of its size class, so a
+ * long-lived stimulus only ever pins its own slot rather than the rest of the memory allocated alongside it, and the
+ * wasted space is bounded by the rounding up to the size class. A slab whose slots are all free is released (bar one
+ * per size class, kept to absorb the next burst). Stimuli too large for a slot get a direct buffer of their own.
+ *
+ * The direct memory allocated is capped at the budget given to the constructor. Once the budget is reached (or the JVM
+ * refuses a direct allocation) store() returns null and the caller holds that stimulus on the heap instead.
+ */
+class OffHeapStimulusStore {
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapStimulusStore.class);
+
+    private static final int MIN_SLOT_SIZE = 64;
+    private static final int MIN_SLOTS_PER_SLAB = 4;
+
+    private final int slabSize;
+    private final long memoryBudget;
+    private final SizeClass[] sizeClasses;
+    private final int maxSlotSize;
+    private final AtomicLong allocatedBytes;
+    private final AtomicLong liveBytes;
+    private final LongAdder fallbackCount;
+
+    static class Handle {
+        private final Slab slab;
+        private final ByteBuffer dedicatedBuffer;
+        private final int slot;
+        private final int length;
+
+        Handle(Slab slab, ByteBuffer dedicatedBuffer, int slot, int length) {
+            this.slab = slab;
+            this.dedicatedBuffer = dedicatedBuffer;
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    private static class SizeClass {
+        private final int slotSize;
+        private final ArrayDeque<Slab> slabsWithFreeSlots;
+        private Slab emptySlab;
+
+        SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+            this.slabsWithFreeSlots = new ArrayDeque<>();
+            this.emptySlab = null;
+        }
+    }
+
+    /**
+     * A direct buffer divided into equal sized slots, with a stack of the free ones. Guarded by its SizeClass.
+     */
+    private static class Slab {
+        private final SizeClass sizeClass;
+        private final ByteBuffer buffer;
+        private final int[] freeSlots;
+        private int freeSlotCount;
+
+        Slab(SizeClass sizeClass, ByteBuffer buffer) {
+            this.sizeClass = sizeClass;
+            this.buffer = buffer;
+            int slotCount = buffer.capacity() / sizeClass.slotSize;
+            this.freeSlots = new int[slotCount];
+            for (int slot = 0; slot < slotCount; slot++) {
+                this.freeSlots[slot] = slotCount - 1 - slot;
+            }
+            this.freeSlotCount = slotCount;
+        }
+
+        boolean isEmpty() {
+            return (freeSlotCount == freeSlots.length);
+        }
+    }
+
+    OffHeapStimulusStore(int slabSize, long memoryBudget) {
+        this.slabSize = Math.max(slabSize, MIN_SLOT_SIZE * MIN_SLOTS_PER_SLAB);
+        this.memoryBudget = memoryBudget;
+        int sizeClassCount = 0;
+        for (int slotSize = MIN_SLOT_SIZE; slotSize <= this.slabSize / MIN_SLOTS_PER_SLAB; slotSize <<= 1) {
+            sizeClassCount += 1;
+        }
+        this.sizeClasses = new SizeClass[sizeClassCount];
+        for (int sizeClass = 0; sizeClass < sizeClassCount; sizeClass++) {
+            this.sizeClasses[sizeClass] = new SizeClass(MIN_SLOT_SIZE << sizeClass);
+        }
+        this.maxSlotSize = MIN_SLOT_SIZE << (sizeClassCount - 1);
+        this.allocatedBytes = new AtomicLong(0);
+        this.liveBytes = new AtomicLong(0);
+        this.fallbackCount = new LongAdder();
+    }
+
+    /**
+     * @return the handle, or null if the budget has been reached (the caller must hold the stimulus on-heap instead)
+     */
+    Handle store(byte[] encodedStimulus) {
+        Handle handle;
+        if (encodedStimulus.length > maxSlotSize) {
+            ByteBuffer dedicatedBuffer = allocate(encodedStimulus.length);
+            if (dedicatedBuffer == null) {
+                return (null);
+            }
+            dedicatedBuffer.put(encodedStimulus);
+            handle = new Handle(null, dedicatedBuffer, 0, encodedStimulus.length);
+        } else {
+            SizeClass sizeClass = sizeClassFor(encodedStimulus.length);
+            synchronized (sizeClass) {
+                Slab slab = sizeClass.slabsWithFreeSlots.peekFirst();
+                if (slab == null) {
+                    ByteBuffer slabBuffer = allocate(slabSize);
+                    if (slabBuffer == null) {
+                        return (null);
+                    }
+                    slab = new Slab(sizeClass, slabBuffer);
+                    sizeClass.slabsWithFreeSlots.addFirst(slab);
+                }
+                if (slab == sizeClass.emptySlab) {
+                    sizeClass.emptySlab = null;
+                }
+                int slot = slab.freeSlots[--slab.freeSlotCount];
+                if (slab.freeSlotCount == 0) {
+                    sizeClass.slabsWithFreeSlots.pollFirst();
+                }
+                ByteBuffer writeView = slab.buffer.duplicate();
+                writeView.position(slot * sizeClass.slotSize);
+                writeView.put(encodedStimulus);
+                handle = new Handle(slab, null, slot, encodedStimulus.length);
+            }
+        }
+        liveBytes.addAndGet(encodedStimulus.length);
+        return (handle);
+    }
+
+    byte[] load(Handle handle) {
+        byte[] encodedStimulus = new byte[handle.length];
+        ByteBuffer readView;
+        if (handle.slab == null) {
+            readView = handle.dedicatedBuffer.duplicate();
+            readView.position(0);
+        } else {
+            readView = handle.slab.buffer.duplicate();
+            readView.position(handle.slot * handle.slab.sizeClass.slotSize);
+        }
+        readView.get(encodedStimulus);
+        return (encodedStimulus);
+    }
+
+    void free(Handle handle) {
+        liveBytes.addAndGet(-handle.length);
+        if (handle.slab == null) {
+            // Let the GC reclaim the direct memory
+            allocatedBytes.addAndGet(-handle.dedicatedBuffer.capacity());
+            return;
+        }
+        Slab slab = handle.slab;
+        SizeClass sizeClass = slab.sizeClass;
+        synchronized (sizeClass) {
+            if (slab.freeSlotCount == 0) {
+                sizeClass.slabsWithFreeSlots.addLast(slab);
+            }
+            slab.freeSlots[slab.freeSlotCount++] = handle.slot;
+            if (slab.isEmpty()) {
+                releaseEmptySlab(sizeClass, slab);
+            }
+        }
+    }
+
+    /**
+     * Keeps one empty slab per size class, and releases any other. Must be called whilst holding the size class.
+     */
+    private void releaseEmptySlab(SizeClass sizeClass, Slab slab) {
+        if (sizeClass.emptySlab == null) {
+            sizeClass.emptySlab = slab;
+            return;
+        }
+        sizeClass.slabsWithFreeSlots.remove(slab);
+        allocatedBytes.addAndGet(-slab.buffer.capacity());
+    }
+
+    private SizeClass sizeClassFor(int length) {
+        int sizeClass = 0;
+        while ((MIN_SLOT_SIZE << sizeClass) < length) {
+            sizeClass += 1;
+        }
+        return (sizeClasses[sizeClass]);
+    }
+
+    private ByteBuffer allocate(int size) {
+        long allocatedAfter = allocatedBytes.addAndGet(size);
+        if (allocatedAfter > memoryBudget) {
+            allocatedBytes.addAndGet(-size);
+            recordFallback("the off-heap budget of " + memoryBudget + " bytes has been reached");
+            return (null);
+        }
+        try {
+            return (ByteBuffer.allocateDirect(size));
+        } catch (OutOfMemoryError directMemoryExhausted) {
+            allocatedBytes.addAndGet(-size);
+            recordFallback("the JVM refused a direct allocation: " + directMemoryExhausted.getMessage());
+            return (null);
+        }
+    }
+
+    private void recordFallback(String reason) {
+        fallbackCount.increment();
+        if (fallbackCount.sum() == 1) {
+            LOG.warn(".store(): Holding stimuli on-heap, as {}", reason);
+        }
+    }
+
+    long getAllocatedBytes() {
+        return (allocatedBytes.get());
+    }
+
+    long getLiveBytes() {
+        return (liveBytes.get());
+    }
+
+    /**
+     * @return the number of stimuli that could not be stored off-heap (and so were held on-heap instead)
+     */
+    long getFallbackCount() {
+        return (fallbackCount.sum());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackageIdentifier;
+
+/**
+ * A StimulusPackage as held on a twin instance's queue, along with the queue's own book-keeping for it.
+ *
+ * The StimulusPackage itself is either held directly (ON_HEAP) or, serialised, in the activity queue's
+ * OffHeapStimulusStore (OFF_HEAP) - in which case only the identifiers needed by the queue stay on the heap.
+ *
+ * The priority (resolved from the StimulusPackage's StimulusType when it was queued) and the time it was queued are
+ * what the twin instance's queue uses to pick which stimulus to hand out next.
+ */
+class PendingStimulus {
+    static final long NOT_JOURNALED = 0L;
+    static final long UNKNOWN_EVENT_TIME = Long.MIN_VALUE;
+
+    private final StimulusPackageIdentifier stimulusId;
+    private final String sourceResourceId;
+    private final int priority;
+    private long enqueueTime;
+    private StimulusPackage stimulus;
+    private OffHeapStimulusStore.Handle offHeapHandle;
+    private long journalSequence;
+    private long eventTime;
+    private int deliveryAttempts;
+
+    PendingStimulus(StimulusPackage stimulus, int priority){
+        this(stimulus, priority, NOT_JOURNALED);
+    }
+
+    PendingStimulus(StimulusPackage stimulus, int priority, long journalSequence){
+        this.stimulusId = stimulus.getId();
+        this.sourceResourceId = stimulus.getSourceResourceId();
+        this.priority = priority;
+        this.enqueueTime = System.nanoTime();
+        this.stimulus = stimulus;
+        this.offHeapHandle = null;
+        this.journalSequence = journalSequence;
+        this.eventTime = UNKNOWN_EVENT_TIME;
+    }
+
+    PendingStimulus(StimulusPackageIdentifier stimulusId, String sourceResourceId, int priority, OffHeapStimulusStore.Handle offHeapHandle, long journalSequence){
+        this.stimulusId = stimulusId;
+        this.sourceResourceId = sourceResourceId;
+        this.priority = priority;
+        this.enqueueTime = System.nanoTime();
+        this.stimulus = null;
+        this.offHeapHandle = offHeapHandle;
+        this.journalSequence = journalSequence;
+        this.eventTime = UNKNOWN_EVENT_TIME;
+    }
+
+    StimulusPackageIdentifier getStimulusId() {
+        return stimulusId;
+    }
+
+    String getSourceResourceId() {
+        return sourceResourceId;
+    }
+
+    int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return when the stimulus was queued (System.nanoTime())
+     */
+    long getEnqueueTime() {
+        return enqueueTime;
+    }
+
+    void setEnqueueTime(long enqueueTime) {
+        this.enqueueTime = enqueueTime;
+    }
+
+    /**
+     * @return the StimulusPackage, or null if it is held off-heap (see TwinInstanceActivityQueue.materialise())
+     */
+    StimulusPackage getStimulus() {
+        return stimulus;
+    }
+
+    OffHeapStimulusStore.Handle getOffHeapHandle() {
+        return offHeapHandle;
+    }
+
+    /**
+     * Detaches the off-heap handle (so that it can only be freed once).
+     */
+    OffHeapStimulusStore.Handle takeOffHeapHandle() {
+        OffHeapStimulusStore.Handle handle = offHeapHandle;
+        offHeapHandle = null;
+        return handle;
+    }
+
+    long getJournalSequence() {
+        return journalSequence;
+    }
+
+    void setJournalSequence(long journalSequence) {
+        this.journalSequence = journalSequence;
+    }
+
+    /**
+     * Keeps the (materialised) StimulusPackage of a stimulus that is being put back on its queue for redelivery, so
+     * that it need not go back off-heap.
+     */
+    void retainStimulus(StimulusPackage stimulus) {
+        this.stimulus = stimulus;
+    }
+
+    /**
+     * @return the number of failed attempts to deliver the stimulus, including this one
+     */
+    int recordFailedDelivery() {
+        deliveryAttempts += 1;
+        return deliveryAttempts;
+    }
+
+    /**
+     * @return the source event time (milliseconds since the epoch), or UNKNOWN_EVENT_TIME
+     */
+    long getEventTime() {
+        return eventTime;
+    }
+
+    void setEventTime(long eventTime) {
+        this.eventTime = eventTime;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Thrown by a TwinStimulusHandler that cannot go on with a twin instance's stimuli yet (e.g. the twin instance is
+ * locked elsewhere), rather than holding up the partition thread while it waits. The stimuli it had not handled go
+ * back to the head of the twin instance's queue - without counting as a failed delivery - and the twin instance sits
+ * out until the resumption completes, while the partition carries on serving its other twin instances.
+ */
+public class StimulusDeliveryDeferredException extends RuntimeException {
+    private final int handledCount;
+    private final CompletionStage<?> resumption;
+
+    public StimulusDeliveryDeferredException(int handledCount, CompletionStage<?> resumption){
+        // Not a failure, so there is no need for a stack trace
+        super(null, null, false, false);
+        this.handledCount = handledCount;
+        this.resumption = resumption;
+    }
+
+    /**
+     * @return the number of stimuli (from the front of those delivered) that were handled before the handler had to
+     * stop
+     */
+    public int getHandledCount() {
+        return handledCount;
+    }
+
+    public CompletionStage<?> getResumption() {
+        return resumption;
+    }
+}
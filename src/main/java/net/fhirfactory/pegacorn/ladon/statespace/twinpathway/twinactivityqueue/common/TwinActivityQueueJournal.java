@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, memory-mapped write-ahead journal of the stimuli accepted by a TwinInstanceActivityQueue.
+ *
+ * Every accepted stimulus is appended as an ENQUEUE record (with a journal sequence number) and, once it has been
+ * drained from the queue, an ACK record is appended for it. On startup the journal is read sequentially and any
+ * stimulus without an ACK is handed back to the activity queue - so nothing that was pending at the time of a crash
+ * or restart is lost.
+ *
+ * The journal is made up of fixed size segment files. As the ACK for a stimulus is usually written to a later segment
+ * than its ENQUEUE, segments are only ever deleted from the front of the journal: the oldest segment is deleted once
+ * every stimulus journaled in it has been acknowledged (and it is no longer being written to), then the next oldest,
+ * and so on - so a segment holding ACKs is never deleted while a segment holding the ENQUEUEs they refer to remains.
+ * Durability (forcing the mapped segment to disk) uses group commit: the first producer to need a
+ * force does it on behalf of every record appended up to that point, so under load the cost of the force is shared.
+ *
+ * Record layout: [length:int][crc32:int][type:byte][body...], where the length and crc cover the type and body. A zero
+ * length marks the (unwritten) end of a segment, and a crc mismatch marks a torn write - replay stops at either.
+ */
+class TwinActivityQueueJournal {
+    private static final Logger LOG = LoggerFactory.getLogger(TwinActivityQueueJournal.class);
+
+    private static final byte ENQUEUE_RECORD = 1;
+    private static final byte ACK_RECORD = 2;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_FILE_PREFIX = "journal-";
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+
+    private final Path journalDirectory;
+    private final int segmentSize;
+    private final ConcurrentSkipListMap<Long, JournalSegment> segments;
+    private final ConcurrentSkipListMap<Long, JournalSegment> segmentsByFirstSequence;
+    private final Object forceLock;
+    private JournalSegment currentSegment;
+    private long nextSegmentNumber;
+    private long lastSequence;
+    private volatile long durableSequence;
+
+    /**
+     * A stimulus read back from the journal during replay that has not been acknowledged.
+     */
+    static class UnacknowledgedRecord {
+        private final long journalSequence;
+        private final byte[] encodedTwinIdentifier;
+        private final byte[] encodedStimulus;
+
+        UnacknowledgedRecord(long journalSequence, byte[] encodedTwinIdentifier, byte[] encodedStimulus) {
+            this.journalSequence = journalSequence;
+            this.encodedTwinIdentifier = encodedTwinIdentifier;
+            this.encodedStimulus = encodedStimulus;
+        }
+
+        long getJournalSequence() {
+            return journalSequence;
+        }
+
+        byte[] getEncodedTwinIdentifier() {
+            return encodedTwinIdentifier;
+        }
+
+        byte[] getEncodedStimulus() {
+            return encodedStimulus;
+        }
+    }
+
+    private static class JournalSegment {
+        private final long segmentNumber;
+        private final Path segmentPath;
+        private final MappedByteBuffer segmentBuffer;
+        private final AtomicInteger unacknowledgedCount;
+        private long firstSequence;
+
+        JournalSegment(long segmentNumber, Path segmentPath, MappedByteBuffer segmentBuffer) {
+            this.segmentNumber = segmentNumber;
+            this.segmentPath = segmentPath;
+            this.segmentBuffer = segmentBuffer;
+            this.unacknowledgedCount = new AtomicInteger(0);
+            this.firstSequence = PendingStimulus.NOT_JOURNALED;
+        }
+    }
+
+    TwinActivityQueueJournal(Path journalDirectory, int segmentSize) {
+        this.journalDirectory = journalDirectory;
+        this.segmentSize = segmentSize;
+        this.segments = new ConcurrentSkipListMap<>();
+        this.segmentsByFirstSequence = new ConcurrentSkipListMap<>();
+        this.forceLock = new Object();
+        this.currentSegment = null;
+        this.nextSegmentNumber = 1L;
+        this.lastSequence = 0L;
+        this.durableSequence = 0L;
+    }
+
+    //
+    // Startup (Replay)
+    //
+
+    /**
+     * Reads the existing segments (in order), and returns the stimuli that were journaled but never acknowledged - in
+     * the order they were originally journaled. New records are appended to a fresh segment.
+     */
+    synchronized List<UnacknowledgedRecord> open() throws IOException {
+        Files.createDirectories(journalDirectory);
+        List<Path> segmentPaths = new ArrayList<>();
+        try (DirectoryStream<Path> segmentFiles = Files.newDirectoryStream(journalDirectory, SEGMENT_FILE_PREFIX + "*" + SEGMENT_FILE_SUFFIX)) {
+            for (Path segmentPath : segmentFiles) {
+                segmentPaths.add(segmentPath);
+            }
+        }
+        segmentPaths.sort((first, second) -> Long.compare(segmentNumberOf(first), segmentNumberOf(second)));
+        LinkedHashMap<Long, UnacknowledgedRecord> unacknowledgedRecords = new LinkedHashMap<>();
+        for (Path segmentPath : segmentPaths) {
+            JournalSegment segment = mapSegment(segmentPath, segmentNumberOf(segmentPath), Math.max(segmentSize, (int) Files.size(segmentPath)));
+            replaySegment(segment, unacknowledgedRecords);
+            segments.put(segment.segmentNumber, segment);
+            if (segment.firstSequence != PendingStimulus.NOT_JOURNALED) {
+                segmentsByFirstSequence.put(segment.firstSequence, segment);
+            }
+            nextSegmentNumber = Math.max(nextSegmentNumber, segment.segmentNumber + 1);
+        }
+        for (long journalSequence : unacknowledgedRecords.keySet()) {
+            segmentFor(journalSequence).unacknowledgedCount.incrementAndGet();
+        }
+        currentSegment = null;
+        deleteAcknowledgedPrefix();
+        durableSequence = lastSequence;
+        LOG.info(".open(): Journal {} replayed, {} unacknowledged stimuli recovered", journalDirectory, unacknowledgedRecords.size());
+        return (new ArrayList<>(unacknowledgedRecords.values()));
+    }
+
+    private void replaySegment(JournalSegment segment, Map<Long, UnacknowledgedRecord> unacknowledgedRecords) {
+        MappedByteBuffer buffer = segment.segmentBuffer;
+        buffer.position(0);
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int recordStart = buffer.position();
+            int recordLength = buffer.getInt();
+            int recordCrc = buffer.getInt();
+            if (recordLength <= 0 || recordLength > buffer.remaining()) {
+                buffer.position(recordStart);
+                break;
+            }
+            byte[] record = new byte[recordLength];
+            buffer.get(record);
+            crc.reset();
+            crc.update(record, 0, recordLength);
+            if ((int) crc.getValue() != recordCrc) {
+                LOG.warn(".replaySegment(): Torn record at offset {} of {}, ignoring the remainder of the segment", recordStart, segment.segmentPath);
+                buffer.position(recordStart);
+                break;
+            }
+            ByteBuffer body = ByteBuffer.wrap(record);
+            byte recordType = body.get();
+            if (recordType == ENQUEUE_RECORD) {
+                long journalSequence = body.getLong();
+                byte[] encodedTwinIdentifier = new byte[body.getInt()];
+                body.get(encodedTwinIdentifier);
+                byte[] encodedStimulus = new byte[body.getInt()];
+                body.get(encodedStimulus);
+                unacknowledgedRecords.put(journalSequence, new UnacknowledgedRecord(journalSequence, encodedTwinIdentifier, encodedStimulus));
+                if (segment.firstSequence == PendingStimulus.NOT_JOURNALED) {
+                    segment.firstSequence = journalSequence;
+                }
+                lastSequence = Math.max(lastSequence, journalSequence);
+            } else if (recordType == ACK_RECORD) {
+                int acknowledgedCount = body.getInt();
+                for (int counter = 0; counter < acknowledgedCount; counter++) {
+                    unacknowledgedRecords.remove(body.getLong());
+                }
+            }
+        }
+        // Anything after a torn/partial record is discarded: new records always go into a fresh segment
+        buffer.position(buffer.limit());
+    }
+
+    //
+    // Append
+    //
+
+    /**
+     * Appends an ENQUEUE record for the stimulus. The record is not guaranteed to be on disk until
+     * awaitDurable(sequence) has returned.
+     *
+     * @return the journal sequence number assigned to the stimulus
+     */
+    long appendEnqueue(byte[] encodedTwinIdentifier, byte[] encodedStimulus) throws IOException {
+        int bodyLength = 1 + 8 + 4 + encodedTwinIdentifier.length + 4 + encodedStimulus.length;
+        synchronized (this) {
+            long journalSequence = lastSequence + 1;
+            ByteBuffer body = ByteBuffer.allocate(bodyLength);
+            body.put(ENQUEUE_RECORD);
+            body.putLong(journalSequence);
+            body.putInt(encodedTwinIdentifier.length);
+            body.put(encodedTwinIdentifier);
+            body.putInt(encodedStimulus.length);
+            body.put(encodedStimulus);
+            JournalSegment segment = writeRecord(body.array());
+            if (segment.firstSequence == PendingStimulus.NOT_JOURNALED) {
+                segment.firstSequence = journalSequence;
+                segmentsByFirstSequence.put(journalSequence, segment);
+            }
+            segment.unacknowledgedCount.incrementAndGet();
+            lastSequence = journalSequence;
+            return (journalSequence);
+        }
+    }
+
+    /**
+     * Appends a single ACK record covering all of the supplied journal sequence numbers. ACKs are not forced to disk:
+     * at worst a crash means some already-processed stimuli are replayed.
+     */
+    void acknowledge(long[] journalSequences, int count) {
+        if (count == 0) {
+            return;
+        }
+        ByteBuffer body = ByteBuffer.allocate(1 + 4 + 8 * count);
+        body.put(ACK_RECORD);
+        body.putInt(count);
+        for (int counter = 0; counter < count; counter++) {
+            body.putLong(journalSequences[counter]);
+        }
+        synchronized (this) {
+            try {
+                writeRecord(body.array());
+            } catch (IOException ackError) {
+                LOG.warn(".acknowledge(): Unable to journal ACK (stimuli will be replayed on restart): {}", ackError.getMessage());
+                return;
+            }
+        }
+        for (int counter = 0; counter < count; counter++) {
+            JournalSegment segment = segmentFor(journalSequences[counter]);
+            if (segment != null && segment.unacknowledgedCount.decrementAndGet() == 0) {
+                deleteAcknowledgedPrefix();
+            }
+        }
+    }
+
+    void acknowledge(long journalSequence) {
+        acknowledge(new long[]{journalSequence}, 1);
+    }
+
+    /**
+     * Writes the record into the current segment, rolling to a new segment if it does not fit. Must be called whilst
+     * holding the journal's monitor.
+     */
+    private JournalSegment writeRecord(byte[] record) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + record.length;
+        if (currentSegment == null || currentSegment.segmentBuffer.remaining() < recordSize) {
+            rollSegment(recordSize);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        MappedByteBuffer buffer = currentSegment.segmentBuffer;
+        int recordStart = buffer.position();
+        // Write the body and crc first, and the length last, so a reader never sees a length without its record
+        buffer.position(recordStart + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record);
+        buffer.putInt(recordStart, record.length);
+        return (currentSegment);
+    }
+
+    private void rollSegment(int minimumSize) throws IOException {
+        JournalSegment previousSegment = currentSegment;
+        if (previousSegment != null) {
+            previousSegment.segmentBuffer.force();
+        }
+        long segmentNumber = nextSegmentNumber++;
+        Path segmentPath = journalDirectory.resolve(String.format("%s%020d%s", SEGMENT_FILE_PREFIX, segmentNumber, SEGMENT_FILE_SUFFIX));
+        currentSegment = mapSegment(segmentPath, segmentNumber, Math.max(segmentSize, minimumSize));
+        segments.put(segmentNumber, currentSegment);
+        if (previousSegment != null) {
+            deleteAcknowledgedPrefix();
+        }
+    }
+
+    private JournalSegment mapSegment(Path segmentPath, long segmentNumber, int size) throws IOException {
+        try (FileChannel segmentChannel = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer segmentBuffer = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return (new JournalSegment(segmentNumber, segmentPath, segmentBuffer));
+        }
+    }
+
+    //
+    // Group Commit
+    //
+
+    /**
+     * Blocks until the record with the given journal sequence number (and every record before it) is on disk.
+     */
+    void awaitDurable(long journalSequence) {
+        if (durableSequence >= journalSequence) {
+            return;
+        }
+        synchronized (forceLock) {
+            if (durableSequence >= journalSequence) {
+                return;
+            }
+            JournalSegment segmentToForce;
+            long forcedUpTo;
+            synchronized (this) {
+                segmentToForce = currentSegment;
+                forcedUpTo = lastSequence;
+            }
+            // Earlier segments were forced when we rolled past them
+            if (segmentToForce != null) {
+                segmentToForce.segmentBuffer.force();
+            }
+            durableSequence = forcedUpTo;
+        }
+    }
+
+    //
+    // Housekeeping
+    //
+
+    private JournalSegment segmentFor(long journalSequence) {
+        Map.Entry<Long, JournalSegment> segmentEntry = segmentsByFirstSequence.floorEntry(journalSequence);
+        if (segmentEntry == null) {
+            return (null);
+        }
+        return (segmentEntry.getValue());
+    }
+
+    /**
+     * Deletes the oldest segments, in order, up to (but not including) the first one that still has an unacknowledged
+     * stimulus in it or is still being written to.
+     */
+    private void deleteAcknowledgedPrefix() {
+        synchronized (this) {
+            while (!segments.isEmpty()) {
+                JournalSegment oldestSegment = segments.firstEntry().getValue();
+                if (oldestSegment == currentSegment || oldestSegment.unacknowledgedCount.get() > 0) {
+                    return;
+                }
+                segments.remove(oldestSegment.segmentNumber, oldestSegment);
+                if (oldestSegment.firstSequence != PendingStimulus.NOT_JOURNALED) {
+                    segmentsByFirstSequence.remove(oldestSegment.firstSequence, oldestSegment);
+                }
+                try {
+                    Files.deleteIfExists(oldestSegment.segmentPath);
+                } catch (IOException deleteError) {
+                    LOG.warn(".deleteAcknowledgedPrefix(): Unable to delete journal segment {}: {}", oldestSegment.segmentPath, deleteError.getMessage());
+                }
+            }
+        }
+    }
+
+    synchronized void close() {
+        for (JournalSegment segment : segments.values()) {
+            segment.segmentBuffer.force();
+        }
+        durableSequence = lastSequence;
+    }
+
+    private static long segmentNumberOf(Path segmentPath) {
+        String fileName = segmentPath.getFileName().toString();
+        return (Long.parseLong(fileName.substring(SEGMENT_FILE_PREFIX.length(), fileName.length() - SEGMENT_FILE_SUFFIX.length())));
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackageIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One partition of a partitioned TwinInstanceActivityQueue. Producers hand stimuli over through the partition's ring
+ * buffer; everything else - the per-twin FIFOs, the duplicate index and the round-robin of twin instances with work
+ * pending - belongs to the partition's own thread, so none of it needs to be thread-safe.
+ *
+ * The partition only takes from its ring while its backlog is below the ring's capacity, so a handler that falls
+ * behind causes the ring to fill and producers to see REJECTED.
+ *
+ * Stimuli are only acknowledged once the handler has returned. If it throws, the batch goes back to the head of the
+ * twin instance's FIFO and the twin instance sits out the activity queue's redelivery delay (other twin instances
+ * carry on being served) - until a stimulus has failed the maximum number of times, when it is dead-lettered. If it
+ * defers them instead (see StimulusDeliveryDeferredException), the unhandled stimuli go back without counting as a
+ * failure, and the twin instance sits out until the handler's resumption completes.
+ */
+class TwinActivityQueuePartition implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(TwinActivityQueuePartition.class);
+
+    private static final int RING_DRAIN_BATCH = 256;
+    private static final int IDLE_SPIN_COUNT = 64;
+
+    private final int partitionIndex;
+    private final TwinInstanceActivityQueue activityQueue;
+    private final TwinActivityRingBuffer ringBuffer;
+    private final int deliveryBatchSize;
+    private final HashMap<DigitalTwinIdentifier, PartitionTwin> partitionTwins;
+    private final ArrayDeque<PartitionTwin> readyTwins;
+    private final ArrayDeque<PartitionTwin> retryingTwins;
+    private final ConcurrentLinkedQueue<PartitionTwin> resumedTwins;
+    private final TwinActivityRingBuffer.Consumer ringConsumer;
+    private int backlog;
+    private TwinStimulusHandler handler;
+    private volatile Thread partitionThread;
+    private volatile boolean idle;
+    private volatile boolean running;
+
+    private static class PartitionTwin {
+        private final DigitalTwinIdentifier twinIdentifier;
+        private final ArrayDeque<PendingStimulus> stimuli;
+        private final HashSet<StimulusPackageIdentifier> pendingStimulusIds;
+        private boolean retrying;
+        private long retryTime;
+
+        PartitionTwin(DigitalTwinIdentifier twinIdentifier){
+            this.twinIdentifier = twinIdentifier;
+            this.stimuli = new ArrayDeque<>();
+            this.pendingStimulusIds = new HashSet<>();
+            this.retrying = false;
+            this.retryTime = 0L;
+        }
+    }
+
+    TwinActivityQueuePartition(int partitionIndex, TwinInstanceActivityQueue activityQueue, int ringSize, int deliveryBatchSize){
+        this.partitionIndex = partitionIndex;
+        this.activityQueue = activityQueue;
+        this.ringBuffer = new TwinActivityRingBuffer(ringSize);
+        this.deliveryBatchSize = Math.max(deliveryBatchSize, 1);
+        this.partitionTwins = new HashMap<>();
+        this.readyTwins = new ArrayDeque<>();
+        this.retryingTwins = new ArrayDeque<>();
+        this.resumedTwins = new ConcurrentLinkedQueue<>();
+        this.ringConsumer = this::accept;
+        this.backlog = 0;
+        this.idle = false;
+        this.running = false;
+    }
+
+    //
+    // Producer Side
+    //
+
+    boolean offer(DigitalTwinIdentifier twinInstanceIdentifier, PendingStimulus pendingStimulus){
+        if(!ringBuffer.offer(twinInstanceIdentifier, pendingStimulus)){
+            return(false);
+        }
+        wakeIfIdle();
+        return(true);
+    }
+
+    private void wakeIfIdle(){
+        if(idle){
+            Thread consumerThread = partitionThread;
+            if(consumerThread != null){
+                LockSupport.unpark(consumerThread);
+            }
+        }
+    }
+
+    //
+    // Partition Thread
+    //
+
+    void start(TwinStimulusHandler handler, String threadName){
+        this.handler = handler;
+        this.running = true;
+        Thread newThread = new Thread(this, threadName);
+        newThread.setDaemon(true);
+        this.partitionThread = newThread;
+        newThread.start();
+    }
+
+    void stop(){
+        running = false;
+        Thread consumerThread = partitionThread;
+        if(consumerThread != null){
+            LockSupport.unpark(consumerThread);
+        }
+    }
+
+    @Override
+    public void run() {
+        int idleSpins = 0;
+        while(running){
+            int acceptedCount = 0;
+            if(backlog < ringBuffer.capacity()){
+                acceptedCount = ringBuffer.drain(ringConsumer, Math.min(RING_DRAIN_BATCH, ringBuffer.capacity() - backlog));
+            }
+            releaseRetryingTwins();
+            releaseResumedTwins();
+            PartitionTwin nextTwin = readyTwins.poll();
+            if(nextTwin != null){
+                deliver(nextTwin);
+                idleSpins = 0;
+            } else if(acceptedCount == 0){
+                idleSpins += 1;
+                if(idleSpins >= IDLE_SPIN_COUNT){
+                    parkUntilWork();
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+        LOG.debug(".run(): Partition {} of the {} activity queue has stopped", partitionIndex, activityQueue.getTwinType().getTwinTypeName());
+    }
+
+    /**
+     * Parks the partition thread until a producer hands over a stimulus or a deferred twin instance is resumed (both
+     * unpark us once idle is set) or, if twin instances are sitting out their redelivery delay, until the first of
+     * them is due - so an idle partition costs nothing.
+     */
+    private void parkUntilWork(){
+        idle = true;
+        // Nothing can be taken from the ring while the backlog is full, so only a retrying twin can make progress
+        if(resumedTwins.isEmpty() && (ringBuffer.isEmpty() || backlog >= ringBuffer.capacity())){
+            PartitionTwin firstRetryingTwin = retryingTwins.peek();
+            if(firstRetryingTwin == null){
+                LockSupport.park(this);
+            } else {
+                long retryWait = firstRetryingTwin.retryTime - System.nanoTime();
+                if(retryWait > 0){
+                    LockSupport.parkNanos(this, retryWait);
+                }
+            }
+        }
+        idle = false;
+    }
+
+    private void accept(DigitalTwinIdentifier twinInstanceIdentifier, PendingStimulus pendingStimulus){
+        PartitionTwin partitionTwin = partitionTwins.get(twinInstanceIdentifier);
+        if(partitionTwin == null){
+            partitionTwin = new PartitionTwin(twinInstanceIdentifier);
+            partitionTwins.put(twinInstanceIdentifier, partitionTwin);
+            activityQueue.recordTwinActive();
+        }
+        StimulusPackageIdentifier stimulusId = pendingStimulus.getStimulusId();
+        if(stimulusId != null && !partitionTwin.pendingStimulusIds.add(stimulusId)){
+            activityQueue.discardQueuedStimulus(pendingStimulus);
+            return;
+        }
+        if(partitionTwin.stimuli.isEmpty() && !partitionTwin.retrying){
+            readyTwins.add(partitionTwin);
+        }
+        partitionTwin.stimuli.add(pendingStimulus);
+        backlog += 1;
+    }
+
+    /**
+     * Hands (up to a batch of) the twin instance's stimuli to the handler, then puts the twin instance to the back of
+     * the round-robin if it still has stimuli pending - or, if the handler failed, on the retrying list.
+     */
+    private void deliver(PartitionTwin partitionTwin){
+        List<PendingStimulus> deliveredEntries = new ArrayList<>(Math.min(deliveryBatchSize, partitionTwin.stimuli.size()));
+        List<StimulusPackage> deliveredStimuli = new ArrayList<>(deliveredEntries.size());
+        while(deliveredEntries.size() < deliveryBatchSize && !partitionTwin.stimuli.isEmpty()){
+            PendingStimulus nextStimulus = partitionTwin.stimuli.poll();
+            backlog -= 1;
+            if(nextStimulus.getStimulusId() != null){
+                partitionTwin.pendingStimulusIds.remove(nextStimulus.getStimulusId());
+            }
+            StimulusPackage nextStimulusPackage = activityQueue.materialise(nextStimulus);
+            if(nextStimulusPackage != null){
+                deliveredEntries.add(nextStimulus);
+                deliveredStimuli.add(nextStimulusPackage);
+            }
+        }
+        if(!deliveredStimuli.isEmpty()){
+            try {
+                handler.handleStimuli(partitionTwin.twinIdentifier, deliveredStimuli);
+                activityQueue.acknowledgeStimuli(deliveredEntries);
+            } catch (StimulusDeliveryDeferredException deferral) {
+                int handledCount = Math.min(Math.max(deferral.getHandledCount(), 0), deliveredEntries.size());
+                activityQueue.acknowledgeStimuli(deliveredEntries.subList(0, handledCount));
+                if(handledCount < deliveredEntries.size()){
+                    returnDeferred(partitionTwin, deliveredEntries.subList(handledCount, deliveredEntries.size()), deliveredStimuli.subList(handledCount, deliveredStimuli.size()));
+                    partitionTwin.retrying = true;
+                    deferral.getResumption().whenComplete((result, resumptionError) -> {
+                        resumedTwins.add(partitionTwin);
+                        wakeIfIdle();
+                    });
+                    return;
+                }
+            } catch (RuntimeException handlerError) {
+                if(returnForRedelivery(partitionTwin, deliveredEntries, deliveredStimuli, handlerError)){
+                    partitionTwin.retrying = true;
+                    partitionTwin.retryTime = System.nanoTime() + activityQueue.getRedeliveryDelayNanos();
+                    retryingTwins.add(partitionTwin);
+                    return;
+                }
+            }
+        }
+        if(partitionTwin.stimuli.isEmpty()){
+            partitionTwins.remove(partitionTwin.twinIdentifier);
+            activityQueue.recordTwinIdle();
+        } else {
+            readyTwins.add(partitionTwin);
+        }
+    }
+
+    /**
+     * Puts the stimuli the handler failed on back at the head of the twin instance's FIFO (in their original order),
+     * other than those that have now failed the maximum number of times, which are dead-lettered. As returned stimuli
+     * are always delivered first, the exhausted ones are always at the front of the batch.
+     *
+     * @return true if any stimuli were put back
+     */
+    private boolean returnForRedelivery(PartitionTwin partitionTwin, List<PendingStimulus> failedEntries, List<StimulusPackage> failedStimuli, RuntimeException handlerError){
+        int exhaustedCount = 0;
+        for(PendingStimulus failedEntry: failedEntries){
+            if(failedEntry.recordFailedDelivery() >= activityQueue.getMaxDeliveryAttempts()){
+                exhaustedCount += 1;
+            }
+        }
+        if(exhaustedCount > 0){
+            activityQueue.deadLetter(partitionTwin.twinIdentifier, failedEntries.subList(0, exhaustedCount), failedStimuli.subList(0, exhaustedCount), handlerError);
+        }
+        int returnedCount = failedEntries.size() - exhaustedCount;
+        for(int index = failedEntries.size() - 1; index >= exhaustedCount; index--){
+            PendingStimulus failedEntry = failedEntries.get(index);
+            failedEntry.retainStimulus(failedStimuli.get(index));
+            if(failedEntry.getStimulusId() != null){
+                partitionTwin.pendingStimulusIds.add(failedEntry.getStimulusId());
+            }
+            partitionTwin.stimuli.addFirst(failedEntry);
+            backlog += 1;
+            activityQueue.recordStimulusReturned(failedEntry, true);
+        }
+        if(returnedCount > 0){
+            LOG.warn(".deliver(): Handler failed for twin {}, {} stimuli will be redelivered: {}", partitionTwin.twinIdentifier, returnedCount, handlerError.getMessage());
+        }
+        return(returnedCount > 0);
+    }
+
+    /**
+     * Moves the twin instances whose redelivery delay has passed back onto the round-robin. All twin instances wait
+     * the same delay, so the retrying list is in retry time order.
+     */
+    /**
+     * Puts the stimuli the handler deferred back at the head of the twin instance's FIFO, in their original order.
+     */
+    private void returnDeferred(PartitionTwin partitionTwin, List<PendingStimulus> deferredEntries, List<StimulusPackage> deferredStimuli){
+        for(int index = deferredEntries.size() - 1; index >= 0; index--){
+            PendingStimulus deferredEntry = deferredEntries.get(index);
+            deferredEntry.retainStimulus(deferredStimuli.get(index));
+            if(deferredEntry.getStimulusId() != null){
+                partitionTwin.pendingStimulusIds.add(deferredEntry.getStimulusId());
+            }
+            partitionTwin.stimuli.addFirst(deferredEntry);
+            backlog += 1;
+            activityQueue.recordStimulusReturned(deferredEntry, false);
+        }
+    }
+
+    private void releaseResumedTwins(){
+        PartitionTwin resumedTwin;
+        while((resumedTwin = resumedTwins.poll()) != null){
+            resumedTwin.retrying = false;
+            readyTwins.add(resumedTwin);
+        }
+    }
+
+    private void releaseRetryingTwins(){
+        if(retryingTwins.isEmpty()){
+            return;
+        }
+        long now = System.nanoTime();
+        while(!retryingTwins.isEmpty() && now - retryingTwins.peek().retryTime >= 0){
+            PartitionTwin retryTwin = retryingTwins.poll();
+            retryTwin.retrying = false;
+            readyTwins.add(retryTwin);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals for a TwinInstanceActivityQueue, maintained as stimuli come and go so that reading them does not
+ * require walking the twin instance queues.
+ *
+ * The age of the oldest pending stimulus is tracked with a ring of one-second buckets, each holding (packed into a
+ * single long) the second it currently represents and the number of pending stimuli queued in that second. A bucket
+ * that is reused for a later second while still holding stimuli hands its count over to agedOutCount - so those
+ * stimuli are known to be at least a full ring old.
+ */
+class TwinActivityQueueTelemetry {
+    private static final int AGE_BUCKET_COUNT = 1024;
+    private static final long AGE_BUCKET_WIDTH = TimeUnit.SECONDS.toNanos(1);
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+    private final long epoch;
+    private final LongAdder pendingCount;
+    private final LongAdder enqueuedCount;
+    private final LongAdder consumedCount;
+    private final LongAdder discardedCount;
+    private final AtomicLongArray ageBuckets;
+    private final LongAdder agedOutCount;
+
+    TwinActivityQueueTelemetry(){
+        this.epoch = System.nanoTime();
+        this.pendingCount = new LongAdder();
+        this.enqueuedCount = new LongAdder();
+        this.consumedCount = new LongAdder();
+        this.discardedCount = new LongAdder();
+        this.ageBuckets = new AtomicLongArray(AGE_BUCKET_COUNT);
+        this.agedOutCount = new LongAdder();
+    }
+
+    void stimulusQueued(long enqueueTime){
+        enqueuedCount.increment();
+        addPending(enqueueTime);
+    }
+
+    /**
+     * Reverses stimulusRemoved(enqueueTime, true) for a stimulus that could not be delivered and has been put back on
+     * its queue.
+     */
+    void stimulusReturned(long enqueueTime){
+        consumedCount.decrement();
+        addPending(enqueueTime);
+    }
+
+    private void addPending(long enqueueTime){
+        pendingCount.increment();
+        long second = secondOf(enqueueTime);
+        int slot = (int)(second % AGE_BUCKET_COUNT);
+        while(true){
+            long bucket = ageBuckets.get(slot);
+            long bucketSecond = bucket >>> 32;
+            long bucketCount = bucket & COUNT_MASK;
+            if(bucketSecond == second){
+                if(ageBuckets.compareAndSet(slot, bucket, bucket + 1)){
+                    return;
+                }
+            } else if(bucketSecond > second){
+                // The bucket has already moved on past this (old) stimulus
+                agedOutCount.increment();
+                return;
+            } else if(ageBuckets.compareAndSet(slot, bucket, (second << 32) | 1)){
+                if(bucketCount > 0){
+                    agedOutCount.add(bucketCount);
+                }
+                return;
+            }
+        }
+    }
+
+    void stimulusRemoved(long enqueueTime, boolean consumed){
+        if(consumed){
+            consumedCount.increment();
+        } else {
+            discardedCount.increment();
+        }
+        removePending(enqueueTime);
+    }
+
+    /**
+     * Reverses stimulusQueued() for a stimulus that turned out not to be accepted after all.
+     */
+    void stimulusNotQueued(long enqueueTime){
+        enqueuedCount.decrement();
+        removePending(enqueueTime);
+    }
+
+    private void removePending(long enqueueTime){
+        pendingCount.decrement();
+        long second = secondOf(enqueueTime);
+        int slot = (int)(second % AGE_BUCKET_COUNT);
+        while(true){
+            long bucket = ageBuckets.get(slot);
+            if((bucket >>> 32) != second || (bucket & COUNT_MASK) == 0){
+                agedOutCount.decrement();
+                return;
+            }
+            if(ageBuckets.compareAndSet(slot, bucket, bucket - 1)){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Accounts for stimuli that have been lost without ever being seen again (e.g. an unreadable spill file). Their age
+     * buckets cannot be corrected, so the oldest age may over-report until the queue next empties.
+     */
+    void stimuliLost(int lostCount){
+        discardedCount.add(lostCount);
+        pendingCount.add(-lostCount);
+    }
+
+    private long secondOf(long nanoTime){
+        return(Math.max(nanoTime - epoch, 0L) / AGE_BUCKET_WIDTH);
+    }
+
+    long getPendingCount(){
+        return(Math.max(pendingCount.sum(), 0L));
+    }
+
+    long getEnqueuedCount(){
+        return(enqueuedCount.sum());
+    }
+
+    long getConsumedCount(){
+        return(consumedCount.sum());
+    }
+
+    long getDiscardedCount(){
+        return(discardedCount.sum());
+    }
+
+    /**
+     * @return the age (in milliseconds, to the nearest second) of the oldest pending stimulus, or 0 if nothing is
+     * pending
+     */
+    long getOldestPendingAge(){
+        if(getPendingCount() == 0){
+            return(0L);
+        }
+        long currentSecond = secondOf(System.nanoTime());
+        long oldestSecond = currentSecond;
+        for(int slot = 0; slot < AGE_BUCKET_COUNT; slot++){
+            long bucket = ageBuckets.get(slot);
+            if((bucket & COUNT_MASK) > 0){
+                oldestSecond = Math.min(oldestSecond, bucket >>> 32);
+            }
+        }
+        long oldestAge = currentSecond - oldestSecond;
+        if(agedOutCount.sum() > 0){
+            oldestAge = Math.max(oldestAge, AGE_BUCKET_COUNT);
+        }
+        return(TimeUnit.SECONDS.toMillis(oldestAge));
+    }
+}
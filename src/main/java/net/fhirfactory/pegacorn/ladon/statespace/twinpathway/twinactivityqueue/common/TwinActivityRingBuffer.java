@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, multi-producer single-consumer ring of (twin instance, stimulus) pairs.
+ *
+ * Each slot carries a sequence number: a producer claims the next position by CAS on the tail, fills in the slot and
+ * then publishes it by advancing the slot's sequence; the (single) consumer only reads a slot once its sequence shows
+ * it has been published, and hands it back to the producers by advancing the sequence by a full lap.
+ */
+class TwinActivityRingBuffer {
+    private final int mask;
+    private final AtomicLongArray slotSequences;
+    private final DigitalTwinIdentifier[] twinIdentifiers;
+    private final PendingStimulus[] stimuli;
+    private final AtomicLong tail;
+    private long head;
+
+    interface Consumer {
+        void accept(DigitalTwinIdentifier twinInstanceIdentifier, PendingStimulus pendingStimulus);
+    }
+
+    TwinActivityRingBuffer(int requestedCapacity){
+        int capacity = Integer.highestOneBit(Math.max(requestedCapacity - 1, 1)) << 1;
+        this.mask = capacity - 1;
+        this.slotSequences = new AtomicLongArray(capacity);
+        for(int slot = 0; slot < capacity; slot++){
+            this.slotSequences.set(slot, slot);
+        }
+        this.twinIdentifiers = new DigitalTwinIdentifier[capacity];
+        this.stimuli = new PendingStimulus[capacity];
+        this.tail = new AtomicLong(0);
+        this.head = 0;
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer(DigitalTwinIdentifier twinInstanceIdentifier, PendingStimulus pendingStimulus){
+        while(true){
+            long position = tail.get();
+            int slot = (int)(position & mask);
+            long sequenceGap = slotSequences.get(slot) - position;
+            if(sequenceGap == 0){
+                if(tail.compareAndSet(position, position + 1)){
+                    twinIdentifiers[slot] = twinInstanceIdentifier;
+                    stimuli[slot] = pendingStimulus;
+                    slotSequences.set(slot, position + 1);
+                    return(true);
+                }
+            } else if(sequenceGap < 0){
+                return(false);
+            }
+        }
+    }
+
+    /**
+     * Consumer side only.
+     *
+     * @return the number of entries handed to the consumer
+     */
+    int drain(Consumer consumer, int maxEntries){
+        int drainedCount = 0;
+        while(drainedCount < maxEntries){
+            int slot = (int)(head & mask);
+            if(slotSequences.get(slot) != head + 1){
+                break;
+            }
+            DigitalTwinIdentifier twinInstanceIdentifier = twinIdentifiers[slot];
+            PendingStimulus pendingStimulus = stimuli[slot];
+            twinIdentifiers[slot] = null;
+            stimuli[slot] = null;
+            slotSequences.set(slot, head + mask + 1);
+            head += 1;
+            drainedCount += 1;
+            consumer.accept(twinInstanceIdentifier, pendingStimulus);
+        }
+        return(drainedCount);
+    }
+
+    /**
+     * Consumer side only.
+     */
+    boolean isEmpty(){
+        return(slotSequences.get((int)(head & mask)) != head + 1);
+    }
+
+    int capacity(){
+        return(mask + 1);
+    }
+}
@@ -21,57 +21,1372 @@
  */
 package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
 
+import net.fhirfactory.pegacorn.ladon.model.stimuli.StimulusType;
 import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
 import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackageIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.Queue;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * The per twin-instance queues of pending stimuli for a single twin type.
+ *
+ * As well as the queues themselves, a "ready set" of the twin instances that have stimuli pending is maintained. A
+ * twin instance joins the ready set when its queue goes from empty to non-empty. A consumer (orchestrator) takes a
+ * twin instance from the ready set with takeReadyTwin() (or one of its variants), processes its stimuli, and then
+ * hands it back with releaseReadyTwin() - at which point it either re-joins the ready set (if further stimuli have
+ * arrived) or leaves it. A twin instance taken from the ready set is owned by that consumer until it is released, so
+ * no two consumers taking work from the ready set will ever process the same twin instance concurrently.
+ *
+ * Each twin instance's queue is bounded (see specifyTwinInstanceQueueCapacity()) and, once full, new stimuli are dealt
+ * with as per the twin type's overflow policy (see specifyTwinInstanceQueueOverflowPolicy()).
+ *
+ * If a journal directory is specified (see specifyJournalDirectory()), every accepted stimulus is written to a
+ * write-ahead journal before addStimulus2Queue() returns, and acknowledged in the journal once it has been drained
+ * (or, if claimed via claimStimuli(), once the claim records it as processed or dead-lettered).
+ * On startup, any stimuli that were never acknowledged are replayed back onto their twin instances' queues.
+ *
+ * Twin types that may accumulate a large backlog of pending stimuli (e.g. for many dormant twin instances) can hold
+ * them off-heap (see specifyStorageMode()), in which case only a small handle per stimulus remains on the heap and the
+ * StimulusPackage is only deserialised when it is drained.
+ *
+ * Within a twin instance's queue, stimuli are handed out by priority (see specifyStimulusPriorityTable()) and, within
+ * a priority, in FIFO order. So that a steady flow of high priority stimuli cannot starve the others, a waiting
+ * stimulus gains one priority level for each aging interval it has been pending (see specifyStimulusAgingInterval()).
+ *
+ * Queue-wide totals (pending stimuli, active twin instances, age of the oldest pending stimulus, and the number of
+ * stimuli enqueued/consumed/discarded) are maintained as stimuli come and go, so they are cheap enough to be scraped
+ * frequently (see the statespace.metrics package).
+ *
+ * A background compactor (see specifyCompactionInterval()) evicts twin instance queues that have been empty for longer
+ * than the idle threshold and, once the number of twin instances has fallen well below its peak (e.g. after a bulk
+ * import), rebuilds the twin instance map at a size to suit - the old map is kept as "previous" while its entries
+ * are migrated, and lookups consult both until the migration is complete.
+ *
+ * Alternatively, a twin type can run partitioned (see specifyPartitionCount()): twin instances are hashed across N
+ * partitions, each fed through a lock-free ring buffer and drained by its own thread, which delivers each twin
+ * instance's stimuli (in order) to the TwinStimulusHandler given to startPartitions(). Partitioned stimuli never
+ * appear on the twin instance queues/ready set, and as a partition's backlog is bounded by its ring, the per-twin
+ * capacity, overflow policy and priorities do not apply - a full ring is reported to the producer as REJECTED.
+ *
+ * Finally, as stimuli for a twin instance arrive via many independent paths (and so can overtake one another), a twin
+ * type can have them put back into source event time order (see specifyReorderLatenessWindow()): stimuli that carry a
+ * source event time are held in a per twin instance reorder buffer, and only queued (as above) once the twin's event
+ * time watermark has passed them - see TwinInstanceReorderBuffer. Held stimuli count towards the twin instance's queue
+ * capacity: a stimulus that arrives once the held and queued stimuli fill it is not held, but queued straight away
+ * (after the held stimuli) so that the overflow policy is applied while the producer can still be told the outcome. A
+ * stimulus that has been held is always queued on release, capacity or not, as its producer has been told it was
+ * accepted.
+ */
 public abstract class TwinInstanceActivityQueue {
-    private ConcurrentHashMap<DigitalTwinIdentifier, ConcurrentLinkedQueue<StimulusPackage>> twinInstanceQueue;
+    private static final Logger LOG = LoggerFactory.getLogger(TwinInstanceActivityQueue.class);
+
+    private static final int DEFAULT_TWIN_INSTANCE_QUEUE_CAPACITY = Integer.MAX_VALUE;
+    private static final int MAX_TRACKED_OVERFLOWING_TWIN_INSTANCES = 1000;
+    private static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int DEFAULT_OFF_HEAP_CHUNK_SIZE = 1024 * 1024;
+    private static final long DEFAULT_OFF_HEAP_MEMORY_BUDGET = 256L * 1024 * 1024;
+    private static final int MAX_STIMULUS_PRIORITY = 15;
+    private static final long DEFAULT_STIMULUS_AGING_INTERVAL = 5000L;
+    private static final long DEFAULT_COMPACTION_INTERVAL = 30000L;
+    private static final long DEFAULT_IDLE_TWIN_EVICTION_THRESHOLD = 60000L;
+    private static final int MIN_TWIN_INSTANCE_MAP_REBUILD_PEAK = 1024;
+    private static final int TWIN_INSTANCE_MAP_REBUILD_SHRINK_FACTOR = 4;
+    private static final int DEFAULT_PARTITION_RING_SIZE = 64 * 1024;
+    private static final int DEFAULT_PARTITION_DELIVERY_BATCH_SIZE = 32;
+    private static final long PARTITION_RESTORE_BACKOFF = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int DEFAULT_REORDER_BUFFER_CAPACITY = 1024;
+    private static final long MIN_REORDER_FLUSH_INTERVAL = 10L;
+    private static final int DEFAULT_MAX_DELIVERY_ATTEMPTS = 5;
+    private static final long DEFAULT_REDELIVERY_DELAY = 1000L;
+
+    private volatile ConcurrentHashMap<DigitalTwinIdentifier, TwinInstanceStimulusQueue> twinInstanceQueue;
+    private volatile ConcurrentHashMap<DigitalTwinIdentifier, TwinInstanceStimulusQueue> previousTwinInstanceQueue;
+    private AtomicInteger peakTwinInstanceCount;
+    private long idleTwinEvictionThresholdNanos;
+    private ScheduledExecutorService compactor;
+    private TwinActivityQueuePartition[] partitions;
+    private List<TwinActivityQueueJournal.UnacknowledgedRecord> deferredRecoveredRecords;
+    private LinkedBlockingQueue<TwinInstanceStimulusQueue> readyTwinInstances;
+    private volatile Runnable readyTwinListener;
+    private TwinTypeEnum twinType;
+    private int twinInstanceQueueCapacity;
+    private TwinInstanceQueueOverflowPolicyEnum overflowPolicy;
+    private StimulusPackageCodec stimulusPackageCodec;
+    private Path spillDirectory;
+    private AtomicLong spillFileCounter;
+    private EnumMap<StimulusQueueingOutcomeEnum, LongAdder> overflowCounters;
+    private ConcurrentHashMap<DigitalTwinIdentifier, LongAdder> overflowingTwinInstances;
+    private TwinActivityQueueJournal journal;
+    private TwinInstanceQueueStorageModeEnum storageMode;
+    private OffHeapStimulusStore offHeapStore;
+    private Map<StimulusType, Integer> stimulusPriorityTable;
+    private int priorityLaneCount;
+    private long stimulusAgingIntervalNanos;
+    private TwinActivityQueueTelemetry telemetry;
+    private ConcurrentHashMap<DigitalTwinIdentifier, TwinInstanceReorderBuffer> reorderBuffers;
+    private long reorderLatenessWindow;
+    private long reorderMaximumHoldTime;
+    private int reorderBufferCapacity;
+    private ScheduledExecutorService reorderFlusher;
+    private LongAdder heldStimulusCount;
+    private LongAdder lateStimulusCount;
+    private AtomicInteger activeTwinCount;
+    private int maxDeliveryAttempts;
+    private long redeliveryDelayNanos;
+    private LongAdder redeliveredStimulusCount;
+    private LongAdder deadLetteredStimulusCount;
 
     public TwinInstanceActivityQueue() {
         this.twinInstanceQueue = new ConcurrentHashMap<>();
+        this.previousTwinInstanceQueue = null;
+        this.peakTwinInstanceCount = new AtomicInteger(0);
+        this.compactor = null;
+        this.readyTwinInstances = new LinkedBlockingQueue<>();
+        this.readyTwinListener = null;
+        this.twinType = specifyTwinType();
+        this.twinInstanceQueueCapacity = Math.max(specifyTwinInstanceQueueCapacity(), 1);
+        this.overflowPolicy = specifyTwinInstanceQueueOverflowPolicy();
+        this.stimulusPackageCodec = specifyStimulusPackageCodec();
+        this.spillDirectory = specifySpillDirectory();
+        this.spillFileCounter = new AtomicLong(0);
+        this.overflowCounters = new EnumMap<>(StimulusQueueingOutcomeEnum.class);
+        for(StimulusQueueingOutcomeEnum outcome: StimulusQueueingOutcomeEnum.values()){
+            this.overflowCounters.put(outcome, new LongAdder());
+        }
+        this.overflowingTwinInstances = new ConcurrentHashMap<>();
+        this.journal = null;
+        this.telemetry = new TwinActivityQueueTelemetry();
+        this.storageMode = specifyStorageMode();
+        if(this.storageMode == TwinInstanceQueueStorageModeEnum.OFF_HEAP){
+            this.offHeapStore = new OffHeapStimulusStore(specifyOffHeapChunkSize(), specifyOffHeapMemoryBudget());
+        } else {
+            this.offHeapStore = null;
+        }
+        this.stimulusPriorityTable = new HashMap<>();
+        int highestPriority = 0;
+        for(Map.Entry<StimulusType, Integer> priorityEntry: specifyStimulusPriorityTable().entrySet()){
+            int priority = Math.min(Math.max(priorityEntry.getValue(), 0), MAX_STIMULUS_PRIORITY);
+            this.stimulusPriorityTable.put(priorityEntry.getKey(), priority);
+            highestPriority = Math.max(highestPriority, priority);
+        }
+        this.priorityLaneCount = highestPriority + 1;
+        this.stimulusAgingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(specifyStimulusAgingInterval(), 1L));
+        this.idleTwinEvictionThresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(specifyIdleTwinEvictionThreshold(), 0L));
+        int partitionCount = specifyPartitionCount();
+        if(partitionCount > 0){
+            this.partitions = new TwinActivityQueuePartition[partitionCount];
+            for(int partitionIndex = 0; partitionIndex < partitionCount; partitionIndex++){
+                this.partitions[partitionIndex] = new TwinActivityQueuePartition(partitionIndex, this, specifyPartitionRingSize(), specifyPartitionDeliveryBatchSize());
+            }
+        } else {
+            this.partitions = null;
+        }
+        this.deferredRecoveredRecords = null;
+        this.reorderBuffers = new ConcurrentHashMap<>();
+        this.reorderLatenessWindow = Math.max(specifyReorderLatenessWindow(), 0L);
+        this.reorderMaximumHoldTime = TimeUnit.MILLISECONDS.toNanos(this.reorderLatenessWindow);
+        this.reorderBufferCapacity = Math.max(specifyReorderBufferCapacity(), 1);
+        this.reorderFlusher = null;
+        this.heldStimulusCount = new LongAdder();
+        this.lateStimulusCount = new LongAdder();
+        this.activeTwinCount = new AtomicInteger(0);
+        this.maxDeliveryAttempts = Math.max(specifyMaxDeliveryAttempts(), 1);
+        this.redeliveryDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(specifyRedeliveryDelay(), 0L));
+        this.redeliveredStimulusCount = new LongAdder();
+        this.deadLetteredStimulusCount = new LongAdder();
     }
 
-    public void addStimulus2Queue(DigitalTwinIdentifier twinInstanceIdentifier, StimulusPackage newStimuli) {
-        if (twinInstanceQueue.containsKey(twinInstanceIdentifier)) {
-            Queue<StimulusPackage> twinStimuli = twinInstanceQueue.get(twinInstanceIdentifier);
-            if (!twinStimuli.contains(newStimuli)) {
-                twinStimuli.add(newStimuli);
-            }
+    @PostConstruct
+    protected void initialise(){
+        openJournal();
+        startCompactor();
+        startReorderFlusher();
+    }
+
+    private void openJournal(){
+        Path journalDirectory = specifyJournalDirectory();
+        if(journalDirectory == null){
+            return;
+        }
+        TwinActivityQueueJournal newJournal = new TwinActivityQueueJournal(journalDirectory, specifyJournalSegmentSize());
+        List<TwinActivityQueueJournal.UnacknowledgedRecord> recoveredRecords;
+        try {
+            recoveredRecords = newJournal.open();
+        } catch (IOException journalError) {
+            throw new IllegalStateException("Unable to open the " + twinType.getTwinTypeName() + " activity queue journal at " + journalDirectory, journalError);
+        }
+        this.journal = newJournal;
+        if(partitions != null){
+            // Nothing can drain the partitions until startPartitions() is called, so replay then
+            this.deferredRecoveredRecords = recoveredRecords;
         } else {
-            ConcurrentLinkedQueue<StimulusPackage> stimuliQueue = new ConcurrentLinkedQueue<>();
-            stimuliQueue.add(newStimuli);
-            twinInstanceQueue.put(twinInstanceIdentifier, stimuliQueue);
+            restoreRecoveredRecords(recoveredRecords);
         }
     }
 
-    public StimulusPackage getNextStimulus(DigitalTwinIdentifier twinInstanceIdentifier) {
-        if (twinInstanceQueue.containsKey(twinInstanceIdentifier)) {
-            StimulusPackage nextStimulusPackage;
-            Queue<StimulusPackage> twinStimuli = twinInstanceQueue.get(twinInstanceIdentifier);
-            if (!twinStimuli.isEmpty()){
-                nextStimulusPackage = twinStimuli.poll();
-                if(twinStimuli.isEmpty()){
-                    twinInstanceQueue.remove(twinInstanceIdentifier);
+    private void restoreRecoveredRecords(List<TwinActivityQueueJournal.UnacknowledgedRecord> recoveredRecords){
+        int restoredCount = 0;
+        for(TwinActivityQueueJournal.UnacknowledgedRecord recoveredRecord: recoveredRecords){
+            try {
+                DigitalTwinIdentifier twinInstanceIdentifier = stimulusPackageCodec.decodeTwinIdentifier(recoveredRecord.getEncodedTwinIdentifier());
+                restoreStimulus(twinInstanceIdentifier, newPendingStimulus(recoveredRecord.getEncodedStimulus(), recoveredRecord.getJournalSequence()));
+                restoredCount += 1;
+            } catch (IOException decodeError) {
+                LOG.error(".restoreRecoveredRecords(): Unable to decode journaled stimulus (sequence {}), leaving it in the journal: {}", recoveredRecord.getJournalSequence(), decodeError.getMessage());
+            }
+        }
+        LOG.info(".restoreRecoveredRecords(): {} activity queue restored {} pending stimuli from its journal", twinType.getTwinTypeName(), restoredCount);
+    }
+
+    @PreDestroy
+    protected void shutdown(){
+        if(compactor != null){
+            compactor.shutdownNow();
+        }
+        if(reorderFlusher != null){
+            reorderFlusher.shutdownNow();
+            releaseReorderedStimuli(true);
+        }
+        if(partitions != null){
+            for(TwinActivityQueuePartition partition: partitions){
+                partition.stop();
+            }
+        }
+        if(journal != null){
+            journal.close();
+        }
+    }
+
+    abstract protected TwinTypeEnum specifyTwinType();
+
+    /**
+     * @return the maximum number of stimuli that will be held (in memory) for any one twin instance of this type
+     */
+    protected int specifyTwinInstanceQueueCapacity(){
+        return(DEFAULT_TWIN_INSTANCE_QUEUE_CAPACITY);
+    }
+
+    protected TwinInstanceQueueOverflowPolicyEnum specifyTwinInstanceQueueOverflowPolicy(){
+        return(TwinInstanceQueueOverflowPolicyEnum.REJECT);
+    }
+
+    protected StimulusPackageCodec specifyStimulusPackageCodec(){
+        return(new VersionedStimulusPackageCodec());
+    }
+
+    /**
+     * @return where the SPILL_TO_DISK overflow policy should write its (transient) spill files
+     */
+    protected Path specifySpillDirectory(){
+        return(Paths.get(System.getProperty("java.io.tmpdir"), "ladon-statespace", twinType.getTwinTypeName(), "spill"));
+    }
+
+    /**
+     * @return where this activity queue should keep its write-ahead journal, or null (the default) for no journal
+     */
+    protected Path specifyJournalDirectory(){
+        return(null);
+    }
+
+    protected int specifyJournalSegmentSize(){
+        return(DEFAULT_JOURNAL_SEGMENT_SIZE);
+    }
+
+    /**
+     * @return the priority of each StimulusType that should be handled ahead of routine stimuli - the higher the
+     * number (up to MAX_STIMULUS_PRIORITY) the more urgent. Stimuli of any other type have priority 0.
+     */
+    protected Map<StimulusType, Integer> specifyStimulusPriorityTable(){
+        return(Collections.emptyMap());
+    }
+
+    /**
+     * @return how long (in milliseconds) a pending stimulus must wait to be treated as one priority level higher
+     */
+    protected long specifyStimulusAgingInterval(){
+        return(DEFAULT_STIMULUS_AGING_INTERVAL);
+    }
+
+    /**
+     * @return how often (in milliseconds) the compactor runs, or 0 for no background compaction
+     */
+    protected long specifyCompactionInterval(){
+        return(DEFAULT_COMPACTION_INTERVAL);
+    }
+
+    /**
+     * @return how long (in milliseconds) a twin instance's queue must have been empty before the compactor evicts it
+     */
+    protected long specifyIdleTwinEvictionThreshold(){
+        return(DEFAULT_IDLE_TWIN_EVICTION_THRESHOLD);
+    }
+
+    /**
+     * @return the number of partitions to run this twin type across, or 0 (the default) for the shared twin instance
+     * map and ready set
+     */
+    protected int specifyPartitionCount(){
+        return(0);
+    }
+
+    /**
+     * @return the capacity of each partition's ring buffer (rounded up to a power of two)
+     */
+    protected int specifyPartitionRingSize(){
+        return(DEFAULT_PARTITION_RING_SIZE);
+    }
+
+    /**
+     * @return the most stimuli a partition will hand to the handler for one twin instance before moving on to the next
+     */
+    protected int specifyPartitionDeliveryBatchSize(){
+        return(DEFAULT_PARTITION_DELIVERY_BATCH_SIZE);
+    }
+
+    /**
+     * @return how far (in milliseconds of source event time) a stimulus may arrive behind a later one for the twin
+     * instance and still be put back in order, or 0 (the default) to queue stimuli in the order they arrive. It is
+     * also the longest a stimulus will be held back waiting for the watermark.
+     */
+    protected long specifyReorderLatenessWindow(){
+        return(0L);
+    }
+
+    /**
+     * @return the most stimuli held back for reordering for any one twin instance, beyond which the earliest are
+     * released regardless of the watermark
+     */
+    protected int specifyReorderBufferCapacity(){
+        return(DEFAULT_REORDER_BUFFER_CAPACITY);
+    }
+
+    /**
+     * @return how many times delivery of a stimulus may fail before it is dead-lettered (see deadLetterStimuli())
+     */
+    protected int specifyMaxDeliveryAttempts(){
+        return(DEFAULT_MAX_DELIVERY_ATTEMPTS);
+    }
+
+    /**
+     * @return how long (in milliseconds) a twin instance is held back after a failed delivery before its stimuli are
+     * delivered again
+     */
+    protected long specifyRedeliveryDelay(){
+        return(DEFAULT_REDELIVERY_DELAY);
+    }
+
+    protected TwinInstanceQueueStorageModeEnum specifyStorageMode(){
+        return(TwinInstanceQueueStorageModeEnum.ON_HEAP);
+    }
+
+    /**
+     * @return the size of each direct buffer (slab) allocated by the OFF_HEAP storage mode
+     */
+    protected int specifyOffHeapChunkSize(){
+        return(DEFAULT_OFF_HEAP_CHUNK_SIZE);
+    }
+
+    /**
+     * @return the most direct memory the OFF_HEAP storage mode may allocate, beyond which stimuli are held on-heap
+     */
+    protected long specifyOffHeapMemoryBudget(){
+        return(DEFAULT_OFF_HEAP_MEMORY_BUDGET);
+    }
+
+    /**
+     * @return QUEUED (or SPILLED/DROPPED_OLDEST/COALESCED, as per the overflow policy) if the stimulus is now pending,
+     * DUPLICATE if it was already pending, or REJECTED if the twin instance's queue is full - in which case the caller
+     * should hold off and try again later
+     */
+    public StimulusQueueingOutcomeEnum addStimulus2Queue(DigitalTwinIdentifier twinInstanceIdentifier, StimulusPackage newStimuli) {
+        PendingStimulus pendingStimulus = newPendingStimulus(newStimuli);
+        if(!journalStimulus(twinInstanceIdentifier, pendingStimulus)){
+            discardStorage(pendingStimulus);
+            return(StimulusQueueingOutcomeEnum.REJECTED);
+        }
+        StimulusQueueingOutcomeEnum outcome = admitPendingStimulus(twinInstanceIdentifier, pendingStimulus);
+        awaitJournaled(pendingStimulus, outcome);
+        return(outcome);
+    }
+
+    private StimulusQueueingOutcomeEnum admitPendingStimulus(DigitalTwinIdentifier twinInstanceIdentifier, PendingStimulus pendingStimulus){
+        if(reorderLatenessWindow > 0 && pendingStimulus.getEventTime() != PendingStimulus.UNKNOWN_EVENT_TIME){
+            return(holdForReordering(twinInstanceIdentifier, pendingStimulus));
+        }
+        return(offerPendingStimulus(twinInstanceIdentifier, pendingStimulus));
+    }
+
+    private StimulusQueueingOutcomeEnum offerPendingStimulus(DigitalTwinIdentifier twinInstanceIdentifier, PendingStimulus pendingStimulus){
+        if(partitions != null){
+            return(offerToPartition(twinInstanceIdentifier, pendingStimulus));
+        }
+        while(true) {
+            TwinInstanceStimulusQueue twinStimuli = getOrCreateTwinStimuli(twinInstanceIdentifier);
+            StimulusQueueingOutcomeEnum outcome = twinStimuli.offer(pendingStimulus);
+            if (outcome != null) {
+                return(outcome);
+            }
+            // The consumer retired this (empty) queue between our lookup and our add, so swap in a new one
+            removeTwinStimuli(twinInstanceIdentifier, twinStimuli);
+        }
+    }
+
+    private void restoreStimulus(DigitalTwinIdentifier twinInstanceIdentifier, PendingStimulus recoveredStimulus){
+        if(partitions != null){
+            while(offerToPartition(twinInstanceIdentifier, recoveredStimulus) == StimulusQueueingOutcomeEnum.REJECTED){
+                LockSupport.parkNanos(PARTITION_RESTORE_BACKOFF);
+            }
+            return;
+        }
+        while(true) {
+            TwinInstanceStimulusQueue twinStimuli = getOrCreateTwinStimuli(twinInstanceIdentifier);
+            if (twinStimuli.restore(recoveredStimulus)) {
+                return;
+            }
+            removeTwinStimuli(twinInstanceIdentifier, twinStimuli);
+        }
+    }
+
+    /**
+     * Adds a run of stimuli for the one twin instance, preserving their order, at the cost of a single map lookup.
+     *
+     * @return the number of the stimuli that were REJECTED (see addStimulus2Queue())
+     */
+    public int addStimuli2Queue(DigitalTwinIdentifier twinInstanceIdentifier, Collection<StimulusPackage> newStimuli) {
+        if(newStimuli == null || newStimuli.isEmpty()){
+            return(0);
+        }
+        int rejectedCount = 0;
+        List<PendingStimulus> pendingStimuli = new ArrayList<>(newStimuli.size());
+        for(StimulusPackage newStimulus: newStimuli){
+            PendingStimulus pendingStimulus = newPendingStimulus(newStimulus);
+            if(journalStimulus(twinInstanceIdentifier, pendingStimulus)){
+                pendingStimuli.add(pendingStimulus);
+            } else {
+                discardStorage(pendingStimulus);
+                rejectedCount += 1;
+            }
+        }
+        if(partitions != null || reorderLatenessWindow > 0){
+            for(PendingStimulus pendingStimulus: pendingStimuli){
+                StimulusQueueingOutcomeEnum stimulusOutcome = admitPendingStimulus(twinInstanceIdentifier, pendingStimulus);
+                awaitJournaled(pendingStimulus, stimulusOutcome);
+                if(!stimulusOutcome.isAccepted()){
+                    rejectedCount += 1;
                 }
-                return(nextStimulusPackage);
             }
+            return(rejectedCount);
+        }
+        List<PendingStimulus> duplicateStimuli = new ArrayList<>();
+        while(true) {
+            TwinInstanceStimulusQueue twinStimuli = getOrCreateTwinStimuli(twinInstanceIdentifier);
+            TwinInstanceStimulusQueue.BulkOfferOutcome outcome = twinStimuli.offerAll(pendingStimuli, duplicateStimuli);
+            if (outcome == TwinInstanceStimulusQueue.BulkOfferOutcome.QUEUED) {
+                acknowledgeStimuli(duplicateStimuli);
+                for(PendingStimulus duplicateStimulus: duplicateStimuli){
+                    discardStorage(duplicateStimulus);
+                }
+                awaitJournaled(pendingStimuli);
+                return(rejectedCount);
+            }
+            if (outcome == TwinInstanceStimulusQueue.BulkOfferOutcome.OVER_CAPACITY) {
+                for(PendingStimulus pendingStimulus: pendingStimuli){
+                    StimulusQueueingOutcomeEnum stimulusOutcome = offerPendingStimulus(twinInstanceIdentifier, pendingStimulus);
+                    awaitJournaled(pendingStimulus, stimulusOutcome);
+                    if(!stimulusOutcome.isAccepted()){
+                        rejectedCount += 1;
+                    }
+                }
+                return(rejectedCount);
+            }
+            removeTwinStimuli(twinInstanceIdentifier, twinStimuli);
+        }
+    }
+
+    private TwinInstanceStimulusQueue newTwinInstanceStimulusQueue(DigitalTwinIdentifier twinInstanceIdentifier){
+        int twinInstanceCount = twinInstanceQueue.size() + 1;
+        if(twinInstanceCount > peakTwinInstanceCount.get()){
+            peakTwinInstanceCount.accumulateAndGet(twinInstanceCount, Math::max);
+        }
+        return(new TwinInstanceStimulusQueue(twinInstanceIdentifier, this));
+    }
+
+    //
+    // Twin Instance Map
+    //
+
+    /**
+     * Looks up the twin instance's queue - in the previous map as well, if a rebuild is under way. If the map is
+     * swapped while we look, we look again (an entry is always put in the new map before it is removed from the old).
+     */
+    private TwinInstanceStimulusQueue getTwinStimuli(DigitalTwinIdentifier twinInstanceIdentifier){
+        while(true){
+            ConcurrentHashMap<DigitalTwinIdentifier, TwinInstanceStimulusQueue> currentMap = twinInstanceQueue;
+            ConcurrentHashMap<DigitalTwinIdentifier, TwinInstanceStimulusQueue> previousMap = previousTwinInstanceQueue;
+            TwinInstanceStimulusQueue twinStimuli = null;
+            if(previousMap != null){
+                twinStimuli = previousMap.get(twinInstanceIdentifier);
+            }
+            if(twinStimuli == null){
+                twinStimuli = currentMap.get(twinInstanceIdentifier);
+            }
+            if(twinStimuli != null || currentMap == twinInstanceQueue){
+                return(twinStimuli);
+            }
+        }
+    }
+
+    private TwinInstanceStimulusQueue getOrCreateTwinStimuli(DigitalTwinIdentifier twinInstanceIdentifier){
+        while(true){
+            ConcurrentHashMap<DigitalTwinIdentifier, TwinInstanceStimulusQueue> currentMap = twinInstanceQueue;
+            ConcurrentHashMap<DigitalTwinIdentifier, TwinInstanceStimulusQueue> previousMap = previousTwinInstanceQueue;
+            TwinInstanceStimulusQueue twinStimuli = null;
+            if(previousMap != null){
+                TwinInstanceStimulusQueue migratingStimuli = previousMap.get(twinInstanceIdentifier);
+                if(migratingStimuli != null){
+                    // Migrate it ourselves rather than wait for the compactor
+                    TwinInstanceStimulusQueue existingStimuli = currentMap.putIfAbsent(twinInstanceIdentifier, migratingStimuli);
+                    twinStimuli = existingStimuli != null ? existingStimuli : migratingStimuli;
+                }
+            }
+            if(twinStimuli == null){
+                twinStimuli = currentMap.computeIfAbsent(twinInstanceIdentifier, this::newTwinInstanceStimulusQueue);
+            }
+            // If the map was swapped since we read it, our entry may have been missed by the migration - so look again
+            if(currentMap == twinInstanceQueue){
+                return(twinStimuli);
+            }
+        }
+    }
+
+    private void removeTwinStimuli(DigitalTwinIdentifier twinInstanceIdentifier, TwinInstanceStimulusQueue twinStimuli){
+        ConcurrentHashMap<DigitalTwinIdentifier, TwinInstanceStimulusQueue> previousMap = previousTwinInstanceQueue;
+        twinInstanceQueue.remove(twinInstanceIdentifier, twinStimuli);
+        if(previousMap != null){
+            previousMap.remove(twinInstanceIdentifier, twinStimuli);
+        }
+    }
+
+    //
+    // Partitions
+    //
+
+    /**
+     * Starts the partition threads, which will deliver every stimulus for this twin type to the handler (replaying
+     * any stimuli recovered from the journal first).
+     */
+    public synchronized void startPartitions(TwinStimulusHandler handler){
+        if(partitions == null){
+            throw new IllegalStateException("The " + twinType.getTwinTypeName() + " activity queue is not partitioned");
+        }
+        for(int partitionIndex = 0; partitionIndex < partitions.length; partitionIndex++){
+            partitions[partitionIndex].start(handler, twinType.getTwinTypeName() + "-ActivityQueuePartition-" + partitionIndex);
+        }
+        if(deferredRecoveredRecords != null){
+            restoreRecoveredRecords(deferredRecoveredRecords);
+            deferredRecoveredRecords = null;
+        }
+    }
+
+    public boolean isPartitioned(){
+        return(partitions != null);
+    }
+
+    private StimulusQueueingOutcomeEnum offerToPartition(DigitalTwinIdentifier twinInstanceIdentifier, PendingStimulus pendingStimulus){
+        int spreadHash = twinInstanceIdentifier.hashCode() * 0x9E3779B9;
+        TwinActivityQueuePartition partition = partitions[Math.floorMod(spreadHash ^ (spreadHash >>> 16), partitions.length)];
+        // Account for it before the partition thread can possibly have consumed it
+        recordStimulusQueued(pendingStimulus);
+        if(partition.offer(twinInstanceIdentifier, pendingStimulus)){
+            return(StimulusQueueingOutcomeEnum.QUEUED);
+        }
+        telemetry.stimulusNotQueued(pendingStimulus.getEnqueueTime());
+        // The partition as a whole is full, rather than this twin instance's queue, so it is only counted
+        overflowCounters.get(StimulusQueueingOutcomeEnum.REJECTED).increment();
+        return(StimulusQueueingOutcomeEnum.REJECTED);
+    }
+
+    //
+    // Reordering
+    //
+
+    private StimulusQueueingOutcomeEnum holdForReordering(DigitalTwinIdentifier twinInstanceIdentifier, PendingStimulus pendingStimulus){
+        while(true){
+            TwinInstanceReorderBuffer reorderBuffer = reorderBuffers.computeIfAbsent(twinInstanceIdentifier, TwinInstanceReorderBuffer::new);
+            synchronized (reorderBuffer){
+                if(reorderBuffer.isRetired()){
+                    // The flusher retired this (empty) buffer between our lookup and our hold, so swap in a new one
+                    reorderBuffers.remove(twinInstanceIdentifier, reorderBuffer);
+                    continue;
+                }
+                if(partitions == null && reorderBuffer.size() + getStimulusCount(twinInstanceIdentifier) >= twinInstanceQueueCapacity){
+                    // There would be no room for it on release, so queue everything now and let the overflow policy decide
+                    releaseReorderedStimuli(reorderBuffer, System.nanoTime(), 0);
+                    StimulusQueueingOutcomeEnum outcome = offerPendingStimulus(twinInstanceIdentifier, pendingStimulus);
+                    if(outcome.isAccepted()){
+                        reorderBuffer.recordBypassed(pendingStimulus);
+                    }
+                    return(outcome);
+                }
+                if(!reorderBuffer.hold(pendingStimulus)){
+                    lateStimulusCount.increment();
+                    return(offerPendingStimulus(twinInstanceIdentifier, pendingStimulus));
+                }
+                heldStimulusCount.increment();
+                // The watermark may have moved on
+                releaseReorderedStimuli(reorderBuffer, System.nanoTime(), reorderBufferCapacity);
+                return(StimulusQueueingOutcomeEnum.HELD_FOR_REORDERING);
+            }
+        }
+    }
+
+    /**
+     * Queues the stimuli that are due for release. The caller must hold the reorder buffer's lock.
+     *
+     * Their producers were told HELD_FOR_REORDERING, so a released stimulus the overflow policy would reject is queued
+     * regardless of the capacity instead - only a duplicate of an already pending stimulus is discarded.
+     */
+    private void releaseReorderedStimuli(TwinInstanceReorderBuffer reorderBuffer, long now, int capacity){
+        List<PendingStimulus> releasedStimuli = reorderBuffer.takeReleasable(now, reorderLatenessWindow, reorderMaximumHoldTime, capacity);
+        if(releasedStimuli.isEmpty()){
+            return;
+        }
+        heldStimulusCount.add(-releasedStimuli.size());
+        for(PendingStimulus releasedStimulus: releasedStimuli){
+            StimulusQueueingOutcomeEnum outcome = offerPendingStimulus(reorderBuffer.getTwinIdentifier(), releasedStimulus);
+            if(outcome == StimulusQueueingOutcomeEnum.DUPLICATE){
+                acknowledgeStimulus(releasedStimulus);
+                discardStorage(releasedStimulus);
+            } else if(outcome == StimulusQueueingOutcomeEnum.REJECTED){
+                restoreStimulus(reorderBuffer.getTwinIdentifier(), releasedStimulus);
+            }
+        }
+    }
+
+    /**
+     * Queues the held stimuli whose time has come (or, if releaseAll, every held stimulus), and retires the reorder
+     * buffers that have been empty for the lateness window.
+     */
+    private void releaseReorderedStimuli(boolean releaseAll){
+        long now = System.nanoTime();
+        for(TwinInstanceReorderBuffer reorderBuffer: reorderBuffers.values()){
+            synchronized (reorderBuffer){
+                releaseReorderedStimuli(reorderBuffer, now, releaseAll ? 0 : reorderBufferCapacity);
+                if(reorderBuffer.tryRetire(now, reorderMaximumHoldTime)){
+                    reorderBuffers.remove(reorderBuffer.getTwinIdentifier(), reorderBuffer);
+                }
+            }
+        }
+    }
+
+    private void startReorderFlusher(){
+        if(reorderLatenessWindow <= 0){
+            return;
+        }
+        long flushInterval = Math.max(reorderLatenessWindow / 4, MIN_REORDER_FLUSH_INTERVAL);
+        String flusherName = twinType.getTwinTypeName() + "-ActivityQueueReorderFlusher";
+        reorderFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread flusherThread = new Thread(runnable, flusherName);
+            flusherThread.setDaemon(true);
+            return(flusherThread);
+        });
+        reorderFlusher.scheduleWithFixedDelay(() -> {
+            try {
+                releaseReorderedStimuli(false);
+            } catch (RuntimeException flushError) {
+                LOG.warn(".releaseReorderedStimuli(): {} activity queue reorder flush failed: {}", twinType.getTwinTypeName(), flushError.getMessage());
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isReordering(){
+        return(reorderLatenessWindow > 0);
+    }
+
+    /**
+     * @return the number of stimuli currently held back for reordering (not included in getPendingStimulusCount())
+     */
+    public long getHeldStimulusCount(){
+        return(heldStimulusCount.sum());
+    }
+
+    /**
+     * @return the number of stimuli that arrived too late (behind an already released stimulus) to be put in order
+     */
+    public long getLateStimulusCount(){
+        return(lateStimulusCount.sum());
+    }
+
+    //
+    // Compaction
+    //
+
+    private void startCompactor(){
+        long compactionInterval = specifyCompactionInterval();
+        if(compactionInterval <= 0){
+            return;
+        }
+        String compactorName = twinType.getTwinTypeName() + "-ActivityQueueCompactor";
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread compactorThread = new Thread(runnable, compactorName);
+            compactorThread.setDaemon(true);
+            return(compactorThread);
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (RuntimeException compactionError) {
+                LOG.warn(".compact(): {} activity queue compaction failed: {}", twinType.getTwinTypeName(), compactionError.getMessage());
+            }
+        }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Evicts the twin instance queues that have been empty (and unowned) for at least the idle threshold and, if the
+     * number of twin instances has fallen to a fraction of its peak, rebuilds the twin instance map to suit.
+     *
+     * @return the number of twin instance queues evicted
+     */
+    public synchronized int compact(){
+        long now = System.nanoTime();
+        int evictedCount = 0;
+        for(TwinInstanceStimulusQueue twinStimuli: twinInstanceQueue.values()){
+            if(twinStimuli.isRetired() || twinStimuli.tryEvict(now, idleTwinEvictionThresholdNanos)){
+                removeTwinStimuli(twinStimuli.getTwinIdentifier(), twinStimuli);
+                evictedCount += 1;
+            }
+        }
+        if(evictedCount > 0){
+            // Evicted queues may still be waiting on the ready set (if nobody is taking from it)
+            readyTwinInstances.removeIf(TwinInstanceStimulusQueue::isRetired);
+        }
+        int twinInstanceCount = twinInstanceQueue.size();
+        int peakCount = peakTwinInstanceCount.get();
+        if(peakCount >= MIN_TWIN_INSTANCE_MAP_REBUILD_PEAK && twinInstanceCount * TWIN_INSTANCE_MAP_REBUILD_SHRINK_FACTOR <= peakCount){
+            rebuildTwinInstanceMap(twinInstanceCount);
+            peakTwinInstanceCount.set(twinInstanceQueue.size());
+            LOG.info(".compact(): {} activity queue twin instance map rebuilt for {} twin instances (peak was {})", twinType.getTwinTypeName(), twinInstanceCount, peakCount);
+        }
+        return(evictedCount);
+    }
+
+    private void rebuildTwinInstanceMap(int twinInstanceCount){
+        ConcurrentHashMap<DigitalTwinIdentifier, TwinInstanceStimulusQueue> oldMap = twinInstanceQueue;
+        previousTwinInstanceQueue = oldMap;
+        twinInstanceQueue = new ConcurrentHashMap<>(Math.max(twinInstanceCount, 16));
+        for(Map.Entry<DigitalTwinIdentifier, TwinInstanceStimulusQueue> twinEntry: oldMap.entrySet()){
+            if(!twinEntry.getValue().isRetired()){
+                twinInstanceQueue.putIfAbsent(twinEntry.getKey(), twinEntry.getValue());
+            }
+            oldMap.remove(twinEntry.getKey(), twinEntry.getValue());
+        }
+        previousTwinInstanceQueue = null;
+    }
+
+    public StimulusPackage getNextStimulus(DigitalTwinIdentifier twinInstanceIdentifier) {
+        TwinInstanceStimulusQueue twinStimuli = getTwinStimuli(twinInstanceIdentifier);
+        if (twinStimuli == null) {
             return(null);
         }
-        return(null);
+        StimulusPackage nextStimulusPackage = twinStimuli.poll();
+        if(twinStimuli.tryRetire()){
+            removeTwinStimuli(twinInstanceIdentifier, twinStimuli);
+        }
+        return(nextStimulusPackage);
+    }
+
+    /**
+     * Removes (in queue order) and returns up to maxStimuli of the stimuli pending for the twin instance, so that a
+     * behaviour can process a burst of stimuli in one pass.
+     *
+     * @return the drained stimuli, or an empty list if there is nothing pending
+     */
+    public List<StimulusPackage> drainStimuli(DigitalTwinIdentifier twinInstanceIdentifier, int maxStimuli) {
+        if(maxStimuli <= 0){
+            return(Collections.emptyList());
+        }
+        TwinInstanceStimulusQueue twinStimuli = getTwinStimuli(twinInstanceIdentifier);
+        if (twinStimuli == null) {
+            return(Collections.emptyList());
+        }
+        List<StimulusPackage> drainedStimuli = new ArrayList<>(Math.min(maxStimuli, Math.max(twinStimuli.size(), 1)));
+        twinStimuli.drainTo(drainedStimuli, maxStimuli);
+        if(twinStimuli.tryRetire()){
+            removeTwinStimuli(twinInstanceIdentifier, twinStimuli);
+        }
+        return(drainedStimuli);
+    }
+
+    /**
+     * As per drainStimuli(), but the stimuli stay unacknowledged (i.e. in the journal) until the claim records what
+     * became of them - so stimuli that a behaviour fails on, or that cannot be processed yet, are not lost. Only for
+     * the consumer that owns the twin instance.
+     *
+     * @return the claim on the stimuli taken, which may be empty
+     */
+    public TwinStimulusClaim claimStimuli(DigitalTwinIdentifier twinInstanceIdentifier, int maxStimuli) {
+        TwinInstanceStimulusQueue twinStimuli = maxStimuli <= 0 ? null : getTwinStimuli(twinInstanceIdentifier);
+        if (twinStimuli == null) {
+            return(new TwinStimulusClaim(this, null, twinInstanceIdentifier, Collections.emptyList(), Collections.emptyList()));
+        }
+        int expectedCount = Math.min(maxStimuli, Math.max(twinStimuli.size(), 1));
+        List<PendingStimulus> claimedEntries = new ArrayList<>(expectedCount);
+        List<StimulusPackage> claimedStimuli = new ArrayList<>(expectedCount);
+        twinStimuli.takeTo(claimedEntries, claimedStimuli, maxStimuli);
+        if(twinStimuli.tryRetire()){
+            removeTwinStimuli(twinInstanceIdentifier, twinStimuli);
+        }
+        return(new TwinStimulusClaim(this, twinStimuli, twinInstanceIdentifier, claimedEntries, claimedStimuli));
+    }
+
+    /**
+     * Puts claimed stimuli back at the head of the twin instance's queue, in their original order.
+     *
+     * @param redelivery true if the stimuli are going back because their delivery failed
+     */
+    void returnStimuli(TwinInstanceStimulusQueue twinStimuli, List<PendingStimulus> pendingStimuli, List<StimulusPackage> stimuli, boolean redelivery){
+        if(pendingStimuli.isEmpty()){
+            return;
+        }
+        for(int index = 0; index < pendingStimuli.size(); index++){
+            pendingStimuli.get(index).retainStimulus(stimuli.get(index));
+        }
+        twinStimuli.returnToHead(pendingStimuli);
+        for(PendingStimulus pendingStimulus: pendingStimuli){
+            recordStimulusReturned(pendingStimulus, redelivery);
+        }
     }
 
     public int getStimulusCount(DigitalTwinIdentifier twinInstanceIdentifier){
-        if (twinInstanceQueue.containsKey(twinInstanceIdentifier)) {
-            StimulusPackage nextStimulusPackage;
-            Queue<StimulusPackage> twinStimuli = twinInstanceQueue.get(twinInstanceIdentifier);
-            if (!twinStimuli.isEmpty()) {
-                return (twinStimuli.size());
+        TwinInstanceStimulusQueue twinStimuli = getTwinStimuli(twinInstanceIdentifier);
+        if (twinStimuli == null) {
+            return(0);
+        }
+        return(twinStimuli.size());
+    }
+
+    public boolean isStimulusPending(DigitalTwinIdentifier twinInstanceIdentifier, StimulusPackageIdentifier stimulusId){
+        if(stimulusId == null){
+            return(false);
+        }
+        TwinInstanceStimulusQueue twinStimuli = getTwinStimuli(twinInstanceIdentifier);
+        if (twinStimuli == null) {
+            return(false);
+        }
+        return(twinStimuli.isPending(stimulusId));
+    }
+
+    //
+    // Ready Set
+    //
+
+    void signalTwinReady(TwinInstanceStimulusQueue twinStimuli){
+        readyTwinInstances.add(twinStimuli);
+        notifyReadyTwinListener();
+    }
+
+    /**
+     * Registers a callback that is run (on the thread queueing the stimulus) whenever a twin instance joins the
+     * ready set - allowing a consumer to wait for work across several activity queues. It must not block.
+     */
+    public void setReadyTwinListener(Runnable readyTwinListener){
+        this.readyTwinListener = readyTwinListener;
+    }
+
+    private void notifyReadyTwinListener(){
+        Runnable listener = readyTwinListener;
+        if(listener != null){
+            listener.run();
+        }
+    }
+
+    /**
+     * Waits for, and takes ownership of, the next twin instance that has pending stimuli.
+     */
+    public DigitalTwinIdentifier takeReadyTwin() throws InterruptedException {
+        while(true){
+            TwinInstanceStimulusQueue twinStimuli = readyTwinInstances.take();
+            if(claimReadyTwin(twinStimuli)){
+                return(twinStimuli.getTwinIdentifier());
             }
         }
-        return(0);
+    }
+
+    /**
+     * As per takeReadyTwin(), but waits no longer than the timeout.
+     *
+     * @return the twin instance, or null if none became ready within the timeout
+     */
+    public DigitalTwinIdentifier pollReadyTwin(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(true){
+            long remaining = deadline - System.nanoTime();
+            TwinInstanceStimulusQueue twinStimuli = readyTwinInstances.poll(Math.max(remaining, 0L), TimeUnit.NANOSECONDS);
+            if(twinStimuli == null){
+                return(null);
+            }
+            if(claimReadyTwin(twinStimuli)){
+                return(twinStimuli.getTwinIdentifier());
+            }
+        }
+    }
+
+    /**
+     * As per takeReadyTwin(), but the wait is performed on the supplied Executor.
+     */
+    public CompletableFuture<DigitalTwinIdentifier> takeReadyTwinAsync(Executor executor){
+        return(CompletableFuture.supplyAsync(() -> {
+            try {
+                return(takeReadyTwin());
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(interrupted);
+            }
+        }, executor));
+    }
+
+    /**
+     * A twin instance on the ready set may have been emptied via getNextStimulus()/drainStimuli() by a caller that did
+     * not take it from the ready set - in which case we release it (non-empty -> empty) rather than hand it out.
+     */
+    private boolean claimReadyTwin(TwinInstanceStimulusQueue twinStimuli){
+        if(twinStimuli.claim()){
+            return(true);
+        }
+        releaseQueue(twinStimuli);
+        return(false);
+    }
+
+    /**
+     * Hands back ownership of a twin instance obtained from takeReadyTwin(). If stimuli are still pending for the twin
+     * instance it goes straight back on the ready set, otherwise it leaves the ready set.
+     */
+    public void releaseReadyTwin(DigitalTwinIdentifier twinInstanceIdentifier){
+        TwinInstanceStimulusQueue twinStimuli = getTwinStimuli(twinInstanceIdentifier);
+        if(twinStimuli != null){
+            releaseQueue(twinStimuli);
+        }
+    }
+
+    private void releaseQueue(TwinInstanceStimulusQueue twinStimuli){
+        if(twinStimuli.release()){
+            readyTwinInstances.add(twinStimuli);
+            notifyReadyTwinListener();
+        } else if(twinStimuli.tryRetire()){
+            removeTwinStimuli(twinStimuli.getTwinIdentifier(), twinStimuli);
+        }
+    }
+
+    public int getReadyTwinCount(){
+        return(readyTwinInstances.size());
+    }
+
+    //
+    // Capacity & Overflow
+    //
+
+    public TwinTypeEnum getTwinType() {
+        return twinType;
+    }
+
+    public int getTwinInstanceQueueCapacity() {
+        return twinInstanceQueueCapacity;
+    }
+
+    public TwinInstanceQueueOverflowPolicyEnum getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    int getPriorityLaneCount() {
+        return priorityLaneCount;
+    }
+
+    long getStimulusAgingIntervalNanos() {
+        return stimulusAgingIntervalNanos;
+    }
+
+    private int priorityOf(StimulusPackage stimulus){
+        if(stimulus.getStimulusType() == null){
+            return(0);
+        }
+        return(stimulusPriorityTable.getOrDefault(stimulus.getStimulusType(), 0));
+    }
+
+    StimulusPackageCodec getStimulusPackageCodec() {
+        return stimulusPackageCodec;
+    }
+
+    Path nextSpillFilePath(){
+        return(spillDirectory.resolve("twin-" + spillFileCounter.incrementAndGet() + ".spill"));
+    }
+
+    void recordOverflow(DigitalTwinIdentifier twinInstanceIdentifier, StimulusQueueingOutcomeEnum outcome){
+        overflowCounters.get(outcome).increment();
+        LongAdder twinInstanceOverflowCount = overflowingTwinInstances.get(twinInstanceIdentifier);
+        if(twinInstanceOverflowCount == null){
+            if(overflowingTwinInstances.size() >= MAX_TRACKED_OVERFLOWING_TWIN_INSTANCES){
+                return;
+            }
+            twinInstanceOverflowCount = overflowingTwinInstances.computeIfAbsent(twinInstanceIdentifier, key -> new LongAdder());
+            LOG.warn(".recordOverflow(): {} twin {} has reached its queue capacity ({}), overflow policy is {}", twinType.getTwinTypeName(), twinInstanceIdentifier, twinInstanceQueueCapacity, overflowPolicy);
+        }
+        twinInstanceOverflowCount.increment();
+    }
+
+    /**
+     * @return the number of stimuli that have been REJECTED/SPILLED/COALESCED/DROPPED_OLDEST (as appropriate to the
+     * overflow policy) because a twin instance's queue was at capacity
+     */
+    public long getOverflowCount(StimulusQueueingOutcomeEnum outcome){
+        return(overflowCounters.get(outcome).sum());
+    }
+
+    /**
+     * @return the twin instances that have hit the queue capacity (the first MAX_TRACKED_OVERFLOWING_TWIN_INSTANCES
+     * of them) and how many times each has done so
+     */
+    public Map<DigitalTwinIdentifier, Long> getOverflowingTwinInstances(){
+        Map<DigitalTwinIdentifier, Long> overflowCounts = new HashMap<>();
+        for(Map.Entry<DigitalTwinIdentifier, LongAdder> overflowEntry: overflowingTwinInstances.entrySet()){
+            overflowCounts.put(overflowEntry.getKey(), overflowEntry.getValue().sum());
+        }
+        return(overflowCounts);
+    }
+
+    public void resetOverflowingTwinInstances(){
+        overflowingTwinInstances.clear();
+    }
+
+    //
+    // Journal
+    //
+
+    /**
+     * Writes the stimulus to the journal (if there is one), assigning its journal sequence number.
+     *
+     * @return false if the journal could not be written - the stimulus must then be rejected
+     */
+    private boolean journalStimulus(DigitalTwinIdentifier twinInstanceIdentifier, PendingStimulus pendingStimulus){
+        if(journal == null){
+            return(true);
+        }
+        try {
+            long journalSequence = journal.appendEnqueue(stimulusPackageCodec.encodeTwinIdentifier(twinInstanceIdentifier), encodedFormOf(pendingStimulus));
+            pendingStimulus.setJournalSequence(journalSequence);
+            return(true);
+        } catch (IOException journalError) {
+            LOG.error(".journalStimulus(): Unable to journal stimulus for {} twin {}, rejecting it: {}", twinType.getTwinTypeName(), twinInstanceIdentifier, journalError.getMessage());
+            return(false);
+        }
+    }
+
+    /**
+     * Waits (group commit) for an accepted stimulus's journal record to reach the disk, or acknowledges the record
+     * straight away if the stimulus was not accepted after all.
+     */
+    private void awaitJournaled(PendingStimulus pendingStimulus, StimulusQueueingOutcomeEnum outcome){
+        if(outcome == StimulusQueueingOutcomeEnum.DUPLICATE || outcome == StimulusQueueingOutcomeEnum.REJECTED){
+            acknowledgeStimulus(pendingStimulus);
+            discardStorage(pendingStimulus);
+        } else if(pendingStimulus.getJournalSequence() != PendingStimulus.NOT_JOURNALED){
+            journal.awaitDurable(pendingStimulus.getJournalSequence());
+        }
+    }
+
+    private void awaitJournaled(List<PendingStimulus> pendingStimuli){
+        if(journal == null || pendingStimuli.isEmpty()){
+            return;
+        }
+        journal.awaitDurable(pendingStimuli.get(pendingStimuli.size() - 1).getJournalSequence());
+    }
+
+    void acknowledgeStimulus(PendingStimulus pendingStimulus){
+        if(journal != null && pendingStimulus.getJournalSequence() != PendingStimulus.NOT_JOURNALED){
+            journal.acknowledge(pendingStimulus.getJournalSequence());
+        }
+    }
+
+    void acknowledgeStimuli(List<PendingStimulus> pendingStimuli){
+        if(journal == null || pendingStimuli.isEmpty()){
+            return;
+        }
+        long[] journalSequences = new long[pendingStimuli.size()];
+        int journaledCount = 0;
+        for(PendingStimulus pendingStimulus: pendingStimuli){
+            if(pendingStimulus.getJournalSequence() != PendingStimulus.NOT_JOURNALED){
+                journalSequences[journaledCount++] = pendingStimulus.getJournalSequence();
+            }
+        }
+        journal.acknowledge(journalSequences, journaledCount);
+    }
+
+    //
+    // Delivery Failures
+    //
+
+    public int getMaxDeliveryAttempts() {
+        return maxDeliveryAttempts;
+    }
+
+    public long getRedeliveryDelayNanos() {
+        return redeliveryDelayNanos;
+    }
+
+    /**
+     * Called with the stimuli for a twin instance that have failed delivery specifyMaxDeliveryAttempts() times, so
+     * that they can be parked somewhere for investigation. They are acknowledged (i.e. removed from the journal) once
+     * this returns. The default simply logs them.
+     */
+    protected void deadLetterStimuli(DigitalTwinIdentifier twinInstanceIdentifier, List<StimulusPackage> stimuli, RuntimeException lastFailure){
+        for(StimulusPackage stimulus: stimuli){
+            LOG.error(".deadLetterStimuli(): {} twin {} stimulus {} dead-lettered after {} failed deliveries: {}", twinType.getTwinTypeName(), twinInstanceIdentifier, stimulus.getId(), maxDeliveryAttempts, lastFailure.getMessage());
+        }
+    }
+
+    /**
+     * Takes a stimulus that could not be delivered (and is about to go back on its queue) back into the pending totals.
+     *
+     * @param redelivery true if its delivery failed, rather than it not being delivered at all
+     */
+    void recordStimulusReturned(PendingStimulus pendingStimulus, boolean redelivery){
+        telemetry.stimulusReturned(pendingStimulus.getEnqueueTime());
+        if(redelivery){
+            redeliveredStimulusCount.increment();
+        }
+    }
+
+    void deadLetter(DigitalTwinIdentifier twinInstanceIdentifier, List<PendingStimulus> pendingStimuli, List<StimulusPackage> stimuli, RuntimeException lastFailure){
+        try {
+            deadLetterStimuli(twinInstanceIdentifier, stimuli, lastFailure);
+        } catch (RuntimeException deadLetterError) {
+            LOG.error(".deadLetter(): Unable to dead-letter {} stimuli for {} twin {}: {}", stimuli.size(), twinType.getTwinTypeName(), twinInstanceIdentifier, deadLetterError.getMessage());
+        }
+        deadLetteredStimulusCount.add(pendingStimuli.size());
+        acknowledgeStimuli(pendingStimuli);
+    }
+
+    /**
+     * @return the number of stimuli put back on their queue after a failed delivery
+     */
+    public long getRedeliveredStimulusCount(){
+        return(redeliveredStimulusCount.sum());
+    }
+
+    /**
+     * @return the number of stimuli dead-lettered after specifyMaxDeliveryAttempts() failed deliveries
+     */
+    public long getDeadLetteredStimulusCount(){
+        return(deadLetteredStimulusCount.sum());
+    }
+
+    //
+    // Storage
+    //
+
+    public TwinInstanceQueueStorageModeEnum getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * @return the direct memory currently allocated to the OFF_HEAP storage mode (0 if the stimuli are held on-heap)
+     */
+    public long getOffHeapBytesAllocated(){
+        return(offHeapStore == null ? 0L : offHeapStore.getAllocatedBytes());
+    }
+
+    /**
+     * @return the direct memory currently occupied by pending stimuli (0 if the stimuli are held on-heap)
+     */
+    public long getOffHeapBytesInUse(){
+        return(offHeapStore == null ? 0L : offHeapStore.getLiveBytes());
+    }
+
+    /**
+     * @return the number of stimuli held on-heap because the OFF_HEAP storage mode's budget had been reached
+     */
+    public long getOffHeapFallbackCount(){
+        return(offHeapStore == null ? 0L : offHeapStore.getFallbackCount());
+    }
+
+    PendingStimulus newPendingStimulus(StimulusPackage stimulus){
+        int priority = priorityOf(stimulus);
+        PendingStimulus pendingStimulus;
+        if(offHeapStore == null){
+            pendingStimulus = new PendingStimulus(stimulus, priority);
+        } else {
+            try {
+                OffHeapStimulusStore.Handle offHeapHandle = offHeapStore.store(stimulusPackageCodec.encode(stimulus));
+                if(offHeapHandle != null){
+                    pendingStimulus = new PendingStimulus(stimulus.getId(), stimulus.getSourceResourceId(), priority, offHeapHandle, PendingStimulus.NOT_JOURNALED);
+                } else {
+                    // The off-heap budget is used up
+                    pendingStimulus = new PendingStimulus(stimulus, priority);
+                }
+            } catch (IOException encodingError) {
+                LOG.warn(".newPendingStimulus(): Unable to encode stimulus for off-heap storage, holding it on-heap: {}", encodingError.getMessage());
+                pendingStimulus = new PendingStimulus(stimulus, priority);
+            }
+        }
+        if(stimulus.getSourceEventTime() != null){
+            pendingStimulus.setEventTime(stimulus.getSourceEventTime().toEpochMilli());
+        }
+        return(pendingStimulus);
+    }
+
+    /**
+     * Builds a PendingStimulus from an already encoded StimulusPackage (as recovered from the journal or a spill file),
+     * without re-encoding it for off-heap storage.
+     */
+    PendingStimulus newPendingStimulus(byte[] encodedStimulus, long journalSequence) throws IOException {
+        StimulusPackage stimulus = stimulusPackageCodec.decode(encodedStimulus);
+        int priority = priorityOf(stimulus);
+        OffHeapStimulusStore.Handle offHeapHandle = offHeapStore == null ? null : offHeapStore.store(encodedStimulus);
+        if(offHeapHandle == null){
+            return(new PendingStimulus(stimulus, priority, journalSequence));
+        }
+        return(new PendingStimulus(stimulus.getId(), stimulus.getSourceResourceId(), priority, offHeapHandle, journalSequence));
+    }
+
+    byte[] encodedFormOf(PendingStimulus pendingStimulus) throws IOException {
+        OffHeapStimulusStore.Handle offHeapHandle = pendingStimulus.getOffHeapHandle();
+        if(offHeapHandle != null){
+            return(offHeapStore.load(offHeapHandle));
+        }
+        return(stimulusPackageCodec.encode(pendingStimulus.getStimulus()));
+    }
+
+    /**
+     * Brings a stimulus that is leaving its queue (to be consumed) back onto the heap, freeing its off-heap storage.
+     *
+     * @return the StimulusPackage, or null if it could not be decoded (it remains in the journal, if enabled)
+     */
+    StimulusPackage materialise(PendingStimulus pendingStimulus){
+        if(pendingStimulus.getStimulus() != null){
+            telemetry.stimulusRemoved(pendingStimulus.getEnqueueTime(), true);
+            return(pendingStimulus.getStimulus());
+        }
+        OffHeapStimulusStore.Handle offHeapHandle = pendingStimulus.takeOffHeapHandle();
+        byte[] encodedStimulus = offHeapStore.load(offHeapHandle);
+        offHeapStore.free(offHeapHandle);
+        try {
+            StimulusPackage stimulus = stimulusPackageCodec.decode(encodedStimulus);
+            telemetry.stimulusRemoved(pendingStimulus.getEnqueueTime(), true);
+            return(stimulus);
+        } catch (IOException decodeError) {
+            LOG.error(".materialise(): Unable to decode off-heap {} stimulus {}, stimulus lost (it remains in the journal, if enabled): {}", twinType.getTwinTypeName(), pendingStimulus.getStimulusId(), decodeError.getMessage());
+            telemetry.stimulusRemoved(pendingStimulus.getEnqueueTime(), false);
+            return(null);
+        }
+    }
+
+    /**
+     * Disposes of a queued stimulus that is leaving its queue without being consumed (dropped or coalesced).
+     */
+    void discardQueuedStimulus(PendingStimulus pendingStimulus){
+        acknowledgeStimulus(pendingStimulus);
+        discardStorage(pendingStimulus);
+        telemetry.stimulusRemoved(pendingStimulus.getEnqueueTime(), false);
+    }
+
+    /**
+     * Frees the off-heap storage (if any) of a stimulus that is leaving its queue without being consumed.
+     */
+    void discardStorage(PendingStimulus pendingStimulus){
+        OffHeapStimulusStore.Handle offHeapHandle = pendingStimulus.takeOffHeapHandle();
+        if(offHeapHandle != null){
+            offHeapStore.free(offHeapHandle);
+        }
+    }
+
+    //
+    // Telemetry
+    //
+
+    void recordStimulusQueued(PendingStimulus pendingStimulus){
+        telemetry.stimulusQueued(pendingStimulus.getEnqueueTime());
+    }
+
+    void recordSpilledStimulusLost(byte[] spillRecord){
+        if(spillRecord.length < TwinInstanceStimulusQueue.SPILL_RECORD_HEADER_SIZE){
+            telemetry.stimuliLost(1);
+        } else {
+            telemetry.stimulusRemoved(TwinInstanceStimulusQueue.enqueueTimeOfSpillRecord(spillRecord), false);
+        }
+    }
+
+    void recordStimuliLost(int lostCount){
+        telemetry.stimuliLost(lostCount);
+    }
+
+    void recordTwinActive(){
+        activeTwinCount.incrementAndGet();
+    }
+
+    void recordTwinIdle(){
+        activeTwinCount.decrementAndGet();
+    }
+
+    /**
+     * @return the number of stimuli pending (in memory or spilled) across all the twin instances of this type
+     */
+    public long getPendingStimulusCount(){
+        return(telemetry.getPendingCount());
+    }
+
+    /**
+     * @return the number of twin instances of this type that have stimuli pending (idle queues awaiting eviction are
+     * not counted)
+     */
+    public int getActiveTwinCount(){
+        return(activeTwinCount.get());
+    }
+
+    /**
+     * @return how long (in milliseconds, to the nearest second) the oldest pending stimulus has been waiting
+     */
+    public long getOldestPendingStimulusAge(){
+        return(telemetry.getOldestPendingAge());
+    }
+
+    public long getEnqueuedStimulusCount(){
+        return(telemetry.getEnqueuedCount());
+    }
+
+    public long getConsumedStimulusCount(){
+        return(telemetry.getConsumedCount());
+    }
+
+    /**
+     * @return the number of queued stimuli that left without being consumed (dropped, coalesced or lost)
+     */
+    public long getDiscardedStimulusCount(){
+        return(telemetry.getDiscardedCount());
     }
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+/**
+ * What a TwinInstanceActivityQueue should do with a new stimulus when the twin instance's queue is already at capacity.
+ */
+public enum TwinInstanceQueueOverflowPolicyEnum {
+    /** Refuse the new stimulus - the caller receives REJECTED and must apply back-pressure/retry */
+    REJECT,
+    /** Discard the oldest pending stimulus (of the lowest priority present) to make room for the new one */
+    DROP_OLDEST,
+    /** Replace the pending stimulus for the same source resource (if there is one), otherwise reject */
+    COALESCE_BY_RESOURCE_ID,
+    /** Write the new stimulus to a per-twin spill file, from which it is reloaded as the queue drains */
+    SPILL_TO_DISK
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The stimuli for a single Digital Twin instance that are being held back so that they can be released in source
+ * event time order, rather than the order in which they happened to arrive.
+ *
+ * The twin instance's watermark is the latest event time seen, less the lateness window: a held stimulus is released
+ * once the watermark passes its event time - or once it has been held for the lateness window (so a quiet twin
+ * instance is not held up waiting for a later stimulus), or if the buffer is over capacity. A stimulus that arrives
+ * with an event time earlier than one already released is too late to be put in order, and is not held at all.
+ *
+ * Not thread-safe: the TwinInstanceActivityQueue synchronises on the buffer, and keeps the lock while it passes the
+ * released stimuli on (so that two threads cannot pass them on out of order). Once empty, a buffer can be retired.
+ */
+class TwinInstanceReorderBuffer {
+    private static final Comparator<HeldStimulus> EVENT_TIME_ORDER = Comparator.comparingLong((HeldStimulus held) -> held.eventTime).thenComparingLong(held -> held.arrivalSequence);
+
+    private final DigitalTwinIdentifier twinIdentifier;
+    private final PriorityQueue<HeldStimulus> heldStimuli;
+    private long arrivalSequence;
+    private long latestEventTime;
+    private long releasedEventTime;
+    private long lastHoldTime;
+    private boolean retired;
+
+    private static class HeldStimulus {
+        private final PendingStimulus stimulus;
+        private final long eventTime;
+        private final long arrivalSequence;
+
+        HeldStimulus(PendingStimulus stimulus, long arrivalSequence){
+            this.stimulus = stimulus;
+            this.eventTime = stimulus.getEventTime();
+            this.arrivalSequence = arrivalSequence;
+        }
+    }
+
+    TwinInstanceReorderBuffer(DigitalTwinIdentifier twinIdentifier){
+        this.twinIdentifier = twinIdentifier;
+        this.heldStimuli = new PriorityQueue<>(EVENT_TIME_ORDER);
+        this.arrivalSequence = 0L;
+        this.latestEventTime = Long.MIN_VALUE;
+        this.releasedEventTime = Long.MIN_VALUE;
+        this.lastHoldTime = System.nanoTime();
+        this.retired = false;
+    }
+
+    DigitalTwinIdentifier getTwinIdentifier() {
+        return twinIdentifier;
+    }
+
+    /**
+     * @return false if the stimulus is too late to be put in order (it is not held)
+     */
+    boolean hold(PendingStimulus newStimulus){
+        if(newStimulus.getEventTime() < releasedEventTime){
+            return(false);
+        }
+        heldStimuli.add(new HeldStimulus(newStimulus, arrivalSequence++));
+        lastHoldTime = newStimulus.getEnqueueTime();
+        latestEventTime = Math.max(latestEventTime, newStimulus.getEventTime());
+        return(true);
+    }
+
+    /**
+     * Records that a stimulus went straight to the twin instance's queue, bypassing the buffer, so that a stimulus
+     * arriving later with an earlier event time is treated as late rather than being held and released after it.
+     */
+    void recordBypassed(PendingStimulus bypassedStimulus){
+        releasedEventTime = Math.max(releasedEventTime, bypassedStimulus.getEventTime());
+        latestEventTime = Math.max(latestEventTime, bypassedStimulus.getEventTime());
+    }
+
+    /**
+     * Removes (in event time order) the stimuli that are due for release.
+     *
+     * @param now System.nanoTime()
+     * @param latenessWindow the lateness window, in milliseconds (of event time)
+     * @param maximumHoldTime the longest a stimulus may be held, in nanoseconds
+     */
+    List<PendingStimulus> takeReleasable(long now, long latenessWindow, long maximumHoldTime, int capacity){
+        List<PendingStimulus> releasedStimuli = new ArrayList<>();
+        long watermark = latestEventTime - latenessWindow;
+        while(!heldStimuli.isEmpty()){
+            HeldStimulus nextStimulus = heldStimuli.peek();
+            boolean due = nextStimulus.eventTime <= watermark
+                    || now - nextStimulus.stimulus.getEnqueueTime() >= maximumHoldTime
+                    || heldStimuli.size() > capacity;
+            if(!due){
+                break;
+            }
+            heldStimuli.poll();
+            releasedEventTime = Math.max(releasedEventTime, nextStimulus.eventTime);
+            releasedStimuli.add(nextStimulus.stimulus);
+        }
+        return(releasedStimuli);
+    }
+
+    int size(){
+        return(heldStimuli.size());
+    }
+
+    /**
+     * The buffer is kept for a while after it empties, so that a late stimulus can still be recognised as such.
+     *
+     * @return true if the buffer has been empty for at least the idle time, and is now retired (no further stimuli
+     * may be held in it)
+     */
+    boolean tryRetire(long now, long idleTime){
+        if(heldStimuli.isEmpty() && now - lastHoldTime >= idleTime){
+            retired = true;
+        }
+        return(retired);
+    }
+
+    boolean isRetired(){
+        return(retired);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A simple append/read-forward file of length-prefixed records, used to hold the stimuli that have overflowed a twin
+ * instance's queue. The file only lives as long as the overflow does (it is deleted on close) - it is not intended
+ * to survive a restart. Callers are responsible for serialising access.
+ */
+class TwinInstanceSpillFile {
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    private final Path spillFilePath;
+    private final FileChannel spillChannel;
+    private final ByteBuffer headerBuffer;
+    private long readPosition;
+    private long writePosition;
+
+    TwinInstanceSpillFile(Path spillFilePath) throws IOException {
+        Files.createDirectories(spillFilePath.getParent());
+        this.spillFilePath = spillFilePath;
+        this.spillChannel = FileChannel.open(spillFilePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        this.headerBuffer = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        this.readPosition = 0;
+        this.writePosition = 0;
+    }
+
+    void append(byte[] record) throws IOException {
+        ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.length);
+        recordBuffer.putInt(record.length);
+        recordBuffer.put(record);
+        recordBuffer.flip();
+        long position = writePosition;
+        while (recordBuffer.hasRemaining()) {
+            position += spillChannel.write(recordBuffer, position);
+        }
+        writePosition = position;
+    }
+
+    /**
+     * Reads (and consumes) up to maxRecords records into the supplied list.
+     */
+    void readInto(List<byte[]> records, int maxRecords) throws IOException {
+        int recordsRead = 0;
+        while (recordsRead < maxRecords && readPosition < writePosition) {
+            headerBuffer.clear();
+            readFully(headerBuffer, readPosition);
+            headerBuffer.flip();
+            int recordLength = headerBuffer.getInt();
+            ByteBuffer recordBuffer = ByteBuffer.allocate(recordLength);
+            readFully(recordBuffer, readPosition + RECORD_HEADER_SIZE);
+            readPosition += RECORD_HEADER_SIZE + recordLength;
+            records.add(recordBuffer.array());
+            recordsRead += 1;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = spillChannel.read(buffer, position);
+            if (bytesRead < 0) {
+                throw new EOFException("Unexpected end of spill file " + spillFilePath);
+            }
+            position += bytesRead;
+        }
+    }
+
+    boolean isExhausted() {
+        return (readPosition >= writePosition);
+    }
+
+    void close() throws IOException {
+        spillChannel.close();
+    }
+}
@@ -0,0 +1,707 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackageIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pending stimuli for a single Digital Twin instance. Any number of threads may add stimuli (multi-producer),
+ * but only one thread at a time should be taking them off (single-consumer).
+ *
+ * Once the queue is empty it can be "retired" by the consumer, after which no further stimuli will be accepted
+ * - producers that find a retired queue must create a fresh one. This is what stops a stimulus from being added to a
+ * queue at the same moment that it is being removed from the TwinInstanceActivityQueue map.
+ *
+ * Pending stimuli are held in one FIFO lane per priority, and the consumer takes from the lane whose head has the
+ * highest effective priority (its priority plus one level per aging interval it has waited). With no priority table
+ * there is a single lane, i.e. plain FIFO.
+ *
+ * The identifiers of the pending stimuli are also held in a hash index, so that a duplicate StimulusPackage can be
+ * detected in O(1) irrespective of how deep the queue is.
+ *
+ * The pending count and the "scheduled" and "owned" flags are packed into the one atomic int (count in the upper
+ * bits, flags in the lowest two bits). The scheduled flag is set by the producer that moves the queue from empty to
+ * non-empty - that producer then places the queue on the ready set - and is only cleared by the consumer (via
+ * release()) once the queue is empty. A queue is therefore never on the ready set more than once, and a scheduled
+ * queue can never be retired - other than by the compactor (see tryEvict()), and then only while it is not owned.
+ * The owned flag is held by the consumer that has claimed the queue from the ready set, until it releases it.
+ *
+ * The number of stimuli held in memory is bounded by the activity queue's capacity, beyond which its overflow policy
+ * applies. For SPILL_TO_DISK, the pending count includes the spilled stimuli: once anything has been spilled, all
+ * subsequent stimuli are spilled too (preserving FIFO order) until the consumer has reloaded the spill file - so
+ * priorities only apply to the stimuli held in memory.
+ *
+ * A consumer that took stimuli via takeTo() but could not process them puts them back via returnToHead(), ahead of
+ * all the priority lanes - so they are taken again first, in their original order. Returned stimuli are never dropped
+ * or coalesced. Until they are settled (see settleTaken()) or returned, taken stimuli stay in the pending count and
+ * the duplicate index: a redelivery of one of them is still a duplicate, and the queue cannot be retired from under
+ * them. They do not count against the capacity, though, nor towards size().
+ *
+ * Every stimulus that leaves the queue (consumed, dropped or coalesced) is acknowledged to the activity queue's journal,
+ * and its off-heap storage (if any) is freed - other than those taken via takeTo(), which the consumer acknowledges
+ * once it has processed them.
+ */
+class TwinInstanceStimulusQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(TwinInstanceStimulusQueue.class);
+
+    private static final int RETIRED = -1;
+    private static final int OVER_CAPACITY = -2;
+    private static final int SCHEDULED = 1;
+    private static final int OWNED = 2;
+    private static final int COUNT_SHIFT = 2;
+    private static final int COUNT_UNIT = 1 << COUNT_SHIFT;
+    private static final int UNBOUNDED = Integer.MAX_VALUE;
+    static final int SPILL_RECORD_HEADER_SIZE = 16;
+
+    private final DigitalTwinIdentifier twinIdentifier;
+    private final TwinInstanceActivityQueue activityQueue;
+    private final List<ConcurrentLinkedQueue<PendingStimulus>> priorityLanes;
+    private final ConcurrentLinkedDeque<PendingStimulus> returnedStimuli;
+    private final long agingIntervalNanos;
+    private final AtomicInteger queueState;
+    private final AtomicInteger spilledCount;
+    private final AtomicInteger takenCount;
+    private final Set<StimulusPackageIdentifier> pendingStimulusIds;
+    private final ConcurrentHashMap<String, PendingStimulus> pendingStimuliByResourceId;
+    private final Object spillLock;
+    private TwinInstanceSpillFile spillFile;
+    private volatile long lastActivityTime;
+
+    TwinInstanceStimulusQueue(DigitalTwinIdentifier twinIdentifier, TwinInstanceActivityQueue activityQueue){
+        this.twinIdentifier = twinIdentifier;
+        this.activityQueue = activityQueue;
+        int priorityLaneCount = activityQueue.getPriorityLaneCount();
+        List<ConcurrentLinkedQueue<PendingStimulus>> lanes = new ArrayList<>(priorityLaneCount);
+        for(int lane = 0; lane < priorityLaneCount; lane++){
+            lanes.add(new ConcurrentLinkedQueue<>());
+        }
+        this.priorityLanes = Collections.unmodifiableList(lanes);
+        this.returnedStimuli = new ConcurrentLinkedDeque<>();
+        this.agingIntervalNanos = activityQueue.getStimulusAgingIntervalNanos();
+        this.queueState = new AtomicInteger(0);
+        this.spilledCount = new AtomicInteger(0);
+        this.takenCount = new AtomicInteger(0);
+        this.pendingStimulusIds = ConcurrentHashMap.newKeySet();
+        if(activityQueue.getOverflowPolicy() == TwinInstanceQueueOverflowPolicyEnum.COALESCE_BY_RESOURCE_ID) {
+            this.pendingStimuliByResourceId = new ConcurrentHashMap<>();
+        } else {
+            this.pendingStimuliByResourceId = null;
+        }
+        this.spillLock = new Object();
+        this.spillFile = null;
+        this.lastActivityTime = System.nanoTime();
+    }
+
+    DigitalTwinIdentifier getTwinIdentifier() {
+        return twinIdentifier;
+    }
+
+    //
+    // Producer Side
+    //
+
+    /**
+     * Adds the stimulus to the queue, unless a stimulus with the same StimulusPackageIdentifier is already pending
+     * (in which case it is quietly discarded). If the queue moves from empty to non-empty, the activity queue is told
+     * that this twin instance is now ready.
+     *
+     * @return the outcome, or null if the queue has been retired (the caller should create a new one and try again)
+     */
+    StimulusQueueingOutcomeEnum offer(PendingStimulus newStimulus){
+        lastActivityTime = newStimulus.getEnqueueTime();
+        StimulusPackageIdentifier stimulusId = newStimulus.getStimulusId();
+        if(stimulusId != null && !pendingStimulusIds.add(stimulusId)){
+            return(StimulusQueueingOutcomeEnum.DUPLICATE);
+        }
+        StimulusQueueingOutcomeEnum outcome = enqueue(newStimulus);
+        if(stimulusId != null && (outcome == null || outcome == StimulusQueueingOutcomeEnum.REJECTED)){
+            pendingStimulusIds.remove(stimulusId);
+        }
+        return(outcome);
+    }
+
+    enum BulkOfferOutcome {
+        QUEUED,
+        RETIRED,
+        OVER_CAPACITY
+    }
+
+    /**
+     * Adds a run of stimuli to the queue (in the order provided) with a single update of the queue state. Duplicates
+     * are discarded (and returned in the duplicates list).
+     *
+     * @return QUEUED if the stimuli have been added, RETIRED if the queue has been retired (the caller should create a
+     * new one and try again) or OVER_CAPACITY if the run would not fit - in which case nothing has been added and the
+     * caller should offer() the stimuli one at a time so that the overflow policy is applied to each
+     */
+    BulkOfferOutcome offerAll(Collection<PendingStimulus> newStimuli, List<PendingStimulus> duplicates){
+        lastActivityTime = System.nanoTime();
+        List<PendingStimulus> acceptedStimuli = new ArrayList<>(newStimuli.size());
+        for(PendingStimulus newStimulus: newStimuli){
+            StimulusPackageIdentifier stimulusId = newStimulus.getStimulusId();
+            if(stimulusId == null || pendingStimulusIds.add(stimulusId)){
+                acceptedStimuli.add(newStimulus);
+            } else {
+                duplicates.add(newStimulus);
+            }
+        }
+        if(acceptedStimuli.isEmpty()){
+            return(BulkOfferOutcome.QUEUED);
+        }
+        int previousState = spilledCount.get() > 0 ? OVER_CAPACITY : reserveSlots(acceptedStimuli.size(), activityQueue.getTwinInstanceQueueCapacity());
+        if(previousState == RETIRED || previousState == OVER_CAPACITY){
+            for(PendingStimulus acceptedStimulus: acceptedStimuli){
+                removeFromIndexes(acceptedStimulus);
+            }
+            duplicates.clear();
+            return(previousState == RETIRED ? BulkOfferOutcome.RETIRED : BulkOfferOutcome.OVER_CAPACITY);
+        }
+        for(PendingStimulus acceptedStimulus: acceptedStimuli){
+            admit(acceptedStimulus);
+        }
+        signalIfNowReady(previousState);
+        return(BulkOfferOutcome.QUEUED);
+    }
+
+    /**
+     * Puts a stimulus recovered from the journal back on the queue, irrespective of the capacity.
+     */
+    boolean restore(PendingStimulus recoveredStimulus){
+        StimulusPackageIdentifier stimulusId = recoveredStimulus.getStimulusId();
+        if(stimulusId != null){
+            pendingStimulusIds.add(stimulusId);
+        }
+        int previousState = reserveSlots(1, UNBOUNDED);
+        if(previousState == RETIRED){
+            if(stimulusId != null) {
+                pendingStimulusIds.remove(stimulusId);
+            }
+            return(false);
+        }
+        admit(recoveredStimulus);
+        signalIfNowReady(previousState);
+        return(true);
+    }
+
+    private StimulusQueueingOutcomeEnum enqueue(PendingStimulus newStimulus){
+        if(spilledCount.get() > 0){
+            return(spill(newStimulus));
+        }
+        int previousState = reserveSlots(1, activityQueue.getTwinInstanceQueueCapacity());
+        if(previousState == RETIRED){
+            return(null);
+        }
+        if(previousState != OVER_CAPACITY){
+            admit(newStimulus);
+            signalIfNowReady(previousState);
+            return(StimulusQueueingOutcomeEnum.QUEUED);
+        }
+        StimulusQueueingOutcomeEnum outcome;
+        switch(activityQueue.getOverflowPolicy()){
+            case DROP_OLDEST:
+                outcome = dropOldestAndEnqueue(newStimulus);
+                break;
+            case COALESCE_BY_RESOURCE_ID:
+                outcome = coalesce(newStimulus);
+                break;
+            case SPILL_TO_DISK:
+                outcome = spill(newStimulus);
+                break;
+            case REJECT:
+            default:
+                outcome = StimulusQueueingOutcomeEnum.REJECTED;
+        }
+        if(outcome != null && outcome != StimulusQueueingOutcomeEnum.QUEUED) {
+            activityQueue.recordOverflow(twinIdentifier, outcome);
+        }
+        return(outcome);
+    }
+
+    private StimulusQueueingOutcomeEnum dropOldestAndEnqueue(PendingStimulus newStimulus){
+        PendingStimulus oldestStimulus = pollLeastUrgentStimulus();
+        if(oldestStimulus != null){
+            removeFromIndexes(oldestStimulus);
+            removeSlots(1);
+            activityQueue.discardQueuedStimulus(oldestStimulus);
+        }
+        int previousState = reserveSlots(1, UNBOUNDED);
+        if(previousState == RETIRED){
+            return(null);
+        }
+        admit(newStimulus);
+        signalIfNowReady(previousState);
+        return(oldestStimulus != null ? StimulusQueueingOutcomeEnum.DROPPED_OLDEST : StimulusQueueingOutcomeEnum.QUEUED);
+    }
+
+    /**
+     * Replaces the pending stimulus for the same source resource with the new one. The replaced stimulus is still
+     * counted in the queue state until the new one takes its place, so the queue cannot be retired in the meantime.
+     */
+    private StimulusQueueingOutcomeEnum coalesce(PendingStimulus newStimulus){
+        String sourceResourceId = newStimulus.getSourceResourceId();
+        if(sourceResourceId == null){
+            return(StimulusQueueingOutcomeEnum.REJECTED);
+        }
+        PendingStimulus supersededStimulus = pendingStimuliByResourceId.get(sourceResourceId);
+        if(supersededStimulus == null || !laneOf(supersededStimulus).remove(supersededStimulus)){
+            return(StimulusQueueingOutcomeEnum.REJECTED);
+        }
+        removeFromIndexes(supersededStimulus);
+        activityQueue.discardQueuedStimulus(supersededStimulus);
+        admit(newStimulus);
+        return(StimulusQueueingOutcomeEnum.COALESCED);
+    }
+
+    private StimulusQueueingOutcomeEnum spill(PendingStimulus newStimulus){
+        byte[] encodedStimulus;
+        try {
+            encodedStimulus = encodeForSpill(newStimulus);
+        } catch (IOException encodingError) {
+            LOG.warn(".spill(): Unable to encode stimulus for twin {}, rejecting it: {}", twinIdentifier, encodingError.getMessage());
+            return(StimulusQueueingOutcomeEnum.REJECTED);
+        }
+        synchronized (spillLock){
+            if(spilledCount.get() == 0){
+                // The consumer has caught up since we looked, so try the in-memory queue once more
+                int previousState = reserveSlots(1, activityQueue.getTwinInstanceQueueCapacity());
+                if(previousState == RETIRED){
+                    return(null);
+                }
+                if(previousState != OVER_CAPACITY){
+                    admit(newStimulus);
+                    signalIfNowReady(previousState);
+                    return(StimulusQueueingOutcomeEnum.QUEUED);
+                }
+            }
+            int previousState = reserveSlots(1, UNBOUNDED);
+            if(previousState == RETIRED){
+                return(null);
+            }
+            try {
+                if(spillFile == null){
+                    spillFile = new TwinInstanceSpillFile(activityQueue.nextSpillFilePath());
+                }
+                spillFile.append(encodedStimulus);
+                spilledCount.incrementAndGet();
+                activityQueue.recordStimulusQueued(newStimulus);
+                activityQueue.discardStorage(newStimulus);
+            } catch (IOException spillError) {
+                LOG.warn(".spill(): Unable to spill stimulus for twin {}, rejecting it: {}", twinIdentifier, spillError.getMessage());
+                removeSlots(1);
+                signalIfNowReady(previousState);
+                return(StimulusQueueingOutcomeEnum.REJECTED);
+            }
+            signalIfNowReady(previousState);
+            return(StimulusQueueingOutcomeEnum.SPILLED);
+        }
+    }
+
+    private byte[] encodeForSpill(PendingStimulus pendingStimulus) throws IOException {
+        byte[] encodedStimulus = activityQueue.encodedFormOf(pendingStimulus);
+        ByteBuffer spillRecord = ByteBuffer.allocate(SPILL_RECORD_HEADER_SIZE + encodedStimulus.length);
+        spillRecord.putLong(pendingStimulus.getJournalSequence());
+        spillRecord.putLong(pendingStimulus.getEnqueueTime());
+        spillRecord.put(encodedStimulus);
+        return(spillRecord.array());
+    }
+
+    static long enqueueTimeOfSpillRecord(byte[] spillRecord){
+        return(ByteBuffer.wrap(spillRecord).getLong(8));
+    }
+
+    private PendingStimulus decodeFromSpill(byte[] spillRecord) throws IOException {
+        ByteBuffer spillRecordBuffer = ByteBuffer.wrap(spillRecord);
+        long journalSequence = spillRecordBuffer.getLong();
+        long enqueueTime = spillRecordBuffer.getLong();
+        PendingStimulus pendingStimulus = activityQueue.newPendingStimulus(Arrays.copyOfRange(spillRecord, SPILL_RECORD_HEADER_SIZE, spillRecord.length), journalSequence);
+        pendingStimulus.setEnqueueTime(enqueueTime);
+        return(pendingStimulus);
+    }
+
+    /**
+     * Adds a newly accepted stimulus to the in-memory queue.
+     */
+    private void admit(PendingStimulus newStimulus){
+        activityQueue.recordStimulusQueued(newStimulus);
+        addToMemory(newStimulus);
+    }
+
+    private void addToMemory(PendingStimulus newStimulus){
+        String sourceResourceId = newStimulus.getSourceResourceId();
+        if(pendingStimuliByResourceId != null && sourceResourceId != null){
+            pendingStimuliByResourceId.put(sourceResourceId, newStimulus);
+        }
+        laneOf(newStimulus).add(newStimulus);
+    }
+
+    private ConcurrentLinkedQueue<PendingStimulus> laneOf(PendingStimulus pendingStimulus){
+        return(priorityLanes.get(Math.min(pendingStimulus.getPriority(), priorityLanes.size() - 1)));
+    }
+
+    private void removeFromIndexes(PendingStimulus pendingStimulus){
+        if(pendingStimulus.getStimulusId() != null) {
+            pendingStimulusIds.remove(pendingStimulus.getStimulusId());
+        }
+        removeFromResourceIndex(pendingStimulus);
+    }
+
+    private void removeFromResourceIndex(PendingStimulus pendingStimulus){
+        if(pendingStimuliByResourceId != null && pendingStimulus.getSourceResourceId() != null){
+            pendingStimuliByResourceId.remove(pendingStimulus.getSourceResourceId(), pendingStimulus);
+        }
+    }
+
+    /**
+     * Increments the pending count and sets the scheduled flag, provided that doing so would not take the in-memory
+     * queue beyond the capacity.
+     *
+     * @return the state prior to the update, RETIRED if the queue has been retired, or OVER_CAPACITY
+     */
+    private int reserveSlots(int slotCount, int capacity){
+        while(true){
+            int currentState = queueState.get();
+            if(currentState == RETIRED){
+                return(RETIRED);
+            }
+            if(capacity != UNBOUNDED && (currentState >>> COUNT_SHIFT) - spilledCount.get() - takenCount.get() + slotCount > capacity){
+                return(OVER_CAPACITY);
+            }
+            if(queueState.compareAndSet(currentState, (currentState + slotCount * COUNT_UNIT) | SCHEDULED)){
+                if(currentState < COUNT_UNIT){
+                    activityQueue.recordTwinActive();
+                }
+                return(currentState);
+            }
+        }
+    }
+
+    /**
+     * Decrements the pending count by slotCount stimuli that have left the queue (or were never added after all).
+     */
+    private void removeSlots(int slotCount){
+        if(queueState.addAndGet(-slotCount * COUNT_UNIT) < COUNT_UNIT){
+            activityQueue.recordTwinIdle();
+        }
+    }
+
+    private void signalIfNowReady(int previousState){
+        if((previousState & SCHEDULED) == 0){
+            activityQueue.signalTwinReady(this);
+        }
+    }
+
+    //
+    // Consumer Side
+    //
+
+    StimulusPackage poll(){
+        lastActivityTime = System.nanoTime();
+        while(true) {
+            PendingStimulus nextStimulus = pollNextStimulus();
+            if (nextStimulus == null && spilledCount.get() > 0) {
+                reloadFromSpillFile();
+                nextStimulus = pollNextStimulus();
+            }
+            if (nextStimulus == null) {
+                return(null);
+            }
+            removeFromIndexes(nextStimulus);
+            removeSlots(1);
+            StimulusPackage nextStimulusPackage = activityQueue.materialise(nextStimulus);
+            if (nextStimulusPackage != null) {
+                activityQueue.acknowledgeStimulus(nextStimulus);
+                return(nextStimulusPackage);
+            }
+        }
+    }
+
+    /**
+     * Moves up to maxStimuli of the pending stimuli (in queue order) into the supplied list.
+     *
+     * @return the number of stimuli added to the list
+     */
+    int drainTo(List<StimulusPackage> drainedStimuli, int maxStimuli){
+        List<PendingStimulus> drainedEntries = new ArrayList<>(Math.min(maxStimuli, 64));
+        takeTo(drainedEntries, drainedStimuli, maxStimuli);
+        settleTaken(drainedEntries);
+        activityQueue.acknowledgeStimuli(drainedEntries);
+        return(drainedEntries.size());
+    }
+
+    /**
+     * As per drainTo(), but the stimuli stay pending (and unacknowledged) until the consumer settles them via
+     * settleTaken() once they have been processed or dead-lettered, or puts them back via returnToHead().
+     *
+     * @return the number of stimuli taken
+     */
+    int takeTo(List<PendingStimulus> takenEntries, List<StimulusPackage> takenStimuli, int maxStimuli){
+        lastActivityTime = System.nanoTime();
+        int lostCount = 0;
+        int takenCount = 0;
+        while(takenCount < maxStimuli){
+            PendingStimulus nextStimulus = pollNextStimulus();
+            if(nextStimulus == null){
+                if(spilledCount.get() > 0 && reloadFromSpillFile() > 0){
+                    continue;
+                }
+                break;
+            }
+            removeFromResourceIndex(nextStimulus);
+            StimulusPackage nextStimulusPackage = activityQueue.materialise(nextStimulus);
+            if(nextStimulusPackage != null) {
+                takenEntries.add(nextStimulus);
+                takenStimuli.add(nextStimulusPackage);
+                takenCount += 1;
+            } else {
+                removeFromIndexes(nextStimulus);
+                lostCount += 1;
+            }
+        }
+        if(takenCount > 0){
+            this.takenCount.addAndGet(takenCount);
+        }
+        if(lostCount > 0){
+            removeSlots(lostCount);
+        }
+        return(takenCount);
+    }
+
+    /**
+     * Lets go of stimuli taken via takeTo() that are finished with (processed or dead-lettered) - from here on, a
+     * stimulus with the same StimulusPackageIdentifier is no longer a duplicate.
+     */
+    void settleTaken(List<PendingStimulus> settledEntries){
+        if(settledEntries.isEmpty()){
+            return;
+        }
+        for(PendingStimulus settledEntry: settledEntries){
+            if(settledEntry.getStimulusId() != null){
+                pendingStimulusIds.remove(settledEntry.getStimulusId());
+            }
+        }
+        takenCount.addAndGet(-settledEntries.size());
+        lastActivityTime = System.nanoTime();
+        removeSlots(settledEntries.size());
+    }
+
+    /**
+     * Puts stimuli taken via takeTo() back at the head of the queue (in the order given). As they never left the
+     * pending count, the queue is still scheduled and cannot have been retired. Only for the consumer.
+     */
+    void returnToHead(List<PendingStimulus> returnedEntries){
+        for(int index = returnedEntries.size() - 1; index >= 0; index--){
+            returnedStimuli.addFirst(returnedEntries.get(index));
+        }
+        takenCount.addAndGet(-returnedEntries.size());
+        lastActivityTime = System.nanoTime();
+    }
+
+    /**
+     * Takes the oldest returned stimulus, if there is one, otherwise the head of the lane with the highest effective
+     * priority, the more urgent lane winning a tie.
+     */
+    private PendingStimulus pollNextStimulus(){
+        PendingStimulus returnedStimulus = returnedStimuli.pollFirst();
+        if(returnedStimulus != null){
+            return(returnedStimulus);
+        }
+        if(priorityLanes.size() == 1){
+            return(priorityLanes.get(0).poll());
+        }
+        while(true) {
+            long now = System.nanoTime();
+            ConcurrentLinkedQueue<PendingStimulus> selectedLane = null;
+            long selectedPriority = Long.MIN_VALUE;
+            for (int lane = priorityLanes.size() - 1; lane >= 0; lane--) {
+                PendingStimulus laneHead = priorityLanes.get(lane).peek();
+                if (laneHead == null) {
+                    continue;
+                }
+                long effectivePriority = lane + (now - laneHead.getEnqueueTime()) / agingIntervalNanos;
+                if (effectivePriority > selectedPriority) {
+                    selectedLane = priorityLanes.get(lane);
+                    selectedPriority = effectivePriority;
+                }
+            }
+            if (selectedLane == null) {
+                return(null);
+            }
+            PendingStimulus nextStimulus = selectedLane.poll();
+            if (nextStimulus != null) {
+                return(nextStimulus);
+            }
+            // The lane was emptied (coalesced) since we looked at it, so look again
+        }
+    }
+
+    private PendingStimulus pollLeastUrgentStimulus(){
+        for(ConcurrentLinkedQueue<PendingStimulus> lane: priorityLanes){
+            PendingStimulus leastUrgentStimulus = lane.poll();
+            if(leastUrgentStimulus != null){
+                return(leastUrgentStimulus);
+            }
+        }
+        return(null);
+    }
+
+    /**
+     * Reloads (up to a queue's capacity worth of) spilled stimuli into the in-memory queue.
+     *
+     * @return the number of stimuli reloaded
+     */
+    private int reloadFromSpillFile(){
+        synchronized (spillLock){
+            if(spillFile == null){
+                return(0);
+            }
+            List<byte[]> spillRecords = new ArrayList<>();
+            int lostCount = 0;
+            try {
+                spillFile.readInto(spillRecords, Math.min(activityQueue.getTwinInstanceQueueCapacity(), spilledCount.get()));
+            } catch (IOException readError) {
+                LOG.error(".reloadFromSpillFile(): Spill file for twin {} is unreadable, {} stimuli lost (they remain in the journal, if enabled): {}", twinIdentifier, spilledCount.get(), readError.getMessage());
+                lostCount = spilledCount.get() - spillRecords.size();
+                activityQueue.recordStimuliLost(lostCount);
+                closeSpillFile();
+            }
+            int reloadedCount = 0;
+            for(byte[] spillRecord: spillRecords){
+                try {
+                    addToMemory(decodeFromSpill(spillRecord));
+                    reloadedCount += 1;
+                } catch (IOException decodeError) {
+                    LOG.error(".reloadFromSpillFile(): Unable to decode spilled stimulus for twin {}, stimulus lost (it remains in the journal, if enabled): {}", twinIdentifier, decodeError.getMessage());
+                    lostCount += 1;
+                    activityQueue.recordSpilledStimulusLost(spillRecord);
+                }
+            }
+            spilledCount.addAndGet(-(reloadedCount + lostCount));
+            if(lostCount > 0){
+                removeSlots(lostCount);
+            }
+            if(spillFile != null && spillFile.isExhausted()){
+                closeSpillFile();
+            }
+            return(reloadedCount);
+        }
+    }
+
+    private void closeSpillFile(){
+        try {
+            spillFile.close();
+        } catch (IOException closeError) {
+            LOG.warn(".closeSpillFile(): Unable to close spill file for twin {}: {}", twinIdentifier, closeError.getMessage());
+        }
+        spillFile = null;
+    }
+
+    /**
+     * Retires the queue if (and only if) there is nothing pending in it and it is not scheduled.
+     */
+    boolean tryRetire(){
+        return(queueState.compareAndSet(0, RETIRED));
+    }
+
+    /**
+     * Retires the queue on behalf of the compactor, if it has been empty (and not owned by a consumer) for at least
+     * the idle threshold. Unlike tryRetire(), this will also retire a queue that is still scheduled - e.g. one that
+     * was emptied via getNextStimulus() and is waiting on a ready set that nobody is taking from.
+     */
+    boolean tryEvict(long now, long idleThreshold){
+        if(now - lastActivityTime < idleThreshold){
+            return(false);
+        }
+        return(queueState.compareAndSet(0, RETIRED) || queueState.compareAndSet(SCHEDULED, RETIRED));
+    }
+
+    boolean isRetired(){
+        return(queueState.get() == RETIRED);
+    }
+
+    /**
+     * Called by the consumer that has taken this queue from the ready set, to mark it as owned.
+     *
+     * @return true if stimuli are pending; false if not, in which case the caller should release() it straight away
+     */
+    boolean claim(){
+        while(true){
+            int currentState = queueState.get();
+            if(currentState == RETIRED){
+                return(false);
+            }
+            if(queueState.compareAndSet(currentState, currentState | OWNED)){
+                return(currentState >= COUNT_UNIT);
+            }
+        }
+    }
+
+    /**
+     * Called by the consumer that took this queue from the ready set once it has finished with it.
+     *
+     * @return true if stimuli are still pending, in which case the queue remains scheduled and the caller must place
+     * it back on the ready set; false if the queue was empty and is no longer scheduled
+     */
+    boolean release(){
+        while(true){
+            int currentState = queueState.get();
+            if(currentState == RETIRED){
+                return(false);
+            }
+            if(currentState >= COUNT_UNIT){
+                if(queueState.compareAndSet(currentState, currentState & ~OWNED)) {
+                    return(true);
+                }
+            } else if(queueState.compareAndSet(currentState, 0)){
+                return(false);
+            }
+        }
+    }
+
+    boolean isPending(StimulusPackageIdentifier stimulusId){
+        return(pendingStimulusIds.contains(stimulusId));
+    }
+
+    int size(){
+        int currentState = queueState.get();
+        if(currentState == RETIRED){
+            return(0);
+        }
+        return(Math.max((currentState >>> COUNT_SHIFT) - takenCount.get(), 0));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The stimuli a consumer has claimed from a twin instance's queue (see TwinInstanceActivityQueue.claimStimuli()).
+ * They are worked through in order: each stimulus is either acknowledged once processed, dead-lettered, or put back at
+ * the head of the queue - so none are lost to a failed behaviour or a consumer that gives up its turn. Until a
+ * stimulus is acknowledged or dead-lettered, a redelivery of it to the twin instance is discarded as a duplicate.
+ *
+ * Only for the consumer that owns the twin instance, and not thread-safe.
+ */
+public class TwinStimulusClaim {
+    private final TwinInstanceActivityQueue activityQueue;
+    private final TwinInstanceStimulusQueue twinStimuli;
+    private final DigitalTwinIdentifier twinIdentifier;
+    private final List<PendingStimulus> claimedEntries;
+    private final List<StimulusPackage> claimedStimuli;
+    private int settledCount;
+
+    TwinStimulusClaim(TwinInstanceActivityQueue activityQueue, TwinInstanceStimulusQueue twinStimuli, DigitalTwinIdentifier twinIdentifier, List<PendingStimulus> claimedEntries, List<StimulusPackage> claimedStimuli){
+        this.activityQueue = activityQueue;
+        this.twinStimuli = twinStimuli;
+        this.twinIdentifier = twinIdentifier;
+        this.claimedEntries = claimedEntries;
+        this.claimedStimuli = claimedStimuli;
+        this.settledCount = 0;
+    }
+
+    public DigitalTwinIdentifier getTwinIdentifier() {
+        return twinIdentifier;
+    }
+
+    /**
+     * @return the claimed stimuli, in queue order
+     */
+    public List<StimulusPackage> getStimuli() {
+        return Collections.unmodifiableList(claimedStimuli);
+    }
+
+    /**
+     * @return the number of stimuli (from the front of getStimuli()) that have been acknowledged, dead-lettered or put
+     * back - the index of the next stimulus to be dealt with
+     */
+    public int getSettledCount() {
+        return settledCount;
+    }
+
+    public boolean isSettled(){
+        return(settledCount == claimedEntries.size());
+    }
+
+    /**
+     * Acknowledges the next count stimuli, which have been processed.
+     */
+    public void acknowledge(int count){
+        int settleEnd = settleEnd(count);
+        activityQueue.acknowledgeStimuli(claimedEntries.subList(settledCount, settleEnd));
+        settleTaken(settleEnd);
+    }
+
+    /**
+     * Records a failed delivery of the next count stimuli. Those that have now failed the maximum number of times are
+     * dead-lettered, and the rest of the claim (from the first that has not) is put back at the head of the queue. As
+     * returned stimuli are always claimed first, the exhausted ones are always at the front.
+     *
+     * @return true if stimuli were put back, in which case they should not be claimed again until the activity
+     * queue's redelivery delay has passed; false if all count stimuli were dead-lettered, and the claim can go on
+     */
+    public boolean fail(int count, RuntimeException failure){
+        int settleEnd = settleEnd(count);
+        int exhaustedEnd = settledCount;
+        for(int index = settledCount; index < settleEnd; index++){
+            if(claimedEntries.get(index).recordFailedDelivery() >= activityQueue.getMaxDeliveryAttempts() && exhaustedEnd == index){
+                exhaustedEnd += 1;
+            }
+        }
+        if(exhaustedEnd > settledCount){
+            activityQueue.deadLetter(twinIdentifier, claimedEntries.subList(settledCount, exhaustedEnd), claimedStimuli.subList(settledCount, exhaustedEnd), failure);
+            settleTaken(exhaustedEnd);
+        }
+        if(exhaustedEnd == settleEnd){
+            return(false);
+        }
+        // Each return goes in ahead of what is already there, so the stimuli that were never delivered go back first
+        returnStimuli(settleEnd, claimedEntries.size(), false);
+        returnStimuli(settledCount, settleEnd, true);
+        settledCount = claimedEntries.size();
+        return(true);
+    }
+
+    /**
+     * Puts the stimuli that have not been dealt with back at the head of the queue, in order, without counting it as
+     * a failed delivery - e.g. as the twin instance is locked elsewhere.
+     */
+    public void returnRemaining(){
+        returnStimuli(settledCount, claimedEntries.size(), false);
+        settledCount = claimedEntries.size();
+    }
+
+    private void returnStimuli(int returnStart, int returnEnd, boolean redelivery){
+        if(returnStart < returnEnd){
+            activityQueue.returnStimuli(twinStimuli, claimedEntries.subList(returnStart, returnEnd), claimedStimuli.subList(returnStart, returnEnd), redelivery);
+        }
+    }
+
+    private void settleTaken(int settleEnd){
+        if(settleEnd > settledCount){
+            twinStimuli.settleTaken(claimedEntries.subList(settledCount, settleEnd));
+        }
+        settledCount = settleEnd;
+    }
+
+    private int settleEnd(int count){
+        if(count < 0 || settledCount + count > claimedEntries.size()){
+            throw new IllegalArgumentException("Only " + (claimedEntries.size() - settledCount) + " claimed stimuli remain, not " + count);
+        }
+        return(settledCount + count);
+    }
+}
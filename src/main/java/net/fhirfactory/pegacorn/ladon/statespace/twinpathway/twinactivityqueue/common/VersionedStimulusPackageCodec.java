@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
+import net.fhirfactory.pegacorn.ladon.model.stimuli.StimulusType;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackageIdentifier;
+import net.fhirfactory.pegacorn.petasos.model.uow.UoW;
+import org.hl7.fhir.r4.model.Identifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Encodes StimulusPackages (and DigitalTwinIdentifiers) for the journal, spill files and off-heap storage - all of
+ * which may be read back by a later build of this module, so the layout is explicit and versioned rather than left to
+ * Java serialisation of StimulusPackage itself.
+ *
+ * Every encoding starts with FORMAT_MAGIC and the format version it was written in, and decode() reads each version
+ * it has ever written. StimulusPackage's own fields are written field by field; the objects it carries from other
+ * modules (the target Identifiers, the StimulusType and the UoW) are written as length-prefixed Java serialised blobs,
+ * and so must be Serializable - which is checked on encode, so that a stimulus that could not be read back is refused
+ * when it is queued rather than lost when it is replayed.
+ *
+ * Version 1: [magic:byte][version:byte][id:string][sourceResourceId:string][sourceEventTime:instant]
+ * [targetTwinIdentifier:blob][targetBehaviourIdentifier:blob][stimulusType:blob][stimulusContent:blob], where a string
+ * is [length:int][utf-8 bytes], an instant is [present:boolean][epochSecond:long][nano:int] and a blob is
+ * [length:int][bytes] - a length of -1 meaning null.
+ */
+public class VersionedStimulusPackageCodec implements StimulusPackageCodec {
+    private static final byte FORMAT_MAGIC = 0x4C;
+    private static final byte FORMAT_VERSION_1 = 1;
+    private static final byte CURRENT_FORMAT_VERSION = FORMAT_VERSION_1;
+    private static final int NULL_LENGTH = -1;
+
+    @Override
+    public byte[] encode(StimulusPackage stimulusPackage) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(1024);
+        try (DataOutputStream dataStream = new DataOutputStream(byteStream)) {
+            writeHeader(dataStream);
+            writeString(dataStream, stimulusPackage.getId() == null ? null : stimulusPackage.getId().getId());
+            writeString(dataStream, stimulusPackage.getSourceResourceId());
+            writeInstant(dataStream, stimulusPackage.getSourceEventTime());
+            writeBlob(dataStream, "targetTwinIdentifier", stimulusPackage.getTargetTwinIdentifier());
+            writeBlob(dataStream, "targetBehaviourIdentifier", stimulusPackage.getTargetBehaviourIdentifier());
+            writeBlob(dataStream, "stimulusType", stimulusPackage.getStimulusType());
+            writeBlob(dataStream, "stimulusContent", stimulusPackage.getStimulusContent());
+        }
+        return (byteStream.toByteArray());
+    }
+
+    @Override
+    public StimulusPackage decode(byte[] encodedStimulusPackage) throws IOException {
+        try (DataInputStream dataStream = new DataInputStream(new ByteArrayInputStream(encodedStimulusPackage))) {
+            byte formatVersion = readHeader(dataStream, "StimulusPackage");
+            switch (formatVersion) {
+                case FORMAT_VERSION_1:
+                    return (decodeVersion1(dataStream));
+                default:
+                    throw new IOException("Unsupported StimulusPackage encoding version " + formatVersion);
+            }
+        }
+    }
+
+    private StimulusPackage decodeVersion1(DataInputStream dataStream) throws IOException {
+        StimulusPackage stimulusPackage = new StimulusPackage();
+        String id = readString(dataStream);
+        stimulusPackage.setId(id == null ? null : new StimulusPackageIdentifier(id));
+        stimulusPackage.setSourceResourceId(readString(dataStream));
+        stimulusPackage.setSourceEventTime(readInstant(dataStream));
+        stimulusPackage.setTargetTwinIdentifier(readBlob(dataStream, Identifier.class));
+        stimulusPackage.setTargetBehaviourIdentifier(readBlob(dataStream, BehaviourIdentifier.class));
+        stimulusPackage.setStimulusType(readBlob(dataStream, StimulusType.class));
+        stimulusPackage.setStimulusContent(readBlob(dataStream, UoW.class));
+        return (stimulusPackage);
+    }
+
+    @Override
+    public byte[] encodeTwinIdentifier(DigitalTwinIdentifier twinIdentifier) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(256);
+        try (DataOutputStream dataStream = new DataOutputStream(byteStream)) {
+            writeHeader(dataStream);
+            writeBlob(dataStream, "twinIdentifier", twinIdentifier);
+        }
+        return (byteStream.toByteArray());
+    }
+
+    @Override
+    public DigitalTwinIdentifier decodeTwinIdentifier(byte[] encodedTwinIdentifier) throws IOException {
+        try (DataInputStream dataStream = new DataInputStream(new ByteArrayInputStream(encodedTwinIdentifier))) {
+            byte formatVersion = readHeader(dataStream, "DigitalTwinIdentifier");
+            if (formatVersion != FORMAT_VERSION_1) {
+                throw new IOException("Unsupported DigitalTwinIdentifier encoding version " + formatVersion);
+            }
+            return (readBlob(dataStream, DigitalTwinIdentifier.class));
+        }
+    }
+
+    //
+    // Layout
+    //
+
+    private static void writeHeader(DataOutputStream dataStream) throws IOException {
+        dataStream.writeByte(FORMAT_MAGIC);
+        dataStream.writeByte(CURRENT_FORMAT_VERSION);
+    }
+
+    private static byte readHeader(DataInputStream dataStream, String encodedType) throws IOException {
+        if (dataStream.readByte() != FORMAT_MAGIC) {
+            throw new IOException("Not an encoded " + encodedType);
+        }
+        return (dataStream.readByte());
+    }
+
+    private static void writeString(DataOutputStream dataStream, String value) throws IOException {
+        if (value == null) {
+            dataStream.writeInt(NULL_LENGTH);
+            return;
+        }
+        byte[] encodedValue = value.getBytes(StandardCharsets.UTF_8);
+        dataStream.writeInt(encodedValue.length);
+        dataStream.write(encodedValue);
+    }
+
+    private static String readString(DataInputStream dataStream) throws IOException {
+        byte[] encodedValue = readBytes(dataStream);
+        return (encodedValue == null ? null : new String(encodedValue, StandardCharsets.UTF_8));
+    }
+
+    private static void writeInstant(DataOutputStream dataStream, Instant value) throws IOException {
+        dataStream.writeBoolean(value != null);
+        if (value != null) {
+            dataStream.writeLong(value.getEpochSecond());
+            dataStream.writeInt(value.getNano());
+        }
+    }
+
+    private static Instant readInstant(DataInputStream dataStream) throws IOException {
+        if (!dataStream.readBoolean()) {
+            return (null);
+        }
+        long epochSecond = dataStream.readLong();
+        return (Instant.ofEpochSecond(epochSecond, dataStream.readInt()));
+    }
+
+    private static void writeBlob(DataOutputStream dataStream, String fieldName, Object value) throws IOException {
+        if (value == null) {
+            dataStream.writeInt(NULL_LENGTH);
+            return;
+        }
+        if (!(value instanceof Serializable)) {
+            throw new IOException("Unable to encode " + fieldName + ": " + value.getClass().getName() + " is not Serializable");
+        }
+        ByteArrayOutputStream blobStream = new ByteArrayOutputStream(512);
+        try (ObjectOutputStream objectStream = new ObjectOutputStream(blobStream)) {
+            objectStream.writeObject(value);
+        } catch (IOException serialisationError) {
+            throw new IOException("Unable to encode " + fieldName + " (" + value.getClass().getName() + ")", serialisationError);
+        }
+        dataStream.writeInt(blobStream.size());
+        blobStream.writeTo(dataStream);
+    }
+
+    private static <T> T readBlob(DataInputStream dataStream, Class<T> valueClass) throws IOException {
+        byte[] encodedValue = readBytes(dataStream);
+        if (encodedValue == null) {
+            return (null);
+        }
+        try (ObjectInputStream objectStream = new ObjectInputStream(new ByteArrayInputStream(encodedValue))) {
+            return (valueClass.cast(objectStream.readObject()));
+        } catch (ClassNotFoundException | ClassCastException decodeError) {
+            throw new IOException("Unable to decode " + valueClass.getSimpleName(), decodeError);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream dataStream) throws IOException {
+        int length = dataStream.readInt();
+        if (length == NULL_LENGTH) {
+            return (null);
+        }
+        if (length < 0 || length > dataStream.available()) {
+            throw new IOException("Corrupt encoding: field length " + length);
+        }
+        byte[] encodedValue = new byte[length];
+        dataStream.readFully(encodedValue);
+        return (encodedValue);
+    }
+}
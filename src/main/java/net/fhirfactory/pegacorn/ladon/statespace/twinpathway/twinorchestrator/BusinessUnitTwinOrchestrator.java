@@ -22,7 +22,7 @@
 package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator;
 
 import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator.common.TwinOrchestratorBase;
-import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.ICTSystemTwinPathwayController;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.BusinessUnitTwinPathwayController;
 import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinPathwayControllerBase;
 import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
 
@@ -33,7 +33,7 @@ import javax.inject.Inject;
 public class BusinessUnitTwinOrchestrator extends TwinOrchestratorBase {
 
     @Inject
-    ICTSystemTwinPathwayController twinPathwayController;
+    BusinessUnitTwinPathwayController twinPathwayController;
 
     @Override
     protected TwinPathwayControllerBase specifyPathwayController() {
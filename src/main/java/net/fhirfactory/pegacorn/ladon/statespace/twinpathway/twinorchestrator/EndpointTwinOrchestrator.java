@@ -22,18 +22,22 @@
 package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator;
 
 import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator.common.TwinOrchestratorBase;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.EndpointTwinPathwayController;
 import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinPathwayControllerBase;
 import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 
 @ApplicationScoped
 public class EndpointTwinOrchestrator extends TwinOrchestratorBase {
 
+    @Inject
+    EndpointTwinPathwayController twinPathwayController;
 
     @Override
     protected TwinPathwayControllerBase specifyPathwayController() {
-        return null;
+        return (twinPathwayController);
     }
 
     @Override
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.ExplicitStimulus2TwinInstanceMap;
+import net.fhirfactory.pegacorn.ladon.model.stimuli.Stimulus;
+import net.fhirfactory.pegacorn.ladon.model.stimuli.StimulusType;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.BehaviourCentricExclusiveFilterRulesInterface;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.BehaviourCentricInclusiveFilterRulesInterface;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The behaviours' filter rules compiled into a decision table, so that working out which twin instances a stimulus is
+ * for costs (close to) the same however many behaviours are registered.
+ *
+ * The static rules are looked up by hash: each behaviour's positiveStaticFilterStimulus() StimulusTypes index the
+ * behaviour by StimulusType, and its positiveStaticFilterTwinInstance2StimulusMap() indexes its twin instances by
+ * TopicToken. For a stimulus, only the behaviours found under its StimulusType have their
+ * positiveDynamicFilterTwinInstancesForStimulus() called, and only the (behaviour, twin instance) candidates from
+ * either route have the exclusive rules applied - the behaviour's own, if it has them, along with any registered on
+ * their own. A negativeFilterStimulusAgainstDigitalTwin() that returns true rules the candidate out.
+ *
+ * The table is immutable: a change of rules is compiled into a new one.
+ */
+public class CompiledStimulusFilter {
+    private static final Logger LOG = LoggerFactory.getLogger(CompiledStimulusFilter.class);
+
+    private static final CompiledRules[] NO_RULES = new CompiledRules[0];
+    private static final ExplicitInterest[] NO_INTERESTS = new ExplicitInterest[0];
+
+    private final Map<StimulusType, CompiledRules[]> rulesByStimulusType;
+    private final Map<TopicToken, ExplicitInterest[]> interestsByStimulusToken;
+    private final int behaviourCount;
+
+    /**
+     * A behaviour's inclusive rules, along with the exclusive rules that apply to its candidates.
+     */
+    private static class CompiledRules {
+        private final BehaviourCentricInclusiveFilterRulesInterface inclusiveRules;
+        private final BehaviourCentricExclusiveFilterRulesInterface[] exclusiveRules;
+
+        CompiledRules(BehaviourCentricInclusiveFilterRulesInterface inclusiveRules, BehaviourCentricExclusiveFilterRulesInterface[] exclusiveRules){
+            this.inclusiveRules = inclusiveRules;
+            this.exclusiveRules = exclusiveRules;
+        }
+    }
+
+    /**
+     * The twin instances a behaviour has explicitly subscribed to a TopicToken.
+     */
+    private static class ExplicitInterest {
+        private final CompiledRules rules;
+        private final DigitalTwinIdentifier[] twinInstances;
+
+        ExplicitInterest(CompiledRules rules, DigitalTwinIdentifier[] twinInstances){
+            this.rules = rules;
+            this.twinInstances = twinInstances;
+        }
+    }
+
+    private CompiledStimulusFilter(Map<StimulusType, CompiledRules[]> rulesByStimulusType, Map<TopicToken, ExplicitInterest[]> interestsByStimulusToken, int behaviourCount){
+        this.rulesByStimulusType = rulesByStimulusType;
+        this.interestsByStimulusToken = interestsByStimulusToken;
+        this.behaviourCount = behaviourCount;
+    }
+
+    public static CompiledStimulusFilter compile(Collection<BehaviourCentricInclusiveFilterRulesInterface> inclusiveRuleSets, Collection<BehaviourCentricExclusiveFilterRulesInterface> exclusiveRuleSets){
+        // Exclusive rules registered in their own right apply to every behaviour
+        List<BehaviourCentricExclusiveFilterRulesInterface> sharedExclusiveRules = new ArrayList<>();
+        for(BehaviourCentricExclusiveFilterRulesInterface exclusiveRules: exclusiveRuleSets){
+            if(!(exclusiveRules instanceof BehaviourCentricInclusiveFilterRulesInterface) || !containsInstance(inclusiveRuleSets, exclusiveRules)){
+                sharedExclusiveRules.add(exclusiveRules);
+            }
+        }
+        Map<StimulusType, List<CompiledRules>> typedRules = new HashMap<>();
+        Map<TopicToken, List<ExplicitInterest>> explicitInterests = new HashMap<>();
+        for(BehaviourCentricInclusiveFilterRulesInterface inclusiveRules: inclusiveRuleSets){
+            List<BehaviourCentricExclusiveFilterRulesInterface> behaviourExclusiveRules = new ArrayList<>();
+            if(inclusiveRules instanceof BehaviourCentricExclusiveFilterRulesInterface){
+                behaviourExclusiveRules.add((BehaviourCentricExclusiveFilterRulesInterface) inclusiveRules);
+            }
+            behaviourExclusiveRules.addAll(sharedExclusiveRules);
+            CompiledRules compiledRules = new CompiledRules(inclusiveRules, behaviourExclusiveRules.toArray(new BehaviourCentricExclusiveFilterRulesInterface[0]));
+            List<StimulusType> stimulusTypes = inclusiveRules.positiveStaticFilterStimulus();
+            if(stimulusTypes != null){
+                for(StimulusType stimulusType: new LinkedHashSet<>(stimulusTypes)){
+                    typedRules.computeIfAbsent(stimulusType, type -> new ArrayList<>()).add(compiledRules);
+                }
+            }
+            List<ExplicitStimulus2TwinInstanceMap> stimulusTwinMaps = inclusiveRules.positiveStaticFilterTwinInstance2StimulusMap();
+            if(stimulusTwinMaps != null){
+                Map<TopicToken, Set<DigitalTwinIdentifier>> behaviourInterests = new LinkedHashMap<>();
+                for(ExplicitStimulus2TwinInstanceMap stimulusTwinMap: stimulusTwinMaps){
+                    for(Map.Entry<TopicToken, Set<DigitalTwinIdentifier>> requirement: stimulusTwinMap.getStimulusRequirementMap().entrySet()){
+                        behaviourInterests.computeIfAbsent(requirement.getKey(), token -> new LinkedHashSet<>()).addAll(requirement.getValue());
+                    }
+                }
+                for(Map.Entry<TopicToken, Set<DigitalTwinIdentifier>> behaviourInterest: behaviourInterests.entrySet()){
+                    DigitalTwinIdentifier[] twinInstances = behaviourInterest.getValue().toArray(new DigitalTwinIdentifier[0]);
+                    explicitInterests.computeIfAbsent(behaviourInterest.getKey(), token -> new ArrayList<>()).add(new ExplicitInterest(compiledRules, twinInstances));
+                }
+            }
+        }
+        Map<StimulusType, CompiledRules[]> rulesByStimulusType = new HashMap<>();
+        for(Map.Entry<StimulusType, List<CompiledRules>> typedRule: typedRules.entrySet()){
+            rulesByStimulusType.put(typedRule.getKey(), typedRule.getValue().toArray(NO_RULES));
+        }
+        Map<TopicToken, ExplicitInterest[]> interestsByStimulusToken = new HashMap<>();
+        for(Map.Entry<TopicToken, List<ExplicitInterest>> explicitInterest: explicitInterests.entrySet()){
+            interestsByStimulusToken.put(explicitInterest.getKey(), explicitInterest.getValue().toArray(NO_INTERESTS));
+        }
+        return(new CompiledStimulusFilter(rulesByStimulusType, interestsByStimulusToken, inclusiveRuleSets.size()));
+    }
+
+    private static boolean containsInstance(Collection<?> ruleSets, Object candidateRules){
+        for(Object ruleSet: ruleSets){
+            if(ruleSet == candidateRules){
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    /**
+     * @param stimulusType the StimulusType of the stimulus (may be null, if it has none)
+     * @param stimulusToken the TopicToken the stimulus arrived on (may be null, if none)
+     * @return each (behaviour, twin instance) pair the stimulus is for - a twin instance selected by both the static
+     * and dynamic rules of a behaviour appears only once
+     */
+    public List<StimulusFilterMatch> evaluate(Stimulus stimulus, StimulusType stimulusType, TopicToken stimulusToken){
+        Map<CompiledRules, Set<DigitalTwinIdentifier>> candidates = new IdentityHashMap<>();
+        List<CompiledRules> candidateOrder = new ArrayList<>();
+        ExplicitInterest[] explicitInterests = stimulusToken == null ? null : interestsByStimulusToken.get(stimulusToken);
+        if(explicitInterests != null){
+            for(ExplicitInterest explicitInterest: explicitInterests){
+                Set<DigitalTwinIdentifier> twinInstances = candidatesFor(explicitInterest.rules, candidates, candidateOrder);
+                Collections.addAll(twinInstances, explicitInterest.twinInstances);
+            }
+        }
+        CompiledRules[] typedRules = stimulusType == null ? null : rulesByStimulusType.get(stimulusType);
+        if(typedRules != null){
+            for(CompiledRules compiledRules: typedRules){
+                List<DigitalTwinIdentifier> dynamicTwinInstances;
+                try {
+                    dynamicTwinInstances = compiledRules.inclusiveRules.positiveDynamicFilterTwinInstancesForStimulus(stimulus);
+                } catch (RuntimeException ruleError) {
+                    LOG.warn(".evaluate(): Dynamic filter of {} failed: {}", compiledRules.inclusiveRules, ruleError.getMessage());
+                    continue;
+                }
+                if(dynamicTwinInstances != null && !dynamicTwinInstances.isEmpty()){
+                    candidatesFor(compiledRules, candidates, candidateOrder).addAll(dynamicTwinInstances);
+                }
+            }
+        }
+        List<StimulusFilterMatch> matches = new ArrayList<>();
+        for(CompiledRules compiledRules: candidateOrder){
+            for(DigitalTwinIdentifier twinInstance: candidates.get(compiledRules)){
+                if(!isExcluded(compiledRules, stimulus, twinInstance)){
+                    matches.add(new StimulusFilterMatch(compiledRules.inclusiveRules, twinInstance));
+                }
+            }
+        }
+        return(matches);
+    }
+
+    private static Set<DigitalTwinIdentifier> candidatesFor(CompiledRules compiledRules, Map<CompiledRules, Set<DigitalTwinIdentifier>> candidates, List<CompiledRules> candidateOrder){
+        Set<DigitalTwinIdentifier> twinInstances = candidates.get(compiledRules);
+        if(twinInstances == null){
+            twinInstances = new LinkedHashSet<>();
+            candidates.put(compiledRules, twinInstances);
+            candidateOrder.add(compiledRules);
+        }
+        return(twinInstances);
+    }
+
+    /**
+     * A failing exclusive rule rules the candidate out, rather than risk handing a behaviour a stimulus it would have
+     * refused.
+     */
+    private static boolean isExcluded(CompiledRules compiledRules, Stimulus stimulus, DigitalTwinIdentifier twinInstance){
+        for(BehaviourCentricExclusiveFilterRulesInterface exclusiveRules: compiledRules.exclusiveRules){
+            try {
+                if(exclusiveRules.negativeFilterStimulusAgainstDigitalTwin(stimulus, twinInstance)){
+                    return(true);
+                }
+            } catch (RuntimeException ruleError) {
+                LOG.warn(".isExcluded(): Exclusive filter of {} failed for twin {}: {}", exclusiveRules, twinInstance, ruleError.getMessage());
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    public int getBehaviourCount(){
+        return(behaviourCount);
+    }
+
+    public int getStimulusTypeCount(){
+        return(rulesByStimulusType.size());
+    }
+
+    public int getStimulusTokenCount(){
+        return(interestsByStimulusToken.size());
+    }
+}
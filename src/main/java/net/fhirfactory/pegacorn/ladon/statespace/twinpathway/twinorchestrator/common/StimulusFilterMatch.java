@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.BehaviourCentricInclusiveFilterRulesInterface;
+
+/**
+ * A twin instance selected for a stimulus by a CompiledStimulusFilter, and the behaviour (inclusive rules) that
+ * selected it.
+ */
+public class StimulusFilterMatch {
+    private final BehaviourCentricInclusiveFilterRulesInterface inclusiveRules;
+    private final DigitalTwinIdentifier twinInstanceIdentifier;
+
+    public StimulusFilterMatch(BehaviourCentricInclusiveFilterRulesInterface inclusiveRules, DigitalTwinIdentifier twinInstanceIdentifier){
+        this.inclusiveRules = inclusiveRules;
+        this.twinInstanceIdentifier = twinInstanceIdentifier;
+    }
+
+    public BehaviourCentricInclusiveFilterRulesInterface getInclusiveRules() {
+        return inclusiveRules;
+    }
+
+    public DigitalTwinIdentifier getTwinInstanceIdentifier() {
+        return twinInstanceIdentifier;
+    }
+
+    @Override
+    public String toString() {
+        return "StimulusFilterMatch{" +
+                "inclusiveRules=" + inclusiveRules +
+                ", twinInstanceIdentifier=" + twinInstanceIdentifier +
+                '}';
+    }
+}
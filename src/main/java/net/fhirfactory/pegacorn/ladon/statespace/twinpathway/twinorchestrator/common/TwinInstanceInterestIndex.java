@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Which twin instances are interested in each stimulus (by its TopicToken) - any number of them per stimulus, so a
+ * stimulus can be fanned out to all of its twin instances in time proportional to their number.
+ *
+ * Twin instances are interned as ints (the first time they are seen), and each TopicToken's interested twin instances
+ * are held as a sorted int[] - compact, and replaced (copy-on-write) within the map entry's compute(), so lookups never
+ * block. Subscription changes should be made in bulk (addInterests()/removeInterests()), which merge each TopicToken's
+ * array in a single pass however many twin instances are added or removed.
+ *
+ * Each (TopicToken, twin instance) pair is reference counted alongside the array: adding it again (e.g. for a second
+ * behaviour) counts it again, and it stays in the index until it has been removed as many times as it was added.
+ *
+ * Interned ids are not reused, so the intern table grows with the number of distinct twin instances ever indexed.
+ */
+public class TwinInstanceInterestIndex {
+    private static final Interests NO_INTERESTS = new Interests(new int[0], new int[0]);
+    private static final int INITIAL_INTERN_CAPACITY = 1024;
+
+    private final ConcurrentHashMap<TopicToken, Interests> interestedTwinInstances;
+    private final ConcurrentHashMap<DigitalTwinIdentifier, Integer> twinInstanceIds;
+    private volatile DigitalTwinIdentifier[] twinInstancesById;
+    private int nextTwinInstanceId;
+
+    /**
+     * A TopicToken's interested twin instances (sorted interned ids), each with the number of times its interest has
+     * been added and not yet removed. Never changed once published.
+     */
+    private static final class Interests {
+        private final int[] twinIds;
+        private final int[] referenceCounts;
+
+        Interests(int[] twinIds, int[] referenceCounts){
+            this.twinIds = twinIds;
+            this.referenceCounts = referenceCounts;
+        }
+    }
+
+    public TwinInstanceInterestIndex(){
+        this.interestedTwinInstances = new ConcurrentHashMap<>();
+        this.twinInstanceIds = new ConcurrentHashMap<>();
+        this.twinInstancesById = new DigitalTwinIdentifier[INITIAL_INTERN_CAPACITY];
+        this.nextTwinInstanceId = 0;
+    }
+
+    //
+    // Updates
+    //
+
+    public void addInterest(TopicToken stimulusToken, DigitalTwinIdentifier twinInstanceIdentifier){
+        addInterests(stimulusToken, Collections.singletonList(twinInstanceIdentifier));
+    }
+
+    public void addInterests(TopicToken stimulusToken, Collection<DigitalTwinIdentifier> twinInstanceIdentifiers){
+        if(twinInstanceIdentifiers.isEmpty()){
+            return;
+        }
+        int[] addedIds = toSortedIds(twinInstanceIdentifiers, true);
+        interestedTwinInstances.compute(stimulusToken, (token, currentInterests) -> union(currentInterests == null ? NO_INTERESTS : currentInterests, addedIds));
+    }
+
+    public void addInterests(Map<TopicToken, ? extends Collection<DigitalTwinIdentifier>> interests){
+        for(Map.Entry<TopicToken, ? extends Collection<DigitalTwinIdentifier>> interest: interests.entrySet()){
+            addInterests(interest.getKey(), interest.getValue());
+        }
+    }
+
+    public void removeInterest(TopicToken stimulusToken, DigitalTwinIdentifier twinInstanceIdentifier){
+        removeInterests(stimulusToken, Collections.singletonList(twinInstanceIdentifier));
+    }
+
+    public void removeInterests(TopicToken stimulusToken, Collection<DigitalTwinIdentifier> twinInstanceIdentifiers){
+        int[] removedIds = toSortedIds(twinInstanceIdentifiers, false);
+        if(removedIds.length == 0){
+            return;
+        }
+        interestedTwinInstances.computeIfPresent(stimulusToken, (token, currentInterests) -> {
+            Interests remainingInterests = difference(currentInterests, removedIds);
+            return(remainingInterests.twinIds.length == 0 ? null : remainingInterests);
+        });
+    }
+
+    public void removeInterests(Map<TopicToken, ? extends Collection<DigitalTwinIdentifier>> interests){
+        for(Map.Entry<TopicToken, ? extends Collection<DigitalTwinIdentifier>> interest: interests.entrySet()){
+            removeInterests(interest.getKey(), interest.getValue());
+        }
+    }
+
+    /**
+     * Drops every twin instance's interest in the stimulus, whatever its reference count.
+     */
+    public void removeStimulus(TopicToken stimulusToken){
+        interestedTwinInstances.remove(stimulusToken);
+    }
+
+    //
+    // Lookups
+    //
+
+    /**
+     * Calls the consumer with each twin instance interested in the stimulus (as at the start of the call).
+     */
+    public void forEachInterestedTwinInstance(TopicToken stimulusToken, Consumer<DigitalTwinIdentifier> consumer){
+        Interests interests = interestedTwinInstances.get(stimulusToken);
+        if(interests == null){
+            return;
+        }
+        DigitalTwinIdentifier[] twinInstances = twinInstancesById;
+        for(int twinId: interests.twinIds){
+            consumer.accept(twinInstances[twinId]);
+        }
+    }
+
+    public List<DigitalTwinIdentifier> getInterestedTwinInstances(TopicToken stimulusToken){
+        Interests interests = interestedTwinInstances.get(stimulusToken);
+        if(interests == null){
+            return(Collections.emptyList());
+        }
+        DigitalTwinIdentifier[] twinInstances = twinInstancesById;
+        List<DigitalTwinIdentifier> interestedTwins = new ArrayList<>(interests.twinIds.length);
+        for(int twinId: interests.twinIds){
+            interestedTwins.add(twinInstances[twinId]);
+        }
+        return(interestedTwins);
+    }
+
+    public int getInterestedTwinInstanceCount(TopicToken stimulusToken){
+        Interests interests = interestedTwinInstances.get(stimulusToken);
+        return(interests == null ? 0 : interests.twinIds.length);
+    }
+
+    public boolean isInterested(TopicToken stimulusToken, DigitalTwinIdentifier twinInstanceIdentifier){
+        return(getInterestReferenceCount(stimulusToken, twinInstanceIdentifier) > 0);
+    }
+
+    /**
+     * @return the number of times the twin instance's interest in the stimulus has been added and not yet removed
+     */
+    public int getInterestReferenceCount(TopicToken stimulusToken, DigitalTwinIdentifier twinInstanceIdentifier){
+        Interests interests = interestedTwinInstances.get(stimulusToken);
+        Integer twinId = twinInstanceIds.get(twinInstanceIdentifier);
+        if(interests == null || twinId == null){
+            return(0);
+        }
+        int idIndex = Arrays.binarySearch(interests.twinIds, twinId);
+        return(idIndex >= 0 ? interests.referenceCounts[idIndex] : 0);
+    }
+
+    /**
+     * @return the stimuli that at least one twin instance is interested in
+     */
+    public Collection<TopicToken> getStimulusTokens(){
+        return(Collections.unmodifiableCollection(interestedTwinInstances.keySet()));
+    }
+
+    //
+    // Interning
+    //
+
+    /**
+     * @return the (sorted, distinct) interned ids of the twin instances - interning any that are new if asked to,
+     * otherwise leaving them out
+     */
+    private int[] toSortedIds(Collection<DigitalTwinIdentifier> twinInstanceIdentifiers, boolean internNew){
+        int[] twinIds = new int[twinInstanceIdentifiers.size()];
+        int idCount = 0;
+        for(DigitalTwinIdentifier twinInstanceIdentifier: twinInstanceIdentifiers){
+            Integer twinId = twinInstanceIds.get(twinInstanceIdentifier);
+            if(twinId == null && internNew){
+                twinId = intern(twinInstanceIdentifier);
+            }
+            if(twinId != null){
+                twinIds[idCount++] = twinId;
+            }
+        }
+        Arrays.sort(twinIds, 0, idCount);
+        int distinctCount = 0;
+        for(int idIndex = 0; idIndex < idCount; idIndex++){
+            if(distinctCount == 0 || twinIds[distinctCount - 1] != twinIds[idIndex]){
+                twinIds[distinctCount++] = twinIds[idIndex];
+            }
+        }
+        return(distinctCount == twinIds.length ? twinIds : Arrays.copyOf(twinIds, distinctCount));
+    }
+
+    private synchronized int intern(DigitalTwinIdentifier twinInstanceIdentifier){
+        Integer existingId = twinInstanceIds.get(twinInstanceIdentifier);
+        if(existingId != null){
+            return(existingId);
+        }
+        int twinId = nextTwinInstanceId++;
+        if(twinId == twinInstancesById.length){
+            twinInstancesById = Arrays.copyOf(twinInstancesById, twinInstancesById.length * 2);
+        }
+        // Published (via the volatile array) before the id can be found in the map
+        DigitalTwinIdentifier[] twinInstances = twinInstancesById;
+        twinInstances[twinId] = twinInstanceIdentifier;
+        twinInstancesById = twinInstances;
+        twinInstanceIds.put(twinInstanceIdentifier, twinId);
+        return(twinId);
+    }
+
+    //
+    // Sorted Set Operations
+    //
+
+    private static Interests union(Interests currentInterests, int[] addedIds){
+        int[] currentIds = currentInterests.twinIds;
+        int[] currentCounts = currentInterests.referenceCounts;
+        int[] mergedIds = new int[currentIds.length + addedIds.length];
+        int[] mergedCounts = new int[mergedIds.length];
+        int currentIndex = 0;
+        int addedIndex = 0;
+        int mergedCount = 0;
+        while(currentIndex < currentIds.length && addedIndex < addedIds.length){
+            int currentId = currentIds[currentIndex];
+            int addedId = addedIds[addedIndex];
+            if(currentId < addedId){
+                mergedIds[mergedCount] = currentId;
+                mergedCounts[mergedCount++] = currentCounts[currentIndex++];
+            } else if(addedId < currentId){
+                mergedIds[mergedCount] = addedId;
+                mergedCounts[mergedCount++] = 1;
+                addedIndex++;
+            } else {
+                mergedIds[mergedCount] = currentId;
+                mergedCounts[mergedCount++] = currentCounts[currentIndex++] + 1;
+                addedIndex++;
+            }
+        }
+        while(currentIndex < currentIds.length){
+            mergedIds[mergedCount] = currentIds[currentIndex];
+            mergedCounts[mergedCount++] = currentCounts[currentIndex++];
+        }
+        while(addedIndex < addedIds.length){
+            mergedIds[mergedCount] = addedIds[addedIndex++];
+            mergedCounts[mergedCount++] = 1;
+        }
+        if(mergedCount == mergedIds.length){
+            return(new Interests(mergedIds, mergedCounts));
+        }
+        return(new Interests(Arrays.copyOf(mergedIds, mergedCount), Arrays.copyOf(mergedCounts, mergedCount)));
+    }
+
+    /**
+     * @return the interests with one reference to each of the removed ids released - an id is only dropped once its
+     * last reference is
+     */
+    private static Interests difference(Interests currentInterests, int[] removedIds){
+        int[] currentIds = currentInterests.twinIds;
+        int[] currentCounts = currentInterests.referenceCounts;
+        int[] remainingIds = new int[currentIds.length];
+        int[] remainingCounts = new int[currentIds.length];
+        int removedIndex = 0;
+        int remainingCount = 0;
+        boolean changed = false;
+        for(int currentIndex = 0; currentIndex < currentIds.length; currentIndex++){
+            int currentId = currentIds[currentIndex];
+            int referenceCount = currentCounts[currentIndex];
+            while(removedIndex < removedIds.length && removedIds[removedIndex] < currentId){
+                removedIndex++;
+            }
+            if(removedIndex < removedIds.length && removedIds[removedIndex] == currentId){
+                referenceCount--;
+                changed = true;
+            }
+            if(referenceCount > 0){
+                remainingIds[remainingCount] = currentId;
+                remainingCounts[remainingCount++] = referenceCount;
+            }
+        }
+        if(!changed){
+            return(currentInterests);
+        }
+        return(new Interests(Arrays.copyOf(remainingIds, remainingCount), Arrays.copyOf(remainingCounts, remainingCount)));
+    }
+}
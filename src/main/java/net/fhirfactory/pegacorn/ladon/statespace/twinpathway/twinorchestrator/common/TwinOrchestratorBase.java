@@ -21,55 +21,622 @@
  */
 package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator.common;
 
+import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
 import net.fhirfactory.pegacorn.ladon.model.behaviours.ExplicitStimulus2TwinInstanceMap;
 import net.fhirfactory.pegacorn.ladon.model.stimuli.Stimulus;
+import net.fhirfactory.pegacorn.ladon.model.stimuli.StimulusType;
 import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
 import net.fhirfactory.pegacorn.ladon.processingplant.LadonProcessingPlant;
 import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.BehaviourCentricExclusiveFilterRulesInterface;
 import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.BehaviourCentricInclusiveFilterRulesInterface;
 import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.stimulicollector.common.TwinStimuliCollectorBase;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.stimulicollector.common.TwinStimuliSubscriptionManager;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.StimulusDeliveryDeferredException;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.StimulusQueueingOutcomeEnum;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceActivityQueue;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinStimulusClaim;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinStimulusHandler;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinLockLease;
 import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinPathwayControllerBase;
 import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
 import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
 import org.apache.camel.builder.RouteBuilder;
-import org.hl7.fhir.r4.model.Identifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
 import javax.inject.Inject;
-import java.util.ArrayList;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Runs the twin type's behaviours against its twin instances, actor-style: each active twin instance's queue in the
+ * TwinInstanceActivityQueue is its mailbox, and is only ever drained by one thread at a time - a TwinTypeFairScheduler
+ * worker that has taken the twin instance from the ready set (or, if the activity queue is partitioned, the twin
+ * instance's partition thread). So each twin instance's stimuli are processed one after another, in queue order,
+ * without any locking between the threads, while different twin instances are processed in parallel across all of
+ * the workers.
+ *
+ * In the VIRTUAL_THREADS orchestration mode (see specifyOrchestrationMode()) the twin type has its own dispatcher
+ * instead, which takes twin instances from the ready set and runs each turn of their actors on a virtual thread - as
+ * many at once as the twin type's concurrency cap allows - so behaviours that block tie up a (cheap) virtual thread
+ * rather than a worker. On a JVM without virtual threads, the turns run on a platform thread pool instead (still
+ * bounded by the cap). Partitioned activity queues are always run on their partition threads.
+ *
+ * Each run of stimuli for the same behaviour is handed to the behaviour's registered TwinStimulusHandler under a lease
+ * on the twin instance from the twin type's TwinPathwayControllerBase - uncontended within the node, but what keeps
+ * the behaviour off a twin instance that another node (or a direct caller of the controller) has locked. Where the
+ * controller knows the twin instance's regent, the lease comes with an intention lock on the regent, so a behaviour
+ * holding the regent (and so all of its dependents) keeps the twin instance's actor waiting too. A waiting actor
+ * gives up its turn (keeping hold of the twin instance, and its stimuli at the head of the mailbox) rather than a
+ * thread, and resumes once the lease is handed over.
+ *
+ * Stimuli are only acknowledged once their behaviour has processed them. A behaviour that fails puts them back at the
+ * head of the mailbox, to be redelivered after the activity queue's redelivery delay, or dead-lettered once they have
+ * failed too often.
+ */
 public abstract class TwinOrchestratorBase extends RouteBuilder {
+    private static final Logger LOG = LoggerFactory.getLogger(TwinOrchestratorBase.class);
+
+    private static final int DEFAULT_SCHEDULING_WEIGHT = 1;
+    private static final int DEFAULT_STIMULUS_BATCH_SIZE = 16;
+    private static final long DEFAULT_TWIN_LEASE_DURATION = 30000L;
+    private static final int DEFAULT_VIRTUAL_THREAD_CONCURRENCY = 1024;
 
-    private ConcurrentHashMap<Stimulus, DigitalTwinIdentifier> stimulusInterestSet;
-    private List<BehaviourCentricInclusiveFilterRulesInterface> inclusiveFilterList;
-    private List<BehaviourCentricExclusiveFilterRulesInterface> exclusiveFilterList;
+    private TwinInstanceInterestIndex stimulusInterestIndex;
+    private ConcurrentHashMap<BehaviourCentricInclusiveFilterRulesInterface, Map<TopicToken, Set<DigitalTwinIdentifier>>> behaviourInterests;
+    private volatile CompiledStimulusFilter compiledStimulusFilter;
+    private CopyOnWriteArrayList<BehaviourCentricInclusiveFilterRulesInterface> inclusiveFilterList;
+    private CopyOnWriteArrayList<BehaviourCentricExclusiveFilterRulesInterface> exclusiveFilterList;
+    private TwinStimuliSubscriptionManager subscriptionManager;
     private TwinTypeEnum twinType;
+    private TwinInstanceActivityQueue activityQueue;
+    private TwinPathwayControllerBase pathwayController;
+    private ConcurrentHashMap<BehaviourIdentifier, TwinStimulusHandler> behaviourStimulusHandlers;
+    private TwinOrchestrationModeEnum orchestrationMode;
+    private ExecutorService behaviourExecutor;
+    private Semaphore behaviourPermits;
+    private int behaviourConcurrency;
+    private Thread dispatcherThread;
+    private boolean dispatchingOnVirtualThreads;
+    private ConcurrentHashMap<DigitalTwinIdentifier, TwinLockLease> handedOverLeases;
+    private ConcurrentHashMap<DigitalTwinIdentifier, CompletableFuture<TwinLockLease>> leaseWaits;
+    private volatile ScheduledExecutorService turnScheduler;
 
     @Inject
     private LadonProcessingPlant ladonPlant;
 
+    @Inject
+    private TwinTypeFairScheduler twinTypeScheduler;
+
+    @Inject
+    @Any
+    private Instance<TwinInstanceActivityQueue> activityQueues;
+
+    @Inject
+    @Any
+    private Instance<TwinStimuliCollectorBase> stimuliCollectors;
+
     public TwinOrchestratorBase(){
         this.twinType = specifyTwinType();
+        this.behaviourStimulusHandlers = new ConcurrentHashMap<>();
+        this.handedOverLeases = new ConcurrentHashMap<>();
+        this.leaseWaits = new ConcurrentHashMap<>();
+        this.stimulusInterestIndex = new TwinInstanceInterestIndex();
+        this.behaviourInterests = new ConcurrentHashMap<>();
+        this.inclusiveFilterList = new CopyOnWriteArrayList<>();
+        this.exclusiveFilterList = new CopyOnWriteArrayList<>();
+        this.compiledStimulusFilter = CompiledStimulusFilter.compile(inclusiveFilterList, exclusiveFilterList);
+        this.subscriptionManager = new TwinStimuliSubscriptionManager(twinType.getTwinTypeName());
     }
 
     @PostConstruct
     protected void initialise(){
         ladonPlant.initialisePlant();
+        startOrchestrating(resolveActivityQueue(), resolveStimuliCollector(), twinTypeScheduler);
+    }
 
+    /**
+     * The part of initialise() that needs no container - so the orchestrator can also be run with its collaborators
+     * supplied by hand (e.g. by a benchmark).
+     */
+    void startOrchestrating(TwinInstanceActivityQueue twinActivityQueue, TwinStimuliCollectorBase stimuliCollector, TwinTypeFairScheduler fairScheduler){
+        pathwayController = specifyPathwayController();
+        if(pathwayController == null){
+            LOG.warn(".initialise(): No TwinPathwayController for twin type {}, behaviours will run without twin leases", twinType.getTwinTypeName());
+        }
+        if(stimuliCollector == null){
+            LOG.warn(".initialise(): No TwinStimuliCollector for twin type {}, behaviour topics will not be subscribed", twinType.getTwinTypeName());
+        } else {
+            subscriptionManager.bindStimuliCollector(stimuliCollector);
+        }
+        orchestrationMode = specifyOrchestrationMode();
+        activityQueue = twinActivityQueue;
+        if(activityQueue == null){
+            LOG.warn(".initialise(): No TwinInstanceActivityQueue for twin type {}, not scheduling", twinType.getTwinTypeName());
+        } else if(activityQueue.isPartitioned()){
+            activityQueue.startPartitions(this::processStimuli);
+        } else if(orchestrationMode == TwinOrchestrationModeEnum.VIRTUAL_THREADS){
+            startDispatcher();
+        } else {
+            fairScheduler.register(twinType, activityQueue, this::processReadyTwin, specifySchedulingWeight());
+        }
+    }
+
+    @PreDestroy
+    protected void shutdown(){
+        Thread dispatcher = dispatcherThread;
+        if(dispatcher != null){
+            dispatcherThread = null;
+            dispatcher.interrupt();
+        }
+        if(behaviourExecutor != null){
+            behaviourExecutor.shutdown();
+        }
+        for(CompletableFuture<TwinLockLease> leaseWait: leaseWaits.values()){
+            leaseWait.cancel(false);
+        }
+        for(TwinLockLease handedOverLease: handedOverLeases.values()){
+            pathwayController.unlock(handedOverLease);
+        }
+        handedOverLeases.clear();
+        ScheduledExecutorService runningScheduler;
+        synchronized(this){
+            runningScheduler = turnScheduler;
+            turnScheduler = null;
+        }
+        if(runningScheduler != null){
+            runningScheduler.shutdownNow();
+        }
     }
 
     abstract protected TwinPathwayControllerBase specifyPathwayController();
     abstract protected TwinTypeEnum specifyTwinType();
 
-    public void processNextStimulusPackageForInstance(Identifier instanceId){
+    /**
+     * The share of the TwinTypeFairScheduler's workers this twin type receives, relative to the other twin types, when
+     * they are all busy.
+     */
+    protected int specifySchedulingWeight(){
+        return(DEFAULT_SCHEDULING_WEIGHT);
+    }
+
+    /**
+     * The most stimuli processed for a twin instance each time it is scheduled, before the worker moves on.
+     */
+    protected int specifyStimulusBatchSize(){
+        return(DEFAULT_STIMULUS_BATCH_SIZE);
+    }
+
+    protected TwinOrchestrationModeEnum specifyOrchestrationMode(){
+        return(TwinOrchestrationModeEnum.SCHEDULED_WORKERS);
+    }
+
+    /**
+     * @return the most twin instances of this type being processed at once in the VIRTUAL_THREADS orchestration mode
+     */
+    protected int specifyVirtualThreadConcurrency(){
+        return(DEFAULT_VIRTUAL_THREAD_CONCURRENCY);
+    }
 
+    /**
+     * @return how long (in milliseconds) a behaviour's lease on a twin instance runs for - and so also the longest a
+     * partition thread waits for a twin instance locked elsewhere
+     */
+    protected long specifyTwinLeaseDuration(){
+        return(DEFAULT_TWIN_LEASE_DURATION);
     }
 
-    public void orchestrateInstance(Identifier instanceId){
+    private TwinStimuliCollectorBase resolveStimuliCollector(){
+        for(TwinStimuliCollectorBase candidateCollector: stimuliCollectors){
+            if(twinType.getTwinTypeName().equals(candidateCollector.getTwinTypeName())){
+                return(candidateCollector);
+            }
+        }
+        return(null);
+    }
 
+    private TwinInstanceActivityQueue resolveActivityQueue(){
+        for(TwinInstanceActivityQueue candidateQueue: activityQueues){
+            if(candidateQueue.getTwinType() == twinType){
+                return(candidateQueue);
+            }
+        }
+        return(null);
+    }
+
+    protected TwinInstanceActivityQueue getActivityQueue(){
+        return(activityQueue);
+    }
+
+    protected TwinPathwayControllerBase getPathwayController(){
+        return(pathwayController);
+    }
+
+    public TwinOrchestrationModeEnum getOrchestrationMode(){
+        return(orchestrationMode);
+    }
+
+    /**
+     * @return false if the VIRTUAL_THREADS orchestration mode has fallen back to platform threads (or is not in use)
+     */
+    public boolean isDispatchingOnVirtualThreads(){
+        return(dispatchingOnVirtualThreads);
+    }
+
+    /**
+     * @return the number of twin instances being processed on the dispatcher's threads right now (always 0 unless in
+     * the VIRTUAL_THREADS orchestration mode)
+     */
+    public int getActiveDispatchCount(){
+        Semaphore permits = behaviourPermits;
+        return(permits == null ? 0 : behaviourConcurrency - permits.availablePermits());
+    }
+
+    //
+    // Virtual Thread Dispatcher
+    //
+
+    private void startDispatcher(){
+        behaviourConcurrency = Math.max(specifyVirtualThreadConcurrency(), 1);
+        behaviourPermits = new Semaphore(behaviourConcurrency);
+        behaviourExecutor = newVirtualThreadExecutor();
+        dispatchingOnVirtualThreads = behaviourExecutor != null;
+        if(!dispatchingOnVirtualThreads){
+            LOG.warn(".startDispatcher(): Virtual threads are not available, {} twins will run on a platform thread pool (of up to {} threads)", twinType.getTwinTypeName(), behaviourConcurrency);
+            behaviourExecutor = newPlatformThreadExecutor(twinType.getTwinTypeName() + "-Behaviour-");
+        }
+        dispatcherThread = new Thread(this::runDispatcher, twinType.getTwinTypeName() + "-Dispatcher");
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+        LOG.info(".startDispatcher(): Dispatching {} twins, up to {} at once", twinType.getTwinTypeName(), behaviourConcurrency);
+    }
+
+    /**
+     * Looked up reflectively, as virtual threads are not part of the Java release this module is built for.
+     *
+     * @return Executors.newVirtualThreadPerTaskExecutor(), or null if the JVM does not have it
+     */
+    static ExecutorService newVirtualThreadExecutor(){
+        try {
+            Method executorFactory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return((ExecutorService) executorFactory.invoke(null));
+        } catch (ReflectiveOperationException | RuntimeException unavailable) {
+            return(null);
+        }
+    }
+
+    static ExecutorService newPlatformThreadExecutor(String threadNamePrefix){
+        AtomicInteger threadSequence = new AtomicInteger();
+        return(Executors.newCachedThreadPool(task -> {
+            Thread behaviourThread = new Thread(task, threadNamePrefix + threadSequence.getAndIncrement());
+            behaviourThread.setDaemon(true);
+            return(behaviourThread);
+        }));
+    }
+
+    /**
+     * Takes twin instances from the ready set and (once a permit is free) runs a turn of each one's actor on the
+     * behaviour executor.
+     */
+    private void runDispatcher(){
+        while(!Thread.currentThread().isInterrupted()){
+            DigitalTwinIdentifier readyTwin;
+            try {
+                readyTwin = activityQueue.takeReadyTwin();
+            } catch (InterruptedException interrupted) {
+                return;
+            }
+            try {
+                behaviourPermits.acquire();
+            } catch (InterruptedException interrupted) {
+                activityQueue.releaseReadyTwin(readyTwin);
+                return;
+            }
+            try {
+                behaviourExecutor.execute(() -> runDispatchedTwin(readyTwin));
+            } catch (RejectedExecutionException shutDown) {
+                activityQueue.releaseReadyTwin(readyTwin);
+                behaviourPermits.release();
+                return;
+            }
+        }
+    }
+
+    private void runDispatchedTwin(DigitalTwinIdentifier twinInstanceIdentifier){
+        boolean turnOver = true;
+        try {
+            turnOver = processReadyTwin(twinInstanceIdentifier);
+        } catch (RuntimeException workError) {
+            LOG.error(".runDispatchedTwin(): Processing of {} twin {} failed: {}", twinType.getTwinTypeName(), twinInstanceIdentifier, workError.getMessage());
+        } finally {
+            if(turnOver){
+                activityQueue.releaseReadyTwin(twinInstanceIdentifier);
+            }
+            behaviourPermits.release();
+        }
+    }
+
+    /**
+     * Releases a twin instance whose turn ended early once the delay has passed, on the turn scheduler.
+     */
+    private void releaseReadyTwinAfter(DigitalTwinIdentifier twinInstanceIdentifier, long delayNanos){
+        try {
+            getTurnScheduler().schedule(() -> activityQueue.releaseReadyTwin(twinInstanceIdentifier), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException shutDown) {
+            activityQueue.releaseReadyTwin(twinInstanceIdentifier);
+        }
+    }
+
+    private ScheduledExecutorService getTurnScheduler(){
+        ScheduledExecutorService currentScheduler = turnScheduler;
+        if(currentScheduler != null){
+            return(currentScheduler);
+        }
+        synchronized(this){
+            if(turnScheduler == null){
+                String schedulerName = twinType.getTwinTypeName() + "-TurnScheduler";
+                turnScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread schedulerThread = new Thread(runnable, schedulerName);
+                    schedulerThread.setDaemon(true);
+                    return(schedulerThread);
+                });
+            }
+            return(turnScheduler);
+        }
+    }
+
+    //
+    // Behaviours
+    //
+
+    /**
+     * Registers the handler that the behaviour's stimuli (i.e. those whose target behaviour it is) are delivered to.
+     */
+    public void registerBehaviourStimulusHandler(BehaviourIdentifier behaviourIdentifier, TwinStimulusHandler stimulusHandler){
+        behaviourStimulusHandlers.put(behaviourIdentifier, stimulusHandler);
+    }
+
+    public void unregisterBehaviourStimulusHandler(BehaviourIdentifier behaviourIdentifier){
+        behaviourStimulusHandlers.remove(behaviourIdentifier);
+    }
+
+    //
+    // Twin Instance Actors
+    //
+
+    /**
+     * Posts the stimulus to the twin instance's mailbox - its actor is scheduled (if it is not already) to process it.
+     */
+    public StimulusQueueingOutcomeEnum orchestrateInstance(DigitalTwinIdentifier twinInstanceIdentifier, StimulusPackage stimulusPackage){
+        if(activityQueue == null){
+            return(StimulusQueueingOutcomeEnum.REJECTED);
+        }
+        return(activityQueue.addStimulus2Queue(twinInstanceIdentifier, stimulusPackage));
+    }
+
+    /**
+     * Processes the next stimulus in the twin instance's mailbox. Only for the thread currently running the twin
+     * instance's actor (e.g. a behaviour handler that wants to take a follow-on stimulus within its own turn). The
+     * stimulus stays at the head of the mailbox if its behaviour cannot have the twin instance straight away, or if
+     * the behaviour fails on it (until it has failed too often, when it is dead-lettered).
+     *
+     * @return false if the mailbox was empty, or its next stimulus is still at its head
+     */
+    public boolean processNextStimulusPackageForInstance(DigitalTwinIdentifier twinInstanceIdentifier){
+        TwinStimulusClaim claim = activityQueue.claimStimuli(twinInstanceIdentifier, 1);
+        if(claim.isSettled()){
+            return(false);
+        }
+        BehaviourIdentifier behaviourIdentifier = claim.getStimuli().get(0).getTargetBehaviourIdentifier();
+        TwinLockLease lease = tryLeaseTwinInstance(twinInstanceIdentifier, behaviourIdentifier);
+        if(lease == null){
+            claim.returnRemaining();
+            return(false);
+        }
+        return(deliverClaimedRun(claim, behaviourIdentifier, 1, lease));
+    }
+
+    /**
+     * Run by the TwinTypeFairScheduler (or the dispatcher) for a twin instance it has taken from this twin type's
+     * ready set - one turn of the twin instance's actor, of up to specifyStimulusBatchSize() stimuli. They are handed
+     * to their behaviours a run of consecutive stimuli for the same behaviour at a time, and each run is only
+     * acknowledged once its behaviour has processed it.
+     *
+     * The turn ends early, with the rest of its stimuli back at the head of the mailbox, if a behaviour fails (the twin
+     * instance is then released once the activity queue's redelivery delay has passed) or if the twin instance is
+     * locked elsewhere (it is then released once the lease is handed over, and the next turn takes the lease on). The
+     * twin instance stays owned in the meantime, so its stimuli stay in order, but no thread waits on it.
+     *
+     * @return true if the turn is over; false if it ended early, and the twin instance will be released later
+     */
+    protected boolean processReadyTwin(DigitalTwinIdentifier twinInstanceIdentifier){
+        TwinStimulusClaim claim = activityQueue.claimStimuli(twinInstanceIdentifier, specifyStimulusBatchSize());
+        List<StimulusPackage> stimuli = claim.getStimuli();
+        TwinLockLease handedOverLease = handedOverLeases.remove(twinInstanceIdentifier);
+        while(!claim.isSettled()){
+            int runStart = claim.getSettledCount();
+            int runEnd = runEndOf(stimuli, runStart);
+            BehaviourIdentifier behaviourIdentifier = stimuli.get(runStart).getTargetBehaviourIdentifier();
+            TwinLockLease lease = handedOverLease == null ? null : takeOverLease(handedOverLease, behaviourIdentifier);
+            handedOverLease = null;
+            if(lease == null){
+                lease = tryLeaseTwinInstance(twinInstanceIdentifier, behaviourIdentifier);
+            }
+            if(lease == null){
+                claim.returnRemaining();
+                awaitLease(twinInstanceIdentifier, behaviourIdentifier).thenRun(() -> activityQueue.releaseReadyTwin(twinInstanceIdentifier));
+                return(false);
+            }
+            if(!deliverClaimedRun(claim, behaviourIdentifier, runEnd - runStart, lease)){
+                releaseReadyTwinAfter(twinInstanceIdentifier, activityQueue.getRedeliveryDelayNanos());
+                return(false);
+            }
+        }
+        if(handedOverLease != null){
+            pathwayController.unlock(handedOverLease);
+        }
+        return(true);
+    }
+
+    /**
+     * Hands the stimuli (in order) to their behaviours, a run of consecutive stimuli for the same behaviour at a time
+     * - the TwinStimulusHandler given to a partitioned activity queue. A behaviour's failure is thrown back to the
+     * partition, which puts the stimuli back at the head of the twin instance's queue for redelivery. If the twin
+     * instance is locked elsewhere, the rest of the stimuli are deferred until the lease is handed over (and the next
+     * delivery takes the lease on), so the partition thread is free to serve its other twin instances meanwhile.
+     */
+    protected void processStimuli(DigitalTwinIdentifier twinInstanceIdentifier, List<StimulusPackage> stimuli){
+        TwinLockLease handedOverLease = handedOverLeases.remove(twinInstanceIdentifier);
+        int runStart = 0;
+        while(runStart < stimuli.size()){
+            int runEnd = runEndOf(stimuli, runStart);
+            BehaviourIdentifier behaviourIdentifier = stimuli.get(runStart).getTargetBehaviourIdentifier();
+            TwinLockLease lease = handedOverLease == null ? null : takeOverLease(handedOverLease, behaviourIdentifier);
+            handedOverLease = null;
+            if(lease == null){
+                lease = tryLeaseTwinInstance(twinInstanceIdentifier, behaviourIdentifier);
+            }
+            if(lease == null){
+                throw new StimulusDeliveryDeferredException(runStart, awaitLease(twinInstanceIdentifier, behaviourIdentifier));
+            }
+            try {
+                deliverStimuli(twinInstanceIdentifier, behaviourIdentifier, stimuli.subList(runStart, runEnd));
+            } finally {
+                if(lease.isGranted()){
+                    pathwayController.unlock(lease);
+                }
+            }
+            runStart = runEnd;
+        }
+        if(handedOverLease != null){
+            pathwayController.unlock(handedOverLease);
+        }
+    }
+
+    /**
+     * Delivers the claim's next runLength stimuli to the behaviour, then gives up the lease.
+     *
+     * @return true if the claim can go on (the run was processed, or has been dead-lettered); false if the behaviour
+     * failed and the rest of the claim has gone back to the head of the mailbox for redelivery
+     */
+    private boolean deliverClaimedRun(TwinStimulusClaim claim, BehaviourIdentifier behaviourIdentifier, int runLength, TwinLockLease lease){
+        int runStart = claim.getSettledCount();
+        try {
+            deliverStimuli(claim.getTwinIdentifier(), behaviourIdentifier, claim.getStimuli().subList(runStart, runStart + runLength));
+        } catch (RuntimeException behaviourError) {
+            LOG.error(".deliverClaimedRun(): Behaviour {} failed on {} twin {}: {}", behaviourIdentifier, twinType.getTwinTypeName(), claim.getTwinIdentifier(), behaviourError.getMessage());
+            return(!claim.fail(runLength, behaviourError));
+        } finally {
+            if(lease.isGranted()){
+                pathwayController.unlock(lease);
+            }
+        }
+        claim.acknowledge(runLength);
+        return(true);
+    }
+
+    private void deliverStimuli(DigitalTwinIdentifier twinInstanceIdentifier, BehaviourIdentifier behaviourIdentifier, List<StimulusPackage> behaviourStimuli){
+        TwinStimulusHandler stimulusHandler = behaviourIdentifier == null ? null : behaviourStimulusHandlers.get(behaviourIdentifier);
+        if(stimulusHandler != null){
+            stimulusHandler.handleStimuli(twinInstanceIdentifier, behaviourStimuli);
+        } else {
+            for(StimulusPackage stimulusPackage: behaviourStimuli){
+                processStimulusPackage(twinInstanceIdentifier, stimulusPackage);
+            }
+        }
+    }
+
+    /**
+     * Processes a stimulus for a behaviour with no registered TwinStimulusHandler.
+     */
+    protected void processStimulusPackage(DigitalTwinIdentifier twinInstanceIdentifier, StimulusPackage stimulusPackage){
+        LOG.debug(".processStimulusPackage(): No handler for behaviour {}, stimulus {} for twin {} not processed", stimulusPackage.getTargetBehaviourIdentifier(), stimulusPackage.getId(), twinInstanceIdentifier);
+    }
+
+    //
+    // Twin Instance Leases
+    //
+
+    /**
+     * @return the behaviour's lease on the twin instance (a refused lease if there is no controller, or the stimuli
+     * are for no behaviour in particular), or null if the twin instance is locked elsewhere
+     */
+    private TwinLockLease tryLeaseTwinInstance(DigitalTwinIdentifier twinInstanceIdentifier, BehaviourIdentifier behaviourIdentifier){
+        if(pathwayController == null || behaviourIdentifier == null){
+            return(TwinLockLease.refused(twinInstanceIdentifier, null));
+        }
+        TwinLockLease lease = pathwayController.tryLock(twinInstanceIdentifier, behaviourIdentifier, specifyTwinLeaseDuration(), TimeUnit.MILLISECONDS);
+        return(lease.isGranted() ? lease : null);
+    }
+
+    /**
+     * Waits (without holding up the calling thread) for the lease the twin instance's actor was refused - keeping the
+     * lease for its next turn, if it is handed over.
+     *
+     * @return a stage that completes (normally, whatever became of the lease) once the wait is over
+     */
+    private CompletableFuture<Void> awaitLease(DigitalTwinIdentifier twinInstanceIdentifier, BehaviourIdentifier behaviourIdentifier){
+        CompletableFuture<TwinLockLease> leaseFuture = pathwayController.lockAsync(twinInstanceIdentifier, behaviourIdentifier, specifyTwinLeaseDuration(), TimeUnit.MILLISECONDS);
+        leaseWaits.put(twinInstanceIdentifier, leaseFuture);
+        return(leaseFuture.handle((lease, leaseError) -> {
+            leaseWaits.remove(twinInstanceIdentifier, leaseFuture);
+            if(lease != null && lease.isGranted()){
+                handedOverLeases.put(twinInstanceIdentifier, lease);
+            } else if(leaseError != null && !leaseFuture.isCancelled()){
+                LOG.warn(".awaitLease(): Lease on {} twin {} for behaviour {} failed: {}", twinType.getTwinTypeName(), twinInstanceIdentifier, behaviourIdentifier, leaseError.getMessage());
+            }
+            return(null);
+        }));
+    }
+
+    /**
+     * @return the lease handed over while the twin instance waited, renewed for its next turn - or null if it is for
+     * another behaviour or has since been lost
+     */
+    private TwinLockLease takeOverLease(TwinLockLease handedOverLease, BehaviourIdentifier behaviourIdentifier){
+        if(!sameBehaviour(behaviourIdentifier, handedOverLease.getBehaviourIdentifier())){
+            pathwayController.unlock(handedOverLease);
+            return(null);
+        }
+        TwinLockLease renewedLease = pathwayController.renewLease(handedOverLease, specifyTwinLeaseDuration(), TimeUnit.MILLISECONDS);
+        return(renewedLease.isGranted() ? renewedLease : null);
+    }
+
+    /**
+     * @return the end (exclusive) of the run of consecutive stimuli for the same behaviour that starts at runStart
+     */
+    private static int runEndOf(List<StimulusPackage> stimuli, int runStart){
+        BehaviourIdentifier behaviourIdentifier = stimuli.get(runStart).getTargetBehaviourIdentifier();
+        int runEnd = runStart + 1;
+        while(runEnd < stimuli.size() && sameBehaviour(behaviourIdentifier, stimuli.get(runEnd).getTargetBehaviourIdentifier())){
+            runEnd += 1;
+        }
+        return(runEnd);
+    }
+
+    private static boolean sameBehaviour(BehaviourIdentifier behaviourIdentifier, BehaviourIdentifier otherBehaviourIdentifier){
+        return(behaviourIdentifier == null ? otherBehaviourIdentifier == null : behaviourIdentifier.equals(otherBehaviourIdentifier));
     }
 
     @Override
@@ -77,14 +644,102 @@ public abstract class TwinOrchestratorBase extends RouteBuilder {
 
     }
 
+    /**
+     * Registers (or, if already registered, refreshes) the behaviour's subscription. Only the topics that no other
+     * behaviour already required are added to the StimuliCollector's subscription (and, on a refresh, only those no
+     * longer required by any behaviour are removed).
+     */
     public void registerBehaviourStimulusSubscription(BehaviourCentricInclusiveFilterRulesInterface behaviourSubscriptionSet){
-        List<ExplicitStimulus2TwinInstanceMap> explicitStimulus2TwinInstanceMaps = behaviourSubscriptionSet.positiveStaticFilterTwinInstance2StimulusMap();
-        // 1st, extract the set of topic tokens that we should ge the StimuliCollector to listen for
-        List<TopicToken> resourceSet = new ArrayList<TopicToken>();
-        for(ExplicitStimulus2TwinInstanceMap behaviorRequirement: explicitStimulus2TwinInstanceMaps){
-            resourceSet.addAll(behaviorRequirement.getStimulusRequirementMap().keySet());
+        addBehaviourStimulusSubscription(behaviourSubscriptionSet);
+        recompileStimulusFilter();
+        subscriptionManager.flush();
+    }
+
+    /**
+     * Registers the behaviours' subscriptions together - the filter rules are recompiled, and the StimuliCollector's
+     * subscription changed, once for all of them.
+     */
+    public void registerBehaviourStimulusSubscriptions(Collection<BehaviourCentricInclusiveFilterRulesInterface> behaviourSubscriptionSets){
+        for(BehaviourCentricInclusiveFilterRulesInterface behaviourSubscriptionSet: behaviourSubscriptionSets){
+            addBehaviourStimulusSubscription(behaviourSubscriptionSet);
+        }
+        recompileStimulusFilter();
+        subscriptionManager.flush();
+    }
+
+    private void addBehaviourStimulusSubscription(BehaviourCentricInclusiveFilterRulesInterface behaviourSubscriptionSet){
+        inclusiveFilterList.addIfAbsent(behaviourSubscriptionSet);
+        // 1st, gather the behaviour's interests - each (topic token, twin instance) pair once, however many of its
+        // requirement maps name it, so that the index counts it once for this behaviour
+        Map<TopicToken, Set<DigitalTwinIdentifier>> interests = new HashMap<>();
+        for(ExplicitStimulus2TwinInstanceMap behaviorRequirement: behaviourSubscriptionSet.positiveStaticFilterTwinInstance2StimulusMap()){
+            for(Map.Entry<TopicToken, Set<DigitalTwinIdentifier>> requirement: behaviorRequirement.getStimulusRequirementMap().entrySet()){
+                interests.computeIfAbsent(requirement.getKey(), stimulusToken -> new HashSet<>()).addAll(requirement.getValue());
+            }
         }
+        // 2nd, the topic tokens that we should get the StimuliCollector to listen for
+        subscriptionManager.updateBehaviourTopics(behaviourSubscriptionSet, interests.keySet());
+        // 3rd, index the twin instances interested in each of them - releasing, on a refresh, the interests the
+        // behaviour registered before (after adding the new ones, so that pairs it still declares never drop out)
+        stimulusInterestIndex.addInterests(interests);
+        Map<TopicToken, Set<DigitalTwinIdentifier>> previousInterests = behaviourInterests.put(behaviourSubscriptionSet, interests);
+        if(previousInterests != null){
+            stimulusInterestIndex.removeInterests(previousInterests);
+        }
+    }
+
+    /**
+     * Releases the subscription's twin instances' interest in its stimuli (as it was registered) - a twin instance stays
+     * interested in a stimulus while any other subscription still declares it. Its topics stay in the StimuliCollector's
+     * subscription while any other behaviour still requires them.
+     */
+    public void unregisterBehaviourStimulusSubscription(BehaviourCentricInclusiveFilterRulesInterface behaviourSubscriptionSet){
+        inclusiveFilterList.remove(behaviourSubscriptionSet);
+        recompileStimulusFilter();
+        Map<TopicToken, Set<DigitalTwinIdentifier>> registeredInterests = behaviourInterests.remove(behaviourSubscriptionSet);
+        if(registeredInterests != null){
+            stimulusInterestIndex.removeInterests(registeredInterests);
+        }
+        subscriptionManager.removeBehaviourTopics(behaviourSubscriptionSet);
+        subscriptionManager.flush();
+    }
+
+    protected TwinStimuliSubscriptionManager getSubscriptionManager(){
+        return(subscriptionManager);
+    }
+
+    /**
+     * @return the twin instances interested in the stimulus
+     */
+    public List<DigitalTwinIdentifier> getInterestedTwinInstances(TopicToken stimulusToken){
+        return(stimulusInterestIndex.getInterestedTwinInstances(stimulusToken));
+    }
+
+    protected TwinInstanceInterestIndex getStimulusInterestIndex(){
+        return(stimulusInterestIndex);
+    }
+
+    public void registerBehaviourStimulusExclusions(BehaviourCentricExclusiveFilterRulesInterface behaviourExclusionSet){
+        exclusiveFilterList.add(behaviourExclusionSet);
+        recompileStimulusFilter();
+    }
+
+    public void unregisterBehaviourStimulusExclusions(BehaviourCentricExclusiveFilterRulesInterface behaviourExclusionSet){
+        exclusiveFilterList.remove(behaviourExclusionSet);
+        recompileStimulusFilter();
+    }
 
+    /**
+     * Works out which twin instances (and behaviours) the stimulus is for, via the compiled filter rules.
+     */
+    public List<StimulusFilterMatch> filterStimulus(Stimulus stimulus, StimulusType stimulusType, TopicToken stimulusToken){
+        return(compiledStimulusFilter.evaluate(stimulus, stimulusType, stimulusToken));
+    }
 
+    /**
+     * Recompiles the filter rules - needed should a registered behaviour's static rules change.
+     */
+    public synchronized void recompileStimulusFilter(){
+        compiledStimulusFilter = CompiledStimulusFilter.compile(inclusiveFilterList, exclusiveFilterList);
     }
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceActivityQueue;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single worker pool shared by the twin types, which hands out worker time in proportion to each twin type's weight
+ * (stride scheduling) - so a backlog for one twin type cannot starve the others.
+ *
+ * Each registered twin type has a "pass": the worker time it has been given, divided by its weight. A free worker
+ * serves the twin type with the lowest pass that has a twin instance ready, charging it (up front) with its average
+ * cost and then correcting that once the work is done. A twin type that has been idle re-joins at the current pass,
+ * rather than with a credit for the time it was idle.
+ *
+ * Worker (wall-clock) time is what is scheduled, as that is what a twin type denies the others; thread CPU time is
+ * accounted for alongside it (where the JVM supports it) for reporting.
+ */
+@ApplicationScoped
+public class TwinTypeFairScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(TwinTypeFairScheduler.class);
+
+    private static final int DEFAULT_TWIN_TYPE_WEIGHT = 1;
+    private static final long INITIAL_COST_ESTIMATE = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final double COST_ESTIMATE_SMOOTHING = 0.2;
+
+    private final List<ScheduledTwinType> scheduledTwinTypes;
+    private final Map<TwinTypeEnum, ScheduledTwinType> scheduledTwinTypesByType;
+    private final ConcurrentLinkedQueue<Thread> idleWorkers;
+    private final ThreadMXBean threadMXBean;
+    private final boolean cpuTimeSupported;
+    private List<Thread> workers;
+    private double virtualTime;
+    private volatile boolean running;
+
+    private static class ScheduledTwinType {
+        private final TwinTypeEnum twinType;
+        private final TwinInstanceActivityQueue activityQueue;
+        private final TwinWorkHandler workHandler;
+        private final LongAdder workerTime;
+        private final LongAdder cpuTime;
+        private final LongAdder servedCount;
+        private int weight;
+        private double pass;
+        private double costEstimate;
+        private boolean active;
+
+        ScheduledTwinType(TwinTypeEnum twinType, TwinInstanceActivityQueue activityQueue, TwinWorkHandler workHandler, int weight){
+            this.twinType = twinType;
+            this.activityQueue = activityQueue;
+            this.workHandler = workHandler;
+            this.workerTime = new LongAdder();
+            this.cpuTime = new LongAdder();
+            this.servedCount = new LongAdder();
+            this.weight = weight;
+            this.pass = 0.0;
+            this.costEstimate = INITIAL_COST_ESTIMATE;
+            this.active = false;
+        }
+    }
+
+    public TwinTypeFairScheduler(){
+        this.scheduledTwinTypes = new CopyOnWriteArrayList<>();
+        this.scheduledTwinTypesByType = new EnumMap<>(TwinTypeEnum.class);
+        this.idleWorkers = new ConcurrentLinkedQueue<>();
+        this.threadMXBean = ManagementFactory.getThreadMXBean();
+        this.cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+        this.workers = new ArrayList<>();
+        this.virtualTime = 0.0;
+        this.running = false;
+    }
+
+    @PostConstruct
+    protected void initialise(){
+        running = true;
+        int workerCount = Math.max(specifyWorkerCount(), 1);
+        for(int workerIndex = 0; workerIndex < workerCount; workerIndex++){
+            Thread worker = new Thread(this::runWorker, "TwinTypeFairScheduler-Worker-" + workerIndex);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        LOG.info(".initialise(): Started {} twin scheduling workers (CPU time accounting {})", workerCount, cpuTimeSupported ? "enabled" : "unavailable");
+    }
+
+    @PreDestroy
+    protected void shutdown(){
+        running = false;
+        for(Thread worker: workers){
+            LockSupport.unpark(worker);
+        }
+    }
+
+    protected int specifyWorkerCount(){
+        return(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Adds a twin type to the schedule: its ready twin instances will be taken (and released again) by the shared
+     * workers, and each handed to the work handler.
+     */
+    public synchronized void register(TwinTypeEnum twinType, TwinInstanceActivityQueue activityQueue, TwinWorkHandler workHandler, int weight){
+        if(scheduledTwinTypesByType.containsKey(twinType)){
+            LOG.warn(".register(): Twin type {} is already scheduled, ignoring", twinType.getTwinTypeName());
+            return;
+        }
+        ScheduledTwinType scheduledTwinType = new ScheduledTwinType(twinType, activityQueue, workHandler, weight > 0 ? weight : DEFAULT_TWIN_TYPE_WEIGHT);
+        scheduledTwinType.pass = virtualTime;
+        scheduledTwinTypes.add(scheduledTwinType);
+        scheduledTwinTypesByType.put(twinType, scheduledTwinType);
+        activityQueue.setReadyTwinListener(this::wakeIdleWorker);
+        wakeIdleWorker();
+    }
+
+    public synchronized void setWeight(TwinTypeEnum twinType, int weight){
+        ScheduledTwinType scheduledTwinType = scheduledTwinTypesByType.get(twinType);
+        if(scheduledTwinType != null && weight > 0){
+            scheduledTwinType.weight = weight;
+        }
+    }
+
+    //
+    // Workers
+    //
+
+    private void runWorker(){
+        while(running){
+            ScheduledTwinType nextTwinType = selectNextTwinType();
+            if(nextTwinType == null){
+                waitForWork();
+                continue;
+            }
+            serve(nextTwinType);
+        }
+    }
+
+    private void serve(ScheduledTwinType scheduledTwinType){
+        double chargedCost = scheduledTwinType.costEstimate;
+        DigitalTwinIdentifier readyTwin;
+        try {
+            readyTwin = scheduledTwinType.activityQueue.pollReadyTwin(0L, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if(readyTwin == null){
+            // Another worker got there first - give back what we were charged
+            charge(scheduledTwinType, chargedCost, 0L, 0L);
+            return;
+        }
+        if(scheduledTwinType.activityQueue.getReadyTwinCount() > 0){
+            // A ready set only signals its additions, so pass the remaining twins on to another idle worker
+            wakeIdleWorker();
+        }
+        long startTime = System.nanoTime();
+        long startCpuTime = cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : 0L;
+        boolean turnOver = true;
+        try {
+            turnOver = scheduledTwinType.workHandler.processReadyTwin(readyTwin);
+        } catch (RuntimeException workError) {
+            LOG.error(".serve(): Processing of {} twin {} failed: {}", scheduledTwinType.twinType.getTwinTypeName(), readyTwin, workError.getMessage());
+        } finally {
+            if(turnOver){
+                scheduledTwinType.activityQueue.releaseReadyTwin(readyTwin);
+            }
+        }
+        long workerTime = System.nanoTime() - startTime;
+        long cpuTime = cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() - startCpuTime : 0L;
+        scheduledTwinType.servedCount.increment();
+        charge(scheduledTwinType, chargedCost, workerTime, cpuTime);
+    }
+
+    /**
+     * @return the twin type, with a twin instance ready, that has the lowest pass (having charged it with its
+     * estimated cost), or null if there is nothing ready
+     */
+    private synchronized ScheduledTwinType selectNextTwinType(){
+        ScheduledTwinType selectedTwinType = null;
+        for(ScheduledTwinType scheduledTwinType: scheduledTwinTypes){
+            if(scheduledTwinType.activityQueue.getReadyTwinCount() == 0){
+                scheduledTwinType.active = false;
+                continue;
+            }
+            if(!scheduledTwinType.active){
+                scheduledTwinType.pass = Math.max(scheduledTwinType.pass, virtualTime);
+                scheduledTwinType.active = true;
+            }
+            if(selectedTwinType == null || scheduledTwinType.pass < selectedTwinType.pass){
+                selectedTwinType = scheduledTwinType;
+            }
+        }
+        if(selectedTwinType != null){
+            virtualTime = Math.max(virtualTime, selectedTwinType.pass);
+            selectedTwinType.pass += selectedTwinType.costEstimate / selectedTwinType.weight;
+        }
+        return(selectedTwinType);
+    }
+
+    private synchronized void charge(ScheduledTwinType scheduledTwinType, double chargedCost, long workerTime, long cpuTime){
+        scheduledTwinType.pass += (workerTime - chargedCost) / scheduledTwinType.weight;
+        if(workerTime > 0){
+            scheduledTwinType.costEstimate += COST_ESTIMATE_SMOOTHING * (workerTime - scheduledTwinType.costEstimate);
+            scheduledTwinType.workerTime.add(workerTime);
+            scheduledTwinType.cpuTime.add(cpuTime);
+        }
+    }
+
+    /**
+     * Parks the worker until a twin instance becomes ready. The worker is enqueued as idle before it looks again, and
+     * every addition to a ready set calls wakeIdleWorker() after it is made - so either the look finds the twin
+     * instance or the worker is unparked, and there is no need to wake up and poll. A worker that takes a twin instance
+     * while others are still ready wakes the next idle worker, so a backlog of ready twins (e.g. one already there at
+     * registration) spreads across all of the workers.
+     */
+    private void waitForWork(){
+        Thread currentWorker = Thread.currentThread();
+        idleWorkers.add(currentWorker);
+        if(running && !hasReadyTwin()){
+            LockSupport.park(this);
+        }
+        idleWorkers.remove(currentWorker);
+    }
+
+    private boolean hasReadyTwin(){
+        for(ScheduledTwinType scheduledTwinType: scheduledTwinTypes){
+            if(scheduledTwinType.activityQueue.getReadyTwinCount() > 0){
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    private void wakeIdleWorker(){
+        Thread idleWorker = idleWorkers.poll();
+        if(idleWorker != null){
+            LockSupport.unpark(idleWorker);
+        }
+    }
+
+    //
+    // Accounting
+    //
+
+    /**
+     * @return the worker (wall-clock) time, in nanoseconds, spent on each scheduled twin type
+     */
+    public synchronized Map<TwinTypeEnum, Long> getWorkerTimeByTwinType(){
+        Map<TwinTypeEnum, Long> workerTimes = new EnumMap<>(TwinTypeEnum.class);
+        for(ScheduledTwinType scheduledTwinType: scheduledTwinTypes){
+            workerTimes.put(scheduledTwinType.twinType, scheduledTwinType.workerTime.sum());
+        }
+        return(workerTimes);
+    }
+
+    /**
+     * @return the thread CPU time, in nanoseconds, spent on each scheduled twin type (all 0 if the JVM does not
+     * support thread CPU time)
+     */
+    public synchronized Map<TwinTypeEnum, Long> getCpuTimeByTwinType(){
+        Map<TwinTypeEnum, Long> cpuTimes = new EnumMap<>(TwinTypeEnum.class);
+        for(ScheduledTwinType scheduledTwinType: scheduledTwinTypes){
+            cpuTimes.put(scheduledTwinType.twinType, scheduledTwinType.cpuTime.sum());
+        }
+        return(cpuTimes);
+    }
+
+    public synchronized Map<TwinTypeEnum, Long> getServedTwinCountByTwinType(){
+        Map<TwinTypeEnum, Long> servedCounts = new EnumMap<>(TwinTypeEnum.class);
+        for(ScheduledTwinType scheduledTwinType: scheduledTwinTypes){
+            servedCounts.put(scheduledTwinType.twinType, scheduledTwinType.servedCount.sum());
+        }
+        return(servedCounts);
+    }
+
+    public synchronized Map<TwinTypeEnum, Integer> getWeightByTwinType(){
+        Map<TwinTypeEnum, Integer> weights = new EnumMap<>(TwinTypeEnum.class);
+        for(ScheduledTwinType scheduledTwinType: scheduledTwinTypes){
+            weights.put(scheduledTwinType.twinType, scheduledTwinType.weight);
+        }
+        return(weights);
+    }
+}
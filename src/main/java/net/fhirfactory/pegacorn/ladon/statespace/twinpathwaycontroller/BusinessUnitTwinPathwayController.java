@@ -27,11 +27,14 @@ import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.Tw
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
 
 @Singleton
 @Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 public class BusinessUnitTwinPathwayController extends TwinPathwayControllerBase {
     private static final Logger LOG = LoggerFactory.getLogger(BusinessUnitTwinPathwayController.class);
 
@@ -48,4 +51,13 @@ public class BusinessUnitTwinPathwayController extends TwinPathwayControllerBase
     protected TwinRegentResourceTypeEnum specifyTwinRegentType() {
         return (TwinRegentResourceTypeEnum.ORGANIZATION_RESOURCE);
     }
+
+    /**
+     * Business units share the Organization resource type, but it is the Organization twin that is the regent of
+     * twins whose regent is an Organization.
+     */
+    @Override
+    protected boolean specifyActsAsRegent() {
+        return (false);
+    }
 }
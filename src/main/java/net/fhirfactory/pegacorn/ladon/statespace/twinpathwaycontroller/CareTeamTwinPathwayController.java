@@ -27,11 +27,14 @@ import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.Tw
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
 
 @Singleton
 @Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 public class CareTeamTwinPathwayController extends TwinPathwayControllerBase {
     private static final Logger LOG = LoggerFactory.getLogger(CareTeamTwinPathwayController.class);
 
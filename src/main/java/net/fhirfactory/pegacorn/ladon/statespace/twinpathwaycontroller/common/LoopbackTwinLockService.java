@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The single node TwinLockService: this node owns every twin instance, so the controllers never forward a lock call.
+ * Calls made on it directly (e.g. when exercising the TwinLockService contract in-process) are made straight on the
+ * twin type's controller.
+ */
+@ApplicationScoped
+public class LoopbackTwinLockService extends TwinLockServiceBase {
+    private static final String LOOPBACK_NODE_NAME = "loopback";
+    private static final int FENCING_TOKEN_SEED_SHIFT = 16;
+
+    private ConcurrentHashMap<String, TwinPathwayControllerBase> pathwayControllersByName;
+    private long fencingTokenFloor;
+
+    @Inject
+    @Any
+    private Instance<TwinPathwayControllerBase> pathwayControllers;
+
+    public LoopbackTwinLockService(){
+        super();
+        pathwayControllersByName = new ConcurrentHashMap<>();
+        // Seeded from the clock, so that tokens keep increasing across a restart of the (one) node
+        fencingTokenFloor = System.currentTimeMillis() << FENCING_TOKEN_SEED_SHIFT;
+    }
+
+    @Override
+    protected String specifyLocalNodeName() {
+        return(LOOPBACK_NODE_NAME);
+    }
+
+    @Override
+    public boolean isLocallyOwned(String pathwayName, DigitalTwinIdentifier twinIdentifier) {
+        return(true);
+    }
+
+    @Override
+    public long getFencingTokenFloor() {
+        return(fencingTokenFloor);
+    }
+
+    /**
+     * @return 0 - no twin instance ever changes owner
+     */
+    @Override
+    public long getOwnershipSettleDelay(String pathwayName, DigitalTwinIdentifier twinIdentifier, TimeUnit unit) {
+        return(0L);
+    }
+
+    /**
+     * Makes the controller available to calls made on the service directly - needed only where the controllers are
+     * not CDI managed.
+     */
+    public void registerPathwayController(TwinPathwayControllerBase pathwayController){
+        pathwayControllersByName.put(pathwayController.getPathwayName(), pathwayController);
+    }
+
+    private TwinPathwayControllerBase resolvePathwayController(String pathwayName){
+        TwinPathwayControllerBase pathwayController = pathwayControllersByName.get(pathwayName);
+        if(pathwayController == null && pathwayControllers != null){
+            for(TwinPathwayControllerBase candidateController: pathwayControllers){
+                if(candidateController.getPathwayName().equals(pathwayName)){
+                    pathwayController = pathwayControllersByName.computeIfAbsent(pathwayName, name -> candidateController);
+                    break;
+                }
+            }
+        }
+        if(pathwayController == null){
+            throw new IllegalArgumentException("No twin pathway controller named " + pathwayName);
+        }
+        return(pathwayController);
+    }
+
+    @Override
+    public TwinLockLease tryLock(String pathwayName, DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit) {
+        return(resolvePathwayController(pathwayName).tryLockInstance(twinIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit));
+    }
+
+    @Override
+    public CompletableFuture<TwinLockLease> lockAsync(String pathwayName, DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit) {
+        return(resolvePathwayController(pathwayName).lockInstanceAsync(twinIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit));
+    }
+
+    @Override
+    public TwinLockLease renewLease(String pathwayName, TwinLockLease lease, long leaseDuration, TimeUnit unit) {
+        return(resolvePathwayController(pathwayName).renewInstanceLease(lease, leaseDuration, unit));
+    }
+
+    @Override
+    public boolean unlock(String pathwayName, TwinLockLease lease) {
+        return(resolvePathwayController(pathwayName).unlockInstance(lease));
+    }
+
+    @Override
+    public void unlockTwinInstance(String pathwayName, DigitalTwinIdentifier twinIdentifier) {
+        resolvePathwayController(pathwayName).unlockTwinInstance(twinIdentifier);
+    }
+
+    @Override
+    public boolean isTwinLocked(String pathwayName, DigitalTwinIdentifier twinIdentifier) {
+        return(resolvePathwayController(pathwayName).isTwinLocked(twinIdentifier));
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The lock state of a single twin instance: its current holders - whose lock modes must all be compatible (see
+ * TwinLockModeEnum) - and the behaviours waiting (in FIFO order) to be handed it.
+ *
+ * Only ever modified within a TwinPathwayControllerBase map compute() for the twin instance. The holders may be read
+ * without it (they are copy-on-write).
+ */
+class TwinLockEntry {
+    private static final TwinLockLease[] NO_LEASES = new TwinLockLease[0];
+
+    private final TwinLockTelemetry telemetry;
+    private volatile TwinLockLease[] leases;
+    private ArrayDeque<Waiter> waiters;
+
+    static class Waiter {
+        private final BehaviourIdentifier behaviourIdentifier;
+        private final TwinLockModeEnum lockMode;
+        private final long leaseDuration;
+        private final long waitStartTime;
+        private final CompletableFuture<TwinLockLease> leaseFuture;
+
+        Waiter(BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, long waitStartTime, CompletableFuture<TwinLockLease> leaseFuture){
+            this.behaviourIdentifier = behaviourIdentifier;
+            this.lockMode = lockMode;
+            this.leaseDuration = leaseDuration;
+            this.waitStartTime = waitStartTime;
+            this.leaseFuture = leaseFuture;
+        }
+
+        BehaviourIdentifier getBehaviourIdentifier() {
+            return behaviourIdentifier;
+        }
+
+        TwinLockModeEnum getLockMode() {
+            return lockMode;
+        }
+
+        /**
+         * @return the lease duration the waiter asked for, in nanoseconds
+         */
+        long getLeaseDuration() {
+            return leaseDuration;
+        }
+
+        /**
+         * @return when the waiter joined the queue (System.nanoTime())
+         */
+        long getWaitStartTime() {
+            return waitStartTime;
+        }
+
+        CompletableFuture<TwinLockLease> getLeaseFuture() {
+            return leaseFuture;
+        }
+    }
+
+    TwinLockEntry(TwinLockTelemetry telemetry){
+        this.telemetry = telemetry;
+        this.leases = NO_LEASES;
+        this.waiters = null;
+    }
+
+    //
+    // Holders
+    //
+
+    /**
+     * @return the current holders (possibly including expired leases not yet pruned)
+     */
+    TwinLockLease[] getLeases(){
+        return(leases);
+    }
+
+    boolean isHeld(long now){
+        for(TwinLockLease lease: leases){
+            if(!lease.isExpired(now)){
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    /**
+     * @return true if a lease in the given mode can be granted now, without jumping ahead of any waiting behaviour
+     */
+    boolean canGrant(TwinLockModeEnum lockMode, long now){
+        pruneExpired(now);
+        return(peekWaiter() == null && isCompatible(lockMode));
+    }
+
+    /**
+     * @return true if the mode is compatible with every current holder (the caller should have pruned expired leases)
+     */
+    boolean isCompatible(TwinLockModeEnum lockMode){
+        for(TwinLockLease lease: leases){
+            if(!lockMode.isCompatibleWith(lease.getLockMode())){
+                return(false);
+            }
+        }
+        return(true);
+    }
+
+    void grant(TwinLockLease lease){
+        TwinLockLease[] grownLeases = Arrays.copyOf(leases, leases.length + 1);
+        grownLeases[leases.length] = lease;
+        leases = grownLeases;
+    }
+
+    TwinLockLease findLease(long fencingToken){
+        for(TwinLockLease lease: leases){
+            if(lease.getFencingToken() == fencingToken){
+                return(lease);
+            }
+        }
+        return(null);
+    }
+
+    /**
+     * Replaces the lease with the given token (e.g. when renewed), or removes it if the replacement is null.
+     *
+     * @return false if no lease with the token is held
+     */
+    boolean replaceLease(long fencingToken, TwinLockLease replacementLease){
+        for(int leaseIndex = 0; leaseIndex < leases.length; leaseIndex++){
+            if(leases[leaseIndex].getFencingToken() == fencingToken){
+                TwinLockLease[] updatedLeases;
+                if(replacementLease != null){
+                    updatedLeases = leases.clone();
+                    updatedLeases[leaseIndex] = replacementLease;
+                } else {
+                    updatedLeases = new TwinLockLease[leases.length - 1];
+                    System.arraycopy(leases, 0, updatedLeases, 0, leaseIndex);
+                    System.arraycopy(leases, leaseIndex + 1, updatedLeases, leaseIndex, updatedLeases.length - leaseIndex);
+                }
+                leases = updatedLeases;
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    void releaseAll(){
+        leases = NO_LEASES;
+    }
+
+    /**
+     * Drops the expired leases, reporting each to the telemetry as having expired.
+     */
+    void pruneExpired(long now){
+        int liveCount = 0;
+        for(TwinLockLease lease: leases){
+            if(!lease.isExpired(now)){
+                liveCount += 1;
+            }
+        }
+        if(liveCount < leases.length){
+            TwinLockLease[] liveLeases = new TwinLockLease[liveCount];
+            int liveIndex = 0;
+            for(TwinLockLease lease: leases){
+                if(!lease.isExpired(now)){
+                    liveLeases[liveIndex++] = lease;
+                } else {
+                    telemetry.leaseExpired(lease);
+                }
+            }
+            leases = liveLeases;
+        }
+    }
+
+    /**
+     * @return when the first of the current leases expires (System.nanoTime()), or now if there are none
+     */
+    long getEarliestExpiryTime(long now){
+        TwinLockLease[] currentLeases = leases;
+        if(currentLeases.length == 0){
+            return(now);
+        }
+        long earliestExpiryTime = currentLeases[0].getExpiryTime();
+        for(TwinLockLease lease: currentLeases){
+            if(lease.getExpiryTime() - earliestExpiryTime < 0){
+                earliestExpiryTime = lease.getExpiryTime();
+            }
+        }
+        return(earliestExpiryTime);
+    }
+
+    //
+    // Waiters
+    //
+
+    void addWaiter(Waiter waiter){
+        if(waiters == null){
+            waiters = new ArrayDeque<>();
+        }
+        waiters.add(waiter);
+    }
+
+    /**
+     * @return the longest waiting behaviour that is still waiting (i.e. has not given up, or been cancelled), or null
+     */
+    Waiter peekWaiter(){
+        while(waiters != null && !waiters.isEmpty()){
+            Waiter waiter = waiters.peek();
+            if(!waiter.getLeaseFuture().isDone()){
+                return(waiter);
+            }
+            waiters.poll();
+        }
+        return(null);
+    }
+
+    Waiter pollWaiter(){
+        Waiter waiter = peekWaiter();
+        if(waiter != null){
+            waiters.poll();
+        }
+        return(waiter);
+    }
+
+    int getWaiterCount(){
+        return(waiters == null ? 0 : waiters.size());
+    }
+
+    boolean isUnused(){
+        return(leases.length == 0 && peekWaiter() == null);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of TwinPathwayControllerBase.tryLock(): if granted, the holder has the twin instance to itself until
+ * it unlocks (or renews) the lease, or the lease expires.
+ *
+ * The fencing token increases with every lease granted - on whichever node owns the twin instance at the time (see
+ * TwinLockService.getFencingTokenFloor()) - so anything the holder writes can be tagged with it, and a write carrying
+ * an older token than one already seen can be refused, as it comes from a holder whose lease has since expired.
+ *
+ * A SHARED lease may be held alongside other SHARED leases on the same twin instance, each with its own token.
+ *
+ * A lease that was not granted carries the behaviour currently holding the twin instance (if known), and no token.
+ *
+ * A lease on a dependent twin instance carries the intention lease on its regent (see getRegentLease()), which is
+ * renewed and released along with it.
+ */
+public class TwinLockLease {
+    public static final long NO_FENCING_TOKEN = 0L;
+
+    private final DigitalTwinIdentifier twinIdentifier;
+    private final BehaviourIdentifier behaviourIdentifier;
+    private final TwinLockModeEnum lockMode;
+    private final long fencingToken;
+    private final long grantTime;
+    private final long expiryTime;
+    private final boolean granted;
+    private final TwinLockLease regentLease;
+
+    TwinLockLease(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long fencingToken, long grantTime, long expiryTime){
+        this(twinIdentifier, behaviourIdentifier, lockMode, fencingToken, grantTime, expiryTime, null);
+    }
+
+    private TwinLockLease(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long fencingToken, long grantTime, long expiryTime, TwinLockLease regentLease){
+        this.twinIdentifier = twinIdentifier;
+        this.behaviourIdentifier = behaviourIdentifier;
+        this.lockMode = lockMode;
+        this.fencingToken = fencingToken;
+        this.grantTime = grantTime;
+        this.expiryTime = expiryTime;
+        this.granted = true;
+        this.regentLease = regentLease;
+    }
+
+    private TwinLockLease(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier currentHolder){
+        this.twinIdentifier = twinIdentifier;
+        this.behaviourIdentifier = currentHolder;
+        this.lockMode = null;
+        this.fencingToken = NO_FENCING_TOKEN;
+        this.grantTime = 0L;
+        this.expiryTime = 0L;
+        this.granted = false;
+        this.regentLease = null;
+    }
+
+    /**
+     * @return a lease that was not granted (e.g. as reported by the twin instance's owner node - see TwinLockService)
+     */
+    public static TwinLockLease refused(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier currentHolder){
+        return(new TwinLockLease(twinIdentifier, currentHolder));
+    }
+
+    /**
+     * Rebuilds a lease granted by the twin instance's owner node (see TwinLockService), re-basing it onto this node's
+     * clock - it expires after the remaining duration the owner node reported, from now.
+     */
+    public static TwinLockLease forwarded(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long fencingToken, long remainingDuration, TimeUnit unit){
+        long now = System.nanoTime();
+        return(new TwinLockLease(twinIdentifier, behaviourIdentifier, lockMode, fencingToken, now, now + unit.toNanos(Math.max(remainingDuration, 0L))));
+    }
+
+    /**
+     * @return this lease, carrying the given intention lease on the twin instance's regent
+     */
+    TwinLockLease withRegentLease(TwinLockLease regentLease){
+        return(new TwinLockLease(twinIdentifier, behaviourIdentifier, lockMode, fencingToken, grantTime, expiryTime, regentLease));
+    }
+
+    public DigitalTwinIdentifier getTwinIdentifier() {
+        return twinIdentifier;
+    }
+
+    /**
+     * @return the behaviour holding the lease (or, if it was not granted, the behaviour that held the twin instance)
+     */
+    public BehaviourIdentifier getBehaviourIdentifier() {
+        return behaviourIdentifier;
+    }
+
+    /**
+     * @return the mode the lease is held in (null if it was not granted)
+     */
+    public TwinLockModeEnum getLockMode() {
+        return lockMode;
+    }
+
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    /**
+     * @return when the lease was first granted (System.nanoTime()) - renewing it does not change this
+     */
+    public long getGrantTime() {
+        return grantTime;
+    }
+
+    /**
+     * @return when the lease expires (System.nanoTime())
+     */
+    public long getExpiryTime() {
+        return expiryTime;
+    }
+
+    /**
+     * @return how much longer the lease has to run (0 if it has expired)
+     */
+    public long getRemainingDuration(TimeUnit unit){
+        if(!granted){
+            return(0L);
+        }
+        return(unit.convert(Math.max(expiryTime - System.nanoTime(), 0L), TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * @return the intention lease held on the twin instance's regent along with this one, or null if none
+     */
+    public TwinLockLease getRegentLease() {
+        return regentLease;
+    }
+
+    public boolean isGranted() {
+        return granted;
+    }
+
+    public boolean isExpired(){
+        return(isExpired(System.nanoTime()));
+    }
+
+    boolean isExpired(long now){
+        return(!granted || now - expiryTime >= 0);
+    }
+
+    @Override
+    public String toString() {
+        return "TwinLockLease{" +
+                "twinIdentifier=" + twinIdentifier +
+                ", behaviourIdentifier=" + behaviourIdentifier +
+                ", lockMode=" + lockMode +
+                ", fencingToken=" + fencingToken +
+                ", granted=" + granted +
+                '}';
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+/**
+ * How a behaviour holds a twin instance while it is active on it (see TwinPathwayControllerBase.registerBehaviourLockMode()).
+ *
+ * The INTENTION modes are taken on a regent twin instance on behalf of a behaviour locking one of its dependent twin
+ * instances (see TwinLockSet): they do not conflict with each other, but keep anyone from locking the regent (and so,
+ * implicitly, all of its dependents) in a conflicting mode.
+ */
+public enum TwinLockModeEnum {
+    /** Read-only: any number of SHARED behaviours may hold the twin instance at once */
+    SHARED,
+    /** Mutating: the behaviour holds the twin instance to itself */
+    EXCLUSIVE,
+    /** Held on a regent while a dependent twin instance is held SHARED */
+    INTENTION_SHARED,
+    /** Held on a regent while a dependent twin instance is held EXCLUSIVE */
+    INTENTION_EXCLUSIVE;
+
+    public boolean isCompatibleWith(TwinLockModeEnum heldMode){
+        switch(this){
+            case INTENTION_SHARED:
+                return(heldMode != EXCLUSIVE);
+            case INTENTION_EXCLUSIVE:
+                return(heldMode == INTENTION_SHARED || heldMode == INTENTION_EXCLUSIVE);
+            case SHARED:
+                return(heldMode == SHARED || heldMode == INTENTION_SHARED);
+            case EXCLUSIVE:
+            default:
+                return(false);
+        }
+    }
+
+    /**
+     * @return the mode to hold on the regent of a twin instance held in this mode
+     */
+    public TwinLockModeEnum getRegentIntentionMode(){
+        if(this == SHARED || this == INTENTION_SHARED){
+            return(INTENTION_SHARED);
+        }
+        return(INTENTION_EXCLUSIVE);
+    }
+}
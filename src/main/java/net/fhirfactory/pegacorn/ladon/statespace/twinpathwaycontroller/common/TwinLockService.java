@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lock service behind the TwinPathwayControllerBase, so that twin instance locks hold across all of the Ladon
+ * nodes rather than just within one.
+ *
+ * Each twin instance's lock state lives on a single owner node. A controller consults isLocallyOwned() first, and
+ * locks the twin instances its node owns itself, in-heap - only the calls for twin instances owned elsewhere come to
+ * the other methods here, which forward them to the owner node (where they are made on the twin type's controller,
+ * identified by its pathway name, via its ...Instance() methods - the regent's intention lock having already been
+ * taken by the calling node). With twin instances spread evenly over the nodes, and their stimuli routed to their
+ * owner nodes, most lock calls never leave the node.
+ *
+ * As a twin instance changes owner, the new owner holds off granting leases on it until those granted by the old owner
+ * have run out (see getOwnershipSettleDelay()), and issues fencing tokens above a floor that rises with each change of
+ * ownership (see getFencingTokenFloor()) - so a twin instance's tokens keep increasing wherever it is locked.
+ *
+ * Leases keep their fencing tokens as they travel, so the owner node can tell its own leases apart - but their grant
+ * and expiry times are System.nanoTime() values, so a lease returned from another node must be re-based onto this
+ * node's clock (see TwinLockLease.forwarded()).
+ *
+ * LoopbackTwinLockService (the default) owns every twin instance on the one node; a distributed implementation
+ * (typically extending TwinLockServiceBase) is selected in its place as a CDI alternative.
+ */
+public interface TwinLockService {
+
+    /**
+     * @return true if this node holds the lock state for the twin instance
+     */
+    boolean isLocallyOwned(String pathwayName, DigitalTwinIdentifier twinIdentifier);
+
+    /**
+     * @return the floor for the fencing tokens of leases granted on this node - above every token issued (on any node)
+     * before twin instance ownership last changed
+     */
+    long getFencingTokenFloor();
+
+    /**
+     * @return how much longer this node must hold off granting leases on the (locally owned) twin instance, as leases
+     * granted by its previous owner may still be running - 0 if it may grant them now
+     */
+    long getOwnershipSettleDelay(String pathwayName, DigitalTwinIdentifier twinIdentifier, TimeUnit unit);
+
+    TwinLockLease tryLock(String pathwayName, DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit);
+
+    CompletableFuture<TwinLockLease> lockAsync(String pathwayName, DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit);
+
+    TwinLockLease renewLease(String pathwayName, TwinLockLease lease, long leaseDuration, TimeUnit unit);
+
+    boolean unlock(String pathwayName, TwinLockLease lease);
+
+    void unlockTwinInstance(String pathwayName, DigitalTwinIdentifier twinIdentifier);
+
+    boolean isTwinLocked(String pathwayName, DigitalTwinIdentifier twinIdentifier);
+}
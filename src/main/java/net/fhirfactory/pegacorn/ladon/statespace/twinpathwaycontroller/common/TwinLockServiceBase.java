@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which node owns each twin instance's lock state, by rendezvous hashing the (pathway name, twin instance)
+ * against each of the cluster's nodes - so that when a node joins or leaves, only the twin instances it gains or loses
+ * change owner.
+ *
+ * A twin instance that changes owner arrives without its leases (they stay with the old owner, and run out there), so
+ * a node holds off granting leases on a twin instance until it has owned it, without a break, for the ownership grace
+ * period (a lease duration, by default) - see getOwnershipSettleDelay(), which the controllers check before granting.
+ * A node that has only just started holds off on every twin instance for that long, as it cannot tell what it took
+ * over.
+ *
+ * Fencing tokens turn away writes from any lease holder that has been superseded regardless: each cluster membership
+ * view carries an ownership epoch higher than the last (e.g. the view's number, from the cluster membership layer), and
+ * tokens are issued above the epoch's floor (see getFencingTokenFloor()), so a token granted once ownership has changed
+ * is higher than any granted before - on whichever node.
+ *
+ * Relies on DigitalTwinIdentifier.hashCode() being value-based (as it is for its use as a map key), so every node
+ * agrees on the owner.
+ */
+public abstract class TwinLockServiceBase implements TwinLockService {
+    private static final Logger LOG = LoggerFactory.getLogger(TwinLockServiceBase.class);
+
+    private static final long DEFAULT_OWNERSHIP_GRACE_PERIOD = 30000L;
+    private static final int FENCING_TOKEN_EPOCH_SHIFT = 40;
+
+    private String localNodeName;
+    private long ownershipGracePeriod;
+    private volatile OwnershipView currentView;
+
+    /**
+     * A cluster membership view: its nodes, its ownership epoch, when it replaced the previous view here
+     * (System.nanoTime()), and the previous view - back as far as the ownership grace period needs.
+     */
+    private static class OwnershipView {
+        private final List<String> nodeNames;
+        private final long ownershipEpoch;
+        private final long startTime;
+        private final OwnershipView previousView;
+
+        OwnershipView(List<String> nodeNames, long ownershipEpoch, long startTime, OwnershipView previousView){
+            this.nodeNames = nodeNames;
+            this.ownershipEpoch = ownershipEpoch;
+            this.startTime = startTime;
+            this.previousView = previousView;
+        }
+    }
+
+    public TwinLockServiceBase(){
+        localNodeName = specifyLocalNodeName();
+        ownershipGracePeriod = TimeUnit.MILLISECONDS.toNanos(specifyOwnershipGracePeriod());
+        currentView = new OwnershipView(Collections.singletonList(localNodeName), 0L, System.nanoTime(), null);
+    }
+
+    abstract protected String specifyLocalNodeName();
+
+    /**
+     * @return how long (in milliseconds) a node holds off granting leases on a twin instance it has newly come to own -
+     * at least the longest lease the behaviours take
+     */
+    protected long specifyOwnershipGracePeriod(){
+        return(DEFAULT_OWNERSHIP_GRACE_PERIOD);
+    }
+
+    public String getLocalNodeName() {
+        return localNodeName;
+    }
+
+    public List<String> getClusterNodeNames() {
+        return currentView.nodeNames;
+    }
+
+    public long getOwnershipEpoch(){
+        return(currentView.ownershipEpoch);
+    }
+
+    /**
+     * Updates the cluster's membership (e.g. as nodes are discovered, or lost) - the local node is always included.
+     *
+     * @param ownershipEpoch the membership view's epoch, which every node must agree on and which must increase with
+     *                       every view (e.g. the view number from the cluster membership layer) - views older than the
+     *                       current one are ignored
+     */
+    public synchronized void setClusterNodeNames(Collection<String> nodeNames, long ownershipEpoch){
+        OwnershipView previousView = currentView;
+        if(ownershipEpoch <= previousView.ownershipEpoch){
+            LOG.warn(".setClusterNodeNames(): Ignoring membership view (epoch {}), already at epoch {}", ownershipEpoch, previousView.ownershipEpoch);
+            return;
+        }
+        List<String> updatedNodeNames = new ArrayList<>(nodeNames);
+        if(!updatedNodeNames.contains(localNodeName)){
+            updatedNodeNames.add(localNodeName);
+        }
+        Collections.sort(updatedNodeNames);
+        long now = System.nanoTime();
+        currentView = new OwnershipView(Collections.unmodifiableList(updatedNodeNames), ownershipEpoch, now, retainedViews(previousView, now));
+        LOG.info(".setClusterNodeNames(): Twin lock ownership now shared between {} (epoch {})", updatedNodeNames, ownershipEpoch);
+    }
+
+    /**
+     * @return the view, dropping the views before it that ended over a grace period ago (and so no longer matter)
+     */
+    private OwnershipView retainedViews(OwnershipView view, long now){
+        if(view == null){
+            return(null);
+        }
+        OwnershipView olderView = view.previousView;
+        if(olderView == null || now - view.startTime >= ownershipGracePeriod){
+            return(new OwnershipView(view.nodeNames, view.ownershipEpoch, view.startTime, null));
+        }
+        return(new OwnershipView(view.nodeNames, view.ownershipEpoch, view.startTime, retainedViews(olderView, now)));
+    }
+
+    /**
+     * @return the name of the node that owns the twin instance's lock state
+     */
+    public String getOwnerNodeName(String pathwayName, DigitalTwinIdentifier twinIdentifier){
+        return(getOwnerNodeName(currentView.nodeNames, pathwayName, twinIdentifier));
+    }
+
+    private static String getOwnerNodeName(List<String> nodeNames, String pathwayName, DigitalTwinIdentifier twinIdentifier){
+        if(nodeNames.size() == 1){
+            return(nodeNames.get(0));
+        }
+        long twinHash = ((long)pathwayName.hashCode() << 32) ^ twinIdentifier.hashCode();
+        String ownerNodeName = null;
+        long highestScore = Long.MIN_VALUE;
+        for(String nodeName: nodeNames){
+            long score = mix(twinHash ^ ((long)nodeName.hashCode() * 0x9E3779B97F4A7C15L));
+            if(ownerNodeName == null || score > highestScore){
+                ownerNodeName = nodeName;
+                highestScore = score;
+            }
+        }
+        return(ownerNodeName);
+    }
+
+    @Override
+    public boolean isLocallyOwned(String pathwayName, DigitalTwinIdentifier twinIdentifier) {
+        return(localNodeName.equals(getOwnerNodeName(pathwayName, twinIdentifier)));
+    }
+
+    /**
+     * @return the ownership epoch, in the top bits - leaving each epoch room for 2^40 tokens
+     */
+    @Override
+    public long getFencingTokenFloor() {
+        return(currentView.ownershipEpoch << FENCING_TOKEN_EPOCH_SHIFT);
+    }
+
+    @Override
+    public long getOwnershipSettleDelay(String pathwayName, DigitalTwinIdentifier twinIdentifier, TimeUnit unit) {
+        long now = System.nanoTime();
+        OwnershipView view = currentView;
+        if(view.previousView == null && now - view.startTime >= ownershipGracePeriod){
+            return(0L);
+        }
+        // Walk back through the views for as long as this node owned the twin instance
+        long ownedSince = now;
+        while(view != null && localNodeName.equals(getOwnerNodeName(view.nodeNames, pathwayName, twinIdentifier))){
+            ownedSince = view.startTime;
+            if(now - ownedSince >= ownershipGracePeriod){
+                return(0L);
+            }
+            view = view.previousView;
+        }
+        long settleDelay = ownershipGracePeriod - (now - ownedSince);
+        return(unit.convert(Math.max(settleDelay, 0L), TimeUnit.NANOSECONDS));
+    }
+
+    private static long mix(long hash){
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return(hash);
+    }
+}
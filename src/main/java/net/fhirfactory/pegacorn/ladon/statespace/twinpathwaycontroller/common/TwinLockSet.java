@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The leases a (multi-twin) behaviour holds on a set of twin instances, acquired all-or-nothing by tryLockAll().
+ *
+ * Locking is hierarchical: a twin instance's regent is locked (by its own controller) to cover all of its dependent
+ * twin instances, so a behaviour locking a dependent twin instance first takes an intention lock on the regent (see
+ * TwinLockModeEnum) - which stops anyone else locking the regent in a conflicting mode while the dependent is held. If
+ * the set includes the regent itself, the behaviour's own lock on the regent stands in for the intention lock.
+ *
+ * Regents are locked before their dependents, and should any lock be refused, the locks already granted are released
+ * before tryLockAll() returns - a behaviour never waits while holding part of its set, so lock sets cannot deadlock.
+ */
+public class TwinLockSet {
+    private static final Logger LOG = LoggerFactory.getLogger(TwinLockSet.class);
+
+    private final List<TwinLockLease> leases;
+    private final List<TwinPathwayControllerBase> leaseControllers;
+    private final TwinLockLease refusedLease;
+
+    private static class LockStep {
+        private final TwinPathwayControllerBase controller;
+        private final DigitalTwinIdentifier twinIdentifier;
+        private TwinLockModeEnum intentionMode;
+
+        LockStep(TwinPathwayControllerBase controller, DigitalTwinIdentifier twinIdentifier, TwinLockModeEnum intentionMode){
+            this.controller = controller;
+            this.twinIdentifier = twinIdentifier;
+            this.intentionMode = intentionMode;
+        }
+
+        boolean isFor(TwinPathwayControllerBase otherController, DigitalTwinIdentifier otherTwinIdentifier){
+            return(controller == otherController && twinIdentifier.equals(otherTwinIdentifier));
+        }
+    }
+
+    private TwinLockSet(List<TwinLockLease> leases, List<TwinPathwayControllerBase> leaseControllers, TwinLockLease refusedLease){
+        this.leases = leases;
+        this.leaseControllers = leaseControllers;
+        this.refusedLease = refusedLease;
+    }
+
+    /**
+     * Locks every requested twin instance (in the behaviour's registered lock mode), along with intention locks on
+     * their regents - or none of them.
+     *
+     * @return the lock set - check isGranted()
+     */
+    public static TwinLockSet tryLockAll(List<TwinLockRequest> lockRequests, BehaviourIdentifier behaviourIdentifier, long leaseDuration, TimeUnit unit){
+        List<LockStep> directSteps = new ArrayList<>();
+        for(TwinLockRequest lockRequest: lockRequests){
+            if(findStep(directSteps, lockRequest.getController(), lockRequest.getTwinIdentifier()) == null){
+                directSteps.add(new LockStep(lockRequest.getController(), lockRequest.getTwinIdentifier(), null));
+            }
+        }
+        List<LockStep> intentionSteps = new ArrayList<>();
+        for(TwinLockRequest lockRequest: lockRequests){
+            TwinPathwayControllerBase regentController = lockRequest.getController().getRegentController();
+            DigitalTwinIdentifier regentIdentifier = lockRequest.getRegentIdentifier();
+            if(regentIdentifier == null){
+                regentIdentifier = lockRequest.getController().getRegentTwinInstance(lockRequest.getTwinIdentifier());
+            }
+            if(regentController == null || regentIdentifier == null || findStep(directSteps, regentController, regentIdentifier) != null){
+                continue;
+            }
+            TwinLockModeEnum intentionMode = lockRequest.getController().getBehaviourLockMode(behaviourIdentifier).getRegentIntentionMode();
+            LockStep intentionStep = findStep(intentionSteps, regentController, regentIdentifier);
+            if(intentionStep == null){
+                intentionSteps.add(new LockStep(regentController, regentIdentifier, intentionMode));
+            } else if(intentionMode == TwinLockModeEnum.INTENTION_EXCLUSIVE){
+                intentionStep.intentionMode = intentionMode;
+            }
+        }
+        // Regents first (those being locked outright, then intentions), then their dependents
+        List<LockStep> lockSteps = new ArrayList<>();
+        for(LockStep directStep: directSteps){
+            if(directStep.controller.getRegentController() == null){
+                lockSteps.add(directStep);
+            }
+        }
+        lockSteps.addAll(intentionSteps);
+        for(LockStep directStep: directSteps){
+            if(directStep.controller.getRegentController() != null){
+                lockSteps.add(directStep);
+            }
+        }
+        List<TwinLockLease> grantedLeases = new ArrayList<>(lockSteps.size());
+        List<TwinPathwayControllerBase> grantedControllers = new ArrayList<>(lockSteps.size());
+        for(LockStep lockStep: lockSteps){
+            TwinLockLease lease;
+            if(lockStep.intentionMode != null){
+                lease = lockStep.controller.tryLock(lockStep.twinIdentifier, behaviourIdentifier, lockStep.intentionMode, leaseDuration, unit);
+            } else {
+                // The regent has already been dealt with (by an earlier step) if there is one
+                lease = lockStep.controller.tryLockInstance(lockStep.twinIdentifier, behaviourIdentifier, lockStep.controller.getBehaviourLockMode(behaviourIdentifier), leaseDuration, unit);
+            }
+            if(!lease.isGranted()){
+                TwinLockSet partialSet = new TwinLockSet(grantedLeases, grantedControllers, lease);
+                partialSet.unlockAll();
+                LOG.debug(".tryLockAll(): Lock on {} refused (held by {}), lock set released", lease.getTwinIdentifier(), lease.getBehaviourIdentifier());
+                return(new TwinLockSet(Collections.emptyList(), Collections.emptyList(), lease));
+            }
+            grantedLeases.add(lease);
+            grantedControllers.add(lockStep.controller);
+        }
+        return(new TwinLockSet(grantedLeases, grantedControllers, null));
+    }
+
+    private static LockStep findStep(List<LockStep> lockSteps, TwinPathwayControllerBase controller, DigitalTwinIdentifier twinIdentifier){
+        for(LockStep lockStep: lockSteps){
+            if(lockStep.isFor(controller, twinIdentifier)){
+                return(lockStep);
+            }
+        }
+        return(null);
+    }
+
+    public boolean isGranted(){
+        return(refusedLease == null);
+    }
+
+    /**
+     * @return the leases held (including the intention leases on regents), in the order they were acquired
+     */
+    public List<TwinLockLease> getLeases() {
+        return(Collections.unmodifiableList(leases));
+    }
+
+    /**
+     * @return the lease that was refused (carrying the behaviour that held the twin instance), or null if granted
+     */
+    public TwinLockLease getRefusedLease() {
+        return refusedLease;
+    }
+
+    /**
+     * Releases the leases, dependents before their regents.
+     */
+    public void unlockAll(){
+        for(int leaseIndex = leases.size() - 1; leaseIndex >= 0; leaseIndex--){
+            leaseControllers.get(leaseIndex).unlock(leases.get(leaseIndex));
+        }
+    }
+}
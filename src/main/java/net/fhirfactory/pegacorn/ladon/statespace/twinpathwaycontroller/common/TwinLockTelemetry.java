@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running lock statistics for a TwinPathwayControllerBase (i.e. for one twin type), cheap enough to be kept all the
+ * time: each event is a LongAdder increment or two.
+ *
+ * Hold and wait times are kept as base-2 histograms of microseconds - bucket 0 counts times under 1us, and bucket n
+ * (n > 0) times from 2^(n-1)us up to 2^n us, with the last bucket taking everything longer.
+ *
+ * The hottest twin instances (those most often found locked by someone else) are tracked by count, up to
+ * MAX_TRACKED_HOT_TWIN_INSTANCES of them - once that many are being tracked, every count is halved and the twin
+ * instances whose count falls to zero are dropped, so the tracking favours recent contention and stays bounded.
+ */
+class TwinLockTelemetry {
+    static final int HISTOGRAM_BUCKET_COUNT = 32;
+    private static final int MAX_TRACKED_HOT_TWIN_INSTANCES = 1000;
+
+    private final LongAdder[] holdTimeHistogram;
+    private final LongAdder[] waitTimeHistogram;
+    private final LongAdder grantedCount;
+    private final LongAdder refusedCount;
+    private final LongAdder waitedCount;
+    private final LongAdder lockedCheckCount;
+    private final LongAdder lockedCheckHitCount;
+    private final LongAdder leaseExpiryCount;
+    private final ConcurrentHashMap<DigitalTwinIdentifier, AtomicLong> hotTwinInstances;
+    private final AtomicBoolean hotTwinDecayInProgress;
+
+    TwinLockTelemetry(){
+        this.holdTimeHistogram = newHistogram();
+        this.waitTimeHistogram = newHistogram();
+        this.grantedCount = new LongAdder();
+        this.refusedCount = new LongAdder();
+        this.waitedCount = new LongAdder();
+        this.lockedCheckCount = new LongAdder();
+        this.lockedCheckHitCount = new LongAdder();
+        this.leaseExpiryCount = new LongAdder();
+        this.hotTwinInstances = new ConcurrentHashMap<>();
+        this.hotTwinDecayInProgress = new AtomicBoolean(false);
+    }
+
+    private static LongAdder[] newHistogram(){
+        LongAdder[] histogram = new LongAdder[HISTOGRAM_BUCKET_COUNT];
+        for(int bucket = 0; bucket < HISTOGRAM_BUCKET_COUNT; bucket++){
+            histogram[bucket] = new LongAdder();
+        }
+        return(histogram);
+    }
+
+    //
+    // Recording
+    //
+
+    /**
+     * @param waitTime how long (in nanoseconds) the behaviour waited to be granted the lease (0 if straight away)
+     */
+    void leaseGranted(long waitTime){
+        grantedCount.increment();
+        record(waitTimeHistogram, waitTime);
+    }
+
+    void leaseRefused(DigitalTwinIdentifier twinIdentifier){
+        refusedCount.increment();
+        recordContention(twinIdentifier);
+    }
+
+    /**
+     * A behaviour has joined the twin instance's waiters (lockAsync()).
+     */
+    void leaseAwaited(DigitalTwinIdentifier twinIdentifier){
+        waitedCount.increment();
+        recordContention(twinIdentifier);
+    }
+
+    void lockedChecked(DigitalTwinIdentifier twinIdentifier, boolean locked){
+        lockedCheckCount.increment();
+        if(locked){
+            lockedCheckHitCount.increment();
+            recordContention(twinIdentifier);
+        }
+    }
+
+    /**
+     * The lease has been given up (unlocked) - or, if it had already expired by then, it counts as expired.
+     */
+    void leaseReleased(TwinLockLease lease, long now){
+        if(lease.isExpired(now)){
+            leaseExpired(lease);
+        } else {
+            record(holdTimeHistogram, now - lease.getGrantTime());
+        }
+    }
+
+    /**
+     * The lease expired without being given up - it is taken to have been held up until its expiry.
+     */
+    void leaseExpired(TwinLockLease lease){
+        leaseExpiryCount.increment();
+        record(holdTimeHistogram, lease.getExpiryTime() - lease.getGrantTime());
+    }
+
+    private static void record(LongAdder[] histogram, long duration){
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(duration, 0L));
+        int bucket = Math.min(Long.SIZE - Long.numberOfLeadingZeros(micros), HISTOGRAM_BUCKET_COUNT - 1);
+        histogram[bucket].increment();
+    }
+
+    private void recordContention(DigitalTwinIdentifier twinIdentifier){
+        AtomicLong contentionCount = hotTwinInstances.get(twinIdentifier);
+        if(contentionCount == null){
+            if(hotTwinInstances.size() >= MAX_TRACKED_HOT_TWIN_INSTANCES){
+                decayHotTwinInstances();
+                if(hotTwinInstances.size() >= MAX_TRACKED_HOT_TWIN_INSTANCES){
+                    return;
+                }
+            }
+            contentionCount = hotTwinInstances.computeIfAbsent(twinIdentifier, key -> new AtomicLong());
+        }
+        contentionCount.incrementAndGet();
+    }
+
+    private void decayHotTwinInstances(){
+        if(!hotTwinDecayInProgress.compareAndSet(false, true)){
+            return;
+        }
+        try {
+            hotTwinInstances.entrySet().removeIf(hotTwinEntry -> hotTwinEntry.getValue().updateAndGet(count -> count >> 1) == 0L);
+        } finally {
+            hotTwinDecayInProgress.set(false);
+        }
+    }
+
+    //
+    // Reading
+    //
+
+    long getGrantedCount(){
+        return(grantedCount.sum());
+    }
+
+    long getRefusedCount(){
+        return(refusedCount.sum());
+    }
+
+    long getWaitedCount(){
+        return(waitedCount.sum());
+    }
+
+    long getLockedCheckCount(){
+        return(lockedCheckCount.sum());
+    }
+
+    long getLockedCheckHitCount(){
+        return(lockedCheckHitCount.sum());
+    }
+
+    long getLeaseExpiryCount(){
+        return(leaseExpiryCount.sum());
+    }
+
+    long[] getHoldTimeHistogram(){
+        return(snapshot(holdTimeHistogram));
+    }
+
+    long[] getWaitTimeHistogram(){
+        return(snapshot(waitTimeHistogram));
+    }
+
+    private static long[] snapshot(LongAdder[] histogram){
+        long[] counts = new long[histogram.length];
+        for(int bucket = 0; bucket < histogram.length; bucket++){
+            counts[bucket] = histogram[bucket].sum();
+        }
+        return(counts);
+    }
+
+    /**
+     * @return the upper bound (in microseconds) of the histogram bucket holding the given fraction (e.g. 0.99) of the
+     * recorded times, or 0 if nothing has been recorded
+     */
+    static long percentileOf(long[] histogram, double fraction){
+        long total = 0L;
+        for(long count: histogram){
+            total += count;
+        }
+        if(total == 0L){
+            return(0L);
+        }
+        long threshold = (long)Math.ceil(total * Math.min(Math.max(fraction, 0.0), 1.0));
+        long cumulative = 0L;
+        for(int bucket = 0; bucket < histogram.length; bucket++){
+            cumulative += histogram[bucket];
+            if(cumulative >= Math.max(threshold, 1L)){
+                return(1L << bucket);
+            }
+        }
+        return(1L << (histogram.length - 1));
+    }
+
+    /**
+     * @return (up to) the given number of the hottest twin instances, hottest first, with their (decayed) contention
+     * counts
+     */
+    Map<DigitalTwinIdentifier, Long> getHottestTwinInstances(int limit){
+        List<Map.Entry<DigitalTwinIdentifier, Long>> contentionCounts = new ArrayList<>();
+        for(Map.Entry<DigitalTwinIdentifier, AtomicLong> hotTwinEntry: hotTwinInstances.entrySet()){
+            contentionCounts.add(Map.entry(hotTwinEntry.getKey(), hotTwinEntry.getValue().get()));
+        }
+        contentionCounts.sort(Map.Entry.<DigitalTwinIdentifier, Long>comparingByValue().reversed());
+        Map<DigitalTwinIdentifier, Long> hottestTwins = new LinkedHashMap<>();
+        for(Map.Entry<DigitalTwinIdentifier, Long> contentionCount: contentionCounts){
+            if(hottestTwins.size() >= limit){
+                break;
+            }
+            hottestTwins.put(contentionCount.getKey(), contentionCount.getValue());
+        }
+        return(hottestTwins);
+    }
+
+    void resetHottestTwinInstances(){
+        hotTwinInstances.clear();
+    }
+}
@@ -26,17 +26,168 @@ import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Tracks which behaviour (if any) is currently active on each twin instance of the twin type.
+ *
+ * A behaviour gains a twin instance via tryLock(), which atomically grants it a lease (with a fencing token) provided
+ * no conflicting unexpired lease is held on the twin instance. Each behaviour's lock mode is declared when it is
+ * registered (see registerBehaviourLockMode()): any number of SHARED (read-only) behaviours may hold a twin instance
+ * at once, whereas an EXCLUSIVE (mutating) behaviour holds it alone - EXCLUSIVE unless declared otherwise. Leases expire of their own accord, so a behaviour that dies
+ * without unlocking can only hold a twin instance up for the lease duration. Expired leases are purged by the
+ * controller's own lock scheduler (once per purge interval), never on a thread that is locking.
+ *
+ * Rather than retry, a behaviour can instead wait its turn with lockAsync(): the waiting behaviours for a twin
+ * instance are kept in FIFO order, and whenever the twin instance is unlocked (or its lease expires) it is handed
+ * straight to the next of them (or, if that is a SHARED behaviour, to the run of SHARED behaviours at the head of the
+ * queue) - within the same atomic update, so nothing can barge in between. A new SHARED request does not join the
+ * current SHARED holders while anyone is waiting, so an EXCLUSIVE behaviour cannot be starved. If nobody is waiting,
+ * the TwinReleaseListeners are told instead.
+ *
+ * Twin instances also belong to a regent twin instance (e.g. a Patient twin to its Person twin), held by the regent
+ * twin type's controller (see getRegentController()). Locking a regent covers all of its dependents, so locking a
+ * dependent twin instance - via tryLock() or lockAsync() as much as via a TwinLockSet - first takes an intention lock
+ * on its regent (found via resolveRegentTwinInstance()), which the dependent's lease carries and which is renewed and
+ * released along with it. A behaviour spanning a regent and several of its dependents acquires them all in one
+ * (deadlock-free) step via a TwinLockSet. The ...Instance() variants lock the twin instance alone - for callers that
+ * have dealt with the regent themselves (TwinLockSet), and for the TwinLockService on the twin instance's owner node.
+ *
+ * The lock state is only held here for the twin instances this node owns: the rest are locked via the TwinLockService,
+ * on their owner nodes. Before granting a lease on a twin instance this node has only lately come to own, the
+ * controller checks with the TwinLockService, and holds off until any leases granted by its previous owner have run
+ * out. Fencing tokens are issued above the TwinLockService's floor, which rises as ownership changes, so they keep
+ * increasing as twin instances move between nodes. The calls that only report on the lock state (getTwinActiveBehaviours(),
+ * getWaitingBehaviourCount() and the lock telemetry) cover the twin instances this node owns.
+ *
+ * Lock hold times, wait times, contention and lease expiries are kept (per twin type) in a TwinLockTelemetry, exposed
+ * via the getLock...() methods below.
+ *
+ * The twin type controllers are EJB singletons with bean-managed concurrency - the container does not serialise
+ * calls to them - so all of the state here is held in concurrent structures (and a twin instance's lock state is only
+ * ever changed within its own map entry's compute()), so calls for different twin instances proceed in parallel.
+ */
 public abstract class TwinPathwayControllerBase {
     private static final Logger LOG = LoggerFactory.getLogger(TwinPathwayControllerBase.class);
 
+    private static final long DEFAULT_LEASE_DURATION = 30000L;
+    private static final long EXPIRED_LEASE_PURGE_INTERVAL = 10000L;
+    private static final int FENCING_TOKEN_SEED_SHIFT = 16;
+
     private TwinRegentResourceTypeEnum twinRegentType;
     private TwinResourceTypeEnum twinResourceType;
-    private ConcurrentHashMap<DigitalTwinIdentifier, BehaviourIdentifier> twinInstanceActiveStatus;
+    private volatile TwinPathwayControllerBase regentController;
+    private volatile boolean regentControllerResolved;
+    private ConcurrentHashMap<DigitalTwinIdentifier, TwinLockEntry> twinInstanceLocks;
+    private ConcurrentHashMap<BehaviourIdentifier, TwinLockModeEnum> behaviourLockModes;
+    private ConcurrentHashMap<DigitalTwinIdentifier, DigitalTwinIdentifier> regentTwinInstances;
+    private CopyOnWriteArrayList<TwinReleaseListener> releaseListeners;
+    private AtomicLong fencingTokenSequence;
+    private long unservicedFencingTokenFloor;
+    private volatile ScheduledExecutorService lockScheduler;
+    private ThreadLocal<ArrayDeque<Runnable>> handOffTrampoline;
+    private TwinLockTelemetry lockTelemetry;
+    private String pathwayName;
+
+    @Inject
+    private TwinLockService lockService;
+
+    @Inject
+    @Any
+    private Instance<TwinPathwayControllerBase> pathwayControllers;
+
+    /**
+     * A lease handed to a waiting behaviour within a map update, to be completed once the update is done.
+     */
+    private static class LeaseHandOff {
+        private final TwinLockEntry.Waiter waiter;
+        private final TwinLockLease lease;
+
+        LeaseHandOff(TwinLockEntry.Waiter waiter, TwinLockLease lease){
+            this.waiter = waiter;
+            this.lease = lease;
+        }
+    }
 
     public TwinPathwayControllerBase(){
-        twinInstanceActiveStatus = new ConcurrentHashMap<>();
+        twinResourceType = specifyTwinResourceType();
+        twinRegentType = specifyTwinRegentType();
+        regentController = null;
+        regentControllerResolved = false;
+        twinInstanceLocks = new ConcurrentHashMap<>();
+        behaviourLockModes = new ConcurrentHashMap<>();
+        regentTwinInstances = new ConcurrentHashMap<>();
+        releaseListeners = new CopyOnWriteArrayList<>();
+        fencingTokenSequence = new AtomicLong(0L);
+        // Only used without a TwinLockService: seeded from the clock, so that tokens keep increasing across a restart
+        unservicedFencingTokenFloor = System.currentTimeMillis() << FENCING_TOKEN_SEED_SHIFT;
+        lockScheduler = null;
+        handOffTrampoline = new ThreadLocal<>();
+        lockTelemetry = new TwinLockTelemetry();
+        pathwayName = resolvePathwayName();
+    }
+
+    @PostConstruct
+    protected void initialise(){
+        getLockScheduler();
+    }
+
+    @PreDestroy
+    protected void shutdown(){
+        ScheduledExecutorService runningScheduler;
+        synchronized(this){
+            runningScheduler = lockScheduler;
+            lockScheduler = null;
+        }
+        if(runningScheduler != null){
+            runningScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the scheduler that purges expired leases and hands twin instances on from expired leases to waiting
+     * behaviours (started on first use, where the controller is not container managed)
+     */
+    protected ScheduledExecutorService getLockScheduler(){
+        ScheduledExecutorService currentScheduler = lockScheduler;
+        if(currentScheduler != null){
+            return(currentScheduler);
+        }
+        synchronized(this){
+            if(lockScheduler == null){
+                String schedulerName = pathwayName + "-LockScheduler";
+                lockScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread schedulerThread = new Thread(runnable, schedulerName);
+                    schedulerThread.setDaemon(true);
+                    return(schedulerThread);
+                });
+                lockScheduler.scheduleWithFixedDelay(() -> {
+                    try {
+                        purgeExpiredLeases();
+                    } catch (RuntimeException purgeError) {
+                        LOG.warn(".purgeExpiredLeases(): {} expired lease purge failed: {}", pathwayName, purgeError.getMessage());
+                    }
+                }, EXPIRED_LEASE_PURGE_INTERVAL, EXPIRED_LEASE_PURGE_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            return(lockScheduler);
+        }
     }
 
     // Abstract methods
@@ -44,34 +195,792 @@ public abstract class TwinPathwayControllerBase {
     abstract protected TwinResourceTypeEnum specifyTwinResourceType();
     abstract protected TwinRegentResourceTypeEnum specifyTwinRegentType();
 
+    /**
+     * @return the lease duration (in milliseconds) used by lockTwinInstance()
+     */
+    protected long specifyDefaultLeaseDuration(){
+        return(DEFAULT_LEASE_DURATION);
+    }
+
+    /**
+     * @return false if this controller should not be taken as the regent controller for other twin types whose regent
+     * is of its resource type (where several twin types share a resource type)
+     */
+    protected boolean specifyActsAsRegent(){
+        return(true);
+    }
+
+    public TwinResourceTypeEnum getTwinResourceType() {
+        return twinResourceType;
+    }
+
+    public TwinRegentResourceTypeEnum getTwinRegentType() {
+        return twinRegentType;
+    }
+
+    public boolean isActingAsRegent(){
+        return(specifyActsAsRegent());
+    }
+
+    /**
+     * @return the name of the twin type's controller (e.g. "PatientTwinPathwayController"), as used for its metrics
+     */
+    public String getPathwayName(){
+        return(pathwayName);
+    }
+
+    private String resolvePathwayName(){
+        String className = getClass().getSimpleName();
+        int proxySuffixIndex = className.indexOf('$');
+        return(proxySuffixIndex > 0 ? className.substring(0, proxySuffixIndex) : className);
+    }
+
+    /**
+     * @return true if this node holds the twin instance's lock state (always, if there is no TwinLockService)
+     */
+    public boolean isLocallyOwned(DigitalTwinIdentifier twinIdentifier){
+        return(lockService == null || lockService.isLocallyOwned(pathwayName, twinIdentifier));
+    }
+
+    /**
+     * @return the controller for this twin type's regent twin type, or null if the twin type is its own regent (i.e.
+     * its regent type is its own resource type) or the regent's controller is not deployed
+     */
+    public TwinPathwayControllerBase getRegentController(){
+        if(!regentControllerResolved){
+            regentController = resolveRegentController();
+            regentControllerResolved = true;
+        }
+        return(regentController);
+    }
+
+    /**
+     * Sets the lock service - needed only where the controllers are not CDI managed.
+     */
+    public void setLockService(TwinLockService lockService){
+        this.lockService = lockService;
+    }
+
+    /**
+     * Sets the regent twin type's controller - needed only where the controllers are not CDI managed.
+     */
+    public void setRegentController(TwinPathwayControllerBase regentController){
+        this.regentController = regentController;
+        this.regentControllerResolved = true;
+    }
+
+    private TwinPathwayControllerBase resolveRegentController(){
+        if(pathwayControllers == null || twinRegentType.name().equals(twinResourceType.name())){
+            return(null);
+        }
+        for(TwinPathwayControllerBase candidateController: pathwayControllers){
+            if(candidateController.isActingAsRegent() && candidateController.getTwinResourceType().name().equals(twinRegentType.name())){
+                return(candidateController);
+            }
+        }
+        LOG.warn(".resolveRegentController(): No controller deployed for regent type {}, regent intention locks will not be taken", twinRegentType);
+        return(null);
+    }
+
+    /**
+     * Records the regent twin instance that the (dependent) twin instance belongs to, so that locking the twin instance
+     * takes an intention lock on the regent.
+     */
+    public void registerRegentTwinInstance(DigitalTwinIdentifier twinIdentifier, DigitalTwinIdentifier regentIdentifier){
+        regentTwinInstances.put(twinIdentifier, regentIdentifier);
+    }
+
+    public void unregisterRegentTwinInstance(DigitalTwinIdentifier twinIdentifier){
+        regentTwinInstances.remove(twinIdentifier);
+    }
+
+    /**
+     * @return the regent twin instance the twin instance belongs to, or null if it is not known (or the twin type has
+     * no regent controller)
+     */
+    public DigitalTwinIdentifier getRegentTwinInstance(DigitalTwinIdentifier twinIdentifier){
+        if(getRegentController() == null){
+            return(null);
+        }
+        return(resolveRegentTwinInstance(twinIdentifier));
+    }
+
+    /**
+     * @return the regent twin instance the twin instance belongs to, or null if it is not known - by default, as
+     * recorded via registerRegentTwinInstance()
+     */
+    protected DigitalTwinIdentifier resolveRegentTwinInstance(DigitalTwinIdentifier twinIdentifier){
+        return(regentTwinInstances.get(twinIdentifier));
+    }
+
+    // Behaviour Lock Modes
+
+    /**
+     * Declares how the behaviour holds the twin instances it is active on. Behaviours that are never registered are
+     * EXCLUSIVE.
+     */
+    public void registerBehaviourLockMode(BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode){
+        behaviourLockModes.put(behaviourIdentifier, lockMode);
+    }
+
+    public TwinLockModeEnum getBehaviourLockMode(BehaviourIdentifier behaviourIdentifier){
+        return(behaviourLockModes.getOrDefault(behaviourIdentifier, TwinLockModeEnum.EXCLUSIVE));
+    }
+
     // Twin Instance Active Status
 
-    public void lockTwinInstance(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier){
-        if(twinInstanceActiveStatus.containsKey(twinIdentifier)){
-            return;
+    /**
+     * Atomically grants the behaviour a lease (in its registered lock mode) on the twin instance, provided that no
+     * conflicting unexpired lease is held on it and no behaviour is waiting for it. A behaviour already holding the
+     * twin instance EXCLUSIVE is refused as well - it should renewLease() instead.
+     *
+     * @return the lease - check isGranted()
+     */
+    public TwinLockLease tryLock(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, long leaseDuration, TimeUnit unit){
+        return(tryLock(twinIdentifier, behaviourIdentifier, getBehaviourLockMode(behaviourIdentifier), leaseDuration, unit));
+    }
+
+    /**
+     * As per tryLock(), but in the given lock mode rather than the behaviour's registered one (e.g. for an intention
+     * lock on a regent).
+     *
+     * @return the lease - check isGranted() (if the intention lock on the regent was refused, this is the regent's
+     * refused lease)
+     */
+    public TwinLockLease tryLock(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit){
+        DigitalTwinIdentifier regentIdentifier = getRegentTwinInstance(twinIdentifier);
+        if(regentIdentifier == null){
+            return(tryLockInstance(twinIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit));
         }
-        twinInstanceActiveStatus.put(twinIdentifier, behaviourIdentifier);
+        TwinPathwayControllerBase regentPathwayController = getRegentController();
+        TwinLockLease regentLease = regentPathwayController.tryLock(regentIdentifier, behaviourIdentifier, lockMode.getRegentIntentionMode(), leaseDuration, unit);
+        if(!regentLease.isGranted()){
+            return(regentLease);
+        }
+        TwinLockLease lease = tryLockInstance(twinIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit);
+        if(!lease.isGranted()){
+            regentPathwayController.unlock(regentLease);
+            return(lease);
+        }
+        return(lease.withRegentLease(regentLease));
     }
 
-    public void unlockTwinInstance(DigitalTwinIdentifier twinIdentifier){
-        if(twinInstanceActiveStatus.containsKey(twinIdentifier)){
-            twinInstanceActiveStatus.remove(twinIdentifier);
+    /**
+     * As per tryLock(), but locks the twin instance alone - without an intention lock on its regent.
+     */
+    public TwinLockLease tryLockInstance(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit){
+        if(!isLocallyOwned(twinIdentifier)){
+            return(lockService.tryLock(pathwayName, twinIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit));
+        }
+        if(getOwnershipSettleDelay(twinIdentifier) > 0){
+            lockTelemetry.leaseRefused(twinIdentifier);
+            return(TwinLockLease.refused(twinIdentifier, null));
+        }
+        getLockScheduler();
+        long now = System.nanoTime();
+        long expiryTime = now + unit.toNanos(leaseDuration);
+        TwinLockLease[] outcome = new TwinLockLease[1];
+        twinInstanceLocks.compute(twinIdentifier, (twin, lockEntry) -> {
+            if(lockEntry == null){
+                lockEntry = new TwinLockEntry(lockTelemetry);
+            }
+            if(lockEntry.canGrant(lockMode, now)){
+                outcome[0] = newLease(twin, behaviourIdentifier, lockMode, now, expiryTime);
+                lockEntry.grant(outcome[0]);
+                return(lockEntry);
+            }
+            outcome[0] = TwinLockLease.refused(twin, holderOf(lockEntry));
+            return(lockEntry.isUnused() ? null : lockEntry);
+        });
+        if(outcome[0].isGranted()){
+            lockTelemetry.leaseGranted(0L);
+        } else {
+            lockTelemetry.leaseRefused(twinIdentifier);
         }
+        return(outcome[0]);
     }
 
-    public boolean isTwinLocked(DigitalTwinIdentifier twinIdentifier){
-        if(twinInstanceActiveStatus.containsKey(twinIdentifier)){
-            return(true);
+    /**
+     * Locks the twin instance along with an intention lock on its regent twin instance (see TwinLockSet).
+     */
+    public TwinLockSet tryLockWithRegent(DigitalTwinIdentifier twinIdentifier, DigitalTwinIdentifier regentIdentifier, BehaviourIdentifier behaviourIdentifier, long leaseDuration, TimeUnit unit){
+        return(TwinLockSet.tryLockAll(Collections.singletonList(new TwinLockRequest(this, twinIdentifier, regentIdentifier)), behaviourIdentifier, leaseDuration, unit));
+    }
+
+    /**
+     * As per tryLock(), except that if the lease cannot be granted straight away, the behaviour joins the twin
+     * instance's waiters and is handed the lease (of the requested duration, from the moment it is handed over) as
+     * soon as it can be - as the twin instance is unlocked, or leases on it expire. The caller may give up waiting by
+     * cancelling the future (or via orTimeout()).
+     *
+     * A dependent twin instance is waited for after the intention lock on its regent.
+     *
+     * @return a future for the (granted) lease
+     */
+    public CompletableFuture<TwinLockLease> lockAsync(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, long leaseDuration, TimeUnit unit){
+        return(lockAsync(twinIdentifier, behaviourIdentifier, getBehaviourLockMode(behaviourIdentifier), leaseDuration, unit));
+    }
+
+    /**
+     * As per lockAsync(), but in the given lock mode rather than the behaviour's registered one.
+     */
+    public CompletableFuture<TwinLockLease> lockAsync(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit){
+        DigitalTwinIdentifier regentIdentifier = getRegentTwinInstance(twinIdentifier);
+        if(regentIdentifier == null){
+            return(lockInstanceAsync(twinIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit));
+        }
+        CompletableFuture<TwinLockLease> leaseFuture = new CompletableFuture<>();
+        lockWithRegentAsync(leaseFuture, twinIdentifier, regentIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit);
+        return(leaseFuture);
+    }
+
+    /**
+     * Waits for the intention lock on the regent, then for the twin instance - completing the future with the twin
+     * instance's lease (carrying the regent's), or releasing whatever was granted if the caller has given up.
+     */
+    private void lockWithRegentAsync(CompletableFuture<TwinLockLease> leaseFuture, DigitalTwinIdentifier twinIdentifier, DigitalTwinIdentifier regentIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit){
+        TwinPathwayControllerBase regentPathwayController = getRegentController();
+        CompletableFuture<TwinLockLease> regentLeaseFuture = regentPathwayController.lockAsync(regentIdentifier, behaviourIdentifier, lockMode.getRegentIntentionMode(), leaseDuration, unit);
+        leaseFuture.whenComplete((lease, failure) -> {
+            if(failure != null){
+                regentLeaseFuture.cancel(false);
+            }
+        });
+        regentLeaseFuture.whenComplete((regentLease, regentFailure) -> {
+            if(regentFailure != null){
+                leaseFuture.completeExceptionally(regentFailure);
+                return;
+            }
+            if(leaseFuture.isDone()){
+                regentPathwayController.unlock(regentLease);
+                return;
+            }
+            CompletableFuture<TwinLockLease> instanceLeaseFuture = lockInstanceAsync(twinIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit);
+            leaseFuture.whenComplete((lease, failure) -> {
+                if(failure != null){
+                    instanceLeaseFuture.cancel(false);
+                }
+            });
+            instanceLeaseFuture.whenComplete((instanceLease, instanceFailure) -> {
+                if(instanceFailure != null){
+                    regentPathwayController.unlock(regentLease);
+                    leaseFuture.completeExceptionally(instanceFailure);
+                    return;
+                }
+                // The intention lease has been running while the twin instance was waited for
+                TwinLockLease renewedRegentLease = regentPathwayController.renewLease(regentLease, leaseDuration, unit);
+                if(!renewedRegentLease.isGranted()){
+                    unlockInstance(instanceLease);
+                    if(!leaseFuture.isDone()){
+                        lockWithRegentAsync(leaseFuture, twinIdentifier, regentIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit);
+                    }
+                    return;
+                }
+                TwinLockLease lease = instanceLease.withRegentLease(renewedRegentLease);
+                if(!leaseFuture.complete(lease)){
+                    unlock(lease);
+                }
+            });
+        });
+    }
+
+    /**
+     * As per lockAsync(), but waits for the twin instance alone - without an intention lock on its regent.
+     */
+    public CompletableFuture<TwinLockLease> lockInstanceAsync(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit){
+        if(!isLocallyOwned(twinIdentifier)){
+            return(lockService.lockAsync(pathwayName, twinIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit));
+        }
+        long settleDelay = getOwnershipSettleDelay(twinIdentifier);
+        if(settleDelay > 0){
+            return(lockInstanceAsyncOnceSettled(twinIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit, settleDelay));
+        }
+        getLockScheduler();
+        long now = System.nanoTime();
+        long leaseDurationNanos = unit.toNanos(leaseDuration);
+        CompletableFuture<TwinLockLease> leaseFuture = new CompletableFuture<>();
+        TwinLockLease[] grantedLease = new TwinLockLease[1];
+        long[] nextExpiryTime = new long[1];
+        twinInstanceLocks.compute(twinIdentifier, (twin, lockEntry) -> {
+            if(lockEntry == null){
+                lockEntry = new TwinLockEntry(lockTelemetry);
+            }
+            if(lockEntry.canGrant(lockMode, now)){
+                grantedLease[0] = newLease(twin, behaviourIdentifier, lockMode, now, now + leaseDurationNanos);
+                lockEntry.grant(grantedLease[0]);
+            } else {
+                lockEntry.addWaiter(new TwinLockEntry.Waiter(behaviourIdentifier, lockMode, leaseDurationNanos, now, leaseFuture));
+                nextExpiryTime[0] = lockEntry.getEarliestExpiryTime(now);
+            }
+            return(lockEntry);
+        });
+        if(grantedLease[0] != null){
+            lockTelemetry.leaseGranted(0L);
+            leaseFuture.complete(grantedLease[0]);
         } else {
+            lockTelemetry.leaseAwaited(twinIdentifier);
+            scheduleExpiryHandOff(twinIdentifier, nextExpiryTime[0]);
+        }
+        return(leaseFuture);
+    }
+
+    /**
+     * Waits (on the lock scheduler) until this node may grant leases on the twin instance, before joining its waiters.
+     */
+    private CompletableFuture<TwinLockLease> lockInstanceAsyncOnceSettled(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit, long settleDelay){
+        CompletableFuture<TwinLockLease> leaseFuture = new CompletableFuture<>();
+        getLockScheduler().schedule(() -> {
+            if(leaseFuture.isDone()){
+                return;
+            }
+            CompletableFuture<TwinLockLease> settledLeaseFuture = lockInstanceAsync(twinIdentifier, behaviourIdentifier, lockMode, leaseDuration, unit);
+            leaseFuture.whenComplete((lease, failure) -> {
+                if(failure != null){
+                    settledLeaseFuture.cancel(false);
+                }
+            });
+            settledLeaseFuture.whenComplete((lease, failure) -> {
+                if(failure != null){
+                    leaseFuture.completeExceptionally(failure);
+                } else if(!leaseFuture.complete(lease)){
+                    unlockInstance(lease);
+                }
+            });
+        }, settleDelay, TimeUnit.NANOSECONDS);
+        return(leaseFuture);
+    }
+
+    /**
+     * Extends a lease (keeping its fencing token), provided that it is still held on the twin instance and has not
+     * expired.
+     *
+     * @return the renewed lease, or a refused lease if it (or its intention lock on the regent) had already been lost
+     */
+    public TwinLockLease renewLease(TwinLockLease lease, long leaseDuration, TimeUnit unit){
+        TwinLockLease renewedLease = renewInstanceLease(lease, leaseDuration, unit);
+        TwinLockLease regentLease = lease.getRegentLease();
+        if(!renewedLease.isGranted() || regentLease == null){
+            return(renewedLease);
+        }
+        TwinLockLease renewedRegentLease = getRegentController().renewLease(regentLease, leaseDuration, unit);
+        if(!renewedRegentLease.isGranted()){
+            // No longer covered on the regent, so the twin instance must be given up too
+            unlockInstance(renewedLease);
+            return(TwinLockLease.refused(lease.getTwinIdentifier(), renewedRegentLease.getBehaviourIdentifier()));
+        }
+        return(renewedLease.withRegentLease(renewedRegentLease));
+    }
+
+    /**
+     * As per renewLease(), but renews the lease on the twin instance alone.
+     */
+    public TwinLockLease renewInstanceLease(TwinLockLease lease, long leaseDuration, TimeUnit unit){
+        if(!isLocallyOwned(lease.getTwinIdentifier())){
+            return(lockService.renewLease(pathwayName, lease, leaseDuration, unit));
+        }
+        long now = System.nanoTime();
+        long expiryTime = now + unit.toNanos(leaseDuration);
+        TwinLockLease[] outcome = new TwinLockLease[1];
+        twinInstanceLocks.computeIfPresent(lease.getTwinIdentifier(), (twin, lockEntry) -> {
+            TwinLockLease currentLease = lockEntry.findLease(lease.getFencingToken());
+            if(currentLease != null && !currentLease.isExpired(now)){
+                outcome[0] = new TwinLockLease(twin, currentLease.getBehaviourIdentifier(), currentLease.getLockMode(), currentLease.getFencingToken(), currentLease.getGrantTime(), expiryTime);
+                lockEntry.replaceLease(currentLease.getFencingToken(), outcome[0]);
+            } else {
+                outcome[0] = TwinLockLease.refused(twin, holderOf(lockEntry));
+            }
+            return(lockEntry);
+        });
+        if(outcome[0] == null){
+            return(TwinLockLease.refused(lease.getTwinIdentifier(), null));
+        }
+        return(outcome[0]);
+    }
+
+    /**
+     * Releases the lease, provided that it is still held on the twin instance - handing the twin instance on to the
+     * waiting behaviour(s), if this was the last lease holding them up.
+     *
+     * Any intention lock the lease holds on the regent is released after it.
+     *
+     * @return false if the lease had already expired and been replaced (or removed)
+     */
+    public boolean unlock(TwinLockLease lease){
+        boolean released = unlockInstance(lease);
+        if(lease.getRegentLease() != null){
+            getRegentController().unlock(lease.getRegentLease());
+        }
+        return(released);
+    }
+
+    /**
+     * As per unlock(), but releases the lease on the twin instance alone.
+     */
+    public boolean unlockInstance(TwinLockLease lease){
+        if(!lease.isGranted()){
             return(false);
         }
+        if(!isLocallyOwned(lease.getTwinIdentifier())){
+            return(lockService.unlock(pathwayName, lease));
+        }
+        boolean[] released = new boolean[1];
+        List<LeaseHandOff> handOffs = new ArrayList<>();
+        twinInstanceLocks.computeIfPresent(lease.getTwinIdentifier(), (twin, lockEntry) -> {
+            TwinLockLease heldLease = lockEntry.findLease(lease.getFencingToken());
+            if(heldLease == null){
+                return(lockEntry);
+            }
+            long now = System.nanoTime();
+            lockEntry.replaceLease(heldLease.getFencingToken(), null);
+            lockTelemetry.leaseReleased(heldLease, now);
+            released[0] = true;
+            handOffToWaiters(twin, lockEntry, now, handOffs);
+            return(lockEntry.isUnused() ? null : lockEntry);
+        });
+        if(released[0]){
+            completeHandOffs(lease.getTwinIdentifier(), handOffs);
+        }
+        return(released[0]);
+    }
+
+    /**
+     * @return true if the behaviour was granted a lease (of the default duration) on the twin instance
+     */
+    public boolean lockTwinInstance(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier){
+        return(tryLock(twinIdentifier, behaviourIdentifier, specifyDefaultLeaseDuration(), TimeUnit.MILLISECONDS).isGranted());
+    }
+
+    /**
+     * Releases whatever leases are held on the twin instance, irrespective of who holds them - handing the twin
+     * instance on to the waiting behaviour(s), if there are any. Their intention locks on the regent are left to expire.
+     */
+    public void unlockTwinInstance(DigitalTwinIdentifier twinIdentifier){
+        if(!isLocallyOwned(twinIdentifier)){
+            lockService.unlockTwinInstance(pathwayName, twinIdentifier);
+            return;
+        }
+        boolean[] released = new boolean[1];
+        List<LeaseHandOff> handOffs = new ArrayList<>();
+        twinInstanceLocks.computeIfPresent(twinIdentifier, (twin, lockEntry) -> {
+            long now = System.nanoTime();
+            for(TwinLockLease heldLease: lockEntry.getLeases()){
+                lockTelemetry.leaseReleased(heldLease, now);
+            }
+            released[0] = lockEntry.getLeases().length > 0;
+            lockEntry.releaseAll();
+            handOffToWaiters(twin, lockEntry, now, handOffs);
+            return(lockEntry.isUnused() ? null : lockEntry);
+        });
+        if(released[0] || !handOffs.isEmpty()){
+            completeHandOffs(twinIdentifier, handOffs);
+        }
+    }
+
+    public boolean isTwinLocked(DigitalTwinIdentifier twinIdentifier){
+        if(!isLocallyOwned(twinIdentifier)){
+            return(lockService.isTwinLocked(pathwayName, twinIdentifier));
+        }
+        TwinLockEntry lockEntry = twinInstanceLocks.get(twinIdentifier);
+        boolean locked = lockEntry != null && lockEntry.isHeld(System.nanoTime());
+        lockTelemetry.lockedChecked(twinIdentifier, locked);
+        return(locked);
     }
 
+    /**
+     * @return the behaviour holding the twin instance (or, if it is held SHARED, one of them), or null if none
+     */
     public BehaviourIdentifier getTwinActiveBehaviour(DigitalTwinIdentifier twinIdentifier){
-        if(twinInstanceActiveStatus.containsKey(twinIdentifier)){
-            return(twinInstanceActiveStatus.get(twinIdentifier));
-        } else {
-            return(null);
+        List<BehaviourIdentifier> activeBehaviours = getTwinActiveBehaviours(twinIdentifier);
+        return(activeBehaviours.isEmpty() ? null : activeBehaviours.get(0));
+    }
+
+    public List<BehaviourIdentifier> getTwinActiveBehaviours(DigitalTwinIdentifier twinIdentifier){
+        List<BehaviourIdentifier> activeBehaviours = new ArrayList<>();
+        TwinLockEntry lockEntry = twinInstanceLocks.get(twinIdentifier);
+        if(lockEntry == null){
+            return(activeBehaviours);
+        }
+        long now = System.nanoTime();
+        for(TwinLockLease lease: lockEntry.getLeases()){
+            if(!lease.isExpired(now)){
+                activeBehaviours.add(lease.getBehaviourIdentifier());
+            }
+        }
+        return(activeBehaviours);
+    }
+
+    /**
+     * @return the number of behaviours waiting (via lockAsync()) for the twin instance
+     */
+    public int getWaitingBehaviourCount(DigitalTwinIdentifier twinIdentifier){
+        int[] waiterCount = new int[1];
+        twinInstanceLocks.computeIfPresent(twinIdentifier, (twin, lockEntry) -> {
+            waiterCount[0] = lockEntry.getWaiterCount();
+            return(lockEntry);
+        });
+        return(waiterCount[0]);
+    }
+
+    public void addTwinReleaseListener(TwinReleaseListener releaseListener){
+        releaseListeners.addIfAbsent(releaseListener);
+    }
+
+    public void removeTwinReleaseListener(TwinReleaseListener releaseListener){
+        releaseListeners.remove(releaseListener);
+    }
+
+    // Lock Telemetry
+
+    /**
+     * @return the number of leases granted (by tryLock() or lockAsync(), or handed to a waiting behaviour)
+     */
+    public long getLockGrantedCount(){
+        return(lockTelemetry.getGrantedCount());
+    }
+
+    /**
+     * @return the number of tryLock() calls refused because the twin instance was held (or waited for)
+     */
+    public long getLockRefusedCount(){
+        return(lockTelemetry.getRefusedCount());
+    }
+
+    /**
+     * @return the number of lockAsync() calls that had to wait for the twin instance
+     */
+    public long getLockWaitedCount(){
+        return(lockTelemetry.getWaitedCount());
+    }
+
+    public long getLockedCheckCount(){
+        return(lockTelemetry.getLockedCheckCount());
+    }
+
+    /**
+     * @return the number of isTwinLocked() calls that found the twin instance locked
+     */
+    public long getLockedCheckHitCount(){
+        return(lockTelemetry.getLockedCheckHitCount());
+    }
+
+    /**
+     * @return the number of leases that expired rather than being unlocked
+     */
+    public long getLeaseExpiryCount(){
+        return(lockTelemetry.getLeaseExpiryCount());
+    }
+
+    /**
+     * @return how long leases were held for (see TwinLockTelemetry for the bucket bounds)
+     */
+    public long[] getLockHoldTimeHistogram(){
+        return(lockTelemetry.getHoldTimeHistogram());
+    }
+
+    /**
+     * @return how long behaviours waited to be granted their leases (see TwinLockTelemetry for the bucket bounds)
+     */
+    public long[] getLockWaitTimeHistogram(){
+        return(lockTelemetry.getWaitTimeHistogram());
+    }
+
+    /**
+     * @return the upper bound (in microseconds) of the lock hold/wait time histogram bucket holding the given fraction
+     * (e.g. 0.99) of the times in the histogram
+     */
+    public static long getLockTimePercentile(long[] lockTimeHistogram, double fraction){
+        return(TwinLockTelemetry.percentileOf(lockTimeHistogram, fraction));
+    }
+
+    /**
+     * @return (up to) the given number of the twin instances most often found locked by someone else of late, hottest
+     * first, with their contention counts
+     */
+    public Map<DigitalTwinIdentifier, Long> getHottestTwinInstances(int limit){
+        return(lockTelemetry.getHottestTwinInstances(limit));
+    }
+
+    public void resetHottestTwinInstances(){
+        lockTelemetry.resetHottestTwinInstances();
+    }
+
+    private TwinLockLease newLease(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long grantTime, long expiryTime){
+        return(new TwinLockLease(twinIdentifier, behaviourIdentifier, lockMode, nextFencingToken(), grantTime, expiryTime));
+    }
+
+    /**
+     * @return the next token - above the TwinLockService's floor, which rises whenever twin instance ownership changes
+     */
+    private long nextFencingToken(){
+        long fencingTokenFloor = lockService == null ? unservicedFencingTokenFloor : lockService.getFencingTokenFloor();
+        return(fencingTokenSequence.updateAndGet(lastToken -> Math.max(lastToken, fencingTokenFloor) + 1));
+    }
+
+    /**
+     * @return how long (in nanoseconds) to hold off granting leases on the twin instance, as this node has only lately
+     * come to own it
+     */
+    private long getOwnershipSettleDelay(DigitalTwinIdentifier twinIdentifier){
+        return(lockService == null ? 0L : lockService.getOwnershipSettleDelay(pathwayName, twinIdentifier, TimeUnit.NANOSECONDS));
+    }
+
+    private static BehaviourIdentifier holderOf(TwinLockEntry lockEntry){
+        TwinLockLease[] leases = lockEntry.getLeases();
+        return(leases.length == 0 ? null : leases[0].getBehaviourIdentifier());
+    }
+
+    /**
+     * Grants leases to the waiting behaviours at the head of the queue, for as long as their lock modes are compatible
+     * with the holders (e.g. a single EXCLUSIVE waiter once the twin instance is free, or each SHARED waiter up to the
+     * next EXCLUSIVE one). Must be called within the map compute() for the twin instance.
+     */
+    private void handOffToWaiters(DigitalTwinIdentifier twinIdentifier, TwinLockEntry lockEntry, long now, List<LeaseHandOff> handOffs){
+        lockEntry.pruneExpired(now);
+        while(true){
+            TwinLockEntry.Waiter nextWaiter = lockEntry.peekWaiter();
+            if(nextWaiter == null || !lockEntry.isCompatible(nextWaiter.getLockMode())){
+                return;
+            }
+            lockEntry.pollWaiter();
+            TwinLockLease handedOffLease = newLease(twinIdentifier, nextWaiter.getBehaviourIdentifier(), nextWaiter.getLockMode(), now, now + nextWaiter.getLeaseDuration());
+            lockEntry.grant(handedOffLease);
+            handOffs.add(new LeaseHandOff(nextWaiter, handedOffLease));
+        }
+    }
+
+    /**
+     * Completes the hand-offs (outside of the map update, as the waiters' continuations run on this thread) - or, if
+     * nobody was waiting, tells the release listeners.
+     *
+     * A continuation will often unlock in turn, so hand-offs made while one is being completed on this thread are
+     * queued and completed by the outermost call, rather than recursing once per waiter.
+     */
+    private void completeHandOffs(DigitalTwinIdentifier twinIdentifier, List<LeaseHandOff> handOffs){
+        ArrayDeque<Runnable> pendingHandOffs = handOffTrampoline.get();
+        if(pendingHandOffs != null){
+            pendingHandOffs.add(() -> runHandOffs(twinIdentifier, handOffs));
+            return;
+        }
+        pendingHandOffs = new ArrayDeque<>();
+        handOffTrampoline.set(pendingHandOffs);
+        try {
+            runHandOffs(twinIdentifier, handOffs);
+            Runnable nextHandOff;
+            while((nextHandOff = pendingHandOffs.poll()) != null){
+                nextHandOff.run();
+            }
+        } finally {
+            handOffTrampoline.remove();
+        }
+    }
+
+    private void runHandOffs(DigitalTwinIdentifier twinIdentifier, List<LeaseHandOff> handOffs){
+        if(handOffs.isEmpty()){
+            for(TwinReleaseListener releaseListener: releaseListeners){
+                try {
+                    releaseListener.twinInstanceReleased(twinIdentifier);
+                } catch (RuntimeException listenerError) {
+                    LOG.warn(".runHandOffs(): Twin release listener failed for {}: {}", twinIdentifier, listenerError.getMessage());
+                }
+            }
+            return;
+        }
+        long earliestExpiryTime = Long.MAX_VALUE;
+        for(LeaseHandOff handOff: handOffs){
+            if(!handOff.waiter.getLeaseFuture().complete(handOff.lease)){
+                // The waiter gave up in the meantime, so pass its share of the twin instance on again
+                unlockInstance(handOff.lease);
+                continue;
+            }
+            lockTelemetry.leaseGranted(handOff.lease.getGrantTime() - handOff.waiter.getWaitStartTime());
+            if(earliestExpiryTime == Long.MAX_VALUE || handOff.lease.getExpiryTime() - earliestExpiryTime < 0){
+                earliestExpiryTime = handOff.lease.getExpiryTime();
+            }
+        }
+        if(earliestExpiryTime != Long.MAX_VALUE && getWaitingBehaviourCount(twinIdentifier) > 0){
+            scheduleExpiryHandOff(twinIdentifier, earliestExpiryTime);
+        }
+    }
+
+    /**
+     * Arranges for the twin instance to be handed on, should leases on it expire while behaviours are waiting.
+     */
+    private void scheduleExpiryHandOff(DigitalTwinIdentifier twinIdentifier, long expiryTime){
+        long delay = Math.max(expiryTime - System.nanoTime(), 0L);
+        try {
+            getLockScheduler().schedule(() -> {
+                try {
+                    handOffIfExpired(twinIdentifier);
+                } catch (RuntimeException handOffError) {
+                    LOG.warn(".handOffIfExpired(): Expiry hand-off failed for {}: {}", twinIdentifier, handOffError.getMessage());
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException shutdownError) {
+            LOG.debug(".scheduleExpiryHandOff(): {} is shutting down, expiry hand-off for {} dropped", pathwayName, twinIdentifier);
+        }
+    }
+
+    private void handOffIfExpired(DigitalTwinIdentifier twinIdentifier){
+        long now = System.nanoTime();
+        List<LeaseHandOff> handOffs = new ArrayList<>();
+        long[] nextExpiryTime = new long[1];
+        boolean[] stillWaiting = new boolean[1];
+        twinInstanceLocks.computeIfPresent(twinIdentifier, (twin, lockEntry) -> {
+            if(lockEntry.peekWaiter() == null){
+                return(lockEntry.isUnused() ? null : lockEntry);
+            }
+            handOffToWaiters(twin, lockEntry, now, handOffs);
+            if(handOffs.isEmpty() && lockEntry.peekWaiter() != null){
+                // Renewed (or handed on) since the check was scheduled
+                stillWaiting[0] = true;
+                nextExpiryTime[0] = lockEntry.getEarliestExpiryTime(now);
+            }
+            return(lockEntry.isUnused() ? null : lockEntry);
+        });
+        if(!handOffs.isEmpty()){
+            LOG.debug(".handOffIfExpired(): Lease(s) on {} expired, handed to {} waiting behaviour(s)", twinIdentifier, handOffs.size());
+            completeHandOffs(twinIdentifier, handOffs);
+        } else if(stillWaiting[0]){
+            scheduleExpiryHandOff(twinIdentifier, nextExpiryTime[0]);
+        }
+    }
+
+    /**
+     * Drops the twin instances whose leases have all expired (and that nobody is waiting for) - run on the lock
+     * scheduler, so the scan never holds up a behaviour that is locking.
+     *
+     * @return the number of twin instances purged
+     */
+    int purgeExpiredLeases(){
+        long now = System.nanoTime();
+        int purgedCount = 0;
+        List<DigitalTwinIdentifier> expiredTwins = new ArrayList<>();
+        for(TwinLockEntry lockEntry: twinInstanceLocks.values()){
+            for(TwinLockLease lease: lockEntry.getLeases()){
+                if(lease.isExpired(now)){
+                    expiredTwins.add(lease.getTwinIdentifier());
+                    break;
+                }
+            }
+        }
+        for(DigitalTwinIdentifier expiredTwin: expiredTwins){
+            boolean[] purged = new boolean[1];
+            twinInstanceLocks.computeIfPresent(expiredTwin, (twin, lockEntry) -> {
+                // Twins with waiters are left to their scheduled hand-off
+                if(lockEntry.peekWaiter() != null){
+                    return(lockEntry);
+                }
+                lockEntry.pruneExpired(now);
+                purged[0] = lockEntry.isUnused();
+                return(purged[0] ? null : lockEntry);
+            });
+            if(purged[0]){
+                purgedCount += 1;
+            }
+        }
+        if(purgedCount > 0){
+            LOG.debug(".purgeExpiredLeases(): Purged {} expired twin instance leases", purgedCount);
         }
+        return(purgedCount);
     }
 }
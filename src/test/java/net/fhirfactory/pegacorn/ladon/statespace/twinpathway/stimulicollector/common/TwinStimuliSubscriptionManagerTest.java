@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.stimulicollector.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.ExplicitStimulus2TwinInstanceMap;
+import net.fhirfactory.pegacorn.ladon.model.stimuli.Stimulus;
+import net.fhirfactory.pegacorn.ladon.model.stimuli.StimulusType;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.BehaviourCentricInclusiveFilterRulesInterface;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TwinStimuliSubscriptionManagerTest {
+    private final TopicToken firstTopic = topic("firstTopic");
+    private final TopicToken sharedTopic = topic("sharedTopic");
+    private final TopicToken lastTopic = topic("lastTopic");
+    private final TopicToken otherTopic = topic("otherTopic");
+
+    private TwinStimuliSubscriptionManager subscriptionManager;
+    private RecordingStimuliCollector stimuliCollector;
+
+    /**
+     * Records each batch of topic changes pushed to it, rather than subscribing to TopicIM.
+     */
+    static class RecordingStimuliCollector extends TwinStimuliCollectorBase {
+        private static final Logger LOG = LoggerFactory.getLogger(RecordingStimuliCollector.class);
+
+        private final List<List<TopicToken>> addedBatches = new ArrayList<>();
+        private final List<List<TopicToken>> removedBatches = new ArrayList<>();
+        private int failuresToCome;
+
+        @Override
+        protected Logger getLogger() {
+            return (LOG);
+        }
+
+        @Override
+        protected String specifyTwinTypeName() {
+            return ("TestTwin");
+        }
+
+        @Override
+        protected String specifyTwinTypeVersion() {
+            return (null);
+        }
+
+        @Override
+        public void configure() throws Exception {
+
+        }
+
+        @Override
+        public void addTopicsToSubscription(Collection<TopicToken> newTopics) {
+            if (failuresToCome > 0) {
+                failuresToCome -= 1;
+                throw new IllegalStateException("topic server unavailable");
+            }
+            addedBatches.add(new ArrayList<>(newTopics));
+        }
+
+        @Override
+        public void removeTopicsFromSubscription(Collection<TopicToken> oldTopics) {
+            removedBatches.add(new ArrayList<>(oldTopics));
+        }
+    }
+
+    static class TestBehaviour implements BehaviourCentricInclusiveFilterRulesInterface {
+        @Override
+        public List<StimulusType> positiveStaticFilterStimulus() {
+            return (Collections.emptyList());
+        }
+
+        @Override
+        public List<ExplicitStimulus2TwinInstanceMap> positiveStaticFilterTwinInstance2StimulusMap() {
+            return (Collections.emptyList());
+        }
+
+        @Override
+        public List<DigitalTwinIdentifier> positiveDynamicFilterTwinInstancesForStimulus(Stimulus stimulusInstant) {
+            return (Collections.emptyList());
+        }
+    }
+
+    private static TopicToken topic(String topicName) {
+        TopicToken topic = new TopicToken();
+        topic.addDescriminator("Topic", topicName);
+        return (topic);
+    }
+
+    @BeforeEach
+    public void bindCollector() {
+        subscriptionManager = new TwinStimuliSubscriptionManager("TestTwin");
+        stimuliCollector = new RecordingStimuliCollector();
+        subscriptionManager.bindStimuliCollector(stimuliCollector);
+    }
+
+    @Test
+    public void topicsSharedByBehavioursAreReferenceCounted() {
+        TestBehaviour firstBehaviour = new TestBehaviour();
+        TestBehaviour secondBehaviour = new TestBehaviour();
+        subscriptionManager.updateBehaviourTopics(firstBehaviour, Arrays.asList(firstTopic, sharedTopic));
+        subscriptionManager.updateBehaviourTopics(secondBehaviour, Arrays.asList(sharedTopic, lastTopic));
+        assertEquals(2, subscriptionManager.getTopicReferenceCount(sharedTopic));
+        assertEquals(1, subscriptionManager.getTopicReferenceCount(firstTopic));
+        subscriptionManager.flush();
+
+        subscriptionManager.removeBehaviourTopics(firstBehaviour);
+        assertEquals(1, subscriptionManager.getTopicReferenceCount(sharedTopic));
+        assertEquals(0, subscriptionManager.getTopicReferenceCount(firstTopic));
+        assertEquals(new HashSet<>(Arrays.asList(sharedTopic, lastTopic)), subscriptionManager.getRequiredTopics());
+        assertEquals(1, subscriptionManager.flush());
+        assertEquals(Collections.singletonList(Collections.singletonList(firstTopic)), stimuliCollector.removedBatches, "only the topic no behaviour still needs should be unsubscribed");
+    }
+
+    @Test
+    public void topicAddedAndRemovedBeforeTheFlushIsNeverPushed() {
+        TestBehaviour behaviour = new TestBehaviour();
+        subscriptionManager.updateBehaviourTopics(behaviour, Collections.singletonList(firstTopic));
+        subscriptionManager.removeBehaviourTopics(behaviour);
+        assertEquals(0, subscriptionManager.getPendingChangeCount());
+        assertEquals(0, subscriptionManager.flush());
+
+        // ...and likewise a subscribed topic that is released and then required again
+        subscriptionManager.updateBehaviourTopics(behaviour, Collections.singletonList(firstTopic));
+        subscriptionManager.flush();
+        subscriptionManager.removeBehaviourTopics(behaviour);
+        subscriptionManager.updateBehaviourTopics(new TestBehaviour(), Collections.singletonList(firstTopic));
+        assertEquals(0, subscriptionManager.flush());
+        assertEquals(1, stimuliCollector.addedBatches.size());
+        assertTrue(stimuliCollector.removedBatches.isEmpty());
+    }
+
+    @Test
+    public void changesTheCollectorFailedToTakeAreRetriedOnTheNextFlush() {
+        stimuliCollector.failuresToCome = 1;
+        subscriptionManager.updateBehaviourTopics(new TestBehaviour(), Arrays.asList(firstTopic, lastTopic));
+        assertEquals(0, subscriptionManager.flush());
+        assertEquals(2, subscriptionManager.getPendingChangeCount());
+        assertTrue(stimuliCollector.addedBatches.isEmpty());
+
+        assertEquals(2, subscriptionManager.flush());
+        assertEquals(0, subscriptionManager.getPendingChangeCount());
+        assertEquals(Collections.singletonList(Arrays.asList(firstTopic, lastTopic)), stimuliCollector.addedBatches);
+    }
+
+    @Test
+    public void onlyTheChangedTopicsArePushedAsOneBatch() {
+        TestBehaviour firstBehaviour = new TestBehaviour();
+        subscriptionManager.updateBehaviourTopics(firstBehaviour, Arrays.asList(firstTopic, sharedTopic));
+        subscriptionManager.flush();
+        stimuliCollector.addedBatches.clear();
+
+        subscriptionManager.updateBehaviourTopics(firstBehaviour, Arrays.asList(sharedTopic, lastTopic));
+        subscriptionManager.updateBehaviourTopics(new TestBehaviour(), Arrays.asList(sharedTopic, otherTopic));
+        assertEquals(3, subscriptionManager.flush());
+        assertEquals(Collections.singletonList(Arrays.asList(lastTopic, otherTopic)), stimuliCollector.addedBatches);
+        assertEquals(Collections.singletonList(Collections.singletonList(firstTopic)), stimuliCollector.removedBatches);
+    }
+
+    @Test
+    public void changesMadeBeforeACollectorIsBoundArePushedWhenItIs() {
+        TwinStimuliSubscriptionManager unboundManager = new TwinStimuliSubscriptionManager("TestTwin");
+        unboundManager.updateBehaviourTopics(new TestBehaviour(), Collections.singletonList(firstTopic));
+        assertEquals(0, unboundManager.flush());
+
+        RecordingStimuliCollector laterCollector = new RecordingStimuliCollector();
+        unboundManager.bindStimuliCollector(laterCollector);
+        assertEquals(Collections.singletonList(Collections.singletonList(firstTopic)), laterCollector.addedBatches);
+        assertEquals(0, unboundManager.getPendingChangeCount());
+    }
+}
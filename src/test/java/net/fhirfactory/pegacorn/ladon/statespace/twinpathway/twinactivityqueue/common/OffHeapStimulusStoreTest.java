@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OffHeapStimulusStoreTest {
+    private static final int SLAB_SIZE = 64 * 1024;
+
+    private static byte[] encodedStimulus(int length, int seed) {
+        byte[] encodedStimulus = new byte[length];
+        Arrays.fill(encodedStimulus, (byte) seed);
+        return (encodedStimulus);
+    }
+
+    @Test
+    public void storedStimuliLoadBackIntact() {
+        OffHeapStimulusStore store = new OffHeapStimulusStore(SLAB_SIZE, Long.MAX_VALUE);
+        OffHeapStimulusStore.Handle small = store.store(encodedStimulus(100, 1));
+        OffHeapStimulusStore.Handle oversized = store.store(encodedStimulus(SLAB_SIZE * 2, 2));
+        assertTrue(Arrays.equals(encodedStimulus(100, 1), store.load(small)));
+        assertTrue(Arrays.equals(encodedStimulus(SLAB_SIZE * 2, 2), store.load(oversized)));
+        assertEquals(100L + SLAB_SIZE * 2, store.getLiveBytes());
+        store.free(oversized);
+        store.free(small);
+        assertEquals(0L, store.getLiveBytes());
+        assertEquals(SLAB_SIZE, store.getAllocatedBytes(), "one empty slab is kept for the next burst");
+    }
+
+    @Test
+    public void aLongLivedStimulusDoesNotPinFreedMemory() {
+        OffHeapStimulusStore store = new OffHeapStimulusStore(SLAB_SIZE, Long.MAX_VALUE);
+        OffHeapStimulusStore.Handle longLived = store.store(encodedStimulus(500, 7));
+        ArrayDeque<OffHeapStimulusStore.Handle> backlog = new ArrayDeque<>();
+        for (int i = 0; i < 100000; i++) {
+            backlog.add(store.store(encodedStimulus(300 + i % 200, i)));
+            if (backlog.size() > 200) {
+                store.free(backlog.poll());
+            }
+        }
+        // 200 stimuli of up to 512 bytes fit in two slabs; an append-only chunk pinned by the first stimulus would not
+        assertTrue(store.getAllocatedBytes() <= 3L * SLAB_SIZE, "allocated " + store.getAllocatedBytes());
+        assertTrue(Arrays.equals(encodedStimulus(500, 7), store.load(longLived)));
+    }
+
+    @Test
+    public void storeFallsBackOnceTheBudgetIsReached() {
+        OffHeapStimulusStore store = new OffHeapStimulusStore(SLAB_SIZE, 2L * SLAB_SIZE);
+        int slotsPerSlab = SLAB_SIZE / 1024;
+        for (int i = 0; i < 2 * slotsPerSlab; i++) {
+            assertNotNull(store.store(encodedStimulus(1000, i)));
+        }
+        assertNull(store.store(encodedStimulus(1000, 0)));
+        assertNull(store.store(encodedStimulus(3 * SLAB_SIZE, 0)));
+        assertEquals(2L, store.getFallbackCount());
+        assertEquals(2L * SLAB_SIZE, store.getAllocatedBytes());
+        // Another size class still needs a slab of its own
+        assertNull(store.store(encodedStimulus(100, 0)));
+    }
+
+    @Test
+    public void activityQueueHoldsStimuliOnHeapOnceTheBudgetIsReached() {
+        TwinInstanceStimulusQueueTest.TestActivityQueue activityQueue = new TwinInstanceStimulusQueueTest.TestActivityQueue() {
+            @Override
+            protected TwinInstanceQueueStorageModeEnum specifyStorageMode() {
+                return (TwinInstanceQueueStorageModeEnum.OFF_HEAP);
+            }
+
+            @Override
+            protected int specifyOffHeapChunkSize() {
+                return (4096);
+            }
+
+            @Override
+            protected long specifyOffHeapMemoryBudget() {
+                return (4096);
+            }
+        };
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        for (int i = 0; i < 500; i++) {
+            activityQueue.addStimulus2Queue(twin, TwinInstanceStimulusQueueTest.newStimulus("s" + i));
+        }
+        assertTrue(activityQueue.getOffHeapFallbackCount() > 0);
+        assertEquals(500, activityQueue.drainStimuli(twin, 1000).size());
+        assertEquals(0L, activityQueue.getOffHeapBytesInUse());
+    }
+}
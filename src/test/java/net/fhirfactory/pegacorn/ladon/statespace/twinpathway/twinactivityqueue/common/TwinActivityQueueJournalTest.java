@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TwinActivityQueueJournalTest {
+    private static final int SEGMENT_SIZE = 1024;
+    private static final byte[] TWIN_IDENTIFIER = new byte[4];
+    private static final byte[] STIMULUS = new byte[100];
+
+    @TempDir
+    Path journalDirectory;
+
+    private long segmentFileCount() throws IOException {
+        try (Stream<Path> segmentFiles = Files.list(journalDirectory)) {
+            return (segmentFiles.count());
+        }
+    }
+
+    @Test
+    public void acknowledgementsInLaterSegmentsSurviveWhileAnEarlierSegmentIsRetained() throws IOException {
+        TwinActivityQueueJournal journal = new TwinActivityQueueJournal(journalDirectory, SEGMENT_SIZE);
+        journal.open();
+        long pinnedSequence = journal.appendEnqueue(TWIN_IDENTIFIER, STIMULUS);
+        // Each ACK lands after the next ENQUEUE, so the ACKs for one segment's stimuli spill into the next segment,
+        // whose own stimuli are all acknowledged too
+        long previousSequence = journal.appendEnqueue(TWIN_IDENTIFIER, STIMULUS);
+        for (int i = 0; i < 40; i++) {
+            long journalSequence = journal.appendEnqueue(TWIN_IDENTIFIER, STIMULUS);
+            journal.acknowledge(previousSequence);
+            previousSequence = journalSequence;
+        }
+        journal.acknowledge(previousSequence);
+        journal.close();
+
+        List<TwinActivityQueueJournal.UnacknowledgedRecord> recoveredRecords = new TwinActivityQueueJournal(journalDirectory, SEGMENT_SIZE).open();
+        assertEquals(1, recoveredRecords.size());
+        assertEquals(pinnedSequence, recoveredRecords.get(0).getJournalSequence());
+    }
+
+    @Test
+    public void acknowledgedSegmentsAreDeletedOnceTheOldestIsAcknowledged() throws IOException {
+        TwinActivityQueueJournal journal = new TwinActivityQueueJournal(journalDirectory, SEGMENT_SIZE);
+        journal.open();
+        long pinnedSequence = journal.appendEnqueue(TWIN_IDENTIFIER, STIMULUS);
+        for (int i = 0; i < 40; i++) {
+            journal.acknowledge(journal.appendEnqueue(TWIN_IDENTIFIER, STIMULUS));
+        }
+        long retainedCount = segmentFileCount();
+        assertTrue(retainedCount > 2, "every segment is retained behind the oldest unacknowledged stimulus");
+        journal.acknowledge(pinnedSequence);
+        assertEquals(1L, segmentFileCount(), "only the segment being written to remains");
+        journal.close();
+        assertEquals(0, new TwinActivityQueueJournal(journalDirectory, SEGMENT_SIZE).open().size());
+    }
+
+    @Test
+    public void activityQueueReplaysUnacknowledgedStimuliInOrderAfterSegmentRolls() throws IOException {
+        DigitalTwinIdentifier drainedTwin = new DigitalTwinIdentifier();
+        DigitalTwinIdentifier pendingTwin = new DigitalTwinIdentifier();
+        JournaledActivityQueue activityQueue = new JournaledActivityQueue(journalDirectory);
+        activityQueue.initialise();
+        for (int i = 0; i < 200; i++) {
+            activityQueue.addStimulus2Queue(i % 2 == 0 ? drainedTwin : pendingTwin, TwinInstanceStimulusQueueTest.newStimulus("s" + i));
+        }
+        assertEquals(100, activityQueue.drainStimuli(drainedTwin, 1000).size());
+        activityQueue.shutdown();
+
+        JournaledActivityQueue restartedQueue = new JournaledActivityQueue(journalDirectory);
+        restartedQueue.initialise();
+        // Twin identifiers are decoded afresh, so the replayed stimuli are found via the ready set
+        assertEquals(100L, restartedQueue.getPendingStimulusCount());
+        List<StimulusPackage> replayedStimuli = new ArrayList<>();
+        DigitalTwinIdentifier replayedTwin;
+        while ((replayedTwin = restartedQueue.takeReadyTwinNow()) != null) {
+            replayedStimuli.addAll(restartedQueue.drainStimuli(replayedTwin, 1000));
+            restartedQueue.releaseReadyTwin(replayedTwin);
+        }
+        assertEquals(100, replayedStimuli.size());
+        for (int i = 0; i < replayedStimuli.size(); i++) {
+            assertEquals("s" + (2 * i + 1), replayedStimuli.get(i).getId().getId());
+        }
+        restartedQueue.shutdown();
+    }
+
+    static class JournaledActivityQueue extends TwinInstanceStimulusQueueTest.TestActivityQueue {
+        private final Path journalDirectory;
+
+        JournaledActivityQueue(Path journalDirectory) {
+            this.journalDirectory = journalDirectory;
+        }
+
+        @Override
+        protected Path specifyJournalDirectory() {
+            return (journalDirectory);
+        }
+
+        @Override
+        protected int specifyJournalSegmentSize() {
+            return (4096);
+        }
+
+        DigitalTwinIdentifier takeReadyTwinNow() {
+            try {
+                return (pollReadyTwin(0, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException interrupted) {
+                throw new IllegalStateException(interrupted);
+            }
+        }
+    }
+}
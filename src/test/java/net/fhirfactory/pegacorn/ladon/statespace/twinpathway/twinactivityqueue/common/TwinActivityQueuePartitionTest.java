@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TwinActivityQueuePartitionTest {
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    private PartitionedActivityQueue activityQueue;
+
+    static class PartitionedActivityQueue extends TwinInstanceStimulusQueueTest.TestActivityQueue {
+        private final List<StimulusPackage> deadLetteredStimuli = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        protected int specifyPartitionCount() {
+            return (2);
+        }
+
+        @Override
+        protected int specifyMaxDeliveryAttempts() {
+            return (3);
+        }
+
+        @Override
+        protected long specifyRedeliveryDelay() {
+            return (10L);
+        }
+
+        @Override
+        protected void deadLetterStimuli(DigitalTwinIdentifier twinInstanceIdentifier, List<StimulusPackage> stimuli, RuntimeException lastFailure) {
+            deadLetteredStimuli.addAll(stimuli);
+        }
+    }
+
+    static class SinglePartitionActivityQueue extends PartitionedActivityQueue {
+        @Override
+        protected int specifyPartitionCount() {
+            return (1);
+        }
+    }
+
+    @AfterEach
+    public void stopPartitions() {
+        if (activityQueue != null) {
+            activityQueue.shutdown();
+        }
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void failedDeliveriesAreRedeliveredInOrder() throws InterruptedException {
+        activityQueue = new PartitionedActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        AtomicInteger failuresToGo = new AtomicInteger(2);
+        List<String> handledStimuli = Collections.synchronizedList(new ArrayList<>());
+        activityQueue.startPartitions((twinInstanceIdentifier, stimuli) -> {
+            if (failuresToGo.getAndDecrement() > 0) {
+                throw new IllegalStateException("behaviour unavailable");
+            }
+            for (StimulusPackage stimulus : stimuli) {
+                handledStimuli.add(stimulus.getId().getId());
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            assertEquals(StimulusQueueingOutcomeEnum.QUEUED, activityQueue.addStimulus2Queue(twin, TwinInstanceStimulusQueueTest.newStimulus("s" + i)));
+        }
+        awaitCondition(() -> handledStimuli.size() == 10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("s" + i, handledStimuli.get(i));
+        }
+        assertTrue(activityQueue.getRedeliveredStimulusCount() > 0);
+        assertEquals(0L, activityQueue.getDeadLetteredStimulusCount());
+        awaitCondition(() -> activityQueue.getPendingStimulusCount() == 0L && activityQueue.getActiveTwinCount() == 0);
+    }
+
+    @Test
+    public void deferredTwinSitsOutWithoutHoldingUpItsPartition() throws InterruptedException {
+        activityQueue = new SinglePartitionActivityQueue();
+        DigitalTwinIdentifier lockedTwin = new DigitalTwinIdentifier();
+        DigitalTwinIdentifier otherTwin = new DigitalTwinIdentifier();
+        CompletableFuture<Void> leaseHandedOver = new CompletableFuture<>();
+        AtomicBoolean deferred = new AtomicBoolean();
+        List<String> handledStimuli = Collections.synchronizedList(new ArrayList<>());
+        activityQueue.startPartitions((twinInstanceIdentifier, stimuli) -> {
+            for (int i = 0; i < stimuli.size(); i++) {
+                if (stimuli.get(i).getId().getId().equals("locked-1") && deferred.compareAndSet(false, true)) {
+                    throw new StimulusDeliveryDeferredException(i, leaseHandedOver);
+                }
+                handledStimuli.add(stimuli.get(i).getId().getId());
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            activityQueue.addStimulus2Queue(lockedTwin, TwinInstanceStimulusQueueTest.newStimulus("locked-" + i));
+        }
+        awaitCondition(deferred::get);
+        // The partition's only thread carries on with the other twin instance while the locked one waits
+        for (int i = 0; i < 3; i++) {
+            activityQueue.addStimulus2Queue(otherTwin, TwinInstanceStimulusQueueTest.newStimulus("other-" + i));
+        }
+        awaitCondition(() -> handledStimuli.size() == 4);
+        assertEquals(Arrays.asList("locked-0", "other-0", "other-1", "other-2"), new ArrayList<>(handledStimuli));
+        leaseHandedOver.complete(null);
+        awaitCondition(() -> handledStimuli.size() == 6);
+        assertEquals(Arrays.asList("locked-1", "locked-2"), new ArrayList<>(handledStimuli.subList(4, 6)));
+        assertEquals(0L, activityQueue.getRedeliveredStimulusCount(), "a deferral is not a failed delivery");
+        awaitCondition(() -> activityQueue.getPendingStimulusCount() == 0L && activityQueue.getActiveTwinCount() == 0);
+    }
+
+    private static boolean partitionThreadsAre(Thread.State state) {
+        int partitionThreadCount = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().contains("-ActivityQueuePartition-") && thread.isAlive()) {
+                partitionThreadCount += 1;
+                if (thread.getState() != state) {
+                    return (false);
+                }
+            }
+        }
+        return (partitionThreadCount > 0);
+    }
+
+    @Test
+    public void idlePartitionsParkUntilAStimulusArrives() throws InterruptedException {
+        activityQueue = new PartitionedActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        AtomicInteger handledCount = new AtomicInteger();
+        activityQueue.startPartitions((twinInstanceIdentifier, stimuli) -> handledCount.addAndGet(stimuli.size()));
+        // Parked with no timeout, rather than polling the ring
+        awaitCondition(() -> partitionThreadsAre(Thread.State.WAITING));
+        activityQueue.addStimulus2Queue(twin, TwinInstanceStimulusQueueTest.newStimulus("s1"));
+        awaitCondition(() -> handledCount.get() == 1);
+        awaitCondition(() -> partitionThreadsAre(Thread.State.WAITING));
+        activityQueue.addStimulus2Queue(twin, TwinInstanceStimulusQueueTest.newStimulus("s2"));
+        awaitCondition(() -> handledCount.get() == 2);
+    }
+
+    @Test
+    public void stimuliThatKeepFailingAreDeadLetteredWithoutHoldingUpOtherTwins() throws InterruptedException {
+        activityQueue = new PartitionedActivityQueue();
+        DigitalTwinIdentifier failingTwin = new DigitalTwinIdentifier();
+        DigitalTwinIdentifier healthyTwin = new DigitalTwinIdentifier();
+        AtomicInteger handledCount = new AtomicInteger();
+        activityQueue.startPartitions((twinInstanceIdentifier, stimuli) -> {
+            if (twinInstanceIdentifier == failingTwin) {
+                throw new IllegalStateException("poison stimulus");
+            }
+            handledCount.addAndGet(stimuli.size());
+        });
+        activityQueue.addStimulus2Queue(failingTwin, TwinInstanceStimulusQueueTest.newStimulus("poison"));
+        for (int i = 0; i < 100; i++) {
+            activityQueue.addStimulus2Queue(healthyTwin, TwinInstanceStimulusQueueTest.newStimulus("s" + i));
+        }
+        awaitCondition(() -> handledCount.get() == 100);
+        awaitCondition(() -> activityQueue.getDeadLetteredStimulusCount() == 1L);
+        assertEquals("poison", activityQueue.deadLetteredStimuli.get(0).getId().getId());
+        assertEquals(2L, activityQueue.getRedeliveredStimulusCount());
+        awaitCondition(() -> activityQueue.getPendingStimulusCount() == 0L);
+    }
+}
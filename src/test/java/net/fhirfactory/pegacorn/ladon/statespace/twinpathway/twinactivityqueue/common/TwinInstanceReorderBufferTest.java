@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TwinInstanceReorderBufferTest {
+    private static final long EPOCH = 1600000000000L;
+
+    static class ReorderingActivityQueue extends TwinInstanceStimulusQueueTest.TestActivityQueue {
+        @Override
+        protected int specifyTwinInstanceQueueCapacity() {
+            return (3);
+        }
+
+        @Override
+        protected long specifyReorderLatenessWindow() {
+            return (60000L);
+        }
+    }
+
+    static class DroppingReorderingActivityQueue extends ReorderingActivityQueue {
+        @Override
+        protected TwinInstanceQueueOverflowPolicyEnum specifyTwinInstanceQueueOverflowPolicy() {
+            return (TwinInstanceQueueOverflowPolicyEnum.DROP_OLDEST);
+        }
+    }
+
+    private static StimulusPackage newStimulus(String id, long eventTimeOffset) {
+        StimulusPackage stimulus = TwinInstanceStimulusQueueTest.newStimulus(id);
+        stimulus.setSourceEventTime(Instant.ofEpochMilli(EPOCH + eventTimeOffset));
+        return (stimulus);
+    }
+
+    @Test
+    public void heldStimuliAreReleasedInEventTimeOrder() {
+        ReorderingActivityQueue activityQueue = new ReorderingActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        assertEquals(StimulusQueueingOutcomeEnum.HELD_FOR_REORDERING, activityQueue.addStimulus2Queue(twin, newStimulus("late", 200)));
+        assertEquals(StimulusQueueingOutcomeEnum.HELD_FOR_REORDERING, activityQueue.addStimulus2Queue(twin, newStimulus("early", 100)));
+        // Moves the watermark past both of them
+        assertEquals(StimulusQueueingOutcomeEnum.HELD_FOR_REORDERING, activityQueue.addStimulus2Queue(twin, newStimulus("watermark", 100000)));
+        List<StimulusPackage> queuedStimuli = activityQueue.drainStimuli(twin, 10);
+        assertEquals(2, queuedStimuli.size());
+        assertEquals("early", queuedStimuli.get(0).getId().getId());
+        assertEquals("late", queuedStimuli.get(1).getId().getId());
+        assertEquals(1L, activityQueue.getHeldStimulusCount());
+    }
+
+    @Test
+    public void stimulusArrivingAtCapacityIsRefusedRatherThanHeld() {
+        ReorderingActivityQueue activityQueue = new ReorderingActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        for (int i = 3; i > 0; i--) {
+            assertEquals(StimulusQueueingOutcomeEnum.HELD_FOR_REORDERING, activityQueue.addStimulus2Queue(twin, newStimulus("s" + i, i)));
+        }
+        // The held stimuli fill the twin instance's capacity, so this one is told the truth
+        assertEquals(StimulusQueueingOutcomeEnum.REJECTED, activityQueue.addStimulus2Queue(twin, newStimulus("s4", 4)));
+        assertEquals(0L, activityQueue.getHeldStimulusCount());
+        List<StimulusPackage> queuedStimuli = activityQueue.drainStimuli(twin, 10);
+        assertEquals(3, queuedStimuli.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("s" + (i + 1), queuedStimuli.get(i).getId().getId());
+        }
+    }
+
+    @Test
+    public void stimulusQueuedPastAFullBufferMakesEarlierArrivalsLate() {
+        DroppingReorderingActivityQueue activityQueue = new DroppingReorderingActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(StimulusQueueingOutcomeEnum.HELD_FOR_REORDERING, activityQueue.addStimulus2Queue(twin, newStimulus("s" + i, i * 100)));
+        }
+        // At capacity, so the held stimuli are released and this one is queued (dropping the oldest) without being held
+        assertTrue(activityQueue.addStimulus2Queue(twin, newStimulus("s4", 400)).isAccepted());
+        assertEquals(0L, activityQueue.getHeldStimulusCount());
+        List<StimulusPackage> queuedStimuli = activityQueue.drainStimuli(twin, 10);
+        assertEquals("s4", queuedStimuli.get(queuedStimuli.size() - 1).getId().getId());
+        // Earlier than a stimulus the twin instance has already been given, so it cannot be put in order
+        assertEquals(StimulusQueueingOutcomeEnum.QUEUED, activityQueue.addStimulus2Queue(twin, newStimulus("s5", 350)));
+        assertEquals(0L, activityQueue.getHeldStimulusCount());
+        assertEquals(1L, activityQueue.getLateStimulusCount());
+    }
+
+    @Test
+    public void releasedStimuliAreQueuedEvenWhenTheQueueHasFilledSinceTheyWereHeld() {
+        ReorderingActivityQueue activityQueue = new ReorderingActivityQueue();
+        activityQueue.initialise();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        assertEquals(StimulusQueueingOutcomeEnum.HELD_FOR_REORDERING, activityQueue.addStimulus2Queue(twin, newStimulus("held", 1)));
+        // Stimuli without an event time are not held, and fill the queue behind the held stimulus's back
+        for (int i = 0; i < 3; i++) {
+            assertEquals(StimulusQueueingOutcomeEnum.QUEUED, activityQueue.addStimulus2Queue(twin, TwinInstanceStimulusQueueTest.newStimulus("s" + i)));
+        }
+        activityQueue.shutdown();
+        assertEquals(0L, activityQueue.getHeldStimulusCount());
+        assertEquals(4, activityQueue.getStimulusCount(twin));
+        List<StimulusPackage> queuedStimuli = activityQueue.drainStimuli(twin, 10);
+        assertEquals("held", queuedStimuli.get(3).getId().getId());
+    }
+}
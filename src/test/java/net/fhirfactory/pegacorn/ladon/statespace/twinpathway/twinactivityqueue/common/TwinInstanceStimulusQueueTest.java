@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.stimuli.StimulusType;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackageIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TwinInstanceStimulusQueueTest {
+
+    static class TestActivityQueue extends TwinInstanceActivityQueue {
+        @Override
+        protected TwinTypeEnum specifyTwinType() {
+            return (TwinTypeEnum.PATIENT_TWIN);
+        }
+
+        @Override
+        protected long specifyCompactionInterval() {
+            return (0L);
+        }
+    }
+
+    static class CompactingActivityQueue extends TestActivityQueue {
+        @Override
+        protected long specifyCompactionInterval() {
+            return (1L);
+        }
+
+        @Override
+        protected long specifyIdleTwinEvictionThreshold() {
+            return (0L);
+        }
+    }
+
+    static final StimulusType URGENT_STIMULUS = new StimulusType();
+    static final StimulusType ROUTINE_STIMULUS = new StimulusType();
+
+    static class PrioritisedActivityQueue extends TestActivityQueue {
+        @Override
+        protected Map<StimulusType, Integer> specifyStimulusPriorityTable() {
+            return (Collections.singletonMap(URGENT_STIMULUS, 2));
+        }
+
+        @Override
+        protected long specifyStimulusAgingInterval() {
+            return (60000L);
+        }
+    }
+
+    static class QuicklyAgingActivityQueue extends PrioritisedActivityQueue {
+        @Override
+        protected long specifyStimulusAgingInterval() {
+            return (20L);
+        }
+    }
+
+    static StimulusPackage newStimulus(String id, StimulusType stimulusType) {
+        StimulusPackage stimulus = newStimulus(id);
+        stimulus.setStimulusType(stimulusType);
+        return (stimulus);
+    }
+
+    static StimulusPackage newStimulus(String id) {
+        return (new StimulusPackage(new StimulusPackageIdentifier(id), null, null, null));
+    }
+
+    static PendingStimulus newPendingStimulus(TwinInstanceActivityQueue activityQueue, String id) {
+        return (activityQueue.newPendingStimulus(newStimulus(id)));
+    }
+
+    @Test
+    public void offerSignalsTheTwinReadyOnlyOnce() {
+        TestActivityQueue activityQueue = new TestActivityQueue();
+        TwinInstanceStimulusQueue twinStimuli = new TwinInstanceStimulusQueue(new DigitalTwinIdentifier(), activityQueue);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(StimulusQueueingOutcomeEnum.QUEUED, twinStimuli.offer(newPendingStimulus(activityQueue, "s" + i)));
+        }
+        assertEquals(StimulusQueueingOutcomeEnum.DUPLICATE, twinStimuli.offer(newPendingStimulus(activityQueue, "s1")));
+        assertEquals(3, twinStimuli.size());
+        assertEquals(1, activityQueue.getReadyTwinCount());
+    }
+
+    @Test
+    public void claimAndReleaseOfAnEmptiedQueue() {
+        TestActivityQueue activityQueue = new TestActivityQueue();
+        TwinInstanceStimulusQueue twinStimuli = new TwinInstanceStimulusQueue(new DigitalTwinIdentifier(), activityQueue);
+        twinStimuli.offer(newPendingStimulus(activityQueue, "s1"));
+        assertTrue(twinStimuli.claim());
+        assertFalse(twinStimuli.tryRetire(), "an owned queue must not be retired");
+        List<StimulusPackage> drainedStimuli = new ArrayList<>();
+        assertEquals(1, twinStimuli.drainTo(drainedStimuli, 10));
+        assertFalse(twinStimuli.tryRetire(), "a scheduled queue must not be retired");
+        assertFalse(twinStimuli.release(), "an empty queue leaves the ready set on release");
+        assertTrue(twinStimuli.tryRetire());
+        assertNull(twinStimuli.offer(newPendingStimulus(activityQueue, "s2")), "a retired queue refuses new stimuli");
+        assertFalse(twinStimuli.claim());
+    }
+
+    @Test
+    public void releaseKeepsTheQueueScheduledWhileStimuliArePending() {
+        TestActivityQueue activityQueue = new TestActivityQueue();
+        TwinInstanceStimulusQueue twinStimuli = new TwinInstanceStimulusQueue(new DigitalTwinIdentifier(), activityQueue);
+        twinStimuli.offer(newPendingStimulus(activityQueue, "s1"));
+        assertTrue(twinStimuli.claim());
+        // Arrives while the consumer owns the queue, so must not signal the twin ready a second time
+        twinStimuli.offer(newPendingStimulus(activityQueue, "s2"));
+        assertEquals(1, activityQueue.getReadyTwinCount());
+        assertTrue(twinStimuli.release());
+        assertFalse(twinStimuli.tryRetire());
+        assertEquals(2, twinStimuli.size());
+    }
+
+    @Test
+    public void readySetHandsATwinToOneConsumerAtATime() throws Exception {
+        TestActivityQueue activityQueue = new TestActivityQueue();
+        DigitalTwinIdentifier[] twins = new DigitalTwinIdentifier[32];
+        for (int i = 0; i < twins.length; i++) {
+            twins[i] = new DigitalTwinIdentifier();
+        }
+        int producerCount = 4;
+        int stimuliPerProducer = 20000;
+        AtomicInteger consumedCount = new AtomicInteger();
+        AtomicBoolean sharedOwnership = new AtomicBoolean();
+        Set<DigitalTwinIdentifier> ownedTwins = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(producerCount + 4);
+        List<Future<?>> producers = new ArrayList<>();
+        for (int producer = 0; producer < producerCount; producer++) {
+            int producerId = producer;
+            producers.add(executor.submit(() -> {
+                for (int i = 0; i < stimuliPerProducer; i++) {
+                    activityQueue.addStimulus2Queue(twins[i % twins.length], newStimulus(producerId + "-" + i));
+                }
+            }));
+        }
+        List<Future<?>> consumers = new ArrayList<>();
+        for (int consumer = 0; consumer < 4; consumer++) {
+            consumers.add(executor.submit(() -> {
+                DigitalTwinIdentifier twin;
+                while ((twin = activityQueue.pollReadyTwin(500, TimeUnit.MILLISECONDS)) != null) {
+                    if (!ownedTwins.add(twin)) {
+                        sharedOwnership.set(true);
+                    }
+                    consumedCount.addAndGet(activityQueue.drainStimuli(twin, 7).size());
+                    ownedTwins.remove(twin);
+                    activityQueue.releaseReadyTwin(twin);
+                }
+                return (null);
+            }));
+        }
+        for (Future<?> producer : producers) {
+            producer.get(60, TimeUnit.SECONDS);
+        }
+        for (Future<?> consumer : consumers) {
+            consumer.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertFalse(sharedOwnership.get(), "a twin was owned by two consumers at once");
+        assertEquals(producerCount * stimuliPerProducer, consumedCount.get());
+        assertEquals(0L, activityQueue.getPendingStimulusCount());
+    }
+
+    @Test
+    public void retiringAnEmptiedQueueNeverStrandsAConcurrentOffer() throws Exception {
+        TestActivityQueue activityQueue = new TestActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        int stimulusCount = 50000;
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean producing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<?> producer = executor.submit(() -> {
+            start.await();
+            for (int i = 0; i < stimulusCount; i++) {
+                activityQueue.addStimulus2Queue(twin, newStimulus("s" + i));
+            }
+            producing.set(false);
+            return (null);
+        });
+        Future<Integer> consumer = executor.submit(() -> {
+            start.await();
+            int drainedCount = 0;
+            // drainStimuli() retires the queue whenever it leaves it empty, racing the producer's offers
+            while (producing.get() || activityQueue.getStimulusCount(twin) > 0) {
+                drainedCount += activityQueue.drainStimuli(twin, 3).size();
+            }
+            return (drainedCount);
+        });
+        start.countDown();
+        producer.get(60, TimeUnit.SECONDS);
+        assertEquals(stimulusCount, (int) consumer.get(60, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void activeTwinCountExcludesIdleQueues() {
+        TestActivityQueue activityQueue = new TestActivityQueue();
+        DigitalTwinIdentifier busyTwin = new DigitalTwinIdentifier();
+        DigitalTwinIdentifier idleTwin = new DigitalTwinIdentifier();
+        activityQueue.addStimulus2Queue(busyTwin, newStimulus("s1"));
+        activityQueue.addStimulus2Queue(idleTwin, newStimulus("s2"));
+        assertEquals(2, activityQueue.getActiveTwinCount());
+        // Still scheduled (on the ready set), so its emptied queue is kept until it is released or evicted
+        assertEquals(1, activityQueue.drainStimuli(idleTwin, 10).size());
+        assertEquals(1, activityQueue.getActiveTwinCount());
+        activityQueue.addStimulus2Queue(idleTwin, newStimulus("s3"));
+        assertEquals(2, activityQueue.getActiveTwinCount());
+    }
+
+    @Test
+    public void compactionEvictsOnlyIdleQueues() throws Exception {
+        // Not initialised, so compaction only happens when asked for
+        CompactingActivityQueue activityQueue = new CompactingActivityQueue();
+        DigitalTwinIdentifier ownedTwin = new DigitalTwinIdentifier();
+        DigitalTwinIdentifier scheduledTwin = new DigitalTwinIdentifier();
+        DigitalTwinIdentifier idleTwin = new DigitalTwinIdentifier();
+        activityQueue.addStimulus2Queue(ownedTwin, newStimulus("o1"));
+        assertSame(ownedTwin, activityQueue.pollReadyTwin(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, activityQueue.drainStimuli(ownedTwin, 10).size());
+        activityQueue.addStimulus2Queue(scheduledTwin, newStimulus("s1"));
+        activityQueue.addStimulus2Queue(idleTwin, newStimulus("i1"));
+        activityQueue.claimStimuli(idleTwin, 10).acknowledge(1);
+        assertEquals(1, activityQueue.compact());
+        assertEquals(1, activityQueue.getStimulusCount(scheduledTwin));
+        // The owned (emptied) queue is still there to take the stimulus, rather than a fresh queue being signalled ready
+        activityQueue.addStimulus2Queue(ownedTwin, newStimulus("o2"));
+        assertSame(scheduledTwin, activityQueue.pollReadyTwin(10, TimeUnit.MILLISECONDS));
+        assertNull(activityQueue.pollReadyTwin(10, TimeUnit.MILLISECONDS));
+        activityQueue.releaseReadyTwin(ownedTwin);
+        assertSame(ownedTwin, activityQueue.pollReadyTwin(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, activityQueue.drainStimuli(ownedTwin, 10).size());
+    }
+
+    @Test
+    public void compactionDuringConcurrentOffersLosesNoStimuli() throws Exception {
+        CompactingActivityQueue activityQueue = new CompactingActivityQueue();
+        activityQueue.initialise();
+        int producerCount = 2;
+        int roundCount = 8;
+        // Enough twin instances per round to push the peak past the point at which the map is rebuilt
+        int twinsPerRound = 1500;
+        CountDownLatch firstRoundOffered = new CountDownLatch(producerCount);
+        AtomicInteger acceptedCount = new AtomicInteger();
+        AtomicBoolean consumedTwice = new AtomicBoolean();
+        Set<StimulusPackage> consumedStimuli = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(producerCount + 2);
+        List<Future<?>> producers = new ArrayList<>();
+        for (int producer = 0; producer < producerCount; producer++) {
+            int producerId = producer;
+            producers.add(executor.submit(() -> {
+                for (int round = 0; round < roundCount; round++) {
+                    for (int i = 0; i < twinsPerRound; i++) {
+                        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+                        for (int s = 0; s < 2; s++) {
+                            if (activityQueue.addStimulus2Queue(twin, newStimulus(producerId + "-" + round + "-" + i + "-" + s)).isAccepted()) {
+                                acceptedCount.incrementAndGet();
+                            }
+                        }
+                    }
+                    if (round == 0) {
+                        firstRoundOffered.countDown();
+                    }
+                }
+                return (null);
+            }));
+        }
+        List<Future<?>> consumers = new ArrayList<>();
+        for (int consumer = 0; consumer < 2; consumer++) {
+            consumers.add(executor.submit(() -> {
+                firstRoundOffered.await();
+                DigitalTwinIdentifier twin;
+                while ((twin = activityQueue.pollReadyTwin(500, TimeUnit.MILLISECONDS)) != null) {
+                    for (StimulusPackage stimulus : activityQueue.drainStimuli(twin, 1)) {
+                        if (!consumedStimuli.add(stimulus)) {
+                            consumedTwice.set(true);
+                        }
+                    }
+                    activityQueue.releaseReadyTwin(twin);
+                }
+                return (null);
+            }));
+        }
+        for (Future<?> producer : producers) {
+            producer.get(60, TimeUnit.SECONDS);
+        }
+        for (Future<?> consumer : consumers) {
+            consumer.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        activityQueue.shutdown();
+        assertFalse(consumedTwice.get(), "a stimulus was consumed twice");
+        assertEquals(producerCount * roundCount * twinsPerRound * 2, acceptedCount.get());
+        assertEquals(acceptedCount.get(), consumedStimuli.size());
+        assertEquals(0L, activityQueue.getPendingStimulusCount());
+    }
+
+    @Test
+    public void stimuliAreFifoWithinAPriorityLane() {
+        PrioritisedActivityQueue activityQueue = new PrioritisedActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        List<StimulusPackage> offeredStimuli = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            StimulusPackage stimulus = newStimulus("s" + i, ROUTINE_STIMULUS);
+            offeredStimuli.add(stimulus);
+            activityQueue.addStimulus2Queue(twin, stimulus);
+        }
+        List<StimulusPackage> drainedStimuli = activityQueue.drainStimuli(twin, 10);
+        assertEquals(offeredStimuli.size(), drainedStimuli.size());
+        for (int i = 0; i < offeredStimuli.size(); i++) {
+            assertSame(offeredStimuli.get(i), drainedStimuli.get(i));
+        }
+    }
+
+    @Test
+    public void higherPriorityLaneIsServedFirst() {
+        PrioritisedActivityQueue activityQueue = new PrioritisedActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        StimulusPackage routine1 = newStimulus("r1", ROUTINE_STIMULUS);
+        StimulusPackage urgent1 = newStimulus("u1", URGENT_STIMULUS);
+        StimulusPackage routine2 = newStimulus("r2", ROUTINE_STIMULUS);
+        StimulusPackage urgent2 = newStimulus("u2", URGENT_STIMULUS);
+        activityQueue.addStimulus2Queue(twin, routine1);
+        activityQueue.addStimulus2Queue(twin, urgent1);
+        activityQueue.addStimulus2Queue(twin, routine2);
+        activityQueue.addStimulus2Queue(twin, urgent2);
+        List<StimulusPackage> drainedStimuli = activityQueue.drainStimuli(twin, 10);
+        assertEquals(4, drainedStimuli.size());
+        assertSame(urgent1, drainedStimuli.get(0));
+        assertSame(urgent2, drainedStimuli.get(1));
+        assertSame(routine1, drainedStimuli.get(2));
+        assertSame(routine2, drainedStimuli.get(3));
+    }
+
+    @Test
+    public void agedLowPriorityHeadOvertakesAHigherLane() throws Exception {
+        QuicklyAgingActivityQueue activityQueue = new QuicklyAgingActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        StimulusPackage agedRoutine = newStimulus("r1", ROUTINE_STIMULUS);
+        StimulusPackage freshRoutine = newStimulus("r2", ROUTINE_STIMULUS);
+        activityQueue.addStimulus2Queue(twin, agedRoutine);
+        activityQueue.addStimulus2Queue(twin, freshRoutine);
+        // Well past (2 - 0) * 20ms, so the routine head now ranks above the urgent lane
+        Thread.sleep(100);
+        StimulusPackage urgent = newStimulus("u1", URGENT_STIMULUS);
+        activityQueue.addStimulus2Queue(twin, urgent);
+        List<StimulusPackage> drainedStimuli = activityQueue.drainStimuli(twin, 10);
+        assertEquals(3, drainedStimuli.size());
+        assertSame(agedRoutine, drainedStimuli.get(0));
+        assertSame(freshRoutine, drainedStimuli.get(1));
+        assertSame(urgent, drainedStimuli.get(2));
+    }
+
+    @Test
+    public void readyTwinEmptiedByAnotherCallerIsNotHandedOut() throws Exception {
+        TestActivityQueue activityQueue = new TestActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        activityQueue.addStimulus2Queue(twin, newStimulus("s1"));
+        assertEquals(1, activityQueue.drainStimuli(twin, 10).size());
+        assertNull(activityQueue.pollReadyTwin(10, TimeUnit.MILLISECONDS));
+        activityQueue.addStimulus2Queue(twin, newStimulus("s2"));
+        assertSame(twin, activityQueue.pollReadyTwin(10, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackageIdentifier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TwinStimulusClaimTest {
+
+    @TempDir
+    Path journalDirectory;
+
+    static class DeadLetteringActivityQueue extends TwinInstanceStimulusQueueTest.TestActivityQueue {
+        private final List<StimulusPackage> deadLetteredStimuli = new ArrayList<>();
+
+        @Override
+        protected int specifyMaxDeliveryAttempts() {
+            return (2);
+        }
+
+        @Override
+        protected void deadLetterStimuli(DigitalTwinIdentifier twinInstanceIdentifier, List<StimulusPackage> stimuli, RuntimeException lastFailure) {
+            deadLetteredStimuli.addAll(stimuli);
+        }
+    }
+
+    private static List<String> idsOf(List<StimulusPackage> stimuli) {
+        List<String> ids = new ArrayList<>();
+        for (StimulusPackage stimulus : stimuli) {
+            ids.add(stimulus.getId().getId());
+        }
+        return (ids);
+    }
+
+    private static List<String> ids(String... ids) {
+        return (Arrays.asList(ids));
+    }
+
+    private static void addStimuli(TwinInstanceActivityQueue activityQueue, DigitalTwinIdentifier twin, int count) {
+        for (int i = 0; i < count; i++) {
+            assertEquals(StimulusQueueingOutcomeEnum.QUEUED, activityQueue.addStimulus2Queue(twin, TwinInstanceStimulusQueueTest.newStimulus("s" + i)));
+        }
+    }
+
+    @Test
+    public void returnedStimuliAreClaimedAgainFirstAndInOrder() {
+        TwinInstanceStimulusQueueTest.TestActivityQueue activityQueue = new TwinInstanceStimulusQueueTest.TestActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        addStimuli(activityQueue, twin, 5);
+        TwinStimulusClaim claim = activityQueue.claimStimuli(twin, 3);
+        assertEquals(ids("s0", "s1", "s2"), idsOf(claim.getStimuli()));
+        claim.acknowledge(1);
+        claim.returnRemaining();
+        assertTrue(claim.isSettled());
+        assertEquals(4, activityQueue.getStimulusCount(twin));
+        assertTrue(activityQueue.isStimulusPending(twin, new StimulusPackageIdentifier("s1")), "a returned stimulus is still a duplicate");
+        assertEquals(StimulusQueueingOutcomeEnum.DUPLICATE, activityQueue.addStimulus2Queue(twin, TwinInstanceStimulusQueueTest.newStimulus("s2")));
+        // A claim smaller than what was returned, put back again, must still go in ahead of the rest
+        activityQueue.claimStimuli(twin, 1).returnRemaining();
+        assertEquals(ids("s1", "s2", "s3", "s4"), idsOf(activityQueue.claimStimuli(twin, 10).getStimuli()));
+        assertEquals(0L, activityQueue.getRedeliveredStimulusCount(), "giving up a turn is not a failed delivery");
+    }
+
+    @Test
+    public void claimedStimulusStaysADuplicateUntilSettled() {
+        DeadLetteringActivityQueue activityQueue = new DeadLetteringActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        addStimuli(activityQueue, twin, 3);
+        TwinStimulusClaim claim = activityQueue.claimStimuli(twin, 2);
+        assertEquals(ids("s0", "s1"), idsOf(claim.getStimuli()));
+        assertEquals(1, activityQueue.getStimulusCount(twin));
+        // e.g. an upstream redelivery, arriving while the behaviour is still working on the claimed stimuli
+        assertEquals(StimulusQueueingOutcomeEnum.DUPLICATE, activityQueue.addStimulus2Queue(twin, TwinInstanceStimulusQueueTest.newStimulus("s0")));
+        assertEquals(StimulusQueueingOutcomeEnum.DUPLICATE, activityQueue.addStimulus2Queue(twin, TwinInstanceStimulusQueueTest.newStimulus("s1")));
+        claim.acknowledge(1);
+        assertTrue(claim.fail(1, new IllegalStateException("behaviour failed")));
+        // Only the one copy of s1 went back, and the processed s0 may now be sent again
+        assertEquals(ids("s1", "s2"), idsOf(activityQueue.claimStimuli(twin, 10).getStimuli()));
+        assertEquals(StimulusQueueingOutcomeEnum.QUEUED, activityQueue.addStimulus2Queue(twin, TwinInstanceStimulusQueueTest.newStimulus("s0")));
+    }
+
+    @Test
+    public void queueWithStimuliOutOnClaimIsNotEvicted() {
+        TwinInstanceStimulusQueueTest.CompactingActivityQueue activityQueue = new TwinInstanceStimulusQueueTest.CompactingActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        addStimuli(activityQueue, twin, 1);
+        TwinStimulusClaim claim = activityQueue.claimStimuli(twin, 1);
+        assertEquals(0, activityQueue.compact());
+        assertEquals(StimulusQueueingOutcomeEnum.DUPLICATE, activityQueue.addStimulus2Queue(twin, TwinInstanceStimulusQueueTest.newStimulus("s0")));
+        claim.acknowledge(1);
+        assertFalse(activityQueue.isStimulusPending(twin, new StimulusPackageIdentifier("s0")));
+        assertEquals(1, activityQueue.compact());
+    }
+
+    @Test
+    public void failedStimuliAreRedeliveredUntilDeadLettered() {
+        DeadLetteringActivityQueue activityQueue = new DeadLetteringActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        addStimuli(activityQueue, twin, 4);
+        TwinStimulusClaim claim = activityQueue.claimStimuli(twin, 3);
+        claim.acknowledge(1);
+        assertTrue(claim.fail(1, new IllegalStateException("behaviour failed")), "s1 has failed once, so goes back");
+        assertTrue(claim.isSettled());
+        assertEquals(1L, activityQueue.getRedeliveredStimulusCount(), "only s1 was delivered, and failed");
+        assertEquals(3, activityQueue.getStimulusCount(twin));
+
+        claim = activityQueue.claimStimuli(twin, 10);
+        assertEquals(ids("s1", "s2", "s3"), idsOf(claim.getStimuli()));
+        assertTrue(claim.fail(2, new IllegalStateException("behaviour failed")), "s1 is exhausted, but s2 is not");
+        assertEquals(ids("s1"), idsOf(activityQueue.deadLetteredStimuli));
+        claim = activityQueue.claimStimuli(twin, 10);
+        assertEquals(ids("s2", "s3"), idsOf(claim.getStimuli()));
+        assertFalse(claim.fail(1, new IllegalStateException("behaviour failed")), "s2 is exhausted, so the claim goes on");
+        assertEquals(1, claim.getSettledCount());
+        claim.acknowledge(1);
+        assertEquals(ids("s1", "s2"), idsOf(activityQueue.deadLetteredStimuli));
+        assertEquals(0, activityQueue.getStimulusCount(twin));
+    }
+
+    @Test
+    public void aFailedRunGoesBackBehindItsExhaustedStimuli() {
+        DeadLetteringActivityQueue activityQueue = new DeadLetteringActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        addStimuli(activityQueue, twin, 3);
+        TwinStimulusClaim claim = activityQueue.claimStimuli(twin, 1);
+        assertTrue(claim.fail(1, new IllegalStateException("behaviour failed")));
+        claim = activityQueue.claimStimuli(twin, 10);
+        assertEquals(ids("s0", "s1", "s2"), idsOf(claim.getStimuli()));
+        assertTrue(claim.fail(2, new IllegalStateException("behaviour failed")), "s0 is exhausted, but s1 is not");
+        assertEquals(ids("s0"), idsOf(activityQueue.deadLetteredStimuli));
+        assertEquals(1L, activityQueue.getDeadLetteredStimulusCount());
+        assertEquals(ids("s1", "s2"), idsOf(activityQueue.claimStimuli(twin, 10).getStimuli()));
+    }
+
+    @Test
+    public void anOwnedTwinWithReturnedStimuliIsScheduledAgainOnRelease() throws InterruptedException {
+        TwinInstanceStimulusQueueTest.TestActivityQueue activityQueue = new TwinInstanceStimulusQueueTest.TestActivityQueue();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        addStimuli(activityQueue, twin, 2);
+        assertSame(twin, activityQueue.pollReadyTwin(0L, TimeUnit.MILLISECONDS));
+        activityQueue.claimStimuli(twin, 10).returnRemaining();
+        assertEquals(0, activityQueue.getReadyTwinCount(), "the owner keeps the twin until it releases it");
+        activityQueue.releaseReadyTwin(twin);
+        assertSame(twin, activityQueue.pollReadyTwin(0L, TimeUnit.MILLISECONDS));
+        assertEquals(ids("s0", "s1"), idsOf(activityQueue.claimStimuli(twin, 10).getStimuli()));
+    }
+
+    @Test
+    public void claimedStimuliStayInTheJournalUntilAcknowledged() {
+        TwinActivityQueueJournalTest.JournaledActivityQueue activityQueue = new TwinActivityQueueJournalTest.JournaledActivityQueue(journalDirectory);
+        activityQueue.initialise();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        addStimuli(activityQueue, twin, 3);
+        TwinStimulusClaim claim = activityQueue.claimStimuli(twin, 3);
+        claim.acknowledge(1);
+        assertThrows(IllegalArgumentException.class, () -> claim.acknowledge(3));
+        activityQueue.shutdown();
+
+        TwinActivityQueueJournalTest.JournaledActivityQueue restartedQueue = new TwinActivityQueueJournalTest.JournaledActivityQueue(journalDirectory);
+        restartedQueue.initialise();
+        // Twin identifiers are decoded afresh, so the replayed stimuli are found via the ready set
+        List<StimulusPackage> replayedStimuli = new ArrayList<>();
+        DigitalTwinIdentifier replayedTwin;
+        while ((replayedTwin = restartedQueue.takeReadyTwinNow()) != null) {
+            replayedStimuli.addAll(restartedQueue.drainStimuli(replayedTwin, 10));
+        }
+        assertEquals(ids("s1", "s2"), idsOf(replayedStimuli));
+        restartedQueue.shutdown();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackageIdentifier;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class VersionedStimulusPackageCodecTest {
+
+    @Test
+    public void stimulusPackageRoundTrips() throws IOException {
+        VersionedStimulusPackageCodec codec = new VersionedStimulusPackageCodec();
+        StimulusPackage stimulus = new StimulusPackage(new StimulusPackageIdentifier("stimulus-1"), null, null, null);
+        stimulus.setSourceResourceId("Observation/1");
+        stimulus.setSourceEventTime(Instant.ofEpochSecond(1600000000L, 123456789));
+        StimulusPackage decodedStimulus = codec.decode(codec.encode(stimulus));
+        assertEquals(stimulus.getId(), decodedStimulus.getId());
+        assertEquals("Observation/1", decodedStimulus.getSourceResourceId());
+        assertEquals(stimulus.getSourceEventTime(), decodedStimulus.getSourceEventTime());
+        assertNull(decodedStimulus.getTargetTwinIdentifier());
+        assertNull(decodedStimulus.getStimulusContent());
+    }
+
+    @Test
+    public void absentFieldsRoundTrip() throws IOException {
+        VersionedStimulusPackageCodec codec = new VersionedStimulusPackageCodec();
+        StimulusPackage decodedStimulus = codec.decode(codec.encode(new StimulusPackage()));
+        assertNull(decodedStimulus.getId());
+        assertNull(decodedStimulus.getSourceResourceId());
+        assertNull(decodedStimulus.getSourceEventTime());
+    }
+
+    @Test
+    public void twinIdentifierRoundTrips() throws IOException {
+        VersionedStimulusPackageCodec codec = new VersionedStimulusPackageCodec();
+        assertNotNull(codec.decodeTwinIdentifier(codec.encodeTwinIdentifier(new DigitalTwinIdentifier())));
+    }
+
+    @Test
+    public void unknownFormatVersionIsRefused() throws IOException {
+        VersionedStimulusPackageCodec codec = new VersionedStimulusPackageCodec();
+        byte[] encodedStimulus = codec.encode(new StimulusPackage(new StimulusPackageIdentifier("stimulus-1"), null, null, null));
+        encodedStimulus[1] = 99;
+        assertThrows(IOException.class, () -> codec.decode(encodedStimulus));
+    }
+
+    @Test
+    public void truncatedEncodingIsRefused() throws IOException {
+        VersionedStimulusPackageCodec codec = new VersionedStimulusPackageCodec();
+        byte[] encodedStimulus = codec.encode(new StimulusPackage(new StimulusPackageIdentifier("stimulus-1"), null, null, null));
+        assertThrows(IOException.class, () -> codec.decode(Arrays.copyOf(encodedStimulus, 8)));
+        assertThrows(IOException.class, () -> codec.decode(new byte[]{(byte) 0xAC, (byte) 0xED, 0, 5}));
+    }
+}
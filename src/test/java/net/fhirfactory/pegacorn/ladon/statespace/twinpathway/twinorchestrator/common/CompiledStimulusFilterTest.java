@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.ExplicitStimulus2TwinInstanceMap;
+import net.fhirfactory.pegacorn.ladon.model.stimuli.Stimulus;
+import net.fhirfactory.pegacorn.ladon.model.stimuli.StimulusType;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.BehaviourCentricExclusiveFilterRulesInterface;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.BehaviourCentricInclusiveFilterRulesInterface;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the compiled decision table against evaluating every behaviour's rules in turn for each stimulus - the
+ * evaluation it replaces.
+ */
+public class CompiledStimulusFilterTest {
+
+    static class TestInclusiveRules implements BehaviourCentricInclusiveFilterRulesInterface {
+        private final List<StimulusType> stimulusTypes = new ArrayList<>();
+        private final Map<TopicToken, Set<DigitalTwinIdentifier>> explicitTwinInstances = new HashMap<>();
+        private final Map<Stimulus, List<DigitalTwinIdentifier>> dynamicTwinInstances = new HashMap<>();
+        private final Set<Stimulus> failingStimuli = new HashSet<>();
+        private int dynamicFilterCallCount;
+
+        @Override
+        public List<StimulusType> positiveStaticFilterStimulus() {
+            return (stimulusTypes);
+        }
+
+        @Override
+        public List<ExplicitStimulus2TwinInstanceMap> positiveStaticFilterTwinInstance2StimulusMap() {
+            return (Collections.singletonList(new ExplicitStimulus2TwinInstanceMap() {
+                @Override
+                public Map<TopicToken, Set<DigitalTwinIdentifier>> getStimulusRequirementMap() {
+                    return (explicitTwinInstances);
+                }
+            }));
+        }
+
+        @Override
+        public List<DigitalTwinIdentifier> positiveDynamicFilterTwinInstancesForStimulus(Stimulus stimulusInstant) {
+            dynamicFilterCallCount += 1;
+            if (failingStimuli.contains(stimulusInstant)) {
+                throw new IllegalStateException("dynamic filter failed");
+            }
+            return (dynamicTwinInstances.getOrDefault(stimulusInstant, Collections.emptyList()));
+        }
+    }
+
+    static class TestExclusiveRules implements BehaviourCentricExclusiveFilterRulesInterface {
+        private final Set<DigitalTwinIdentifier> excludedTwinInstances = new HashSet<>();
+        private final Set<DigitalTwinIdentifier> failingTwinInstances = new HashSet<>();
+
+        @Override
+        public boolean negativeFilterStimulusAgainstDigitalTwin(Stimulus incomingStimulus, DigitalTwinIdentifier twinInstanceIdentifier) {
+            if (failingTwinInstances.contains(twinInstanceIdentifier)) {
+                throw new IllegalStateException("exclusive filter failed");
+            }
+            return (excludedTwinInstances.contains(twinInstanceIdentifier));
+        }
+
+        @Override
+        public boolean negativeFilterTwinInstanceRelevantToBehaviourForStimulus(Stimulus twinResource, DigitalTwinIdentifier twinInstanceIdentifier) {
+            return (false);
+        }
+    }
+
+    /**
+     * A behaviour with its own exclusive rules.
+     */
+    static class TestBehaviourRules extends TestInclusiveRules implements BehaviourCentricExclusiveFilterRulesInterface {
+        private final TestExclusiveRules ownExclusions = new TestExclusiveRules();
+
+        @Override
+        public boolean negativeFilterStimulusAgainstDigitalTwin(Stimulus incomingStimulus, DigitalTwinIdentifier twinInstanceIdentifier) {
+            return (ownExclusions.negativeFilterStimulusAgainstDigitalTwin(incomingStimulus, twinInstanceIdentifier));
+        }
+
+        @Override
+        public boolean negativeFilterTwinInstanceRelevantToBehaviourForStimulus(Stimulus twinResource, DigitalTwinIdentifier twinInstanceIdentifier) {
+            return (false);
+        }
+    }
+
+    /**
+     * Every behaviour's rules called in turn: the static rules select the twin instances subscribed to the token, the
+     * dynamic rules are asked if the type matches, and the exclusive rules (a failing one ruling the candidate out)
+     * are applied to what is left.
+     */
+    private Set<String> evaluateEachInTurn(List<BehaviourCentricInclusiveFilterRulesInterface> inclusiveRuleSets, List<BehaviourCentricExclusiveFilterRulesInterface> exclusiveRuleSets, Stimulus stimulus, StimulusType stimulusType, TopicToken stimulusToken) {
+        Set<String> matches = new HashSet<>();
+        for (BehaviourCentricInclusiveFilterRulesInterface inclusiveRules : inclusiveRuleSets) {
+            Set<DigitalTwinIdentifier> candidates = new LinkedHashSet<>();
+            for (ExplicitStimulus2TwinInstanceMap stimulusTwinMap : inclusiveRules.positiveStaticFilterTwinInstance2StimulusMap()) {
+                Set<DigitalTwinIdentifier> explicitTwins = stimulusTwinMap.getStimulusRequirementMap().get(stimulusToken);
+                if (stimulusToken != null && explicitTwins != null) {
+                    candidates.addAll(explicitTwins);
+                }
+            }
+            if (stimulusType != null && inclusiveRules.positiveStaticFilterStimulus().contains(stimulusType)) {
+                try {
+                    candidates.addAll(inclusiveRules.positiveDynamicFilterTwinInstancesForStimulus(stimulus));
+                } catch (RuntimeException ruleError) {
+                    // Contributes no candidates
+                }
+            }
+            List<BehaviourCentricExclusiveFilterRulesInterface> applicableExclusions = new ArrayList<>();
+            if (inclusiveRules instanceof BehaviourCentricExclusiveFilterRulesInterface) {
+                applicableExclusions.add((BehaviourCentricExclusiveFilterRulesInterface) inclusiveRules);
+            }
+            for (BehaviourCentricExclusiveFilterRulesInterface exclusiveRules : exclusiveRuleSets) {
+                if (!inclusiveRuleSets.contains(exclusiveRules)) {
+                    applicableExclusions.add(exclusiveRules);
+                }
+            }
+            for (DigitalTwinIdentifier candidate : candidates) {
+                boolean excluded = false;
+                for (BehaviourCentricExclusiveFilterRulesInterface exclusiveRules : applicableExclusions) {
+                    try {
+                        excluded = exclusiveRules.negativeFilterStimulusAgainstDigitalTwin(stimulus, candidate);
+                    } catch (RuntimeException ruleError) {
+                        excluded = true;
+                    }
+                    if (excluded) {
+                        break;
+                    }
+                }
+                if (!excluded) {
+                    matches.add(keyOf(inclusiveRules, candidate));
+                }
+            }
+        }
+        return (matches);
+    }
+
+    private final Map<Object, Integer> instanceNumbers = new IdentityHashMap<>();
+
+    private String keyOf(BehaviourCentricInclusiveFilterRulesInterface inclusiveRules, DigitalTwinIdentifier twinInstance) {
+        return (instanceNumbers.computeIfAbsent(inclusiveRules, rules -> instanceNumbers.size()) + "/" + instanceNumbers.computeIfAbsent(twinInstance, twin -> instanceNumbers.size()));
+    }
+
+    private Set<String> keysOf(List<StimulusFilterMatch> matches) {
+        Set<String> keys = new HashSet<>();
+        for (StimulusFilterMatch match : matches) {
+            keys.add(keyOf(match.getInclusiveRules(), match.getTwinInstanceIdentifier()));
+        }
+        return (keys);
+    }
+
+    private static <T> T pick(Random random, List<T> choices) {
+        return (choices.get(random.nextInt(choices.size())));
+    }
+
+    private static <T> List<T> newInstances(int count, Supplier<T> factory) {
+        List<T> instances = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            instances.add(factory.get());
+        }
+        return (instances);
+    }
+
+    @Test
+    public void compiledTableMatchesEvaluatingEveryBehaviourInTurn() {
+        Random random = new Random(20201017L);
+        List<StimulusType> stimulusTypes = newInstances(6, StimulusType::new);
+        List<TopicToken> stimulusTokens = newInstances(6, TopicToken::new);
+        List<DigitalTwinIdentifier> twinInstances = newInstances(40, DigitalTwinIdentifier::new);
+        List<Stimulus> stimuli = newInstances(50, Stimulus::new);
+
+        List<BehaviourCentricInclusiveFilterRulesInterface> inclusiveRuleSets = new ArrayList<>();
+        List<BehaviourCentricExclusiveFilterRulesInterface> exclusiveRuleSets = new ArrayList<>();
+        for (int behaviour = 0; behaviour < 200; behaviour++) {
+            TestInclusiveRules rules = behaviour % 3 == 0 ? new TestBehaviourRules() : new TestInclusiveRules();
+            for (int i = random.nextInt(3); i > 0; i--) {
+                rules.stimulusTypes.add(pick(random, stimulusTypes));
+            }
+            for (int i = random.nextInt(3); i > 0; i--) {
+                Set<DigitalTwinIdentifier> explicitTwins = rules.explicitTwinInstances.computeIfAbsent(pick(random, stimulusTokens), token -> new HashSet<>());
+                for (int j = 1 + random.nextInt(4); j > 0; j--) {
+                    explicitTwins.add(pick(random, twinInstances));
+                }
+            }
+            for (Stimulus stimulus : stimuli) {
+                if (random.nextInt(4) == 0) {
+                    List<DigitalTwinIdentifier> dynamicTwins = new ArrayList<>();
+                    for (int j = 1 + random.nextInt(4); j > 0; j--) {
+                        dynamicTwins.add(pick(random, twinInstances));
+                    }
+                    rules.dynamicTwinInstances.put(stimulus, dynamicTwins);
+                }
+            }
+            if (random.nextInt(20) == 0) {
+                rules.failingStimuli.add(pick(random, stimuli));
+            }
+            if (rules instanceof TestBehaviourRules) {
+                ((TestBehaviourRules) rules).ownExclusions.excludedTwinInstances.add(pick(random, twinInstances));
+                if (random.nextBoolean()) {
+                    // Registered as an exclusion too, but must still only apply to its own behaviour
+                    exclusiveRuleSets.add((TestBehaviourRules) rules);
+                }
+            }
+            inclusiveRuleSets.add(rules);
+        }
+        TestExclusiveRules sharedExclusions = new TestExclusiveRules();
+        sharedExclusions.excludedTwinInstances.add(twinInstances.get(0));
+        sharedExclusions.failingTwinInstances.add(twinInstances.get(1));
+        exclusiveRuleSets.add(sharedExclusions);
+
+        CompiledStimulusFilter compiledFilter = CompiledStimulusFilter.compile(inclusiveRuleSets, exclusiveRuleSets);
+        assertEquals(200, compiledFilter.getBehaviourCount());
+        int matchCount = 0;
+        for (int round = 0; round < 500; round++) {
+            Stimulus stimulus = pick(random, stimuli);
+            StimulusType stimulusType = random.nextInt(8) == 0 ? null : pick(random, stimulusTypes);
+            TopicToken stimulusToken = random.nextInt(8) == 0 ? null : pick(random, stimulusTokens);
+            List<StimulusFilterMatch> compiledMatches = compiledFilter.evaluate(stimulus, stimulusType, stimulusToken);
+            Set<String> compiledKeys = keysOf(compiledMatches);
+            assertEquals(compiledMatches.size(), compiledKeys.size(), "a (behaviour, twin instance) pair is matched once");
+            assertEquals(evaluateEachInTurn(inclusiveRuleSets, exclusiveRuleSets, stimulus, stimulusType, stimulusToken), compiledKeys);
+            matchCount += compiledKeys.size();
+        }
+        assertTrue(matchCount > 0, "the rule sets should match some stimuli");
+    }
+
+    @Test
+    public void dynamicRulesAreOnlyAskedWhenTheStimulusTypeMatches() {
+        StimulusType matchingType = new StimulusType();
+        StimulusType otherType = new StimulusType();
+        TopicToken stimulusToken = new TopicToken();
+        DigitalTwinIdentifier explicitTwin = new DigitalTwinIdentifier();
+        Stimulus stimulus = new Stimulus();
+        List<BehaviourCentricInclusiveFilterRulesInterface> inclusiveRuleSets = new ArrayList<>();
+        List<TestInclusiveRules> otherTypeRules = new ArrayList<>();
+        for (int behaviour = 0; behaviour < 100; behaviour++) {
+            TestInclusiveRules rules = new TestInclusiveRules();
+            rules.stimulusTypes.add(otherType);
+            rules.explicitTwinInstances.put(stimulusToken, Collections.singleton(explicitTwin));
+            otherTypeRules.add(rules);
+            inclusiveRuleSets.add(rules);
+        }
+        TestInclusiveRules matchingRules = new TestInclusiveRules();
+        matchingRules.stimulusTypes.add(matchingType);
+        inclusiveRuleSets.add(matchingRules);
+
+        CompiledStimulusFilter compiledFilter = CompiledStimulusFilter.compile(inclusiveRuleSets, Collections.emptyList());
+        assertEquals(100, compiledFilter.evaluate(stimulus, matchingType, stimulusToken).size(), "the explicit subscriptions still match");
+        assertEquals(1, matchingRules.dynamicFilterCallCount);
+        for (TestInclusiveRules rules : otherTypeRules) {
+            assertEquals(0, rules.dynamicFilterCallCount);
+        }
+    }
+}
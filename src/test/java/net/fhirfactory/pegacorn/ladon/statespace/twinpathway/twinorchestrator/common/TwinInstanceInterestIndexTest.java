@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.ExplicitStimulus2TwinInstanceMap;
+import net.fhirfactory.pegacorn.ladon.model.stimuli.Stimulus;
+import net.fhirfactory.pegacorn.ladon.model.stimuli.StimulusType;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.BehaviourCentricInclusiveFilterRulesInterface;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinPathwayControllerBase;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TwinInstanceInterestIndexTest {
+    private final TopicToken stimulusToken = topic("stimulusToken");
+    private final DigitalTwinIdentifier firstTwin = new DigitalTwinIdentifier();
+    private final DigitalTwinIdentifier sharedTwin = new DigitalTwinIdentifier();
+    private final DigitalTwinIdentifier lastTwin = new DigitalTwinIdentifier();
+
+    static class InterestOrchestrator extends TwinOrchestratorBase {
+        @Override
+        protected TwinPathwayControllerBase specifyPathwayController() {
+            return (null);
+        }
+
+        @Override
+        protected TwinTypeEnum specifyTwinType() {
+            return (TwinTypeEnum.PATIENT_TWIN);
+        }
+    }
+
+    static class InterestRules implements BehaviourCentricInclusiveFilterRulesInterface {
+        private final Map<TopicToken, Set<DigitalTwinIdentifier>> explicitTwinInstances = new HashMap<>();
+
+        @Override
+        public List<StimulusType> positiveStaticFilterStimulus() {
+            return (Collections.emptyList());
+        }
+
+        @Override
+        public List<ExplicitStimulus2TwinInstanceMap> positiveStaticFilterTwinInstance2StimulusMap() {
+            return (Collections.singletonList(new ExplicitStimulus2TwinInstanceMap() {
+                @Override
+                public Map<TopicToken, Set<DigitalTwinIdentifier>> getStimulusRequirementMap() {
+                    return (explicitTwinInstances);
+                }
+            }));
+        }
+
+        @Override
+        public List<DigitalTwinIdentifier> positiveDynamicFilterTwinInstancesForStimulus(Stimulus stimulusInstant) {
+            return (Collections.emptyList());
+        }
+    }
+
+    private InterestRules interestedIn(DigitalTwinIdentifier... twinInstances) {
+        InterestRules rules = new InterestRules();
+        rules.explicitTwinInstances.put(stimulusToken, new HashSet<>(Arrays.asList(twinInstances)));
+        return (rules);
+    }
+
+    private static TopicToken topic(String topicName) {
+        TopicToken topic = new TopicToken();
+        topic.addDescriminator("Topic", topicName);
+        return (topic);
+    }
+
+    @Test
+    public void interestSharedWithAnotherBehaviourSurvivesItsRemoval() {
+        TwinInstanceInterestIndex interestIndex = new TwinInstanceInterestIndex();
+        interestIndex.addInterests(stimulusToken, Arrays.asList(firstTwin, sharedTwin));
+        interestIndex.addInterests(stimulusToken, Arrays.asList(sharedTwin, lastTwin));
+        assertEquals(2, interestIndex.getInterestReferenceCount(stimulusToken, sharedTwin));
+
+        interestIndex.removeInterests(stimulusToken, Arrays.asList(firstTwin, sharedTwin));
+        assertEquals(new HashSet<>(Arrays.asList(sharedTwin, lastTwin)), new HashSet<>(interestIndex.getInterestedTwinInstances(stimulusToken)));
+        assertFalse(interestIndex.isInterested(stimulusToken, firstTwin));
+        assertEquals(1, interestIndex.getInterestReferenceCount(stimulusToken, sharedTwin));
+    }
+
+    @Test
+    public void interestIsDroppedWithItsLastReference() {
+        TwinInstanceInterestIndex interestIndex = new TwinInstanceInterestIndex();
+        interestIndex.addInterest(stimulusToken, sharedTwin);
+        interestIndex.addInterest(stimulusToken, sharedTwin);
+        interestIndex.removeInterest(stimulusToken, sharedTwin);
+        assertTrue(interestIndex.isInterested(stimulusToken, sharedTwin));
+
+        interestIndex.removeInterest(stimulusToken, sharedTwin);
+        assertFalse(interestIndex.isInterested(stimulusToken, sharedTwin));
+        assertEquals(0, interestIndex.getInterestedTwinInstanceCount(stimulusToken));
+        assertFalse(interestIndex.getStimulusTokens().contains(stimulusToken), "a stimulus with no interested twin instances should leave the index");
+    }
+
+    @Test
+    public void removingAnInterestThatWasNeverAddedChangesNothing() {
+        TwinInstanceInterestIndex interestIndex = new TwinInstanceInterestIndex();
+        interestIndex.addInterest(stimulusToken, sharedTwin);
+        interestIndex.removeInterests(stimulusToken, Arrays.asList(firstTwin, lastTwin));
+        interestIndex.removeInterest(topic("otherToken"), sharedTwin);
+        assertEquals(Collections.singletonList(sharedTwin), interestIndex.getInterestedTwinInstances(stimulusToken));
+        assertEquals(1, interestIndex.getInterestReferenceCount(stimulusToken, sharedTwin));
+    }
+
+    @Test
+    public void unregisteringABehaviourKeepsTheInterestsOfTheOthers() {
+        InterestOrchestrator orchestrator = new InterestOrchestrator();
+        InterestRules firstBehaviour = interestedIn(firstTwin, sharedTwin);
+        InterestRules secondBehaviour = interestedIn(sharedTwin, lastTwin);
+        orchestrator.registerBehaviourStimulusSubscription(firstBehaviour);
+        orchestrator.registerBehaviourStimulusSubscription(secondBehaviour);
+
+        orchestrator.unregisterBehaviourStimulusSubscription(firstBehaviour);
+        List<DigitalTwinIdentifier> interestedTwins = orchestrator.getInterestedTwinInstances(stimulusToken);
+        assertEquals(new HashSet<>(Arrays.asList(sharedTwin, lastTwin)), new HashSet<>(interestedTwins));
+    }
+
+    @Test
+    public void refreshingABehaviourReplacesRatherThanAddsToItsInterests() {
+        InterestOrchestrator orchestrator = new InterestOrchestrator();
+        InterestRules behaviour = interestedIn(firstTwin, sharedTwin);
+        orchestrator.registerBehaviourStimulusSubscription(behaviour);
+        behaviour.explicitTwinInstances.put(stimulusToken, new HashSet<>(Arrays.asList(sharedTwin, lastTwin)));
+        orchestrator.registerBehaviourStimulusSubscription(behaviour);
+        assertEquals(new HashSet<>(Arrays.asList(sharedTwin, lastTwin)), new HashSet<>(orchestrator.getInterestedTwinInstances(stimulusToken)));
+        assertEquals(1, orchestrator.getStimulusInterestIndex().getInterestReferenceCount(stimulusToken, sharedTwin));
+
+        orchestrator.unregisterBehaviourStimulusSubscription(behaviour);
+        assertTrue(orchestrator.getInterestedTwinInstances(stimulusToken).isEmpty());
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackageIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceActivityQueue;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinPathwayControllerBase;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Measures stimulus throughput with every twin instance active at once and behaviours that block (e.g. on a
+ * terminology lookup) - once in the VIRTUAL_THREADS orchestration mode (the orchestrator's own dispatcher, a thread
+ * per turn up to the concurrency cap) and once in the SCHEDULED_WORKERS mode on a TwinTypeFairScheduler with a fixed
+ * pool of platform worker threads. Both runs drive a real TwinOrchestratorBase, its collaborators supplied by hand,
+ * whose behaviour blocks once per stimulus. No pathway controller is supplied, so no twin leases are taken.
+ *
+ * Not run as part of the tests: run main() from the test classpath, optionally passing the twin instance count, the
+ * stimuli per twin instance, the blocking time per stimulus (in milliseconds), the platform pool size and the
+ * concurrency cap, e.g. "10000 4 20 200 10000". On a JVM without virtual threads the VIRTUAL_THREADS mode runs on its
+ * platform thread fallback, and the benchmark says so.
+ */
+public final class TwinOrchestrationModeBenchmark {
+    private static final int STIMULUS_BATCH_SIZE = 16;
+
+    static class BenchmarkActivityQueue extends TwinInstanceActivityQueue {
+        @Override
+        protected TwinTypeEnum specifyTwinType() {
+            return (TwinTypeEnum.PATIENT_TWIN);
+        }
+
+        @Override
+        protected long specifyCompactionInterval() {
+            return (0L);
+        }
+    }
+
+    static class BenchmarkScheduler extends TwinTypeFairScheduler {
+        private final int workerCount;
+
+        BenchmarkScheduler(int workerCount){
+            this.workerCount = workerCount;
+        }
+
+        @Override
+        protected int specifyWorkerCount() {
+            return (workerCount);
+        }
+    }
+
+    static class BenchmarkOrchestrator extends TwinOrchestratorBase {
+        private final TwinOrchestrationModeEnum orchestrationMode;
+        private final int concurrencyCap;
+        private final long blockMillis;
+        private final CountDownLatch pendingStimuli;
+
+        BenchmarkOrchestrator(TwinOrchestrationModeEnum orchestrationMode, int concurrencyCap, long blockMillis, CountDownLatch pendingStimuli){
+            this.orchestrationMode = orchestrationMode;
+            this.concurrencyCap = concurrencyCap;
+            this.blockMillis = blockMillis;
+            this.pendingStimuli = pendingStimuli;
+        }
+
+        @Override
+        protected TwinPathwayControllerBase specifyPathwayController() {
+            return (null);
+        }
+
+        @Override
+        protected TwinTypeEnum specifyTwinType() {
+            return (TwinTypeEnum.PATIENT_TWIN);
+        }
+
+        @Override
+        protected TwinOrchestrationModeEnum specifyOrchestrationMode() {
+            return (orchestrationMode);
+        }
+
+        @Override
+        protected int specifyVirtualThreadConcurrency() {
+            return (concurrencyCap);
+        }
+
+        @Override
+        protected int specifyStimulusBatchSize() {
+            return (STIMULUS_BATCH_SIZE);
+        }
+
+        @Override
+        protected void processStimulusPackage(DigitalTwinIdentifier twinInstanceIdentifier, StimulusPackage stimulusPackage) {
+            try {
+                Thread.sleep(blockMillis);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted", interrupted);
+            }
+            pendingStimuli.countDown();
+        }
+    }
+
+    private static class RunResult {
+        private final double stimuliPerSecond;
+        private final double elapsedSeconds;
+        private final int peakPlatformThreads;
+
+        RunResult(double stimuliPerSecond, double elapsedSeconds, int peakPlatformThreads){
+            this.stimuliPerSecond = stimuliPerSecond;
+            this.elapsedSeconds = elapsedSeconds;
+            this.peakPlatformThreads = peakPlatformThreads;
+        }
+    }
+
+    private TwinOrchestrationModeBenchmark(){
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int twinCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int stimuliPerTwin = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long blockMillis = args.length > 2 ? Long.parseLong(args[2]) : 20L;
+        int platformPoolSize = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        int concurrencyCap = args.length > 4 ? Integer.parseInt(args[4]) : twinCount;
+        System.out.printf("%d active twin instances, %d stimuli each, %d ms blocking per stimulus (%d cores, Java %d)%n", twinCount, stimuliPerTwin, blockMillis, Runtime.getRuntime().availableProcessors(), Runtime.version().feature());
+
+        ExecutorService probeExecutor = TwinOrchestratorBase.newVirtualThreadExecutor();
+        String dispatchLabel = probeExecutor != null ? "virtual threads" : "platform fallback";
+        if(probeExecutor == null){
+            System.out.println("Virtual threads are not available on this JVM - measuring the VIRTUAL_THREADS mode on its platform thread fallback");
+        } else {
+            probeExecutor.shutdown();
+        }
+        // Warm up both modes before measuring either
+        run(TwinOrchestrationModeEnum.VIRTUAL_THREADS, concurrencyCap, Math.max(twinCount / 10, 1), stimuliPerTwin, blockMillis);
+        run(TwinOrchestrationModeEnum.SCHEDULED_WORKERS, platformPoolSize, Math.max(twinCount / 10, 1), stimuliPerTwin, blockMillis);
+        RunResult dispatchResult = run(TwinOrchestrationModeEnum.VIRTUAL_THREADS, concurrencyCap, twinCount, stimuliPerTwin, blockMillis);
+        RunResult fixedResult = run(TwinOrchestrationModeEnum.SCHEDULED_WORKERS, platformPoolSize, twinCount, stimuliPerTwin, blockMillis);
+        System.out.printf("VIRTUAL_THREADS (%s, cap %d): %,.0f stimuli per second, %.2f s, peak %d platform threads%n", dispatchLabel, concurrencyCap, dispatchResult.stimuliPerSecond, dispatchResult.elapsedSeconds, dispatchResult.peakPlatformThreads);
+        System.out.printf("SCHEDULED_WORKERS (%d platform workers): %,.0f stimuli per second, %.2f s, peak %d platform threads%n", platformPoolSize, fixedResult.stimuliPerSecond, fixedResult.elapsedSeconds, fixedResult.peakPlatformThreads);
+        System.out.printf("VIRTUAL_THREADS throughput: x%.2f the fixed pool's%n", dispatchResult.stimuliPerSecond / fixedResult.stimuliPerSecond);
+    }
+
+    /**
+     * Queues all of the stimuli up front, so every twin instance is on the ready set at once, then starts the
+     * orchestrator and waits until its behaviour has processed them all. Each run has its own orchestrator (and, for
+     * SCHEDULED_WORKERS, its own scheduler), shut down before the next run, so that the peak thread counts are the
+     * run's own.
+     *
+     * @param concurrency the concurrency cap (VIRTUAL_THREADS) or the number of scheduler workers (SCHEDULED_WORKERS)
+     */
+    private static RunResult run(TwinOrchestrationModeEnum orchestrationMode, int concurrency, int twinCount, int stimuliPerTwin, long blockMillis) throws InterruptedException {
+        BenchmarkActivityQueue activityQueue = new BenchmarkActivityQueue();
+        for(int twinIndex = 0; twinIndex < twinCount; twinIndex++){
+            DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+            for(int stimulusIndex = 0; stimulusIndex < stimuliPerTwin; stimulusIndex++){
+                activityQueue.addStimulus2Queue(twin, new StimulusPackage(new StimulusPackageIdentifier(twinIndex + "-" + stimulusIndex), null, null, null));
+            }
+        }
+        CountDownLatch pendingStimuli = new CountDownLatch(twinCount * stimuliPerTwin);
+        BenchmarkOrchestrator orchestrator = new BenchmarkOrchestrator(orchestrationMode, concurrency, blockMillis, pendingStimuli);
+        BenchmarkScheduler scheduler = null;
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        threadMXBean.resetPeakThreadCount();
+        long startTime = System.nanoTime();
+        if(orchestrationMode == TwinOrchestrationModeEnum.SCHEDULED_WORKERS){
+            scheduler = new BenchmarkScheduler(concurrency);
+            scheduler.initialise();
+        }
+        orchestrator.startOrchestrating(activityQueue, null, scheduler);
+        pendingStimuli.await();
+        double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+        int peakPlatformThreads = threadMXBean.getPeakThreadCount();
+        orchestrator.shutdown();
+        if(scheduler != null){
+            scheduler.shutdown();
+        }
+        return(new RunResult(twinCount * stimuliPerTwin / elapsedSeconds, elapsedSeconds, peakPlatformThreads));
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinorchestrator.common;
+
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackage;
+import net.fhirfactory.pegacorn.ladon.statespace.stimuli.model.StimulusPackageIdentifier;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathway.twinactivityqueue.common.TwinInstanceActivityQueue;
+import net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common.TwinTypeEnum;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TwinTypeFairSchedulerTest {
+    private static final long WORK_TIME = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private TwinTypeFairScheduler scheduler;
+
+    static class SingleWorkerScheduler extends TwinTypeFairScheduler {
+        @Override
+        protected int specifyWorkerCount() {
+            return (1);
+        }
+    }
+
+    static class FourWorkerScheduler extends TwinTypeFairScheduler {
+        @Override
+        protected int specifyWorkerCount() {
+            return (4);
+        }
+    }
+
+    static class SchedulerActivityQueue extends TwinInstanceActivityQueue {
+        private final TwinTypeEnum twinType;
+
+        SchedulerActivityQueue(TwinTypeEnum twinType) {
+            this.twinType = twinType;
+        }
+
+        @Override
+        protected TwinTypeEnum specifyTwinType() {
+            // Called from the super constructor, before our field is set
+            return (twinType != null ? twinType : TwinTypeEnum.PATIENT_TWIN);
+        }
+
+        @Override
+        protected long specifyCompactionInterval() {
+            return (0L);
+        }
+    }
+
+    /**
+     * Keeps a twin instance permanently ready (its stimulus is never taken), and spends WORK_TIME on each turn.
+     */
+    private static DigitalTwinIdentifier keepBusy(TwinInstanceActivityQueue activityQueue, String id) {
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        activityQueue.addStimulus2Queue(twin, new StimulusPackage(new StimulusPackageIdentifier(id), null, null, null));
+        return (twin);
+    }
+
+    private static boolean spin(DigitalTwinIdentifier twin) {
+        long deadline = System.nanoTime() + WORK_TIME;
+        while (System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        return (true);
+    }
+
+    private long workerTime(TwinTypeEnum twinType) {
+        return (scheduler.getWorkerTimeByTwinType().get(twinType));
+    }
+
+    @AfterEach
+    public void stopScheduler() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void workerTimeIsSharedInProportionToWeight() throws InterruptedException {
+        scheduler = new SingleWorkerScheduler();
+        scheduler.initialise();
+        SchedulerActivityQueue patientQueue = new SchedulerActivityQueue(TwinTypeEnum.PATIENT_TWIN);
+        SchedulerActivityQueue practitionerQueue = new SchedulerActivityQueue(TwinTypeEnum.PRACTITIONER_TWIN);
+        keepBusy(patientQueue, "p1");
+        keepBusy(practitionerQueue, "r1");
+        scheduler.register(TwinTypeEnum.PATIENT_TWIN, patientQueue, TwinTypeFairSchedulerTest::spin, 3);
+        scheduler.register(TwinTypeEnum.PRACTITIONER_TWIN, practitionerQueue, TwinTypeFairSchedulerTest::spin, 1);
+        Thread.sleep(500);
+        double share = (double) workerTime(TwinTypeEnum.PATIENT_TWIN) / workerTime(TwinTypeEnum.PRACTITIONER_TWIN);
+        assertTrue(share > 2.0 && share < 4.5, "a 3:1 weighting gave a " + share + ":1 share of worker time");
+    }
+
+    @Test
+    public void idleTwinTypeRejoinsWithoutBankedCredit() throws InterruptedException {
+        scheduler = new SingleWorkerScheduler();
+        scheduler.initialise();
+        SchedulerActivityQueue patientQueue = new SchedulerActivityQueue(TwinTypeEnum.PATIENT_TWIN);
+        SchedulerActivityQueue practitionerQueue = new SchedulerActivityQueue(TwinTypeEnum.PRACTITIONER_TWIN);
+        keepBusy(patientQueue, "p1");
+        scheduler.register(TwinTypeEnum.PATIENT_TWIN, patientQueue, TwinTypeFairSchedulerTest::spin, 1);
+        scheduler.register(TwinTypeEnum.PRACTITIONER_TWIN, practitionerQueue, TwinTypeFairSchedulerTest::spin, 1);
+        // The practitioner twin type sits idle while the patient twin type has the worker to itself
+        Thread.sleep(400);
+        assertEquals(0L, workerTime(TwinTypeEnum.PRACTITIONER_TWIN));
+        long patientTimeBefore = workerTime(TwinTypeEnum.PATIENT_TWIN);
+        keepBusy(practitionerQueue, "r1");
+        Thread.sleep(200);
+        long patientTime = workerTime(TwinTypeEnum.PATIENT_TWIN) - patientTimeBefore;
+        long practitionerTime = workerTime(TwinTypeEnum.PRACTITIONER_TWIN);
+        // Had it banked its idle time it would have had the worker to itself for the whole window
+        assertTrue(practitionerTime > 0L, "the re-joining twin type was not served");
+        assertTrue(patientTime * 3 > practitionerTime, "the re-joining twin type took " + practitionerTime + "ns against " + patientTime + "ns");
+    }
+
+    @Test
+    public void idleWorkersParkUntilATwinIsReady() throws InterruptedException {
+        // So that the worker found below is ours, not one of a scheduler that is still shutting down
+        while (findWorker() != null) {
+            Thread.sleep(5);
+        }
+        scheduler = new SingleWorkerScheduler();
+        scheduler.initialise();
+        SchedulerActivityQueue patientQueue = new SchedulerActivityQueue(TwinTypeEnum.PATIENT_TWIN);
+        scheduler.register(TwinTypeEnum.PATIENT_TWIN, patientQueue, twin -> {
+            patientQueue.drainStimuli(twin, 10);
+            return (true);
+        }, 1);
+        Thread worker = findWorker();
+        awaitState(worker, Thread.State.WAITING);
+        keepBusy(patientQueue, "p1");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (scheduler.getServedTwinCountByTwinType().get(TwinTypeEnum.PATIENT_TWIN) == 0L) {
+            assertTrue(System.nanoTime() < deadline, "the parked worker was not woken");
+            Thread.sleep(5);
+        }
+        awaitState(worker, Thread.State.WAITING);
+    }
+
+    @Test
+    public void twinsReadyAtRegistrationAreSpreadAcrossTheParkedWorkers() throws InterruptedException {
+        while (findWorker() != null) {
+            Thread.sleep(5);
+        }
+        scheduler = new FourWorkerScheduler();
+        scheduler.initialise();
+        for (Thread worker : findWorkers()) {
+            awaitState(worker, Thread.State.WAITING);
+        }
+        SchedulerActivityQueue patientQueue = new SchedulerActivityQueue(TwinTypeEnum.PATIENT_TWIN);
+        for (int twinIndex = 0; twinIndex < 8; twinIndex++) {
+            keepBusy(patientQueue, "p" + twinIndex);
+        }
+        // Each turn holds its worker until all four workers are in a turn at once
+        CountDownLatch busyWorkers = new CountDownLatch(4);
+        scheduler.register(TwinTypeEnum.PATIENT_TWIN, patientQueue, twin -> {
+            busyWorkers.countDown();
+            try {
+                busyWorkers.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return (true);
+        }, 1);
+        assertTrue(busyWorkers.await(10, TimeUnit.SECONDS), "only " + (4 - busyWorkers.getCount()) + " of the 4 workers were woken");
+    }
+
+    private static List<Thread> findWorkers() {
+        List<Thread> workers = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("TwinTypeFairScheduler-Worker-") && thread.isAlive()) {
+                workers.add(thread);
+            }
+        }
+        return (workers);
+    }
+
+    private static Thread findWorker() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("TwinTypeFairScheduler-Worker-") && thread.isAlive()) {
+                return (thread);
+            }
+        }
+        return (null);
+    }
+
+    private static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (thread.getState() != state) {
+            assertTrue(System.nanoTime() < deadline, "the worker is " + thread.getState());
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TwinLockServiceBaseTest {
+    private static final long GRACE_PERIOD = 100L;
+
+    private final TwinPathwayControllerBaseTest.TestPathwayController controllerA = new TwinPathwayControllerBaseTest.TestPathwayController();
+    private final TwinPathwayControllerBaseTest.TestPathwayController controllerB = new TwinPathwayControllerBaseTest.TestPathwayController();
+
+    /**
+     * Owns twin instances as a real (distributed) service would, but never forwards - the tests only lock the twin
+     * instances each node owns.
+     */
+    static class TestLockService extends TwinLockServiceBase {
+        // The node name is asked for by the superclass constructor, so is handed over via the constructing thread
+        private static final ThreadLocal<String> CONSTRUCTING_NODE_NAME = new ThreadLocal<>();
+
+        @Override
+        protected String specifyLocalNodeName() {
+            return (CONSTRUCTING_NODE_NAME.get());
+        }
+
+        @Override
+        protected long specifyOwnershipGracePeriod() {
+            return (GRACE_PERIOD);
+        }
+
+        @Override
+        public TwinLockLease tryLock(String pathwayName, DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<TwinLockLease> lockAsync(String pathwayName, DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier, TwinLockModeEnum lockMode, long leaseDuration, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public TwinLockLease renewLease(String pathwayName, TwinLockLease lease, long leaseDuration, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean unlock(String pathwayName, TwinLockLease lease) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void unlockTwinInstance(String pathwayName, DigitalTwinIdentifier twinIdentifier) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isTwinLocked(String pathwayName, DigitalTwinIdentifier twinIdentifier) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @AfterEach
+    public void stopControllers() {
+        controllerA.shutdown();
+        controllerB.shutdown();
+    }
+
+    private static TestLockService newLockService(String nodeName) {
+        TestLockService.CONSTRUCTING_NODE_NAME.set(nodeName);
+        try {
+            return (new TestLockService());
+        } finally {
+            TestLockService.CONSTRUCTING_NODE_NAME.remove();
+        }
+    }
+
+    private static DigitalTwinIdentifier twinOwnedBy(TwinLockServiceBase lockService, String pathwayName, String ownerNodeName) {
+        while (true) {
+            DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+            if (lockService.getOwnerNodeName(pathwayName, twin).equals(ownerNodeName)) {
+                return (twin);
+            }
+        }
+    }
+
+    @Test
+    public void fencingTokenFloorRisesWithTheOwnershipEpoch() {
+        TestLockService lockService = newLockService("a");
+        assertEquals("a", lockService.getLocalNodeName());
+        lockService.setClusterNodeNames(Arrays.asList("a", "b"), 3L);
+        long floor = lockService.getFencingTokenFloor();
+        assertTrue(floor > 0L);
+        lockService.setClusterNodeNames(Collections.singletonList("a"), 2L);
+        assertEquals(floor, lockService.getFencingTokenFloor());
+        assertEquals(Arrays.asList("a", "b"), lockService.getClusterNodeNames());
+        lockService.setClusterNodeNames(Collections.singletonList("a"), 4L);
+        assertTrue(lockService.getFencingTokenFloor() > floor);
+    }
+
+    @Test
+    public void onlyNewlyOwnedTwinInstancesWaitOutTheGracePeriod() throws InterruptedException {
+        TestLockService lockService = newLockService("a");
+        String pathwayName = controllerA.getPathwayName();
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        // Nothing is settled until a node has been up for the grace period
+        assertTrue(lockService.getOwnershipSettleDelay(pathwayName, twin, TimeUnit.MILLISECONDS) > 0L);
+        lockService.setClusterNodeNames(Arrays.asList("a", "b"), 1L);
+        Thread.sleep(GRACE_PERIOD * 2);
+        DigitalTwinIdentifier keptTwin = twinOwnedBy(lockService, pathwayName, "a");
+        DigitalTwinIdentifier gainedTwin = twinOwnedBy(lockService, pathwayName, "b");
+        assertEquals(0L, lockService.getOwnershipSettleDelay(pathwayName, keptTwin, TimeUnit.NANOSECONDS));
+
+        lockService.setClusterNodeNames(Collections.singletonList("a"), 2L);
+        assertTrue(lockService.isLocallyOwned(pathwayName, gainedTwin));
+        assertEquals(0L, lockService.getOwnershipSettleDelay(pathwayName, keptTwin, TimeUnit.NANOSECONDS));
+        assertTrue(lockService.getOwnershipSettleDelay(pathwayName, gainedTwin, TimeUnit.NANOSECONDS) > 0L);
+        Thread.sleep(GRACE_PERIOD * 2);
+        assertEquals(0L, lockService.getOwnershipSettleDelay(pathwayName, gainedTwin, TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void fencingTokensKeepIncreasingAsATwinInstanceChangesOwner() throws Exception {
+        TestLockService lockServiceA = newLockService("a");
+        TestLockService lockServiceB = newLockService("b");
+        controllerA.setLockService(lockServiceA);
+        controllerB.setLockService(lockServiceB);
+        String pathwayName = controllerA.getPathwayName();
+        lockServiceA.setClusterNodeNames(Arrays.asList("a", "b"), 1L);
+        lockServiceB.setClusterNodeNames(Arrays.asList("a", "b"), 1L);
+        Thread.sleep(GRACE_PERIOD * 2);
+        DigitalTwinIdentifier twin = twinOwnedBy(lockServiceA, pathwayName, "a");
+
+        long lastTokenOnA = 0L;
+        for (int i = 0; i < 1000; i++) {
+            TwinLockLease lease = controllerA.tryLock(twin, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+            assertTrue(lease.getFencingToken() > lastTokenOnA);
+            lastTokenOnA = lease.getFencingToken();
+            controllerA.unlock(lease);
+        }
+
+        // Node a leaves: b takes the twin instance over, but must let a's leases run out first
+        lockServiceB.setClusterNodeNames(Collections.singletonList("b"), 2L);
+        assertTrue(controllerB.isLocallyOwned(twin));
+        assertFalse(controllerB.tryLock(twin, new BehaviourIdentifier(), 30, TimeUnit.SECONDS).isGranted());
+        CompletableFuture<TwinLockLease> leaseFuture = controllerB.lockAsync(twin, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        assertFalse(leaseFuture.isDone());
+        TwinLockLease leaseOnB = leaseFuture.get(10, TimeUnit.SECONDS);
+        assertTrue(leaseOnB.getFencingToken() > lastTokenOnA);
+    }
+}
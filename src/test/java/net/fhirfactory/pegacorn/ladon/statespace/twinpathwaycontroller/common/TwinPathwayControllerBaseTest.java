@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TwinPathwayControllerBaseTest {
+    private TestPathwayController pathwayController = new TestPathwayController();
+
+    static class TestPathwayController extends TwinPathwayControllerBase {
+        @Override
+        protected TwinResourceTypeEnum specifyTwinResourceType() {
+            return (TwinResourceTypeEnum.PATIENT_RESOURCE);
+        }
+
+        @Override
+        protected TwinRegentResourceTypeEnum specifyTwinRegentType() {
+            return (TwinRegentResourceTypeEnum.PATIENT_RESOURCE);
+        }
+    }
+
+    @AfterEach
+    public void stopController() {
+        pathwayController.shutdown();
+    }
+
+    @Test
+    public void unlockHandsTheTwinInstanceToTheWaitersInOrder() throws Exception {
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        BehaviourIdentifier first = new BehaviourIdentifier();
+        BehaviourIdentifier second = new BehaviourIdentifier();
+        BehaviourIdentifier third = new BehaviourIdentifier();
+        TwinLockLease firstLease = pathwayController.tryLock(twin, first, 30, TimeUnit.SECONDS);
+        assertTrue(firstLease.isGranted());
+        CompletableFuture<TwinLockLease> secondLease = pathwayController.lockAsync(twin, second, 30, TimeUnit.SECONDS);
+        CompletableFuture<TwinLockLease> thirdLease = pathwayController.lockAsync(twin, third, 30, TimeUnit.SECONDS);
+        assertFalse(secondLease.isDone());
+        assertEquals(2, pathwayController.getWaitingBehaviourCount(twin));
+        assertFalse(pathwayController.tryLock(twin, new BehaviourIdentifier(), 30, TimeUnit.SECONDS).isGranted());
+
+        assertTrue(pathwayController.unlock(firstLease));
+        assertTrue(secondLease.isDone());
+        assertFalse(thirdLease.isDone());
+        assertSame(second, pathwayController.getTwinActiveBehaviour(twin));
+        assertTrue(secondLease.get().getFencingToken() > firstLease.getFencingToken());
+
+        assertTrue(pathwayController.unlock(secondLease.get()));
+        assertSame(third, pathwayController.getTwinActiveBehaviour(twin));
+        assertFalse(pathwayController.unlock(firstLease));
+    }
+
+    @Test
+    public void waiterThatGaveUpIsPassedOver() throws Exception {
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        TwinLockLease heldLease = pathwayController.tryLock(twin, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        CompletableFuture<TwinLockLease> abandonedLease = pathwayController.lockAsync(twin, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        BehaviourIdentifier patient = new BehaviourIdentifier();
+        CompletableFuture<TwinLockLease> patientLease = pathwayController.lockAsync(twin, patient, 30, TimeUnit.SECONDS);
+        abandonedLease.cancel(false);
+
+        pathwayController.unlock(heldLease);
+        assertTrue(patientLease.isDone());
+        assertSame(patient, pathwayController.getTwinActiveBehaviour(twin));
+        assertEquals(1, pathwayController.getTwinActiveBehaviours(twin).size());
+    }
+
+    @Test
+    public void expiredLeaseIsHandedToTheWaiterOnTheLockScheduler() throws Exception {
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        AtomicReference<String> handOffThread = new AtomicReference<>();
+        BiConsumer<TwinLockLease, Throwable> handOffRecorder = (lease, failure) -> handOffThread.set(Thread.currentThread().getName());
+        TwinLockLease lapsingLease = pathwayController.tryLock(twin, new BehaviourIdentifier(), 250, TimeUnit.MILLISECONDS);
+        assertTrue(lapsingLease.isGranted());
+        BehaviourIdentifier waiting = new BehaviourIdentifier();
+        CompletableFuture<TwinLockLease> waitingLease = pathwayController.lockAsync(twin, waiting, 30, TimeUnit.SECONDS);
+        waitingLease.whenComplete(handOffRecorder);
+        assertFalse(waitingLease.isDone());
+
+        // Polled rather than get(), as a thread blocked in get() may run the completion callbacks itself
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (handOffThread.get() == null) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+        TwinLockLease handedOffLease = waitingLease.getNow(null);
+        assertTrue(handedOffLease.isGranted());
+        assertSame(waiting, handedOffLease.getBehaviourIdentifier());
+        assertTrue(handedOffLease.getFencingToken() > lapsingLease.getFencingToken());
+        assertEquals(1L, pathwayController.getLeaseExpiryCount());
+        assertTrue(handOffThread.get().endsWith("-LockScheduler"), handOffThread.get());
+        assertFalse(pathwayController.unlock(lapsingLease));
+        assertFalse(pathwayController.renewLease(lapsingLease, 30, TimeUnit.SECONDS).isGranted());
+    }
+
+    @Test
+    public void renewedLeaseIsNotHandedOn() throws Exception {
+        DigitalTwinIdentifier twin = new DigitalTwinIdentifier();
+        BehaviourIdentifier holder = new BehaviourIdentifier();
+        TwinLockLease heldLease = pathwayController.tryLock(twin, holder, 100, TimeUnit.MILLISECONDS);
+        CompletableFuture<TwinLockLease> waitingLease = pathwayController.lockAsync(twin, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        TwinLockLease renewedLease = pathwayController.renewLease(heldLease, 30, TimeUnit.SECONDS);
+        assertTrue(renewedLease.isGranted());
+        assertEquals(heldLease.getFencingToken(), renewedLease.getFencingToken());
+
+        Thread.sleep(300);
+        assertFalse(waitingLease.isDone());
+        assertSame(holder, pathwayController.getTwinActiveBehaviour(twin));
+        pathwayController.unlock(renewedLease);
+        assertTrue(waitingLease.isDone());
+    }
+
+    @Test
+    public void expiredLeasesArePurgedOffTheLockingPath() throws Exception {
+        DigitalTwinIdentifier lapsedTwin = new DigitalTwinIdentifier();
+        DigitalTwinIdentifier heldTwin = new DigitalTwinIdentifier();
+        pathwayController.tryLock(lapsedTwin, new BehaviourIdentifier(), 1, TimeUnit.MILLISECONDS);
+        pathwayController.tryLock(heldTwin, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        Thread.sleep(20);
+        assertFalse(pathwayController.isTwinLocked(lapsedTwin));
+
+        assertEquals(1, pathwayController.purgeExpiredLeases());
+        assertEquals(1L, pathwayController.getLeaseExpiryCount());
+        assertTrue(pathwayController.isTwinLocked(heldTwin));
+        assertEquals(0, pathwayController.purgeExpiredLeases());
+    }
+}
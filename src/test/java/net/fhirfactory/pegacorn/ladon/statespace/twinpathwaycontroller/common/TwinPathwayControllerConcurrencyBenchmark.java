@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures lock call throughput on a pathway controller with several threads each working on their own twin
+ * instances - once with every call serialised on the controller (as the container's default WRITE lock did, before the
+ * controllers were made bean-managed) and once with the calls made straight on the controller.
+ *
+ * Not run as part of the tests: run main() from the test classpath, optionally passing the thread count, the twin
+ * instances per thread and the measurement time (in seconds), e.g. "8 1024 10". The speed-up grows with the cores
+ * available.
+ */
+public final class TwinPathwayControllerConcurrencyBenchmark {
+    private static final long LEASE_DURATION = 30000L;
+
+    private interface LockCalls {
+        void lockCheckUnlock(DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier);
+    }
+
+    private TwinPathwayControllerConcurrencyBenchmark(){
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int twinsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int measurementSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        System.out.printf("%d threads, %d twin instances each, %d s per run (%d cores)%n", threadCount, twinsPerThread, measurementSeconds, Runtime.getRuntime().availableProcessors());
+
+        TwinPathwayControllerBaseTest.TestPathwayController serialisedController = new TwinPathwayControllerBaseTest.TestPathwayController();
+        TwinPathwayControllerBaseTest.TestPathwayController concurrentController = new TwinPathwayControllerBaseTest.TestPathwayController();
+        try {
+            LockCalls serialisedCalls = (twin, behaviour) -> {
+                synchronized (serialisedController) {
+                    lockCheckUnlock(serialisedController, twin, behaviour);
+                }
+            };
+            LockCalls concurrentCalls = (twin, behaviour) -> lockCheckUnlock(concurrentController, twin, behaviour);
+            // Warm up both paths before measuring either
+            run(serialisedCalls, threadCount, twinsPerThread, 1);
+            run(concurrentCalls, threadCount, twinsPerThread, 1);
+            double serialisedRate = run(serialisedCalls, threadCount, twinsPerThread, measurementSeconds);
+            double concurrentRate = run(concurrentCalls, threadCount, twinsPerThread, measurementSeconds);
+            System.out.printf("container-managed (WRITE lock): %,.0f lock/check/unlock per second%n", serialisedRate);
+            System.out.printf("bean-managed:                   %,.0f lock/check/unlock per second (x%.2f)%n", concurrentRate, concurrentRate / serialisedRate);
+        } finally {
+            serialisedController.shutdown();
+            concurrentController.shutdown();
+        }
+    }
+
+    private static void lockCheckUnlock(TwinPathwayControllerBase pathwayController, DigitalTwinIdentifier twinIdentifier, BehaviourIdentifier behaviourIdentifier){
+        TwinLockLease lease = pathwayController.tryLock(twinIdentifier, behaviourIdentifier, LEASE_DURATION, TimeUnit.MILLISECONDS);
+        if(!pathwayController.isTwinLocked(twinIdentifier) || !pathwayController.unlock(lease)){
+            throw new IllegalStateException("Lost the lease on an uncontended twin instance");
+        }
+    }
+
+    /**
+     * @return the lock/check/unlock rounds completed per second, across all of the threads
+     */
+    private static double run(LockCalls lockCalls, int threadCount, int twinsPerThread, int seconds) throws InterruptedException {
+        LongAdder completedRounds = new LongAdder();
+        CountDownLatch startSignal = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        List<Thread> workers = new ArrayList<>();
+        for(int threadIndex = 0; threadIndex < threadCount; threadIndex++){
+            DigitalTwinIdentifier[] twins = new DigitalTwinIdentifier[twinsPerThread];
+            for(int twinIndex = 0; twinIndex < twinsPerThread; twinIndex++){
+                twins[twinIndex] = new DigitalTwinIdentifier();
+            }
+            BehaviourIdentifier behaviour = new BehaviourIdentifier();
+            Thread worker = new Thread(() -> {
+                try {
+                    startSignal.await();
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                int twinIndex = 0;
+                long rounds = 0;
+                while((rounds & 0xFF) != 0 || System.nanoTime() - deadline[0] < 0){
+                    lockCalls.lockCheckUnlock(twins[twinIndex], behaviour);
+                    twinIndex = twinIndex + 1 == twins.length ? 0 : twinIndex + 1;
+                    rounds += 1;
+                }
+                completedRounds.add(rounds);
+            }, "LockBenchmark-" + threadIndex);
+            workers.add(worker);
+            worker.start();
+        }
+        long startTime = System.nanoTime();
+        deadline[0] = startTime + TimeUnit.SECONDS.toNanos(seconds);
+        startSignal.countDown();
+        for(Thread worker: workers){
+            worker.join();
+        }
+        double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+        return(completedRounds.sum() / elapsedSeconds);
+    }
+}
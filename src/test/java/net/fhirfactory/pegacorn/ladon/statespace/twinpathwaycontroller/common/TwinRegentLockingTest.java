@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.statespace.twinpathwaycontroller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.behaviours.BehaviourIdentifier;
+import net.fhirfactory.pegacorn.ladon.model.twin.DigitalTwinIdentifier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TwinRegentLockingTest {
+    private final RegentController personController = new RegentController();
+    private final DependentController patientController = new DependentController();
+    private final DigitalTwinIdentifier person = new DigitalTwinIdentifier();
+    private final DigitalTwinIdentifier patient = new DigitalTwinIdentifier();
+
+    static class RegentController extends TwinPathwayControllerBase {
+        @Override
+        protected TwinResourceTypeEnum specifyTwinResourceType() {
+            return (TwinResourceTypeEnum.PERSON_RESOURCE);
+        }
+
+        @Override
+        protected TwinRegentResourceTypeEnum specifyTwinRegentType() {
+            return (TwinRegentResourceTypeEnum.PERSON_RESOURCE);
+        }
+    }
+
+    static class DependentController extends TwinPathwayControllerBase {
+        @Override
+        protected TwinResourceTypeEnum specifyTwinResourceType() {
+            return (TwinResourceTypeEnum.PATIENT_RESOURCE);
+        }
+
+        @Override
+        protected TwinRegentResourceTypeEnum specifyTwinRegentType() {
+            return (TwinRegentResourceTypeEnum.PERSON_RESOURCE);
+        }
+    }
+
+    public TwinRegentLockingTest() {
+        patientController.setRegentController(personController);
+        patientController.registerRegentTwinInstance(patient, person);
+    }
+
+    @AfterEach
+    public void stopControllers() {
+        patientController.shutdown();
+        personController.shutdown();
+    }
+
+    @Test
+    public void lockingADependentTakesAnIntentionLockOnItsRegent() {
+        TwinLockLease lease = patientController.tryLock(patient, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        assertTrue(lease.isGranted());
+        assertNotNull(lease.getRegentLease());
+        assertSame(person, lease.getRegentLease().getTwinIdentifier());
+        assertEquals(TwinLockModeEnum.INTENTION_EXCLUSIVE, lease.getRegentLease().getLockMode());
+        assertFalse(personController.tryLock(person, new BehaviourIdentifier(), 30, TimeUnit.SECONDS).isGranted());
+
+        TwinLockLease renewedLease = patientController.renewLease(lease, 60, TimeUnit.SECONDS);
+        assertTrue(renewedLease.isGranted());
+        assertEquals(lease.getRegentLease().getFencingToken(), renewedLease.getRegentLease().getFencingToken());
+
+        assertTrue(patientController.unlock(renewedLease));
+        assertFalse(patientController.isTwinLocked(patient));
+        assertFalse(personController.isTwinLocked(person));
+    }
+
+    @Test
+    public void dependentIsRefusedWhileItsRegentIsHeld() {
+        TwinLockLease regentLease = personController.tryLock(person, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        TwinLockLease refusedLease = patientController.tryLock(patient, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        assertFalse(refusedLease.isGranted());
+        assertFalse(patientController.isTwinLocked(patient));
+
+        personController.unlock(regentLease);
+        assertTrue(patientController.tryLock(patient, new BehaviourIdentifier(), 30, TimeUnit.SECONDS).isGranted());
+    }
+
+    @Test
+    public void dependentWaitsForItsRegentToBeReleased() throws Exception {
+        TwinLockLease regentLease = personController.tryLock(person, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        BehaviourIdentifier waiting = new BehaviourIdentifier();
+        CompletableFuture<TwinLockLease> leaseFuture = patientController.lockAsync(patient, waiting, 30, TimeUnit.SECONDS);
+        assertFalse(leaseFuture.isDone());
+        assertFalse(patientController.isTwinLocked(patient));
+
+        personController.unlock(regentLease);
+        TwinLockLease lease = leaseFuture.get(10, TimeUnit.SECONDS);
+        assertSame(waiting, lease.getBehaviourIdentifier());
+        assertSame(waiting, personController.getTwinActiveBehaviour(person));
+        assertTrue(patientController.unlock(lease));
+        assertFalse(personController.isTwinLocked(person));
+    }
+
+    @Test
+    public void abandonedWaitForARegentReleasesNothingItDidNotHold() {
+        TwinLockLease regentLease = personController.tryLock(person, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        CompletableFuture<TwinLockLease> leaseFuture = patientController.lockAsync(patient, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        leaseFuture.cancel(false);
+
+        personController.unlock(regentLease);
+        assertFalse(personController.isTwinLocked(person));
+        assertFalse(patientController.isTwinLocked(patient));
+    }
+
+    @Test
+    public void dependentsOfOneRegentAreLockedIndependently() {
+        DigitalTwinIdentifier otherPatient = new DigitalTwinIdentifier();
+        patientController.registerRegentTwinInstance(otherPatient, person);
+        TwinLockLease lease = patientController.tryLock(patient, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        TwinLockLease otherLease = patientController.tryLock(otherPatient, new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        assertTrue(lease.isGranted());
+        assertTrue(otherLease.isGranted());
+        assertEquals(2, personController.getTwinActiveBehaviours(person).size());
+
+        patientController.unlock(lease);
+        assertTrue(personController.isTwinLocked(person));
+        patientController.unlock(otherLease);
+        assertFalse(personController.isTwinLocked(person));
+    }
+
+    @Test
+    public void lockSetTakesOneIntentionLockForTheRegent() {
+        TwinLockSet lockSet = TwinLockSet.tryLockAll(Arrays.asList(new TwinLockRequest(patientController, patient)), new BehaviourIdentifier(), 30, TimeUnit.SECONDS);
+        assertTrue(lockSet.isGranted());
+        assertEquals(2, lockSet.getLeases().size());
+        assertEquals(1, personController.getTwinActiveBehaviours(person).size());
+        for (TwinLockLease lease : lockSet.getLeases()) {
+            assertNull(lease.getRegentLease());
+        }
+        lockSet.unlockAll();
+        assertFalse(personController.isTwinLocked(person));
+        assertFalse(patientController.isTwinLocked(patient));
+    }
+}